@@ -13,6 +13,11 @@ xq
     | xq ',' xq                                                                # xqPair
     | '<' Identifier '>' '{' xq '}' '</' Identifier '>'                        # xqTag
     | 'join' '(' xq ',' xq ',' tagList ',' tagList ')'                         # xqJoin
+    | 'semijoin' '(' xq ',' xq ',' tagList ',' tagList ')'                     # xqSemiJoin
+    | 'antijoin' '(' xq ',' xq ',' tagList ',' tagList ')'                     # xqAntiJoin
+    | 'groupjoin' '(' xq ',' xq ',' tagList ',' tagList ')'                    # xqGroupJoin
+    | 'rank' '(' xq ',' Identifier ')'                                         # xqRank
+    | 'sort' '(' xq ',' tagList ')'                                            # xqSort
     | letClause xq                                                             # xqLet
     | forClause letClause? whereClause? returnClause                           # xqFLWR
     ;
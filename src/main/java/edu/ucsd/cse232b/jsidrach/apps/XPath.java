@@ -23,7 +23,7 @@ public class XPath {
         // Print the result of executing the xpath query
         try {
             FileInputStream input = new FileInputStream(args[0]);
-            System.out.print(IO.NodesToString(XPathEngine.Query(input), true));
+            IO.WriteNodes(XPathEngine.Query(input), true, System.out);
         } catch (Exception e) {
             e.printStackTrace();
         }
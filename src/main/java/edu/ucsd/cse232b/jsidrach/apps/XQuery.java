@@ -20,10 +20,10 @@ public class XQuery {
             System.out.println("java -jar <jar_file> <xquery_query>");
             return;
         }
-        // Print the result of executing the xquery query
+        // Print the result of executing the xquery query, as the result nodes are produced
         try {
             FileInputStream input = new FileInputStream(args[0]);
-            System.out.print(IO.NodesToString(XQueryEngine.Query(input, true), false));
+            IO.WriteNodes(XQueryEngine.Iterate(input, true), System.out);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -3,6 +3,8 @@ package edu.ucsd.cse232b.jsidrach.apps;
 import edu.ucsd.cse232b.jsidrach.utils.IO;
 import edu.ucsd.cse232b.jsidrach.utils.XQueryEngine;
 import edu.ucsd.cse232b.jsidrach.utils.XQueryOptimizerEngine;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.tree.ParseTree;
 
 import java.io.FileInputStream;
 
@@ -25,8 +27,8 @@ public class XQueryOptimized {
         // and the intermediate rewritten queries into stderr
         try {
             FileInputStream input = new FileInputStream(args[0]);
-            String rewrittenQuery = XQueryOptimizerEngine.Optimize(input, true);
-            System.out.print(IO.NodesToString(XQueryEngine.Query(rewrittenQuery, true), false));
+            ParseTree rewrittenQuery = XQueryOptimizerEngine.Compile(new ANTLRInputStream(input), true);
+            IO.WriteNodes(XQueryEngine.Iterate(rewrittenQuery, true), System.out);
         } catch (Exception e) {
             e.printStackTrace();
         }
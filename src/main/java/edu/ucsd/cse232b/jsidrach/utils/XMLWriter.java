@@ -0,0 +1,861 @@
+package edu.ucsd.cse232b.jsidrach.utils;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.BufferedWriter;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * XMLWriter - Streaming serializer of lists of nodes into their XML representation
+ * <p>
+ * Nodes are written directly to the output through a reusable buffer, as they are produced,
+ * without building intermediate strings nor running a Transformer per node<br>
+ * The output is the same as the one of the identity Transformer of the JDK (with UTF-8 encoding,
+ * standalone documents and, optionally, indentation of two spaces per level),
+ * with every node trimmed and followed by a new line:
+ * <ul>
+ * <li>Elements that only contain text are written in a single line</li>
+ * <li>Otherwise, every child element, comment and processing instruction starts a new indented line,
+ * and so does every run of text (skipping its leading new lines) but the first one before any other child</li>
+ * <li>Namespace declarations (xmlns attributes) are written before the rest of the attributes of their element,
+ * and the namespaces of the element and its attributes are declared if they are not in scope
+ * (attributes in a namespace but without a prefix get a generated one, ns0, ns1, ...)</li>
+ * <li>Attribute nodes are written as @name="value", without escaping</li>
+ * <li>The XML declaration is written before the node if requested (not for attribute nodes),
+ * with the version, encoding and standalone flag of the document for document nodes</li>
+ * <li>Characters that cannot be encoded in the encoding of the document are written as character references</li>
+ * </ul>
+ * The writer is not thread-safe
+ * </p>
+ */
+public class XMLWriter implements Flushable {
+
+    /**
+     * Number of spaces per level of indentation
+     */
+    private static final int INDENT_AMOUNT = 2;
+
+    /**
+     * Size of the output buffer, in characters
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Output the nodes are written to
+     */
+    private final Writer out;
+
+    /**
+     * Output buffer, reused for all the nodes
+     */
+    private final char[] buffer;
+
+    /**
+     * Number of characters in the output buffer
+     */
+    private int buffered;
+
+    /**
+     * Flag to indent the nodes
+     */
+    private final boolean indent;
+
+    /*
+     * Trimming of the current node
+     */
+
+    /**
+     * Whether a non-whitespace character of the current node has been written
+     */
+    private boolean started;
+
+    /**
+     * Whitespace written after the last non-whitespace character of the current node (dropped if it is trailing)
+     */
+    private final StringBuilder whitespace;
+
+    /*
+     * Serialization state of the current node (as the one of the JDK serializer)
+     */
+
+    /**
+     * Declaration to write before the first output of the node (null if it is not written or already written)
+     */
+    private String declaration;
+
+    /**
+     * Encoder of the encoding of the current node, to check which characters it can encode (null for Unicode)
+     */
+    private CharsetEncoder encoder;
+
+    /**
+     * Depth of the current element (0 outside of any element)
+     */
+    private int depth;
+
+    /**
+     * Number of children of the current element written or buffered so far
+     */
+    private int childNodes;
+
+    /**
+     * Number of children of the ancestors of the current element, innermost last
+     */
+    private int[] childNodesStack;
+
+    /**
+     * Whether the next indented node has to start a new line
+     */
+    private boolean startNewLine;
+
+    /**
+     * Whether the last output was text
+     */
+    private boolean prevText;
+
+    /**
+     * Whether the start tag of the current element is still open (so it can be closed with /&gt;)
+     */
+    private boolean startTagOpen;
+
+    /**
+     * Text not written yet (written once the next sibling or the end of the parent is known)
+     */
+    private final StringBuilder text;
+
+    /**
+     * Namespaces in scope of the current element, innermost last
+     */
+    private final List<Namespace> namespaces;
+
+    /**
+     * Namespace declaration (mapping of a prefix to a namespace URI)
+     */
+    private static class Namespace {
+        /**
+         * Prefix (empty for the default namespace)
+         */
+        final String prefix;
+
+        /**
+         * Namespace URI (empty for no namespace)
+         */
+        final String uri;
+
+        /**
+         * Depth of the element that declares the namespace
+         */
+        final int depth;
+
+        /**
+         * Constructor - Initializes the declaration
+         *
+         * @param prefix Prefix (empty for the default namespace)
+         * @param uri    Namespace URI (empty for no namespace)
+         * @param depth  Depth of the element that declares the namespace
+         */
+        Namespace(String prefix, String uri, int depth) {
+            this.prefix = prefix;
+            this.uri = uri;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Public constructor - Initializes a writer with indentation
+     *
+     * @param out Output the nodes are written to (not closed by the writer)
+     */
+    public XMLWriter(Writer out) {
+        this(out, true);
+    }
+
+    /**
+     * Public constructor - Initializes a writer with indentation, encoding its output in UTF-8
+     *
+     * @param out Output stream the nodes are written to (not closed by the writer)
+     */
+    public XMLWriter(OutputStream out) {
+        this(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)), true);
+    }
+
+    /**
+     * Public constructor - Initializes a writer
+     *
+     * @param out    Output the nodes are written to (not closed by the writer)
+     * @param indent Flag to indent the nodes
+     */
+    public XMLWriter(Writer out, boolean indent) {
+        this.out = out;
+        this.indent = indent;
+        this.buffer = new char[BUFFER_SIZE];
+        this.buffered = 0;
+        this.whitespace = new StringBuilder();
+        this.text = new StringBuilder();
+        this.childNodesStack = new int[16];
+        this.namespaces = new ArrayList<>();
+    }
+
+    /**
+     * Writes a list of nodes (as IO.NodesToString)
+     *
+     * @param ns      List of nodes
+     * @param verbose Flag to write a comment with the number of nodes and before each one
+     * @throws IOException If the output cannot be written
+     */
+    public void write(List<Node> ns, boolean verbose) throws IOException {
+        if (verbose) {
+            raw("<!-- Number of nodes: " + ns.size() + " -->\n");
+        }
+        int i = 0;
+        for (Node n : ns) {
+            if (verbose) {
+                raw("<!-- Node #" + (++i) + " -->\n");
+            }
+            write(n, (!verbose) && (ns.size() == 1));
+        }
+    }
+
+    /**
+     * Writes the nodes of an iterator as they are produced (as IO.NodesToString, without the verbose comments)
+     * <p>
+     * The XML declaration is only written if the iterator has a single node,
+     * so the second node is requested before writing the first one
+     * </p>
+     *
+     * @param ns Iterator over the nodes
+     * @throws IOException If the output cannot be written
+     */
+    public void write(Iterator<Node> ns) throws IOException {
+        if (!ns.hasNext()) {
+            return;
+        }
+        Node first = ns.next();
+        if (!ns.hasNext()) {
+            write(first, true);
+            return;
+        }
+        write(first, false);
+        while (ns.hasNext()) {
+            write(ns.next(), false);
+        }
+    }
+
+    /**
+     * Writes a node, trimmed and followed by a new line
+     *
+     * @param n           Node
+     * @param declaration Flag to write the XML declaration before the node (ignored for attribute nodes)
+     * @throws IOException If the output cannot be written
+     */
+    public void write(Node n, boolean declaration) throws IOException {
+        started = false;
+        whitespace.setLength(0);
+        if (n.getNodeType() == Node.ATTRIBUTE_NODE) {
+            // Serialize attribute nodes manually
+            put("@" + n.toString().trim());
+        } else {
+            serialize(n, declaration);
+        }
+        raw('\n');
+    }
+
+    /**
+     * Writes the buffered output to the underlying output, and flushes it
+     *
+     * @throws IOException If the output cannot be written
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Serializes a node (as the JDK identity Transformer does)
+     *
+     * @param n           Node (not an attribute)
+     * @param declaration Flag to write the XML declaration before the node
+     * @throws IOException If the output cannot be written
+     */
+    private void serialize(Node n, boolean declaration) throws IOException {
+        this.declaration = null;
+        this.encoder = null;
+        if ((n.getNodeType() == Node.DOCUMENT_NODE) && (((Document) n).getXmlEncoding() != null)
+                && (!((Document) n).getXmlEncoding().toUpperCase().startsWith("UTF"))) {
+            try {
+                encoder = Charset.forName(((Document) n).getXmlEncoding()).newEncoder();
+            } catch (IllegalArgumentException e) {
+                // Unknown encoding, written in UTF-8
+            }
+        }
+        if (declaration) {
+            String version = "1.0";
+            String standalone = "yes";
+            String encoding = "UTF-8";
+            if (n.getNodeType() == Node.DOCUMENT_NODE) {
+                Document doc = (Document) n;
+                if (doc.getXmlVersion() != null) {
+                    version = doc.getXmlVersion();
+                }
+                if (!doc.getXmlStandalone()) {
+                    standalone = "no";
+                }
+                if (doc.getXmlEncoding() != null) {
+                    encoding = doc.getXmlEncoding();
+                }
+            }
+            this.declaration = "<?xml version=\"" + version + "\" encoding=\"" + encoding
+                    + "\" standalone=\"" + standalone + "\"?>" + (indent ? "\n" : "");
+        }
+        depth = 0;
+        childNodes = 0;
+        startNewLine = false;
+        prevText = false;
+        startTagOpen = false;
+        text.setLength(0);
+        namespaces.clear();
+        // The default namespace is empty outside of the node (so it is not declared unless it changes)
+        namespaces.add(new Namespace("", "", -1));
+        node(n);
+        // End of the document
+        flushText(false);
+        startDocument();
+        if (indent && (!prevText)) {
+            put('\n');
+        }
+    }
+
+    /**
+     * Serializes a node and its descendants
+     *
+     * @param n Node
+     * @throws IOException If the output cannot be written
+     */
+    private void node(Node n) throws IOException {
+        switch (n.getNodeType()) {
+            case Node.ELEMENT_NODE:
+                startElement(n);
+                for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    node(c);
+                }
+                endElement(n.getNodeName());
+                break;
+            case Node.TEXT_NODE:
+                characters(n.getNodeValue());
+                break;
+            case Node.CDATA_SECTION_NODE:
+                cdata(n.getNodeValue());
+                break;
+            case Node.COMMENT_NODE:
+                comment(n.getNodeValue());
+                break;
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                processingInstruction(n.getNodeName(), n.getNodeValue());
+                break;
+            case Node.DOCUMENT_NODE:
+            case Node.DOCUMENT_FRAGMENT_NODE:
+                for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    node(c);
+                }
+                break;
+            default:
+                // Document types, entities, entity references and notations are not serialized
+                break;
+        }
+    }
+
+    /**
+     * Writes the declaration if it has not been written yet
+     *
+     * @throws IOException If the output cannot be written
+     */
+    private void startDocument() throws IOException {
+        if (declaration != null) {
+            put(declaration);
+            declaration = null;
+        }
+    }
+
+    /**
+     * Closes the start tag of the current element if it is still open, or starts the document otherwise
+     *
+     * @throws IOException If the output cannot be written
+     */
+    private void closeStartTag() throws IOException {
+        if (startTagOpen) {
+            put('>');
+            startTagOpen = false;
+        } else {
+            startDocument();
+        }
+    }
+
+    /**
+     * Checks whether the current content is indented
+     *
+     * @return true if the writer indents and the current content is inside an element, false otherwise
+     */
+    private boolean shouldIndent() {
+        return indent && (depth > 0);
+    }
+
+    /**
+     * Writes the indentation of a given depth, in a new line if needed
+     *
+     * @param level Depth of the indentation
+     * @throws IOException If the output cannot be written
+     */
+    private void indent(int level) throws IOException {
+        if (startNewLine) {
+            put('\n');
+        }
+        for (int i = level * INDENT_AMOUNT; i > 0; --i) {
+            put(' ');
+        }
+    }
+
+    /**
+     * Writes the start tag of an element, with its attributes
+     *
+     * @param n Element
+     * @throws IOException If the output cannot be written
+     */
+    private void startElement(Node n) throws IOException {
+        if (indent) {
+            ++childNodes;
+            flushText(false);
+        }
+        closeStartTag();
+        if (shouldIndent() && startNewLine) {
+            indent(depth);
+        }
+        startNewLine = true;
+        put('<');
+        put(n.getNodeName());
+        NamedNodeMap attributes = n.getAttributes();
+        // Namespace declarations
+        for (int i = 0; i < attributes.getLength(); ++i) {
+            Node a = attributes.item(i);
+            String name = a.getNodeName();
+            if (name.startsWith("xmlns")) {
+                int colon = name.lastIndexOf(':');
+                declare((colon > 0) ? name.substring(colon + 1) : "", a.getNodeValue());
+            }
+        }
+        // Rest of the attributes, each one after the declaration of its namespace
+        int generated = 0;
+        for (int i = 0; i < attributes.getLength(); ++i) {
+            Node a = attributes.item(i);
+            String name = a.getNodeName();
+            if (name.startsWith("xmlns")) {
+                continue;
+            }
+            String uri = a.getNamespaceURI();
+            if ((uri != null) && (!uri.isEmpty())) {
+                int colon = name.lastIndexOf(':');
+                String prefix = (colon > 0) ? name.substring(0, colon) : "ns" + (generated++);
+                declare(prefix, uri);
+                if (colon <= 0) {
+                    name = prefix + ":" + name;
+                }
+            }
+            attribute(name, a.getNodeValue());
+        }
+        // Namespace of the element
+        String uri = n.getNamespaceURI();
+        if (uri != null) {
+            int colon = n.getNodeName().lastIndexOf(':');
+            declare((colon > 0) ? n.getNodeName().substring(0, colon) : "", uri);
+        } else if (n.getLocalName() != null) {
+            // Elements created without a namespace by a namespace aware document
+            declare("", "");
+        }
+        if (indent) {
+            if (depth == childNodesStack.length) {
+                int[] stack = new int[2 * depth];
+                System.arraycopy(childNodesStack, 0, stack, 0, depth);
+                childNodesStack = stack;
+            }
+            childNodesStack[depth] = childNodes;
+            childNodes = 0;
+        }
+        ++depth;
+        startTagOpen = true;
+        prevText = false;
+    }
+
+    /**
+     * Writes an attribute of the current element
+     *
+     * @param name  Name of the attribute
+     * @param value Value of the attribute
+     * @throws IOException If the output cannot be written
+     */
+    private void attribute(String name, String value) throws IOException {
+        put(' ');
+        put(name);
+        put("=\"");
+        escape(value, true);
+        put('"');
+    }
+
+    /**
+     * Declares a namespace in the current element, unless the prefix is already mapped to the same URI,
+     * it has already been declared by the element, or it is reserved (xml and xmlns prefixes)
+     *
+     * @param prefix Prefix (empty for the default namespace)
+     * @param uri    Namespace URI (empty for no namespace)
+     * @throws IOException If the output cannot be written
+     */
+    private void declare(String prefix, String uri) throws IOException {
+        if (prefix.startsWith("xml")) {
+            return;
+        }
+        for (int i = namespaces.size() - 1; i >= 0; --i) {
+            Namespace ns = namespaces.get(i);
+            if (ns.prefix.equals(prefix)) {
+                if (ns.uri.equals(uri) || (ns.depth == depth)) {
+                    return;
+                }
+                break;
+            }
+        }
+        namespaces.add(new Namespace(prefix, uri, depth));
+        attribute(prefix.isEmpty() ? "xmlns" : "xmlns:" + prefix, uri);
+    }
+
+    /**
+     * Writes the end tag of the current element
+     *
+     * @param name Name of the element
+     * @throws IOException If the output cannot be written
+     */
+    private void endElement(String name) throws IOException {
+        if (indent) {
+            flushText(false);
+        }
+        if (startTagOpen) {
+            put("/>");
+            startTagOpen = false;
+        } else {
+            if (shouldIndent() && ((childNodes > 1) || (!prevText))) {
+                indent(depth - 1);
+            }
+            put("</");
+            put(name);
+            put('>');
+        }
+        --depth;
+        while (namespaces.get(namespaces.size() - 1).depth == depth) {
+            namespaces.remove(namespaces.size() - 1);
+        }
+        if (indent) {
+            childNodes = childNodesStack[depth];
+            prevText = false;
+        }
+    }
+
+    /**
+     * Writes (or buffers, if indenting) a text
+     *
+     * @param value Text
+     * @throws IOException If the output cannot be written
+     */
+    private void characters(String value) throws IOException {
+        if (value.isEmpty()) {
+            return;
+        }
+        closeStartTag();
+        if (indent) {
+            text.append(value);
+        } else {
+            escape(value, false);
+            prevText = true;
+        }
+    }
+
+    /**
+     * Writes the buffered text, indented in a new line if it is not the first child of its element
+     *
+     * @param isText Whether the text is written because a CDATA section follows it
+     * @throws IOException If the output cannot be written
+     */
+    private void flushText(boolean isText) throws IOException {
+        if ((!indent) || (text.length() == 0)) {
+            return;
+        }
+        if (!isText) {
+            ++childNodes;
+        }
+        int start = 0;
+        if (shouldIndent() && (childNodes > 1)) {
+            indent(depth);
+            startNewLine = true;
+            // Leading new lines are replaced by the indentation
+            while ((start < text.length()) && (text.charAt(start) == '\n')) {
+                ++start;
+            }
+        }
+        if (start < text.length()) {
+            escape(text.substring(start), false);
+            prevText = true;
+        }
+        text.setLength(0);
+    }
+
+    /**
+     * Writes a CDATA section
+     * <p>
+     * Characters that cannot appear in a section are written as references, outside of it
+     * </p>
+     *
+     * @param value Content of the section
+     * @throws IOException If the output cannot be written
+     */
+    private void cdata(String value) throws IOException {
+        flushText(true);
+        if (value.isEmpty()) {
+            return;
+        }
+        closeStartTag();
+        if (shouldIndent() && (childNodes > 1)) {
+            indent(depth);
+        }
+        boolean open = false;
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '\n') {
+                put(c);
+            } else if (((c < 0x20) && (c != '\t') && (c != '\r'))
+                    || ((c >= 0x7F) && (encoder != null) && (!encodable(value, i)))) {
+                if (open) {
+                    put("]]>");
+                    open = false;
+                }
+                int codePoint = value.codePointAt(i);
+                put("&#" + codePoint + ";");
+                i += Character.charCount(codePoint) - 1;
+            } else if ((c == ']') && (value.startsWith("]]>", i))) {
+                // ]]> cannot appear inside a section, so the section is split
+                put("]]]]><![CDATA[>");
+                i += 2;
+            } else {
+                if (!open) {
+                    put("<![CDATA[");
+                    open = true;
+                }
+                put(c);
+            }
+        }
+        if (open) {
+            put("]]>");
+        }
+        prevText = true;
+    }
+
+    /**
+     * Writes a comment
+     *
+     * @param value Content of the comment
+     * @throws IOException If the output cannot be written
+     */
+    private void comment(String value) throws IOException {
+        if (indent) {
+            ++childNodes;
+            flushText(false);
+        }
+        closeStartTag();
+        if (shouldIndent()) {
+            indent(depth);
+        }
+        put("<!--");
+        // Two consecutive dashes cannot appear inside a comment, nor a dash at its end
+        boolean wasDash = false;
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (wasDash && (c == '-')) {
+                put(" -");
+            } else {
+                put(c);
+            }
+            wasDash = (c == '-');
+        }
+        if ((!value.isEmpty()) && (value.charAt(value.length() - 1) == '-')) {
+            put(' ');
+        }
+        put("-->");
+        startNewLine = true;
+    }
+
+    /**
+     * Writes a processing instruction
+     *
+     * @param target Target of the instruction
+     * @param data   Data of the instruction
+     * @throws IOException If the output cannot be written
+     */
+    private void processingInstruction(String target, String data) throws IOException {
+        if (indent) {
+            ++childNodes;
+            flushText(false);
+        }
+        closeStartTag();
+        if (shouldIndent()) {
+            indent(depth);
+        }
+        put("<?");
+        put(target);
+        if ((!data.isEmpty()) && (!Character.isSpaceChar(data.charAt(0)))) {
+            put(' ');
+        }
+        put(data.replace("?>", "? >"));
+        put("?>");
+        startNewLine = true;
+    }
+
+    /**
+     * Writes a text or attribute value, escaping the characters that cannot appear in it
+     *
+     * @param value     Text or attribute value
+     * @param attribute Whether the value is an attribute value (quotes and whitespace are escaped too)
+     * @throws IOException If the output cannot be written
+     */
+    private void escape(String value, boolean attribute) throws IOException {
+        for (int i = 0; i < value.length(); ++i) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '&':
+                    put("&amp;");
+                    break;
+                case '<':
+                    put("&lt;");
+                    break;
+                case '>':
+                    put("&gt;");
+                    break;
+                case '"':
+                    put(attribute ? "&quot;" : "\"");
+                    break;
+                case '\n':
+                    put(attribute ? "&#10;" : "\n");
+                    break;
+                case '\t':
+                    put(attribute ? "&#9;" : "\t");
+                    break;
+                case '\r':
+                    // Carriage returns of texts written outside of any element are kept as they are
+                    put((attribute || (depth > 0)) ? "&#13;" : "\r");
+                    break;
+                default:
+                    // Control characters (C0 but tab and new line, and C1)
+                    if ((c < 0x20) || ((c >= 0x7F) && (c <= 0x9F))) {
+                        put("&#" + (int) c + ";");
+                    } else if (Character.isHighSurrogate(c) || ((encoder != null) && (!encodable(value, i)))) {
+                        // Surrogate pairs are written as a single reference (as the identity transformer does)
+                        int codePoint = value.codePointAt(i);
+                        put("&#" + codePoint + ";");
+                        i += Character.charCount(codePoint) - 1;
+                    } else {
+                        put(c);
+                    }
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Checks whether the character at a given position can be encoded in the encoding of the current node
+     *
+     * @param value String
+     * @param i     Position of the character (of its first surrogate, if it is a surrogate pair)
+     * @return true if the encoding can encode the character, false otherwise
+     */
+    private boolean encodable(String value, int i) {
+        return encoder.canEncode(new String(Character.toChars(value.codePointAt(i))));
+    }
+
+    /**
+     * Writes a string of the current node
+     *
+     * @param s String
+     * @throws IOException If the output cannot be written
+     */
+    private void put(String s) throws IOException {
+        for (int i = 0; i < s.length(); ++i) {
+            put(s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a character of the current node, dropping the leading and trailing whitespace of the node
+     *
+     * @param c Character
+     * @throws IOException If the output cannot be written
+     */
+    private void put(char c) throws IOException {
+        if (c <= ' ') {
+            if (started) {
+                whitespace.append(c);
+            }
+            return;
+        }
+        if (whitespace.length() > 0) {
+            for (int i = 0; i < whitespace.length(); ++i) {
+                raw(whitespace.charAt(i));
+            }
+            whitespace.setLength(0);
+        }
+        started = true;
+        raw(c);
+    }
+
+    /**
+     * Writes a string as is
+     *
+     * @param s String
+     * @throws IOException If the output cannot be written
+     */
+    private void raw(String s) throws IOException {
+        for (int i = 0; i < s.length(); ++i) {
+            raw(s.charAt(i));
+        }
+    }
+
+    /**
+     * Writes a character as is
+     *
+     * @param c Character
+     * @throws IOException If the output cannot be written
+     */
+    private void raw(char c) throws IOException {
+        if (buffered == buffer.length) {
+            drain();
+        }
+        buffer[buffered++] = c;
+    }
+
+    /**
+     * Writes the output buffer to the underlying output
+     *
+     * @throws IOException If the output cannot be written
+     */
+    private void drain() throws IOException {
+        if (buffered > 0) {
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+        }
+    }
+}
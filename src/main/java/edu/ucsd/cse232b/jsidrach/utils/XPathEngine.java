@@ -2,6 +2,8 @@ package edu.ucsd.cse232b.jsidrach.utils;
 
 import edu.ucsd.cse232b.jsidrach.antlr.XPathLexer;
 import edu.ucsd.cse232b.jsidrach.antlr.XPathParser;
+import edu.ucsd.cse232b.jsidrach.xpath.DocumentCache;
+import edu.ucsd.cse232b.jsidrach.xpath.XPathStreamer;
 import edu.ucsd.cse232b.jsidrach.xpath.XPathVisitor;
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CommonTokenStream;
@@ -16,6 +18,23 @@ import java.util.LinkedList;
  */
 public class XPathEngine {
 
+    /**
+     * Flag to evaluate streamable queries over documents that are not cached without building their DOM tree
+     */
+    private static volatile boolean streaming = true;
+
+    /**
+     * Sets whether streamable queries are evaluated without building the DOM tree (see XPathStreamer)
+     * <p>
+     * Documents that are already cached are always queried through their DOM tree
+     * </p>
+     *
+     * @param streaming Flag to evaluate streamable queries over the SAX events of the document
+     */
+    public static void setStreaming(boolean streaming) {
+        XPathEngine.streaming = streaming;
+    }
+
     /**
      * Executes a XPath query given an ANTLRInputStream
      *
@@ -28,6 +47,18 @@ public class XPathEngine {
         XPathParser xPathParser = new XPathParser(tokens);
         // Parse using ap (Absolute Path) as root rule
         ParseTree xPathTree = xPathParser.ap();
+        if (streaming) {
+            XPathStreamer xPathStreamer = XPathStreamer.compile(xPathTree);
+            try {
+                if ((xPathStreamer != null) && (!DocumentCache.getInstance().contains(xPathStreamer.getFile()))) {
+                    LinkedList<Node> results = new LinkedList<>();
+                    xPathStreamer.evaluate(results::add);
+                    return results;
+                }
+            } catch (Exception e) {
+                // Fall back to the DOM tree (which reports the error if the document is not valid)
+            }
+        }
         XPathVisitor xPathVisitor = new XPathVisitor();
         return xPathVisitor.visit(xPathTree);
     }
@@ -2,6 +2,8 @@ package edu.ucsd.cse232b.jsidrach.utils;
 
 import edu.ucsd.cse232b.jsidrach.antlr.XQueryLexer;
 import edu.ucsd.cse232b.jsidrach.antlr.XQueryParser;
+import edu.ucsd.cse232b.jsidrach.xquery.PreparedQuery;
+import edu.ucsd.cse232b.jsidrach.xquery.XQueryVariableResolver;
 import edu.ucsd.cse232b.jsidrach.xquery.XQueryVisitor;
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CommonTokenStream;
@@ -9,13 +11,60 @@ import org.antlr.v4.runtime.tree.ParseTree;
 import org.w3c.dom.Node;
 
 import java.io.FileInputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Map;
 
 /**
  * XQueryEngine - Utility functions to deal with XQueryVisitor
  */
 public class XQueryEngine {
 
+    /**
+     * Maximum number of prepared queries cached
+     */
+    private static final int PREPARED_CAPACITY = 256;
+
+    /**
+     * Map from query texts to their prepared queries, in access order (least recently used first)
+     */
+    private static final LinkedHashMap<String, PreparedQuery> prepared =
+            new LinkedHashMap<String, PreparedQuery>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, PreparedQuery> eldest) {
+                    return size() > PREPARED_CAPACITY;
+                }
+            };
+
+    /**
+     * Prepares a XQuery query to be executed repeatedly (see PreparedQuery)
+     * <p>
+     * Prepared queries are cached by the text of the query, so preparing the same query again does not parse it
+     * </p>
+     *
+     * @param query XQuery query string
+     * @return Prepared query
+     */
+    public static PreparedQuery Prepare(String query) {
+        synchronized (prepared) {
+            PreparedQuery preparedQuery = prepared.get(query);
+            if (preparedQuery != null) {
+                return preparedQuery;
+            }
+        }
+        // Parsed outside of the lock, so different queries can be prepared concurrently
+        XQueryLexer xQueryLexer = new XQueryLexer(new ANTLRInputStream(query));
+        CommonTokenStream tokens = new CommonTokenStream(xQueryLexer);
+        XQueryParser xQueryParser = new XQueryParser(tokens);
+        // Parse using xq (XQuery) as root rule
+        PreparedQuery preparedQuery = new PreparedQuery(query, xQueryParser.xq());
+        synchronized (prepared) {
+            PreparedQuery concurrent = prepared.putIfAbsent(query, preparedQuery);
+            return (concurrent != null) ? concurrent : preparedQuery;
+        }
+    }
+
     /**
      * Executes a XQuery query given an ANTLRInputStream
      *
@@ -24,12 +73,51 @@ public class XQueryEngine {
      * @return List of result nodes
      */
     public static LinkedList<Node> Query(ANTLRInputStream ANTLRInput, boolean verbose) throws Exception {
+        return Query(ANTLRInput, verbose, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Executes a XQuery query given an ANTLRInputStream, with a given degree of parallelism
+     *
+     * @param ANTLRInput  Input query
+     * @param verbose     Flag to output log messages
+     * @param parallelism Maximum number of parallel tasks of each join of the query
+     * @return List of result nodes
+     */
+    public static LinkedList<Node> Query(ANTLRInputStream ANTLRInput, boolean verbose, int parallelism)
+            throws Exception {
         XQueryLexer xQueryLexer = new XQueryLexer(ANTLRInput);
         CommonTokenStream tokens = new CommonTokenStream(xQueryLexer);
         XQueryParser xQueryParser = new XQueryParser(tokens);
         // Parse using xq (XQuery) as root rule
         ParseTree xQueryTree = xQueryParser.xq();
+        return Query(xQueryTree, verbose, parallelism);
+    }
+
+    /**
+     * Executes an already parsed XQuery query (as compiled by XQueryOptimizerEngine.Compile)
+     *
+     * @param xQueryTree Parse tree of the query, using xq (XQuery) as root rule
+     * @param verbose    Flag to output log messages
+     * @return List of result nodes
+     */
+    public static LinkedList<Node> Query(ParseTree xQueryTree, boolean verbose) throws Exception {
+        return Query(xQueryTree, verbose, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Executes an already parsed XQuery query, with a given degree of parallelism
+     *
+     * @param xQueryTree  Parse tree of the query, using xq (XQuery) as root rule
+     * @param verbose     Flag to output log messages
+     * @param parallelism Maximum number of parallel tasks of each join of the query
+     * @return List of result nodes
+     */
+    public static LinkedList<Node> Query(ParseTree xQueryTree, boolean verbose, int parallelism)
+            throws Exception {
         XQueryVisitor xQueryVisitor = new XQueryVisitor(verbose);
+        xQueryVisitor.setSlots(new XQueryVariableResolver().resolve(xQueryTree));
+        xQueryVisitor.setParallelism(parallelism);
         return xQueryVisitor.visit(xQueryTree);
     }
 
@@ -55,4 +143,72 @@ public class XQueryEngine {
     public static LinkedList<Node> Query(String query, boolean verbose) throws Exception {
         return Query(new ANTLRInputStream(query), verbose);
     }
+
+    /**
+     * Executes a XQuery query, with a given degree of parallelism
+     *
+     * @param query       XQuery query string
+     * @param verbose     Flag to output log messages
+     * @param parallelism Maximum number of parallel tasks of each join of the query
+     * @return List of result nodes
+     */
+    public static LinkedList<Node> Query(String query, boolean verbose, int parallelism) throws Exception {
+        return Query(new ANTLRInputStream(query), verbose, parallelism);
+    }
+
+    /**
+     * Executes a XQuery query given an ANTLRInputStream, returning the result nodes one at a time
+     * <p>
+     * FLWR expressions are evaluated as the nodes are requested, so the first nodes are available immediately
+     * </p>
+     *
+     * @param ANTLRInput Input query
+     * @param verbose    Flag to output log messages
+     * @return Iterator over the result nodes
+     */
+    public static Iterator<Node> Iterate(ANTLRInputStream ANTLRInput, boolean verbose) throws Exception {
+        XQueryLexer xQueryLexer = new XQueryLexer(ANTLRInput);
+        CommonTokenStream tokens = new CommonTokenStream(xQueryLexer);
+        XQueryParser xQueryParser = new XQueryParser(tokens);
+        // Parse using xq (XQuery) as root rule
+        ParseTree xQueryTree = xQueryParser.xq();
+        return Iterate(xQueryTree, verbose);
+    }
+
+    /**
+     * Executes an already parsed XQuery query (as compiled by XQueryOptimizerEngine.Compile),
+     * returning the result nodes one at a time
+     *
+     * @param xQueryTree Parse tree of the query, using xq (XQuery) as root rule
+     * @param verbose    Flag to output log messages
+     * @return Iterator over the result nodes
+     */
+    public static Iterator<Node> Iterate(ParseTree xQueryTree, boolean verbose) throws Exception {
+        XQueryVisitor xQueryVisitor = new XQueryVisitor(verbose);
+        xQueryVisitor.setSlots(new XQueryVariableResolver().resolve(xQueryTree));
+        return xQueryVisitor.iterate(xQueryTree);
+    }
+
+    /**
+     * Executes a XQuery query given a file containing it, returning the result nodes one at a time
+     *
+     * @param file    File containing the XQuery query
+     * @param verbose Flag to output log messages
+     * @return Iterator over the result nodes
+     * @throws Exception Exception if file is not found
+     */
+    public static Iterator<Node> Iterate(FileInputStream file, boolean verbose) throws Exception {
+        return Iterate(new ANTLRInputStream(file), verbose);
+    }
+
+    /**
+     * Executes a XQuery query, returning the result nodes one at a time
+     *
+     * @param query   XQuery query string
+     * @param verbose Flag to output log messages
+     * @return Iterator over the result nodes
+     */
+    public static Iterator<Node> Iterate(String query, boolean verbose) throws Exception {
+        return Iterate(new ANTLRInputStream(query), verbose);
+    }
 }
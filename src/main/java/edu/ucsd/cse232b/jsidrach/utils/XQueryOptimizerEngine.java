@@ -4,6 +4,7 @@ import edu.ucsd.cse232b.jsidrach.antlr.XQueryLexer;
 import edu.ucsd.cse232b.jsidrach.antlr.XQueryParser;
 import edu.ucsd.cse232b.jsidrach.xquery.optimizer.XQueryFormatter;
 import edu.ucsd.cse232b.jsidrach.xquery.optimizer.XQueryOptimizer;
+import edu.ucsd.cse232b.jsidrach.xquery.optimizer.XQueryVarsRenamer;
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.tree.ParseTree;
@@ -12,47 +13,93 @@ import java.io.FileInputStream;
 
 /**
  * XQueryOptimizerEngine - Utility functions to deal with XQueryOptimizer
+ * <p>
+ * The query is parsed once: its variables are renamed in place in the parse tree,
+ * which is then optimized in place (see XQueryOptimizer), and executed as is
+ * </p>
  */
 public class XQueryOptimizerEngine {
 
     /**
-     * Optimizes a XQuery query given an ANTLRInputStream
+     * Parses a XQuery query
      *
      * @param ANTLRInput Input query
+     * @return Parse tree of the query, using xq (XQuery) as root rule
+     */
+    private static ParseTree parse(ANTLRInputStream ANTLRInput) {
+        XQueryLexer xQueryLexer = new XQueryLexer(ANTLRInput);
+        CommonTokenStream tokens = new CommonTokenStream(xQueryLexer);
+        XQueryParser xQueryParser = new XQueryParser(tokens);
+        return xQueryParser.xq();
+    }
+
+    /**
+     * Renames the variables of a parse tree and optimizes it, in place
+     *
+     * @param xQueryTree Parse tree of the query (rewritten into the parse tree of the optimized query)
      * @param verbose    Flag to output the intermediate rewritten queries to stderr
      * @return Optimized query
      */
-    public static String Optimize(ANTLRInputStream ANTLRInput, boolean verbose) throws Exception {
+    private static String optimize(ParseTree xQueryTree, boolean verbose) {
         // Phase 0 - Original query
-        String formattedQuery = XQueryFormatterEngine.Format(ANTLRInput);
         if (verbose) {
             System.err.println("Phase 0 - Original Query");
             System.err.println("------------------------");
-            System.err.println(formattedQuery);
+            System.err.println(new XQueryFormatter().visit(xQueryTree));
         }
         // Phase 1 - Rename variables
-        String renamedQuery = XQueryVarsRenamerEngine.RenameVars(formattedQuery);
+        new XQueryVarsRenamer().rename(xQueryTree);
         if (verbose) {
             System.err.println("Phase 1 - Variable Renamer");
             System.err.println("--------------------------");
-            System.err.println(XQueryFormatterEngine.Format(renamedQuery));
+            System.err.println(new XQueryFormatter().visit(xQueryTree));
         }
         // Phase 2 - Optimize query
-        XQueryLexer xQueryLexer = new XQueryLexer(new ANTLRInputStream(renamedQuery));
-        CommonTokenStream tokens = new CommonTokenStream(xQueryLexer);
-        XQueryParser xQueryParser = new XQueryParser(tokens);
-        // Parse using xq (XQuery) as root rule
-        ParseTree xQueryTree = xQueryParser.xq();
-        XQueryOptimizer xQueryOptimizer = new XQueryOptimizer();
-        String optimizedQuery = xQueryOptimizer.visit(xQueryTree);
+        String optimizedQuery = new XQueryOptimizer().visit(xQueryTree);
         if (verbose) {
             System.err.println("Phase 2 - Optimizer");
             System.err.println("-------------------");
-            System.err.println(XQueryFormatterEngine.Format(optimizedQuery));
+            System.err.println(new XQueryFormatter().visit(xQueryTree));
         }
         return optimizedQuery;
     }
 
+    /**
+     * Optimizes a XQuery query given an ANTLRInputStream
+     *
+     * @param ANTLRInput Input query
+     * @param verbose    Flag to output the intermediate rewritten queries to stderr
+     * @return Optimized query
+     */
+    public static String Optimize(ANTLRInputStream ANTLRInput, boolean verbose) throws Exception {
+        return optimize(parse(ANTLRInput), verbose);
+    }
+
+    /**
+     * Optimizes a XQuery query given an ANTLRInputStream, into a parse tree ready to be executed
+     * (see XQueryEngine.Query)
+     *
+     * @param ANTLRInput Input query
+     * @param verbose    Flag to output the intermediate rewritten queries to stderr
+     * @return Parse tree of the optimized query
+     */
+    public static ParseTree Compile(ANTLRInputStream ANTLRInput, boolean verbose) throws Exception {
+        ParseTree xQueryTree = parse(ANTLRInput);
+        optimize(xQueryTree, verbose);
+        return xQueryTree;
+    }
+
+    /**
+     * Optimizes a XQuery query, into a parse tree ready to be executed (see XQueryEngine.Query)
+     *
+     * @param query   XQuery query string
+     * @param verbose Flag to output the intermediate rewritten queries to stderr
+     * @return Parse tree of the optimized query
+     */
+    public static ParseTree Compile(String query, boolean verbose) throws Exception {
+        return Compile(new ANTLRInputStream(query), verbose);
+    }
+
     /**
      * Optimizes a XQuery query given a file containing it
      *
@@ -0,0 +1,1285 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import org.w3c.dom.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * CompactNode - Read-only W3C DOM facade of a node of a CompactStore
+ * <p>
+ * Facades only hold the store and the id of the node, every property is read from the arrays of the store<br>
+ * All the operations that would modify the document throw a DOMException (NO_MODIFICATION_ALLOWED_ERR),
+ * nodes are moved to other documents with Document.importNode, which only reads them<br>
+ * Namespaces are not supported (documents are parsed as by a non namespace aware DocumentBuilder)
+ * </p>
+ */
+abstract class CompactNode implements Node {
+
+    /**
+     * Store the node belongs to
+     */
+    final CompactStore store;
+
+    /**
+     * Id of the node in the store
+     */
+    final int id;
+
+    /**
+     * Constructor - Initializes the facade
+     *
+     * @param store Store the node belongs to
+     * @param id    Id of the node in the store
+     */
+    CompactNode(CompactStore store, int id) {
+        this.store = store;
+        this.id = id;
+    }
+
+    /**
+     * Creates the facade of a node of the tree (attributes excluded)
+     *
+     * @param store Store the node belongs to
+     * @param id    Id of the node in the store
+     * @return Facade of the node, according to its kind
+     */
+    static CompactNode create(CompactStore store, int id) {
+        switch (store.kind(id)) {
+            case Node.DOCUMENT_NODE:
+                return new DocumentNode(store, id);
+            case Node.DOCUMENT_TYPE_NODE:
+                return new DocumentTypeNode(store, id);
+            case Node.ELEMENT_NODE:
+                return new ElementNode(store, id);
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                return new ProcessingInstructionNode(store, id);
+            default:
+                return new CharacterDataNode(store, id);
+        }
+    }
+
+    /**
+     * Returns the exception thrown by all the operations that would modify the document
+     *
+     * @return Read-only DOMException
+     */
+    static DOMException readOnly() {
+        return new DOMException(DOMException.NO_MODIFICATION_ALLOWED_ERR, "Compact documents are read-only");
+    }
+
+    /**
+     * Returns the exception thrown by the operations that are not implemented by the facades
+     *
+     * @return Not supported DOMException
+     */
+    static DOMException notSupported() {
+        return new DOMException(DOMException.NOT_SUPPORTED_ERR, "Not supported by compact documents");
+    }
+
+    /**
+     * Checks whether two (nullable) strings are equal
+     *
+     * @param a First string
+     * @param b Second string
+     * @return true if both are null or equal, false otherwise
+     */
+    private static boolean same(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    /**
+     * Appends the text (text and CDATA sections) of all the descendants of a node, in document order
+     *
+     * @param n  Node
+     * @param sb Builder the text is appended to
+     */
+    private static void appendText(Node n, StringBuilder sb) {
+        Node c = n.getFirstChild();
+        while (c != null) {
+            short type = c.getNodeType();
+            if ((type == TEXT_NODE) || (type == CDATA_SECTION_NODE)) {
+                sb.append(c.getNodeValue());
+            } else if (type == ELEMENT_NODE) {
+                appendText(c, sb);
+            }
+            c = c.getNextSibling();
+        }
+    }
+
+    /**
+     * Returns the descendant elements of a node with the given tag, in document order
+     *
+     * @param tag Tag of the elements ("*" matches all the elements)
+     * @return List of elements
+     */
+    NodeList elementsByTagName(String tag) {
+        List<Node> elements = new ArrayList<>();
+        boolean all = tag.equals("*");
+        // The descendants of a node are the nodes with consecutive ids after it, up to its next sibling
+        int end = id;
+        while ((end != CompactStore.NONE) && (store.nextSibling(end) == CompactStore.NONE)) {
+            end = store.parent(end);
+        }
+        end = (end == CompactStore.NONE) ? store.size() : store.nextSibling(end);
+        for (int i = id + 1; i < end; ++i) {
+            if ((store.kind(i) == ELEMENT_NODE) && (all || store.name(i).equals(tag))) {
+                elements.add(store.node(i));
+            }
+        }
+        return new Nodes(elements);
+    }
+
+    /**
+     * Returns a short description of the node (same format as the DOM)
+     *
+     * @return Name and value of the node
+     */
+    @Override
+    public String toString() {
+        return "[" + getNodeName() + ": " + getNodeValue() + "]";
+    }
+
+    @Override
+    public String getNodeValue() {
+        return null;
+    }
+
+    @Override
+    public void setNodeValue(String nodeValue) {
+        throw readOnly();
+    }
+
+    @Override
+    public short getNodeType() {
+        return store.kind(id);
+    }
+
+    @Override
+    public Node getParentNode() {
+        return store.node(store.parent(id));
+    }
+
+    @Override
+    public NodeList getChildNodes() {
+        List<Node> children = new ArrayList<>();
+        for (int c = store.firstChild(id); c != CompactStore.NONE; c = store.nextSibling(c)) {
+            children.add(store.node(c));
+        }
+        return new Nodes(children);
+    }
+
+    @Override
+    public Node getFirstChild() {
+        return store.node(store.firstChild(id));
+    }
+
+    @Override
+    public Node getLastChild() {
+        int last = store.firstChild(id);
+        if (last == CompactStore.NONE) {
+            return null;
+        }
+        while (store.nextSibling(last) != CompactStore.NONE) {
+            last = store.nextSibling(last);
+        }
+        return store.node(last);
+    }
+
+    @Override
+    public Node getPreviousSibling() {
+        int p = store.parent(id);
+        if (p == CompactStore.NONE) {
+            return null;
+        }
+        int previous = CompactStore.NONE;
+        for (int c = store.firstChild(p); c != id; c = store.nextSibling(c)) {
+            previous = c;
+        }
+        return store.node(previous);
+    }
+
+    @Override
+    public Node getNextSibling() {
+        return store.node(store.nextSibling(id));
+    }
+
+    @Override
+    public NamedNodeMap getAttributes() {
+        return null;
+    }
+
+    @Override
+    public Document getOwnerDocument() {
+        return (Document) store.node(0);
+    }
+
+    @Override
+    public Node insertBefore(Node newChild, Node refChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node replaceChild(Node newChild, Node oldChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node removeChild(Node oldChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node appendChild(Node newChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean hasChildNodes() {
+        return store.firstChild(id) != CompactStore.NONE;
+    }
+
+    @Override
+    public Node cloneNode(boolean deep) {
+        throw notSupported();
+    }
+
+    @Override
+    public void normalize() {
+        // Already normalized when built
+    }
+
+    @Override
+    public boolean isSupported(String feature, String version) {
+        return false;
+    }
+
+    @Override
+    public String getNamespaceURI() {
+        return null;
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public void setPrefix(String prefix) {
+        throw readOnly();
+    }
+
+    @Override
+    public String getLocalName() {
+        return null;
+    }
+
+    @Override
+    public boolean hasAttributes() {
+        return false;
+    }
+
+    @Override
+    public String getBaseURI() {
+        return store.uri();
+    }
+
+    @Override
+    public short compareDocumentPosition(Node other) {
+        throw notSupported();
+    }
+
+    @Override
+    public String getTextContent() {
+        StringBuilder sb = new StringBuilder();
+        appendText(this, sb);
+        return sb.toString();
+    }
+
+    @Override
+    public void setTextContent(String textContent) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isSameNode(Node other) {
+        return this == other;
+    }
+
+    @Override
+    public String lookupPrefix(String namespaceURI) {
+        return null;
+    }
+
+    @Override
+    public boolean isDefaultNamespace(String namespaceURI) {
+        return false;
+    }
+
+    @Override
+    public String lookupNamespaceURI(String prefix) {
+        return null;
+    }
+
+    /**
+     * Checks whether two nodes are equal, as defined by DOM Level 3
+     * (same type, names and value, equal attributes and equal children)
+     *
+     * @param arg Node to compare with (of any DOM implementation)
+     * @return true if the nodes are equal, false otherwise
+     */
+    @Override
+    public boolean isEqualNode(Node arg) {
+        if (arg == this) {
+            return true;
+        }
+        if ((arg == null) || (arg.getNodeType() != getNodeType())) {
+            return false;
+        }
+        if ((!same(getNodeName(), arg.getNodeName())) || (!same(getLocalName(), arg.getLocalName()))
+                || (!same(getNamespaceURI(), arg.getNamespaceURI())) || (!same(getPrefix(), arg.getPrefix()))
+                || (!same(getNodeValue(), arg.getNodeValue()))) {
+            return false;
+        }
+        // The value of an attribute is its only content
+        if (getNodeType() == ATTRIBUTE_NODE) {
+            return true;
+        }
+        NamedNodeMap attributes = getAttributes();
+        if (attributes != null) {
+            NamedNodeMap others = arg.getAttributes();
+            if ((others == null) || (attributes.getLength() != others.getLength())) {
+                return false;
+            }
+            for (int i = 0; i < attributes.getLength(); ++i) {
+                Node a = attributes.item(i);
+                Node o = others.getNamedItem(a.getNodeName());
+                if ((o == null) || (!a.isEqualNode(o))) {
+                    return false;
+                }
+            }
+        }
+        Node c = getFirstChild();
+        Node o = arg.getFirstChild();
+        while ((c != null) && (o != null)) {
+            if (!c.isEqualNode(o)) {
+                return false;
+            }
+            c = c.getNextSibling();
+            o = o.getNextSibling();
+        }
+        return (c == null) && (o == null);
+    }
+
+    @Override
+    public Object getFeature(String feature, String version) {
+        return null;
+    }
+
+    @Override
+    public Object setUserData(String key, Object data, UserDataHandler handler) {
+        throw notSupported();
+    }
+
+    @Override
+    public Object getUserData(String key) {
+        return null;
+    }
+
+    /**
+     * Nodes - Read-only list of nodes
+     */
+    static class Nodes implements NodeList {
+
+        /**
+         * Nodes of the list
+         */
+        private final List<Node> nodes;
+
+        /**
+         * Constructor - Wraps a list of nodes
+         *
+         * @param nodes Nodes of the list
+         */
+        Nodes(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public Node item(int index) {
+            return ((index < 0) || (index >= nodes.size())) ? null : nodes.get(index);
+        }
+
+        @Override
+        public int getLength() {
+            return nodes.size();
+        }
+    }
+
+    /**
+     * Attributes - Read-only map of the attributes of an element (empty if the element is null)
+     */
+    static class Attributes implements NamedNodeMap {
+
+        /**
+         * Store the element belongs to
+         */
+        private final CompactStore store;
+
+        /**
+         * Range of attribute ids of the element
+         */
+        private final int start;
+        private final int end;
+
+        /**
+         * Id of the element
+         */
+        private final int owner;
+
+        /**
+         * Constructor - Initializes the map of attributes of an element
+         *
+         * @param store Store the element belongs to
+         * @param owner Id of the element - NONE for an empty map
+         */
+        Attributes(CompactStore store, int owner) {
+            this.store = store;
+            this.owner = owner;
+            this.start = (owner == CompactStore.NONE) ? 0 : store.attrStart(owner);
+            this.end = (owner == CompactStore.NONE) ? 0 : store.attrEnd(owner);
+        }
+
+        @Override
+        public Node getNamedItem(String name) {
+            if (owner == CompactStore.NONE) {
+                return null;
+            }
+            int a = store.findAttribute(owner, name);
+            return (a == CompactStore.NONE) ? null : store.attribute(a);
+        }
+
+        @Override
+        public Node setNamedItem(Node arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node removeNamedItem(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node item(int index) {
+            return ((index < 0) || (index >= end - start)) ? null : store.attribute(start + index);
+        }
+
+        @Override
+        public int getLength() {
+            return end - start;
+        }
+
+        @Override
+        public Node getNamedItemNS(String namespaceURI, String localName) {
+            return (namespaceURI == null) ? getNamedItem(localName) : null;
+        }
+
+        @Override
+        public Node setNamedItemNS(Node arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node removeNamedItemNS(String namespaceURI, String localName) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * DocumentNode - Facade of the document node
+     */
+    static class DocumentNode extends CompactNode implements Document {
+
+        /**
+         * Implementation returned by getImplementation (no features, cannot create documents)
+         */
+        private static final DOMImplementation implementation = new DOMImplementation() {
+            @Override
+            public boolean hasFeature(String feature, String version) {
+                return false;
+            }
+
+            @Override
+            public DocumentType createDocumentType(String qualifiedName, String publicId, String systemId) {
+                throw notSupported();
+            }
+
+            @Override
+            public Document createDocument(String namespaceURI, String qualifiedName, DocumentType doctype) {
+                throw notSupported();
+            }
+
+            @Override
+            public Object getFeature(String feature, String version) {
+                return null;
+            }
+        };
+
+        /**
+         * User data attached to the document (e.g. its DocumentIndex)
+         */
+        private final HashMap<String, Object> userData;
+
+        /**
+         * Constructor - Initializes the facade
+         *
+         * @param store Store the node belongs to
+         * @param id    Id of the node in the store
+         */
+        DocumentNode(CompactStore store, int id) {
+            super(store, id);
+            this.userData = new HashMap<>();
+        }
+
+        /**
+         * Returns the store of the document
+         *
+         * @return Compact store
+         */
+        CompactStore getStore() {
+            return store;
+        }
+
+        @Override
+        public String getNodeName() {
+            return "#document";
+        }
+
+        @Override
+        public Document getOwnerDocument() {
+            return null;
+        }
+
+        @Override
+        public String getTextContent() {
+            return null;
+        }
+
+        @Override
+        public synchronized Object setUserData(String key, Object data, UserDataHandler handler) {
+            return (data == null) ? userData.remove(key) : userData.put(key, data);
+        }
+
+        @Override
+        public synchronized Object getUserData(String key) {
+            return userData.get(key);
+        }
+
+        @Override
+        public DocumentType getDoctype() {
+            for (Node c = getFirstChild(); c != null; c = c.getNextSibling()) {
+                if (c.getNodeType() == DOCUMENT_TYPE_NODE) {
+                    return (DocumentType) c;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public DOMImplementation getImplementation() {
+            return implementation;
+        }
+
+        @Override
+        public Element getDocumentElement() {
+            for (Node c = getFirstChild(); c != null; c = c.getNextSibling()) {
+                if (c.getNodeType() == ELEMENT_NODE) {
+                    return (Element) c;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Element createElement(String tagName) {
+            throw readOnly();
+        }
+
+        @Override
+        public DocumentFragment createDocumentFragment() {
+            throw readOnly();
+        }
+
+        @Override
+        public Text createTextNode(String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public Comment createComment(String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public CDATASection createCDATASection(String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public ProcessingInstruction createProcessingInstruction(String target, String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr createAttribute(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public EntityReference createEntityReference(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public NodeList getElementsByTagName(String tagname) {
+            return elementsByTagName(tagname);
+        }
+
+        @Override
+        public Node importNode(Node importedNode, boolean deep) {
+            throw readOnly();
+        }
+
+        @Override
+        public Element createElementNS(String namespaceURI, String qualifiedName) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr createAttributeNS(String namespaceURI, String qualifiedName) {
+            throw readOnly();
+        }
+
+        @Override
+        public NodeList getElementsByTagNameNS(String namespaceURI, String localName) {
+            return new Nodes(new ArrayList<>());
+        }
+
+        @Override
+        public Element getElementById(String elementId) {
+            return null;
+        }
+
+        @Override
+        public String getInputEncoding() {
+            return null;
+        }
+
+        @Override
+        public String getXmlEncoding() {
+            return null;
+        }
+
+        @Override
+        public boolean getXmlStandalone() {
+            return false;
+        }
+
+        @Override
+        public void setXmlStandalone(boolean xmlStandalone) {
+            throw readOnly();
+        }
+
+        @Override
+        public String getXmlVersion() {
+            return "1.0";
+        }
+
+        @Override
+        public void setXmlVersion(String xmlVersion) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean getStrictErrorChecking() {
+            return true;
+        }
+
+        @Override
+        public void setStrictErrorChecking(boolean strictErrorChecking) {
+            // Always strict, nothing can be modified
+        }
+
+        @Override
+        public String getDocumentURI() {
+            return store.uri();
+        }
+
+        @Override
+        public void setDocumentURI(String documentURI) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node adoptNode(Node source) {
+            throw readOnly();
+        }
+
+        @Override
+        public DOMConfiguration getDomConfig() {
+            throw notSupported();
+        }
+
+        @Override
+        public void normalizeDocument() {
+            // Already normalized when built
+        }
+
+        @Override
+        public Node renameNode(Node n, String namespaceURI, String qualifiedName) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * DocumentTypeNode - Facade of the document type declaration (entities and notations are not kept)
+     */
+    static class DocumentTypeNode extends CompactNode implements DocumentType {
+
+        /**
+         * Constructor - Initializes the facade
+         *
+         * @param store Store the node belongs to
+         * @param id    Id of the node in the store
+         */
+        DocumentTypeNode(CompactStore store, int id) {
+            super(store, id);
+        }
+
+        @Override
+        public String getNodeName() {
+            return store.name(id);
+        }
+
+        @Override
+        public String getTextContent() {
+            return null;
+        }
+
+        @Override
+        public String getName() {
+            return store.name(id);
+        }
+
+        @Override
+        public NamedNodeMap getEntities() {
+            return new Attributes(store, CompactStore.NONE);
+        }
+
+        @Override
+        public NamedNodeMap getNotations() {
+            return new Attributes(store, CompactStore.NONE);
+        }
+
+        @Override
+        public String getPublicId() {
+            return store.publicId();
+        }
+
+        @Override
+        public String getSystemId() {
+            return store.systemId();
+        }
+
+        @Override
+        public String getInternalSubset() {
+            return null;
+        }
+    }
+
+    /**
+     * ElementNode - Facade of an element
+     */
+    static class ElementNode extends CompactNode implements Element {
+
+        /**
+         * Constructor - Initializes the facade
+         *
+         * @param store Store the node belongs to
+         * @param id    Id of the node in the store
+         */
+        ElementNode(CompactStore store, int id) {
+            super(store, id);
+        }
+
+        @Override
+        public String getNodeName() {
+            return store.name(id);
+        }
+
+        @Override
+        public NamedNodeMap getAttributes() {
+            return new Attributes(store, id);
+        }
+
+        @Override
+        public boolean hasAttributes() {
+            return store.attrEnd(id) > store.attrStart(id);
+        }
+
+        @Override
+        public String getTagName() {
+            return store.name(id);
+        }
+
+        @Override
+        public String getAttribute(String name) {
+            int a = store.findAttribute(id, name);
+            return (a == CompactStore.NONE) ? "" : store.attrValue(a);
+        }
+
+        @Override
+        public void setAttribute(String name, String value) {
+            throw readOnly();
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr getAttributeNode(String name) {
+            int a = store.findAttribute(id, name);
+            return (a == CompactStore.NONE) ? null : store.attribute(a);
+        }
+
+        @Override
+        public Attr setAttributeNode(Attr newAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr removeAttributeNode(Attr oldAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public NodeList getElementsByTagName(String name) {
+            return elementsByTagName(name);
+        }
+
+        @Override
+        public String getAttributeNS(String namespaceURI, String localName) {
+            return (namespaceURI == null) ? getAttribute(localName) : "";
+        }
+
+        @Override
+        public void setAttributeNS(String namespaceURI, String qualifiedName, String value) {
+            throw readOnly();
+        }
+
+        @Override
+        public void removeAttributeNS(String namespaceURI, String localName) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr getAttributeNodeNS(String namespaceURI, String localName) {
+            return (namespaceURI == null) ? getAttributeNode(localName) : null;
+        }
+
+        @Override
+        public Attr setAttributeNodeNS(Attr newAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public NodeList getElementsByTagNameNS(String namespaceURI, String localName) {
+            return new Nodes(new ArrayList<>());
+        }
+
+        @Override
+        public boolean hasAttribute(String name) {
+            return store.findAttribute(id, name) != CompactStore.NONE;
+        }
+
+        @Override
+        public boolean hasAttributeNS(String namespaceURI, String localName) {
+            return (namespaceURI == null) && hasAttribute(localName);
+        }
+
+        @Override
+        public TypeInfo getSchemaTypeInfo() {
+            return null;
+        }
+
+        @Override
+        public void setIdAttribute(String name, boolean isId) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setIdAttributeNS(String namespaceURI, String localName, boolean isId) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setIdAttributeNode(Attr idAttr, boolean isId) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * CharacterDataNode - Facade of a text node, CDATA section or comment
+     */
+    static class CharacterDataNode extends CompactNode implements CDATASection, Comment {
+
+        /**
+         * Constructor - Initializes the facade
+         *
+         * @param store Store the node belongs to
+         * @param id    Id of the node in the store
+         */
+        CharacterDataNode(CompactStore store, int id) {
+            super(store, id);
+        }
+
+        /**
+         * Returns the character data of the node
+         *
+         * @return Character data, read from the shared buffer of the store
+         */
+        String data() {
+            return store.value(id);
+        }
+
+        @Override
+        public String getNodeName() {
+            switch (getNodeType()) {
+                case CDATA_SECTION_NODE:
+                    return "#cdata-section";
+                case COMMENT_NODE:
+                    return "#comment";
+                default:
+                    return "#text";
+            }
+        }
+
+        @Override
+        public String getNodeValue() {
+            return data();
+        }
+
+        @Override
+        public String getTextContent() {
+            return data();
+        }
+
+        @Override
+        public String getData() {
+            return data();
+        }
+
+        @Override
+        public void setData(String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public int getLength() {
+            return data().length();
+        }
+
+        @Override
+        public String substringData(int offset, int count) {
+            String data = data();
+            if ((offset < 0) || (offset > data.length()) || (count < 0)) {
+                throw new DOMException(DOMException.INDEX_SIZE_ERR, "Invalid offset or count");
+            }
+            return data.substring(offset, Math.min(data.length(), offset + count));
+        }
+
+        @Override
+        public void appendData(String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public void insertData(int offset, String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public void deleteData(int offset, int count) {
+            throw readOnly();
+        }
+
+        @Override
+        public void replaceData(int offset, int count, String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Text splitText(int offset) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isElementContentWhitespace() {
+            // Element content whitespace is not kept in the store
+            return false;
+        }
+
+        @Override
+        public String getWholeText() {
+            // Adjacent text nodes are merged when built
+            return data();
+        }
+
+        @Override
+        public Text replaceWholeText(String content) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * ProcessingInstructionNode - Facade of a processing instruction
+     */
+    static class ProcessingInstructionNode extends CompactNode implements ProcessingInstruction {
+
+        /**
+         * Constructor - Initializes the facade
+         *
+         * @param store Store the node belongs to
+         * @param id    Id of the node in the store
+         */
+        ProcessingInstructionNode(CompactStore store, int id) {
+            super(store, id);
+        }
+
+        @Override
+        public String getNodeName() {
+            return store.value(id);
+        }
+
+        @Override
+        public String getNodeValue() {
+            return store.data(id);
+        }
+
+        @Override
+        public String getTextContent() {
+            return store.data(id);
+        }
+
+        @Override
+        public String getTarget() {
+            return store.value(id);
+        }
+
+        @Override
+        public String getData() {
+            return store.data(id);
+        }
+
+        @Override
+        public void setData(String data) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * AttrNode - Facade of an attribute (the id is the id of the attribute, not of a node of the tree)
+     * <p>
+     * As in the DOM, the value of the attribute is also available as its only child, a text node
+     * </p>
+     */
+    static class AttrNode extends CompactNode implements Attr {
+
+        /**
+         * Text node child of the attribute
+         */
+        private final AttrTextNode text;
+
+        /**
+         * Constructor - Initializes the facade
+         *
+         * @param store Store the attribute belongs to
+         * @param id    Id of the attribute in the store
+         */
+        AttrNode(CompactStore store, int id) {
+            super(store, id);
+            this.text = new AttrTextNode(this);
+        }
+
+        @Override
+        public String getNodeName() {
+            return store.attrName(id);
+        }
+
+        @Override
+        public String getNodeValue() {
+            return store.attrValue(id);
+        }
+
+        @Override
+        public short getNodeType() {
+            return ATTRIBUTE_NODE;
+        }
+
+        @Override
+        public Node getParentNode() {
+            return null;
+        }
+
+        @Override
+        public NodeList getChildNodes() {
+            List<Node> children = new ArrayList<>();
+            children.add(text);
+            return new Nodes(children);
+        }
+
+        @Override
+        public Node getFirstChild() {
+            return text;
+        }
+
+        @Override
+        public Node getLastChild() {
+            return text;
+        }
+
+        @Override
+        public Node getPreviousSibling() {
+            return null;
+        }
+
+        @Override
+        public Node getNextSibling() {
+            return null;
+        }
+
+        @Override
+        public boolean hasChildNodes() {
+            return true;
+        }
+
+        @Override
+        public String getTextContent() {
+            return store.attrValue(id);
+        }
+
+        /**
+         * Returns the attribute as it is written in a XML document (same format as the DOM)
+         *
+         * @return Attribute name="value"
+         */
+        @Override
+        public String toString() {
+            return getName() + "=\"" + getValue() + "\"";
+        }
+
+        @Override
+        public String getName() {
+            return store.attrName(id);
+        }
+
+        @Override
+        public boolean getSpecified() {
+            return store.attrSpecified(id);
+        }
+
+        @Override
+        public String getValue() {
+            return store.attrValue(id);
+        }
+
+        @Override
+        public void setValue(String value) {
+            throw readOnly();
+        }
+
+        @Override
+        public Element getOwnerElement() {
+            return (Element) store.node(store.attrOwner(id));
+        }
+
+        @Override
+        public TypeInfo getSchemaTypeInfo() {
+            return null;
+        }
+
+        @Override
+        public boolean isId() {
+            return false;
+        }
+    }
+
+    /**
+     * AttrTextNode - Facade of the text node child of an attribute
+     */
+    static class AttrTextNode extends CharacterDataNode {
+
+        /**
+         * Attribute the text belongs to
+         */
+        private final AttrNode attr;
+
+        /**
+         * Constructor - Initializes the facade
+         *
+         * @param attr Attribute the text belongs to
+         */
+        AttrTextNode(AttrNode attr) {
+            super(attr.store, attr.id);
+            this.attr = attr;
+        }
+
+        @Override
+        String data() {
+            return store.attrValue(id);
+        }
+
+        @Override
+        public short getNodeType() {
+            return TEXT_NODE;
+        }
+
+        @Override
+        public Node getParentNode() {
+            return attr;
+        }
+
+        @Override
+        public NodeList getChildNodes() {
+            return new Nodes(new ArrayList<>());
+        }
+
+        @Override
+        public Node getFirstChild() {
+            return null;
+        }
+
+        @Override
+        public Node getLastChild() {
+            return null;
+        }
+
+        @Override
+        public Node getPreviousSibling() {
+            return null;
+        }
+
+        @Override
+        public Node getNextSibling() {
+            return null;
+        }
+
+        @Override
+        public boolean hasChildNodes() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,792 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.ext.Attributes2;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * CompactStore - Compact array-based store of a read-only document
+ * <p>
+ * Every node of the document tree (attributes excluded) is identified by its pre-order rank (document order),
+ * and its parent, first child, next sibling, kind and name are stored in parallel arrays<br>
+ * Names are interned in a table, and all the character data (text nodes, comments, attribute values)
+ * is kept in a single shared char buffer, delimited by a table of offsets<br>
+ * Attributes are stored in their own parallel arrays, grouped by owner element and sorted by name
+ * (as the DOM does)<br>
+ * The store is built from SAX events, producing the same tree as a normalized DOM document
+ * parsed ignoring element content whitespace<br>
+ * Nodes are exposed through the W3C DOM interfaces (see CompactNode), with one read-only facade per node,
+ * created on first access, so the evaluators can run over the store without any change
+ * </p>
+ */
+public class CompactStore {
+
+    /**
+     * Id of a missing node (no parent, no child, no sibling)
+     */
+    static final int NONE = -1;
+
+    /**
+     * Parent of each node
+     */
+    private final int[] parent;
+
+    /**
+     * First child of each node
+     */
+    private final int[] firstChild;
+
+    /**
+     * Next sibling of each node
+     */
+    private final int[] nextSibling;
+
+    /**
+     * Kind of each node (DOM node type)
+     */
+    private final byte[] kind;
+
+    /**
+     * Name of each element, processing instruction and document type (index in the table of names),
+     * or value of each text node and comment (index in the table of values)
+     */
+    private final int[] nameId;
+
+    /**
+     * First attribute of each node (the attributes of node i are [attrStart[i], attrStart[i + 1]))
+     */
+    private final int[] attrStart;
+
+    /**
+     * Name of each attribute (index in the table of names)
+     */
+    private final int[] attrName;
+
+    /**
+     * Value of each attribute (index in the table of values)
+     */
+    private final int[] attrValue;
+
+    /**
+     * Owner element of each attribute
+     */
+    private final int[] attrOwner;
+
+    /**
+     * Attributes that were not specified in the document, but defaulted by the DTD
+     */
+    private final BitSet attrDefaulted;
+
+    /**
+     * Table of names
+     */
+    private final String[] names;
+
+    /**
+     * Shared buffer of character data
+     */
+    private final char[] chars;
+
+    /**
+     * Offsets of the values in the buffer (value i spans [values[i], values[i + 1]))
+     */
+    private final int[] values;
+
+    /**
+     * Public and system identifiers of the document type (null if there is no document type)
+     */
+    private final String publicId;
+    private final String systemId;
+
+    /**
+     * URI of the document
+     */
+    private final String uri;
+
+    /**
+     * Facades of the nodes, created on first access
+     */
+    private final CompactNode[] facades;
+
+    /**
+     * Facades of the attributes, created on first access
+     */
+    private final CompactNode.AttrNode[] attrFacades;
+
+    /**
+     * Structural hash codes of the nodes (see XPathEvaluator.hash), computed on first access - 0 if not computed yet
+     */
+    private final int[] hashes;
+
+    /**
+     * Constructor - Takes ownership of the (trimmed) arrays of a builder
+     *
+     * @param b Builder that has processed the whole document
+     */
+    private CompactStore(Builder b) {
+        int size = b.size;
+        int attrs = b.attrs;
+        this.parent = Arrays.copyOf(b.parent, size);
+        this.firstChild = Arrays.copyOf(b.firstChild, size);
+        this.nextSibling = Arrays.copyOf(b.nextSibling, size);
+        this.kind = Arrays.copyOf(b.kind, size);
+        this.nameId = Arrays.copyOf(b.nameId, size);
+        this.attrStart = Arrays.copyOf(b.attrStart, size + 1);
+        this.attrStart[size] = attrs;
+        this.attrName = Arrays.copyOf(b.attrName, attrs);
+        this.attrValue = Arrays.copyOf(b.attrValue, attrs);
+        this.attrOwner = Arrays.copyOf(b.attrOwner, attrs);
+        this.attrDefaulted = b.attrDefaulted;
+        this.names = b.nameTable.toArray(new String[0]);
+        this.chars = Arrays.copyOf(b.chars, b.length);
+        this.values = Arrays.copyOf(b.values, b.numValues + 1);
+        this.values[b.numValues] = b.length;
+        this.publicId = b.publicId;
+        this.systemId = b.systemId;
+        this.uri = b.uri;
+        this.facades = new CompactNode[size];
+        this.attrFacades = new CompactNode.AttrNode[attrs];
+        this.hashes = new int[size];
+    }
+
+    /**
+     * Parses a XML file into a compact store
+     *
+     * @param file XML file
+     * @return Document node of the store
+     * @throws Exception If the file cannot be read or parsed
+     */
+    public static Document parse(File file) throws Exception {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        SAXParser parser = factory.newSAXParser();
+        Builder builder = new Builder(file.toURI().toString());
+        parser.setProperty("http://xml.org/sax/properties/lexical-handler", builder);
+        parser.parse(file, builder);
+        return (Document) new CompactStore(builder).node(0);
+    }
+
+    /**
+     * Returns the number of nodes of the document tree (attributes excluded)
+     *
+     * @return Number of nodes
+     */
+    public int size() {
+        return kind.length;
+    }
+
+    /**
+     * Returns the number of heap bytes used by the arrays of the store (facades excluded)
+     *
+     * @return Footprint of the store, in bytes
+     */
+    public long footprint() {
+        long bytes = 4L * (parent.length + firstChild.length + nextSibling.length + nameId.length + attrStart.length);
+        bytes += kind.length;
+        bytes += 4L * (attrName.length + attrValue.length + attrOwner.length) + attrDefaulted.size() / 8;
+        bytes += 2L * chars.length + 4L * values.length;
+        bytes += 4L * (facades.length + attrFacades.length + hashes.length);
+        for (String name : names) {
+            bytes += 40 + 2L * name.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Returns the facade of a node, creating it on first access
+     * <p>
+     * There is exactly one facade per node, so nodes can be compared by identity
+     * </p>
+     *
+     * @param id Id (pre-order rank) of the node
+     * @return Facade of the node - null if id is NONE
+     */
+    Node node(int id) {
+        if (id == NONE) {
+            return null;
+        }
+        CompactNode n = facades[id];
+        if (n != null) {
+            return n;
+        }
+        // Facades are immutable (final fields), only their creation needs to be serialized
+        synchronized (this) {
+            if (facades[id] == null) {
+                facades[id] = CompactNode.create(this, id);
+            }
+            return facades[id];
+        }
+    }
+
+    /**
+     * Returns the structural hash code of a node, computing it on first access
+     * <p>
+     * Stores are read-only, so the hash code of a node never changes: threads computing it at the same time
+     * compute the same value, and store it with a single (atomic) write
+     * </p>
+     *
+     * @param id Id (pre-order rank) of the node
+     * @return Structural hash code of the node (see XPathEvaluator.hash)
+     */
+    int hash(int id) {
+        int hash = hashes[id];
+        if (hash == 0) {
+            hash = XPathEvaluator.structuralHash(node(id));
+            hashes[id] = hash;
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the facade of an attribute, creating it on first access
+     *
+     * @param a Id of the attribute
+     * @return Facade of the attribute
+     */
+    CompactNode.AttrNode attribute(int a) {
+        CompactNode.AttrNode n = attrFacades[a];
+        if (n != null) {
+            return n;
+        }
+        synchronized (this) {
+            if (attrFacades[a] == null) {
+                attrFacades[a] = new CompactNode.AttrNode(this, a);
+            }
+            return attrFacades[a];
+        }
+    }
+
+    /**
+     * Returns the id of a node of this store
+     *
+     * @param n Node
+     * @return Id (pre-order rank) of the node if it is a node of the tree of this store - NONE otherwise
+     */
+    int id(Node n) {
+        if ((n instanceof CompactNode) && (!(n instanceof CompactNode.AttrNode))
+                && (!(n instanceof CompactNode.AttrTextNode))) {
+            CompactNode c = (CompactNode) n;
+            if (c.store == this) {
+                return c.id;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns the parent of a node
+     *
+     * @param id Id of the node
+     * @return Id of the parent - NONE for the document node
+     */
+    int parent(int id) {
+        return parent[id];
+    }
+
+    /**
+     * Returns the first child of a node
+     *
+     * @param id Id of the node
+     * @return Id of the first child - NONE if the node has no children
+     */
+    int firstChild(int id) {
+        return firstChild[id];
+    }
+
+    /**
+     * Returns the next sibling of a node
+     *
+     * @param id Id of the node
+     * @return Id of the next sibling - NONE if the node is the last child of its parent
+     */
+    int nextSibling(int id) {
+        return nextSibling[id];
+    }
+
+    /**
+     * Returns the kind of a node
+     *
+     * @param id Id of the node
+     * @return DOM node type
+     */
+    short kind(int id) {
+        return kind[id];
+    }
+
+    /**
+     * Returns the name id of an element or document type, to compare names without building strings
+     *
+     * @param id Id of the node
+     * @return Index of the name of the node in the table of names
+     */
+    int nameId(int id) {
+        return nameId[id];
+    }
+
+    /**
+     * Returns the name of an element or document type
+     *
+     * @param id Id of the node
+     * @return Name of the node
+     */
+    String name(int id) {
+        return names[nameId[id]];
+    }
+
+    /**
+     * Returns an entry of the table of names
+     *
+     * @param nameId Index in the table of names
+     * @return Name
+     */
+    String nameAt(int nameId) {
+        return names[nameId];
+    }
+
+    /**
+     * Returns the value of a text node or comment, or the target of a processing instruction
+     *
+     * @param id Id of the node
+     * @return Character data of the node
+     */
+    String value(int id) {
+        return valueAt(nameId[id]);
+    }
+
+    /**
+     * Returns the data of a processing instruction (stored right after its target)
+     *
+     * @param id Id of the processing instruction
+     * @return Data of the processing instruction
+     */
+    String data(int id) {
+        return valueAt(nameId[id] + 1);
+    }
+
+    /**
+     * Returns the first attribute of a node
+     *
+     * @param id Id of the node
+     * @return Id of the first attribute of the node
+     */
+    int attrStart(int id) {
+        return attrStart[id];
+    }
+
+    /**
+     * Returns the end of the attributes of a node
+     *
+     * @param id Id of the node
+     * @return Id of the first attribute after the attributes of the node
+     */
+    int attrEnd(int id) {
+        return attrStart[id + 1];
+    }
+
+    /**
+     * Returns the name of an attribute
+     *
+     * @param a Id of the attribute
+     * @return Name of the attribute
+     */
+    String attrName(int a) {
+        return names[attrName[a]];
+    }
+
+    /**
+     * Returns the value of an attribute
+     *
+     * @param a Id of the attribute
+     * @return Value of the attribute
+     */
+    String attrValue(int a) {
+        return valueAt(attrValue[a]);
+    }
+
+    /**
+     * Returns the owner element of an attribute
+     *
+     * @param a Id of the attribute
+     * @return Id of the owner element
+     */
+    int attrOwner(int a) {
+        return attrOwner[a];
+    }
+
+    /**
+     * Checks whether an attribute was specified in the document
+     *
+     * @param a Id of the attribute
+     * @return true if the attribute was specified, false if it was defaulted by the DTD
+     */
+    boolean attrSpecified(int a) {
+        return !attrDefaulted.get(a);
+    }
+
+    /**
+     * Finds the attribute of an element with the given name
+     *
+     * @param id   Id of the element
+     * @param name Name of the attribute
+     * @return Id of the attribute - NONE if the element has no attribute with that name
+     */
+    int findAttribute(int id, String name) {
+        // Attributes are sorted by name
+        int lo = attrStart[id];
+        int hi = attrStart[id + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = names[attrName[mid]].compareTo(name);
+            if (cmp == 0) {
+                return mid;
+            } else if (cmp < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Returns the public identifier of the document type
+     *
+     * @return Public identifier (null if not declared)
+     */
+    String publicId() {
+        return publicId;
+    }
+
+    /**
+     * Returns the system identifier of the document type
+     *
+     * @return System identifier (null if not declared)
+     */
+    String systemId() {
+        return systemId;
+    }
+
+    /**
+     * Returns the URI of the document
+     *
+     * @return URI the document was parsed from
+     */
+    String uri() {
+        return uri;
+    }
+
+    /**
+     * Returns a value from the shared buffer
+     *
+     * @param v Index in the table of values
+     * @return Value as a string
+     */
+    private String valueAt(int v) {
+        return new String(chars, values[v], values[v + 1] - values[v]);
+    }
+
+    /**
+     * Builder - SAX handler that fills growable arrays in document order
+     */
+    private static class Builder extends DefaultHandler implements LexicalHandler {
+        int[] parent = new int[1024];
+        int[] firstChild = new int[1024];
+        int[] nextSibling = new int[1024];
+        byte[] kind = new byte[1024];
+        int[] nameId = new int[1024];
+        int[] attrStart = new int[1025];
+        int size = 0;
+
+        int[] attrName = new int[256];
+        int[] attrValue = new int[256];
+        int[] attrOwner = new int[256];
+        BitSet attrDefaulted = new BitSet();
+        int attrs = 0;
+
+        ArrayList<String> nameTable = new java.util.ArrayList<>();
+        HashMap<String, Integer> nameIds = new HashMap<>();
+
+        char[] chars = new char[8192];
+        int length = 0;
+        int[] values = new int[1024];
+        int numValues = 0;
+
+        String publicId = null;
+        String systemId = null;
+        final String uri;
+
+        /**
+         * Open nodes (ancestors of the next node) and last child added to each of them
+         */
+        int[] open = new int[64];
+        int[] lastChild = new int[64];
+        int depth = 0;
+
+        /**
+         * Start of the pending text in the buffer (NONE if there is no pending text)
+         */
+        int textStart = NONE;
+
+        /**
+         * Flags for the current position in the document
+         */
+        boolean inDTD = false;
+        boolean inCDATA = false;
+
+        /**
+         * Constructor - Initializes an empty builder
+         *
+         * @param uri URI of the document
+         */
+        Builder(String uri) {
+            this.uri = uri;
+        }
+
+        /**
+         * Adds a node as the last child of the innermost open node
+         *
+         * @param type DOM node type
+         * @param name Name id or value id
+         * @return Id of the node
+         */
+        private int addNode(short type, int name) {
+            if (size == kind.length) {
+                int capacity = size * 2;
+                parent = Arrays.copyOf(parent, capacity);
+                firstChild = Arrays.copyOf(firstChild, capacity);
+                nextSibling = Arrays.copyOf(nextSibling, capacity);
+                kind = Arrays.copyOf(kind, capacity);
+                nameId = Arrays.copyOf(nameId, capacity);
+                attrStart = Arrays.copyOf(attrStart, capacity + 1);
+            }
+            int id = size++;
+            kind[id] = (byte) type;
+            nameId[id] = name;
+            firstChild[id] = NONE;
+            nextSibling[id] = NONE;
+            attrStart[id] = attrs;
+            if (depth == 0) {
+                parent[id] = NONE;
+            } else {
+                int p = open[depth - 1];
+                parent[id] = p;
+                if (lastChild[depth - 1] == NONE) {
+                    firstChild[p] = id;
+                } else {
+                    nextSibling[lastChild[depth - 1]] = id;
+                }
+                lastChild[depth - 1] = id;
+            }
+            return id;
+        }
+
+        /**
+         * Makes a node the innermost open node
+         *
+         * @param id Id of the node
+         */
+        private void push(int id) {
+            if (depth == open.length) {
+                open = Arrays.copyOf(open, depth * 2);
+                lastChild = Arrays.copyOf(lastChild, depth * 2);
+            }
+            open[depth] = id;
+            lastChild[depth] = NONE;
+            ++depth;
+        }
+
+        /**
+         * Interns a name
+         *
+         * @param name Name
+         * @return Index of the name in the table of names
+         */
+        private int intern(String name) {
+            Integer id = nameIds.get(name);
+            if (id == null) {
+                id = nameTable.size();
+                nameTable.add(name);
+                nameIds.put(name, id);
+            }
+            return id;
+        }
+
+        /**
+         * Appends characters to the shared buffer
+         *
+         * @param ch    Characters
+         * @param start Offset of the first character to append
+         * @param len   Number of characters to append
+         */
+        private void append(char[] ch, int start, int len) {
+            if (length + len > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + len));
+            }
+            System.arraycopy(ch, start, chars, length, len);
+            length += len;
+        }
+
+        /**
+         * Adds a value that spans from the given offset to the end of the buffer
+         *
+         * @param start Offset of the value in the buffer
+         * @return Index of the value in the table of values
+         */
+        private int addValue(int start) {
+            if (numValues + 1 >= values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[numValues] = start;
+            return numValues++;
+        }
+
+        /**
+         * Adds a value from a string
+         *
+         * @param s Value
+         * @return Index of the value in the table of values
+         */
+        private int addValue(String s) {
+            int start = length;
+            append(s.toCharArray(), 0, s.length());
+            return addValue(start);
+        }
+
+        /**
+         * Adds the pending text (adjacent character events form a single text node, as in a normalized DOM)
+         */
+        private void flushText() {
+            if (textStart == NONE) {
+                return;
+            }
+            if (length > textStart) {
+                addNode(inCDATA ? Node.CDATA_SECTION_NODE : Node.TEXT_NODE, addValue(textStart));
+            }
+            textStart = NONE;
+        }
+
+        @Override
+        public void startDocument() {
+            push(addNode(Node.DOCUMENT_NODE, NONE));
+        }
+
+        @Override
+        public void endDocument() {
+            flushText();
+            --depth;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) {
+            flushText();
+            int id = addNode(Node.ELEMENT_NODE, intern(qName));
+            // Attributes sorted by name
+            Integer[] order = new Integer[atts.getLength()];
+            for (int i = 0; i < order.length; ++i) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (i, j) -> atts.getQName(i).compareTo(atts.getQName(j)));
+            for (int i : order) {
+                if (attrs == attrName.length) {
+                    attrName = Arrays.copyOf(attrName, attrs * 2);
+                    attrValue = Arrays.copyOf(attrValue, attrs * 2);
+                    attrOwner = Arrays.copyOf(attrOwner, attrs * 2);
+                }
+                attrName[attrs] = intern(atts.getQName(i));
+                attrValue[attrs] = addValue(atts.getValue(i));
+                attrOwner[attrs] = id;
+                if ((atts instanceof Attributes2) && (!((Attributes2) atts).isSpecified(i))) {
+                    attrDefaulted.set(attrs);
+                }
+                ++attrs;
+            }
+            push(id);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            flushText();
+            --depth;
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int len) {
+            if (textStart == NONE) {
+                textStart = length;
+            }
+            append(ch, start, len);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int len) {
+            // Element content whitespace is not part of the tree
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) {
+            if (inDTD) {
+                return;
+            }
+            flushText();
+            // Target and data are stored as two consecutive values
+            int v = addValue(target);
+            addValue(data);
+            addNode(Node.PROCESSING_INSTRUCTION_NODE, v);
+        }
+
+        @Override
+        public void startDTD(String name, String publicId, String systemId) {
+            addNode(Node.DOCUMENT_TYPE_NODE, intern(name));
+            this.publicId = publicId;
+            this.systemId = systemId;
+            inDTD = true;
+        }
+
+        @Override
+        public void endDTD() {
+            inDTD = false;
+        }
+
+        @Override
+        public void startEntity(String name) {
+        }
+
+        @Override
+        public void endEntity(String name) {
+        }
+
+        @Override
+        public void startCDATA() {
+            flushText();
+            inCDATA = true;
+            textStart = length;
+        }
+
+        @Override
+        public void endCDATA() {
+            flushText();
+            inCDATA = false;
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int len) {
+            if (inDTD) {
+                return;
+            }
+            flushText();
+            int begin = length;
+            append(ch, start, len);
+            addNode(Node.COMMENT_NODE, addValue(begin));
+        }
+    }
+}
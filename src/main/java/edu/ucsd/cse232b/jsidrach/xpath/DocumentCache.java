@@ -0,0 +1,399 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * DocumentCache - Process-wide cache of parsed XML documents
+ * <p>
+ * Documents are keyed by their canonical path, and are only reused while the last modification time
+ * and the size of the file do not change<br>
+ * Every loaded document is indexed (see DocumentIndex)<br>
+ * Documents are either parsed into a W3C DOM tree (default), or into a CompactStore,
+ * which takes a fraction of the memory of the DOM<br>
+ * The cache is bounded by the estimated heap footprint of the documents it holds,
+ * evicting the least recently used documents first<br>
+ * Documents are parsed outside of the lock of the cache, so a big document does not block the loads of the rest:
+ * concurrent loads of the same version of a file wait for a single parse,
+ * and the lock is only taken to look up and publish entries<br>
+ * Cached documents are shared between queries, so they must be treated as read-only
+ * </p>
+ */
+public class DocumentCache {
+
+    /**
+     * Estimated number of heap bytes used by the DOM of a document, per byte of the XML file
+     */
+    private static final long BYTES_PER_FILE_BYTE = 8;
+
+    /**
+     * Process-wide instance, bounded by a quarter of the maximum heap size
+     */
+    private static final DocumentCache instance = new DocumentCache(Runtime.getRuntime().maxMemory() / 4);
+
+    /**
+     * Cached document, along with the file attributes it was loaded with
+     */
+    private static class Entry {
+        /**
+         * Parsed document
+         */
+        final Document doc;
+
+        /**
+         * Last modification time of the file when it was parsed
+         */
+        final long lastModified;
+
+        /**
+         * Size of the file when it was parsed
+         */
+        final long size;
+
+        /**
+         * Estimated heap footprint of the document, in bytes
+         */
+        final long footprint;
+
+        /**
+         * Public constructor - Initializes the entry
+         *
+         * @param doc          Parsed document
+         * @param lastModified Last modification time of the file
+         * @param size         Size of the file
+         * @param footprint    Estimated heap footprint of the document, in bytes
+         */
+        Entry(Document doc, long lastModified, long size, long footprint) {
+            this.doc = doc;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.footprint = footprint;
+        }
+    }
+
+    /**
+     * Map from canonical paths to cached documents, in access order (least recently used first)
+     */
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Parses in progress, by canonical path, last modification time and size of the file
+     */
+    private final ConcurrentHashMap<String, FutureTask<Entry>> loading;
+
+    /**
+     * Factory used to parse the documents
+     */
+    private final DocumentBuilderFactory docFactory;
+
+    /**
+     * Flag to build the inverted index of element names of the loaded documents
+     */
+    private boolean tagIndex;
+
+    /**
+     * Flag to parse the documents into compact stores instead of DOM trees
+     */
+    private boolean compact;
+
+    /**
+     * Maximum estimated footprint of all the cached documents, in bytes
+     */
+    private long capacity;
+
+    /**
+     * Current estimated footprint of all the cached documents, in bytes
+     */
+    private long footprint;
+
+    /**
+     * Number of loads served from the cache
+     */
+    private long hits;
+
+    /**
+     * Number of loads that had to parse the file
+     */
+    private long misses;
+
+    /**
+     * Number of documents evicted to stay within the capacity
+     */
+    private long evictions;
+
+    /**
+     * Constructor - Initializes an empty cache
+     *
+     * @param capacity Maximum estimated footprint of all the cached documents, in bytes
+     */
+    DocumentCache(long capacity) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.loading = new ConcurrentHashMap<>();
+        this.docFactory = DocumentBuilderFactory.newInstance();
+        // Ignore non-relevant whitespace (only works if the XML has an associated DTD)
+        this.docFactory.setIgnoringElementContentWhitespace(true);
+        // Build the whole tree upfront (it is traversed anyway to index it), so reading it has no side effects
+        try {
+            this.docFactory.setFeature("http://apache.org/xml/features/dom/defer-node-expansion", false);
+        } catch (Exception e) {
+            // Feature not supported by the parser
+        }
+        this.tagIndex = true;
+        this.compact = false;
+        this.capacity = capacity;
+        this.footprint = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    /**
+     * Returns the process-wide document cache
+     *
+     * @return Process-wide document cache
+     */
+    public static DocumentCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * Loads a XML file, parsing it only if it is not cached or it has changed since it was cached
+     *
+     * @param file XML file
+     * @return Normalized document corresponding to the file
+     * @throws Exception If the file cannot be read or parsed
+     */
+    public Document load(File file) throws Exception {
+        String path = file.getCanonicalPath();
+        long lastModified = file.lastModified();
+        long size = file.length();
+        boolean compact;
+        boolean tagIndex;
+        synchronized (this) {
+            Entry entry = entries.get(path);
+            if ((entry != null) && (entry.lastModified == lastModified) && (entry.size == size)) {
+                ++hits;
+                return entry.doc;
+            }
+            compact = this.compact;
+            tagIndex = this.tagIndex;
+        }
+        // Parse the file, or wait for the load of the same version of the file that is already parsing it
+        String key = path + "@" + lastModified + ":" + size;
+        FutureTask<Entry> task = new FutureTask<>(() -> parse(file, lastModified, size, compact, tagIndex));
+        FutureTask<Entry> running = loading.putIfAbsent(key, task);
+        if (running != null) {
+            Entry entry = result(running);
+            synchronized (this) {
+                ++hits;
+            }
+            return entry.doc;
+        }
+        try {
+            task.run();
+            Entry entry = result(task);
+            synchronized (this) {
+                ++misses;
+                // Stale entry (the file changed on disk)
+                remove(path);
+                // Documents bigger than the whole cache are never cached
+                if (entry.footprint <= capacity) {
+                    entries.put(path, entry);
+                    footprint += entry.footprint;
+                    evict();
+                }
+            }
+            return entry.doc;
+        } finally {
+            // Published (or failed) - later loads do not wait for this parse anymore
+            loading.remove(key, task);
+        }
+    }
+
+    /**
+     * Parses and indexes a XML file
+     *
+     * @param file         XML file
+     * @param lastModified Last modification time of the file
+     * @param size         Size of the file
+     * @param compact      Flag to parse the file into a compact store instead of a DOM tree
+     * @param tagIndex     Flag to build the inverted index of element names
+     * @return Entry with the normalized document corresponding to the file
+     * @throws Exception If the file cannot be read or parsed
+     */
+    private Entry parse(File file, long lastModified, long size, boolean compact, boolean tagIndex)
+            throws Exception {
+        Document doc;
+        long docFootprint;
+        if (compact) {
+            // Compact stores are already normalized, and know their exact footprint
+            doc = CompactStore.parse(file);
+            docFootprint = ((CompactNode.DocumentNode) doc).getStore().footprint();
+        } else {
+            DocumentBuilder docBuilder;
+            // Factories are not thread-safe (builders are only used by the current thread)
+            synchronized (docFactory) {
+                docBuilder = docFactory.newDocumentBuilder();
+            }
+            doc = docBuilder.parse(file);
+            // Normalize document
+            doc.getDocumentElement().normalize();
+            docFootprint = size * BYTES_PER_FILE_BYTE;
+        }
+        DocumentIndex.build(doc, tagIndex);
+        return new Entry(doc, lastModified, size, docFootprint);
+    }
+
+    /**
+     * Waits for a parse
+     *
+     * @param task Parse
+     * @return Entry with the parsed document
+     * @throws Exception The exception of the parse, if it failed
+     */
+    private static Entry result(FutureTask<Entry> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Checks whether a XML file is cached and has not changed since it was cached (the counters are not updated)
+     *
+     * @param file XML file
+     * @return true if loading the file would not parse it, false otherwise
+     * @throws Exception If the path of the file cannot be resolved
+     */
+    public synchronized boolean contains(File file) throws Exception {
+        Entry entry = entries.get(file.getCanonicalPath());
+        return (entry != null) && (entry.lastModified == file.lastModified()) && (entry.size == file.length());
+    }
+
+    /**
+     * Removes a document from the cache
+     *
+     * @param path Canonical path of the document
+     */
+    private void remove(String path) {
+        Entry entry = entries.remove(path);
+        if (entry != null) {
+            footprint -= entry.footprint;
+        }
+    }
+
+    /**
+     * Evicts the least recently used documents until the footprint is within the capacity
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ((footprint > capacity) && it.hasNext()) {
+            footprint -= it.next().getValue().footprint;
+            it.remove();
+            ++evictions;
+        }
+    }
+
+    /**
+     * Removes all the cached documents (the counters are kept)
+     */
+    public synchronized void clear() {
+        entries.clear();
+        footprint = 0;
+    }
+
+    /**
+     * Sets whether the documents loaded from now on get an inverted index of element names
+     *
+     * @param tagIndex Flag to build the inverted index of element names
+     */
+    public synchronized void setTagIndex(boolean tagIndex) {
+        this.tagIndex = tagIndex;
+    }
+
+    /**
+     * Sets whether the documents loaded from now on are parsed into compact stores (see CompactStore)
+     * <p>
+     * Documents already cached keep their representation until they are evicted or the cache is cleared
+     * </p>
+     *
+     * @param compact Flag to parse the documents into compact stores instead of DOM trees
+     */
+    public synchronized void setCompact(boolean compact) {
+        this.compact = compact;
+    }
+
+    /**
+     * Sets the maximum estimated footprint of the cache, evicting documents if necessary
+     *
+     * @param capacity Maximum estimated footprint of all the cached documents, in bytes
+     */
+    public synchronized void setCapacity(long capacity) {
+        this.capacity = capacity;
+        evict();
+    }
+
+    /**
+     * Returns the maximum estimated footprint of the cache
+     *
+     * @return Maximum estimated footprint of all the cached documents, in bytes
+     */
+    public synchronized long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the current estimated footprint of the cache
+     *
+     * @return Estimated footprint of all the cached documents, in bytes
+     */
+    public synchronized long getFootprint() {
+        return footprint;
+    }
+
+    /**
+     * Returns the number of cached documents
+     *
+     * @return Number of cached documents
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of loads served from the cache
+     *
+     * @return Number of cache hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of loads that had to parse the file
+     *
+     * @return Number of cache misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of documents evicted to stay within the capacity
+     *
+     * @return Number of evictions
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
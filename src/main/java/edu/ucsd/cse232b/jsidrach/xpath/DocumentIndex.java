@@ -0,0 +1,401 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * DocumentIndex - Structural index of a loaded document
+ * <p>
+ * Every node of the document tree (attributes excluded) is numbered with its pre-order rank, post-order rank
+ * and level (depth), where the document node is the root of the tree<br>
+ * The descendants of a node are the nodes with pre-order ranks in [pre + 1, post + level],
+ * so the descendant axis is a contiguous range of the pre-order array,
+ * and ancestor/descendant tests are integer comparisons<br>
+ * Optionally, an inverted index from element names to the pre-order ranks of the elements with that name
+ * (in document order) resolves descendant tag steps by searching the ranges in the posting list<br>
+ * The index is attached to the document when it is loaded, and is read-only after that<br>
+ * Documents of a CompactStore are already numbered in pre-order, so their index reuses the ids of the store
+ * instead of keeping its own array of nodes and map from nodes to ranks
+ * </p>
+ */
+public class DocumentIndex {
+
+    /**
+     * Key used to attach the index to its document
+     */
+    private static final String KEY = DocumentIndex.class.getName();
+
+    /**
+     * Nodes of the document, in pre-order (document order) - null for compact documents
+     */
+    private final Node[] nodes;
+
+    /**
+     * Store of the document, if it is a compact document - null otherwise
+     */
+    private final CompactStore store;
+
+    /**
+     * Post-order rank of each node, by pre-order rank
+     */
+    private final int[] post;
+
+    /**
+     * Level of each node (the document node has level 0), by pre-order rank
+     */
+    private final int[] level;
+
+    /**
+     * Map from nodes to their pre-order rank - null for compact documents
+     */
+    private final IdentityHashMap<Node, Integer> ids;
+
+    /**
+     * Map from element names to the sorted pre-order ranks of the elements with that name
+     * (null if the tag index was not built)
+     */
+    private final HashMap<String, int[]> tags;
+
+    /**
+     * Constructor - Numbers all the nodes of the document
+     *
+     * @param doc      Document
+     * @param tagIndex Flag to build the inverted index of element names
+     */
+    private DocumentIndex(Document doc, boolean tagIndex) {
+        ArrayList<Node> preOrder = new ArrayList<>();
+        ArrayList<Integer> levels = new ArrayList<>();
+        // Iterative depth first traversal (documents can be arbitrarily deep)
+        Node n = doc;
+        int depth = 0;
+        while (n != null) {
+            preOrder.add(n);
+            levels.add(depth);
+            if (n.getFirstChild() != null) {
+                n = n.getFirstChild();
+                ++depth;
+                continue;
+            }
+            while ((n != doc) && (n.getNextSibling() == null)) {
+                n = n.getParentNode();
+                --depth;
+            }
+            n = (n == doc) ? null : n.getNextSibling();
+        }
+        int size = preOrder.size();
+        this.nodes = preOrder.toArray(new Node[size]);
+        this.store = null;
+        this.level = new int[size];
+        this.ids = new IdentityHashMap<>(size);
+        for (int i = 0; i < size; ++i) {
+            this.level[i] = levels.get(i);
+            this.ids.put(this.nodes[i], i);
+        }
+        this.post = postOrder(this.level);
+        this.tags = tagIndex ? buildTags() : null;
+    }
+
+    /**
+     * Constructor - Numbers all the nodes of a compact document (node ids are pre-order ranks)
+     *
+     * @param store    Store of the document
+     * @param tagIndex Flag to build the inverted index of element names
+     */
+    private DocumentIndex(CompactStore store, boolean tagIndex) {
+        int size = store.size();
+        this.nodes = null;
+        this.store = store;
+        this.ids = null;
+        this.level = new int[size];
+        // Parents precede their children
+        for (int i = 1; i < size; ++i) {
+            this.level[i] = this.level[store.parent(i)] + 1;
+        }
+        this.post = postOrder(this.level);
+        this.tags = tagIndex ? buildTags() : null;
+    }
+
+    /**
+     * Computes the post-order ranks of the nodes of a tree
+     * <p>
+     * A node is finished once all its descendants are (descendants = post - pre + level)
+     * </p>
+     *
+     * @param level Level of each node, by pre-order rank
+     * @return Post-order rank of each node, by pre-order rank
+     */
+    private static int[] postOrder(int[] level) {
+        int size = level.length;
+        int[] post = new int[size];
+        int[] stack = new int[size];
+        int top = -1;
+        int next = 0;
+        for (int i = 0; i < size; ++i) {
+            while ((top >= 0) && (level[stack[top]] >= level[i])) {
+                post[stack[top--]] = next++;
+            }
+            stack[++top] = i;
+        }
+        while (top >= 0) {
+            post[stack[top--]] = next++;
+        }
+        return post;
+    }
+
+    /**
+     * Builds the inverted index of element names
+     *
+     * @return Map from element names to the sorted pre-order ranks of the elements with that name
+     */
+    private HashMap<String, int[]> buildTags() {
+        HashMap<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i < level.length; ++i) {
+            if (type(i) == Node.ELEMENT_NODE) {
+                counts.merge(name(i), 1, Integer::sum);
+            }
+        }
+        HashMap<String, int[]> postings = new HashMap<>(counts.size() * 2);
+        for (Map.Entry<String, Integer> count : counts.entrySet()) {
+            postings.put(count.getKey(), new int[count.getValue()]);
+        }
+        // Reuse the counts as the number of ranks already stored in each posting list
+        counts.replaceAll((tag, count) -> 0);
+        for (int i = 0; i < level.length; ++i) {
+            if (type(i) == Node.ELEMENT_NODE) {
+                String tag = name(i);
+                int position = counts.merge(tag, 1, Integer::sum) - 1;
+                postings.get(tag)[position] = i;
+            }
+        }
+        return postings;
+    }
+
+    /**
+     * Returns the type of a node
+     *
+     * @param pre Pre-order rank of the node
+     * @return DOM node type
+     */
+    private short type(int pre) {
+        return (store != null) ? store.kind(pre) : nodes[pre].getNodeType();
+    }
+
+    /**
+     * Returns the name of a node
+     *
+     * @param pre Pre-order rank of the node
+     * @return Name of the node
+     */
+    private String name(int pre) {
+        return (store != null) ? store.name(pre) : nodes[pre].getNodeName();
+    }
+
+    /**
+     * Builds the index of a document and attaches it to the document
+     *
+     * @param doc      Document
+     * @param tagIndex Flag to build the inverted index of element names
+     * @return Index of the document
+     */
+    public static DocumentIndex build(Document doc, boolean tagIndex) {
+        DocumentIndex index = (doc instanceof CompactNode.DocumentNode) ?
+                new DocumentIndex(((CompactNode.DocumentNode) doc).getStore(), tagIndex)
+                : new DocumentIndex(doc, tagIndex);
+        doc.setUserData(KEY, index, null);
+        return index;
+    }
+
+    /**
+     * Returns the index of the document a node belongs to
+     *
+     * @param n Node
+     * @return Index of the node's document if it was built - null otherwise
+     */
+    public static DocumentIndex of(Node n) {
+        Document doc = (n.getNodeType() == Node.DOCUMENT_NODE) ? (Document) n : n.getOwnerDocument();
+        if (doc == null) {
+            return null;
+        }
+        return (DocumentIndex) doc.getUserData(KEY);
+    }
+
+    /**
+     * Returns the number of indexed nodes
+     *
+     * @return Number of nodes in the document tree
+     */
+    public int size() {
+        return level.length;
+    }
+
+    /**
+     * Returns the pre-order rank of a node
+     *
+     * @param n Node
+     * @return Pre-order rank of the node if it is part of the indexed tree - -1 otherwise
+     */
+    public int pre(Node n) {
+        if (store != null) {
+            return store.id(n);
+        }
+        Integer id = ids.get(n);
+        return (id == null) ? -1 : id;
+    }
+
+    /**
+     * Returns the post-order rank of a node
+     *
+     * @param pre Pre-order rank of the node
+     * @return Post-order rank of the node
+     */
+    public int post(int pre) {
+        return post[pre];
+    }
+
+    /**
+     * Returns the level of a node
+     *
+     * @param pre Pre-order rank of the node
+     * @return Level of the node (the document node has level 0)
+     */
+    public int level(int pre) {
+        return level[pre];
+    }
+
+    /**
+     * Returns the node with the given pre-order rank
+     *
+     * @param pre Pre-order rank of the node
+     * @return Node
+     */
+    public Node node(int pre) {
+        return (store != null) ? store.node(pre) : nodes[pre];
+    }
+
+    /**
+     * Returns the pre-order rank of the last descendant of a node
+     *
+     * @param pre Pre-order rank of the node
+     * @return Pre-order rank of the last descendant of the node (the node itself if it has no descendants)
+     */
+    public int last(int pre) {
+        return post[pre] + level[pre];
+    }
+
+    /**
+     * Checks whether a node is a proper ancestor of other node
+     *
+     * @param a Pre-order rank of the possible ancestor
+     * @param d Pre-order rank of the possible descendant
+     * @return true if a is an ancestor of d, false otherwise
+     */
+    public boolean isAncestor(int a, int d) {
+        return (a < d) && (post[d] < post[a]);
+    }
+
+    /**
+     * Returns the pre-order ranks of a list of nodes, sorted
+     *
+     * @param ns List of nodes
+     * @return Sorted pre-order ranks of the nodes if all of them are part of the indexed tree - null otherwise
+     */
+    public int[] sortedIds(List<Node> ns) {
+        int[] sorted = new int[ns.size()];
+        int i = 0;
+        for (Node n : ns) {
+            int id = pre(n);
+            if (id < 0) {
+                return null;
+            }
+            sorted[i++] = id;
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Appends the given nodes and all their descendants to a list, as a union of pre-order ranges
+     *
+     * @param ns  List of nodes
+     * @param out List the nodes are appended to, in document order and without duplicates
+     * @return true if all the nodes are part of the indexed tree (and have been appended) - false otherwise
+     */
+    public boolean descendantsOrSelves(List<Node> ns, List<Node> out) {
+        int[] sorted = sortedIds(ns);
+        if (sorted == null) {
+            return false;
+        }
+        // Ranges are either disjoint or nested, skip the ones covered by a previous range
+        int end = -1;
+        for (int pre : sorted) {
+            if (pre <= end) {
+                continue;
+            }
+            end = last(pre);
+            if (store != null) {
+                for (int i = pre; i <= end; ++i) {
+                    out.add(store.node(i));
+                }
+            } else {
+                out.addAll(Arrays.asList(nodes).subList(pre, end + 1));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends the descendants of the given nodes that are elements with the given tag to a list
+     *
+     * @param ns  List of nodes
+     * @param tag Tag of the elements
+     * @param out List the elements are appended to, in document order and without duplicates
+     * @return true if all the nodes are part of the indexed tree (and the elements have been appended) - false otherwise
+     */
+    public boolean descendantsByTag(List<Node> ns, String tag, List<Node> out) {
+        int[] sorted = sortedIds(ns);
+        if (sorted == null) {
+            return false;
+        }
+        int end = -1;
+        // Without tag index, scan the ranges
+        if (tags == null) {
+            for (int pre : sorted) {
+                if (pre <= end) {
+                    continue;
+                }
+                end = last(pre);
+                for (int i = pre + 1; i <= end; ++i) {
+                    if ((type(i) == Node.ELEMENT_NODE) && (name(i).equals(tag))) {
+                        out.add(node(i));
+                    }
+                }
+            }
+            return true;
+        }
+        // With tag index, search the ranges in the posting list
+        int[] posting = tags.get(tag);
+        if (posting == null) {
+            return true;
+        }
+        int p = 0;
+        for (int pre : sorted) {
+            if (pre <= end) {
+                continue;
+            }
+            end = last(pre);
+            int from = Arrays.binarySearch(posting, p, posting.length, pre + 1);
+            p = (from >= 0) ? from : -(from + 1);
+            while ((p < posting.length) && (posting[p] <= end)) {
+                out.add(node(posting[p++]));
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,405 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * DocumentStatistics - Data statistics of a XML document, to be used to estimate the cost of queries
+ * <p>
+ * The statistics are collected in a single pass over the loaded document (see DocumentCache):
+ * the number of elements per tag, the average fan-out (children per element),
+ * and a path summary, with the number of nodes per label path (as /bib/book/title, /bib/book/title/text()
+ * or /bib/book/@year) and the number of distinct values of the nodes of every path
+ * (the text of text nodes, the value of attributes, and the text of elements without element children)<br>
+ * They are persisted in a side file next to the XML (name of the XML file, plus .stats),
+ * along with the last modification time and size of the XML, so they are only collected again when the XML changes<br>
+ * Side files are written to a temporary file and then moved over the previous one, so they are never seen half written,
+ * and end with the number of records they contain, so truncated or corrupt side files are detected and replaced<br>
+ * Statistics are read-only once collected, and are shared by all the queries of the process<br>
+ * Each document is read or collected under its own lock, so the statistics of a big document
+ * do not block the ones of the rest
+ * </p>
+ */
+public class DocumentStatistics {
+
+    /**
+     * Extension of the side files
+     */
+    public static final String EXTENSION = ".stats";
+
+    /**
+     * Header of the side files (format version)
+     */
+    private static final String HEADER = "# DocumentStatistics 2";
+
+    /**
+     * Maximum number of distinct values tracked per path (paths with more are assumed to have all values distinct)
+     */
+    private static final int MAX_DISTINCT = 1 << 16;
+
+    /**
+     * Process-wide statistics, by canonical path of the XML file
+     */
+    private static final ConcurrentHashMap<String, DocumentStatistics> loaded = new ConcurrentHashMap<>();
+
+    /**
+     * Locks of the XML files whose statistics are being read or collected, by canonical path
+     */
+    private static final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Last modification time of the XML file the statistics were collected from
+     */
+    private final long lastModified;
+
+    /**
+     * Size of the XML file the statistics were collected from
+     */
+    private final long size;
+
+    /**
+     * Map from element names to the number of elements with that name
+     */
+    private final TreeMap<String, Long> tags;
+
+    /**
+     * Map from label paths to the number of nodes with that path
+     */
+    private final TreeMap<String, Long> paths;
+
+    /**
+     * Map from label paths to the number of distinct values of the nodes with that path
+     */
+    private final TreeMap<String, Long> distinct;
+
+    /**
+     * Average number of children (elements and text nodes) per element
+     */
+    private double fanout;
+
+    /**
+     * Constructor - Initializes empty statistics
+     *
+     * @param lastModified Last modification time of the XML file
+     * @param size         Size of the XML file
+     */
+    private DocumentStatistics(long lastModified, long size) {
+        this.lastModified = lastModified;
+        this.size = size;
+        this.tags = new TreeMap<>();
+        this.paths = new TreeMap<>();
+        this.distinct = new TreeMap<>();
+        this.fanout = 0;
+    }
+
+    /**
+     * Obtains the statistics of a XML file
+     * <p>
+     * Statistics are read from the side file if it is up to date, or collected (loading the document)
+     * and written to the side file otherwise (if the side file cannot be written, they are only kept in memory)<br>
+     * Truncated or corrupt side files are collected again and replaced
+     * </p>
+     *
+     * @param file XML file
+     * @return Statistics of the file
+     * @throws Exception If the file cannot be read or parsed
+     */
+    public static DocumentStatistics get(File file) throws Exception {
+        String path = file.getCanonicalPath();
+        long lastModified = file.lastModified();
+        long size = file.length();
+        DocumentStatistics stats = loaded.get(path);
+        if ((stats != null) && (stats.lastModified == lastModified) && (stats.size == size)) {
+            return stats;
+        }
+        synchronized (locks.computeIfAbsent(path, p -> new Object())) {
+            // Collected by another thread while waiting for the lock
+            stats = loaded.get(path);
+            if ((stats != null) && (stats.lastModified == lastModified) && (stats.size == size)) {
+                return stats;
+            }
+            File sideFile = sideFile(file);
+            try {
+                stats = read(sideFile);
+            } catch (IOException e) {
+                // Truncated or corrupt side file, replaced below
+                stats = null;
+            }
+            if ((stats == null) || (stats.lastModified != lastModified) || (stats.size != size)) {
+                stats = collect(DocumentCache.getInstance().load(file), lastModified, size);
+                try {
+                    stats.write(sideFile);
+                } catch (IOException e) {
+                    // Read-only location, keep the statistics in memory only
+                }
+            }
+            loaded.put(path, stats);
+            return stats;
+        }
+    }
+
+    /**
+     * Removes all the statistics kept in memory (side files are kept)
+     */
+    public static void clear() {
+        loaded.clear();
+    }
+
+    /**
+     * Obtains the side file where the statistics of a XML file are persisted
+     *
+     * @param file XML file
+     * @return Side file of the XML file
+     */
+    public static File sideFile(File file) {
+        return new File(file.getPath() + EXTENSION);
+    }
+
+    /**
+     * Collects the statistics of a document
+     *
+     * @param doc          Document
+     * @param lastModified Last modification time of the XML file
+     * @param size         Size of the XML file
+     * @return Statistics of the document
+     */
+    private static DocumentStatistics collect(Document doc, long lastModified, long size) {
+        DocumentStatistics stats = new DocumentStatistics(lastModified, size);
+        HashMap<String, HashSet<String>> values = new HashMap<>();
+        long elements = 0;
+        long children = 0;
+        // Iterative depth first traversal (documents can be arbitrarily deep)
+        LinkedList<Node> pending = new LinkedList<>();
+        LinkedList<String> pendingPaths = new LinkedList<>();
+        for (Node c = doc.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if (c.getNodeType() == Node.ELEMENT_NODE) {
+                pending.add(c);
+                pendingPaths.add("");
+            }
+        }
+        while (!pending.isEmpty()) {
+            Node n = pending.removeFirst();
+            String path = pendingPaths.removeFirst() + "/" + n.getNodeName();
+            ++elements;
+            stats.tags.merge(n.getNodeName(), 1L, Long::sum);
+            stats.paths.merge(path, 1L, Long::sum);
+            NamedNodeMap attributes = n.getAttributes();
+            for (int i = 0; i < attributes.getLength(); ++i) {
+                Node a = attributes.item(i);
+                String attributePath = path + "/@" + a.getNodeName();
+                stats.paths.merge(attributePath, 1L, Long::sum);
+                track(values, attributePath, a.getNodeValue());
+            }
+            StringBuilder text = new StringBuilder();
+            boolean simple = true;
+            for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                if (c.getNodeType() == Node.ELEMENT_NODE) {
+                    ++children;
+                    simple = false;
+                    pending.add(c);
+                    pendingPaths.add(path);
+                } else if (c.getNodeType() == Node.TEXT_NODE) {
+                    ++children;
+                    String textPath = path + "/text()";
+                    stats.paths.merge(textPath, 1L, Long::sum);
+                    track(values, textPath, c.getNodeValue());
+                    text.append(c.getNodeValue());
+                }
+            }
+            if (simple) {
+                track(values, path, text.toString());
+            }
+        }
+        stats.fanout = (elements == 0) ? 0 : (double) children / elements;
+        for (Map.Entry<String, Long> entry : stats.paths.entrySet()) {
+            HashSet<String> pathValues = values.get(entry.getKey());
+            // Untracked or overflowed paths are assumed to have all their values distinct
+            boolean exact = (pathValues != null) && (pathValues.size() < MAX_DISTINCT);
+            stats.distinct.put(entry.getKey(), exact ? pathValues.size() : entry.getValue());
+        }
+        return stats;
+    }
+
+    /**
+     * Tracks a value of a path, up to MAX_DISTINCT distinct values
+     *
+     * @param values Map from paths to their distinct values
+     * @param path   Label path
+     * @param value  Value of a node with the path
+     */
+    private static void track(HashMap<String, HashSet<String>> values, String path, String value) {
+        HashSet<String> pathValues = values.computeIfAbsent(path, p -> new HashSet<>());
+        if (pathValues.size() < MAX_DISTINCT) {
+            pathValues.add(value);
+        }
+    }
+
+    /**
+     * Reads the statistics persisted in a side file
+     *
+     * @param sideFile Side file
+     * @return Statistics read - null if the side file does not exist or has the format of a previous version
+     * @throws IOException If the side file cannot be read, is truncated or has an invalid format
+     */
+    private static DocumentStatistics read(File sideFile) throws IOException {
+        if (!sideFile.isFile()) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(sideFile.toPath(), StandardCharsets.UTF_8)) {
+            String header = reader.readLine();
+            if ((header == null) || !header.startsWith("# DocumentStatistics ")) {
+                throw new IOException("Invalid statistics file " + sideFile.getPath());
+            }
+            if (!header.equals(HEADER)) {
+                return null;
+            }
+            long lastModified = Long.parseLong(field(reader.readLine(), "lastModified"));
+            long size = Long.parseLong(field(reader.readLine(), "size"));
+            DocumentStatistics stats = new DocumentStatistics(lastModified, size);
+            stats.fanout = Double.parseDouble(field(reader.readLine(), "fanout"));
+            long records = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields[0].equals("tag") && (fields.length == 3)) {
+                    stats.tags.put(fields[1], Long.parseLong(fields[2]));
+                } else if (fields[0].equals("path") && (fields.length == 4)) {
+                    stats.paths.put(fields[1], Long.parseLong(fields[2]));
+                    stats.distinct.put(fields[1], Long.parseLong(fields[3]));
+                } else if (fields[0].equals("end") && (fields.length == 2)) {
+                    if ((Long.parseLong(fields[1]) != records) || (reader.readLine() != null)) {
+                        break;
+                    }
+                    return stats;
+                } else {
+                    throw new IOException("Invalid statistics file " + sideFile.getPath() + ": " + line);
+                }
+                ++records;
+            }
+            throw new IOException("Truncated statistics file " + sideFile.getPath());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid statistics file " + sideFile.getPath(), e);
+        }
+    }
+
+    /**
+     * Returns the value of a named field of a side file (a line with the name and the value, tab separated)
+     *
+     * @param line Line of the side file
+     * @param name Name of the field
+     * @return Value of the field
+     * @throws IOException If the line is missing or is not the field
+     */
+    private static String field(String line, String name) throws IOException {
+        String[] fields = (line == null) ? new String[0] : line.split("\t");
+        if ((fields.length != 2) || !fields[0].equals(name)) {
+            throw new IOException("Missing field " + name + " in statistics file");
+        }
+        return fields[1];
+    }
+
+    /**
+     * Writes the statistics to a side file (one tab separated record per line, and the number of records at the end)
+     * <p>
+     * The statistics are written to a temporary file in the same directory, which is then atomically moved
+     * over the side file, so concurrent readers (and other processes) see either the previous side file or the new one
+     * </p>
+     *
+     * @param sideFile Side file
+     * @throws IOException If the side file cannot be written
+     */
+    private void write(File sideFile) throws IOException {
+        Path target = sideFile.getAbsoluteFile().toPath();
+        Path tmp = Files.createTempFile(target.getParent(), sideFile.getName(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                writer.write(HEADER + "\n");
+                writer.write("lastModified\t" + lastModified + "\n");
+                writer.write("size\t" + size + "\n");
+                writer.write("fanout\t" + fanout + "\n");
+                for (Map.Entry<String, Long> entry : tags.entrySet()) {
+                    writer.write("tag\t" + entry.getKey() + "\t" + entry.getValue() + "\n");
+                }
+                for (Map.Entry<String, Long> entry : paths.entrySet()) {
+                    writer.write("path\t" + entry.getKey() + "\t" + entry.getValue() + "\t"
+                            + distinct.get(entry.getKey()) + "\n");
+                }
+                writer.write("end\t" + (tags.size() + paths.size()) + "\n");
+            }
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Returns the number of elements with a given name
+     *
+     * @param tag Element name
+     * @return Number of elements with the name
+     */
+    public long count(String tag) {
+        return tags.getOrDefault(tag, 0L);
+    }
+
+    /**
+     * Returns the number of nodes with a given label path
+     *
+     * @param path Label path (as /bib/book, /bib/book/text() or /bib/book/@year)
+     * @return Number of nodes with the path
+     */
+    public long cardinality(String path) {
+        return paths.getOrDefault(path, 0L);
+    }
+
+    /**
+     * Returns the number of distinct values of the nodes with a given label path
+     * <p>
+     * Elements with element children are assumed to have all their values distinct
+     * </p>
+     *
+     * @param path Label path (as /bib/book, /bib/book/text() or /bib/book/@year)
+     * @return Number of distinct values of the nodes with the path
+     */
+    public long distinct(String path) {
+        return distinct.getOrDefault(path, 0L);
+    }
+
+    /**
+     * Returns the label paths of the document
+     *
+     * @return Label paths of all the elements, text nodes and attributes of the document, sorted
+     */
+    public LinkedList<String> paths() {
+        return new LinkedList<>(paths.keySet());
+    }
+
+    /**
+     * Returns the average fan-out of the elements
+     * <p>
+     * Used by the optimizer to estimate the number of nodes of the steps of a path
+     * that cannot be resolved against the path summary
+     * </p>
+     *
+     * @return Average number of children (elements and text nodes) per element
+     */
+    public double getFanout() {
+        return fanout;
+    }
+}
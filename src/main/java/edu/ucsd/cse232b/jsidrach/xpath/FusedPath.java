@@ -0,0 +1,319 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.util.LinkedList;
+
+/**
+ * FusedPath - Chain of steps (tag, wildcard, text, attribute, filter and descendant) evaluated as a single step
+ * <p>
+ * [rp_1/rp_2/.../rp_k](n) is evaluated by walking down from every node of the current list through the tests
+ * of the chain, without materializing the intermediate lists nor removing duplicates after every step<br>
+ * Different nodes never share a child (nor a text node or an attribute), so removing the duplicates once,
+ * at the end, yields the same nodes in the same order as removing them after every step (see PathStep.children)<br>
+ * Filters ([rp[f]](n)) are tests of the walk too: the walk only goes on from the nodes that satisfy them<br>
+ * Descendant steps ([rp_1//rp_2](n)) split the walk: the nodes reached by the tests before them are collected,
+ * and their descendants are resolved at once, as their order depends on all of them (with the tag index
+ * of the document if rp_2 is a tag, see XPathEvaluator.descendantsByTag, and as the descendants or selves
+ * rp_2 is walked from otherwise, see XPathEvaluator.descendantsOrSelves); the walk goes on from the descendants<br>
+ * A chain of a single test returns the same list as the corresponding step of PathStep (without removing duplicates)
+ * </p>
+ */
+public final class FusedPath implements PathStep {
+
+    /**
+     * Test of a tag: children elements with the given name
+     */
+    private static final byte TAG = 0;
+
+    /**
+     * Test of a wildcard: children nodes
+     */
+    private static final byte WILDCARD = 1;
+
+    /**
+     * Test of text(): non-empty children text nodes
+     */
+    private static final byte TEXT = 2;
+
+    /**
+     * Test of an attribute: attribute nodes with the given name
+     */
+    private static final byte ATTRIBUTE = 3;
+
+    /**
+     * Test of a filter: the node itself, if it satisfies the filter
+     */
+    private static final byte FILTER = 4;
+
+    /**
+     * Test of a descendant: descendant elements with the given name, or descendants or selves if there is no name
+     * (of all the nodes reached so far)
+     */
+    private static final byte DESCENDANT = 5;
+
+    /**
+     * Tests of the chain, in order
+     */
+    private final byte[] tests;
+
+    /**
+     * Names of the tags and attributes of the tests (null for the rest of the tests)
+     */
+    private final String[] names;
+
+    /**
+     * Filters of the tests (null for the rest of the tests)
+     */
+    private final PathStep[] filters;
+
+    /**
+     * Flag to remove the duplicates of the result (every chain of more than one test)
+     */
+    private final boolean unique;
+
+    /**
+     * Private constructor - Initializes the chain
+     *
+     * @param tests   Tests of the chain, in order
+     * @param names   Names of the tags and attributes of the tests
+     * @param filters Filters of the tests
+     * @param unique  Flag to remove the duplicates of the result
+     */
+    private FusedPath(byte[] tests, String[] names, PathStep[] filters, boolean unique) {
+        this.tests = tests;
+        this.names = names;
+        this.filters = filters;
+        this.unique = unique;
+    }
+
+    /**
+     * Chain of a single test
+     *
+     * @param test Test
+     * @param name Name of the tag or attribute of the test - null for the rest of the tests
+     * @return Chain of the test, without removing duplicates
+     */
+    private static FusedPath single(byte test, String name) {
+        return new FusedPath(new byte[]{test}, new String[]{name}, new PathStep[1], false);
+    }
+
+    /**
+     * Relative path (tag)
+     *
+     * @param tag Tag of the children
+     * @return Chain of a single test, returning the children nodes that have the given tag
+     */
+    public static FusedPath tag(String tag) {
+        return single(TAG, tag);
+    }
+
+    /**
+     * Relative path (wildcard)
+     *
+     * @return Chain of a single test, returning the children nodes
+     */
+    public static FusedPath wildcard() {
+        return single(WILDCARD, null);
+    }
+
+    /**
+     * Relative path (text)
+     *
+     * @return Chain of a single test, returning the text nodes
+     */
+    public static FusedPath text() {
+        return single(TEXT, null);
+    }
+
+    /**
+     * Relative path (attribute)
+     *
+     * @param attName Name of the attribute
+     * @return Chain of a single test, returning the attribute nodes that have the given name
+     */
+    public static FusedPath attribute(String attName) {
+        return single(ATTRIBUTE, attName);
+    }
+
+    /**
+     * Relative path (children)
+     *
+     * @param next Chain evaluated from the nodes of this one
+     * @return Chain of the tests of both chains, returning distinct nodes
+     */
+    public FusedPath then(FusedPath next) {
+        return concat(next, true);
+    }
+
+    /**
+     * Relative path (filter)
+     *
+     * @param filter Filter
+     * @return Chain returning the nodes of this one that satisfy the filter
+     */
+    public FusedPath filter(PathStep filter) {
+        FusedPath next = single(FILTER, null);
+        next.filters[0] = filter;
+        // Filtering never introduces duplicates, so the result is unique only if this one already is
+        return concat(next, unique);
+    }
+
+    /**
+     * Relative path (all, with a tag as second relative path)
+     *
+     * @param tag Tag of the descendants
+     * @return Chain returning the distinct descendant elements of the nodes of this one that have the given tag
+     */
+    public FusedPath descendants(String tag) {
+        return concat(single(DESCENDANT, tag), true);
+    }
+
+    /**
+     * Relative path (all)
+     *
+     * @param next Chain evaluated from the descendants or selves of the nodes of this one
+     * @return Chain returning the distinct nodes obtained by this chain concatenated with the next one,
+     * skipping any number of descendants
+     */
+    public FusedPath descendants(FusedPath next) {
+        return concat(single(DESCENDANT, null), true).concat(next, true);
+    }
+
+    /**
+     * Concatenates the tests of two chains
+     *
+     * @param next   Chain evaluated from the nodes of this one
+     * @param unique Flag to remove the duplicates of the result
+     * @return Chain of the tests of both chains
+     */
+    private FusedPath concat(FusedPath next, boolean unique) {
+        byte[] tests = new byte[this.tests.length + next.tests.length];
+        String[] names = new String[tests.length];
+        PathStep[] filters = new PathStep[tests.length];
+        System.arraycopy(this.tests, 0, tests, 0, this.tests.length);
+        System.arraycopy(next.tests, 0, tests, this.tests.length, next.tests.length);
+        System.arraycopy(this.names, 0, names, 0, this.names.length);
+        System.arraycopy(next.names, 0, names, this.names.length, next.names.length);
+        System.arraycopy(this.filters, 0, filters, 0, this.filters.length);
+        System.arraycopy(next.filters, 0, filters, this.filters.length, next.filters.length);
+        return new FusedPath(tests, names, filters, unique);
+    }
+
+    /**
+     * Returns the number of tests of the chain
+     *
+     * @return Number of fused steps
+     */
+    public int length() {
+        return tests.length;
+    }
+
+    @Override
+    public LinkedList<Node> apply(LinkedList<Node> nodes) {
+        LinkedList<Node> result = nodes;
+        int from = 0;
+        for (int test = 0; test <= tests.length; ++test) {
+            if ((test == tests.length) || (tests[test] == DESCENDANT)) {
+                // Walk the tests up to the end of the chain, or up to the next descendant step
+                if (from < test) {
+                    LinkedList<Node> reached = new LinkedList<>();
+                    for (Node n : result) {
+                        walk(n, from, test, reached);
+                    }
+                    result = reached;
+                }
+                if (test < tests.length) {
+                    result = (names[test] != null)
+                            ? XPathEvaluator.descendantsByTag(result, names[test])
+                            : XPathEvaluator.descendantsOrSelves(result);
+                }
+                from = test + 1;
+            }
+        }
+        return unique ? XPathEvaluator.unique(result) : result;
+    }
+
+    /**
+     * Walks down from a node through the remaining tests of a section of the chain (without descendant steps)
+     *
+     * @param n      Node reached by the previous tests
+     * @param test   Index of the next test
+     * @param end    Index of the test that ends the section (exclusive)
+     * @param result List the nodes reached by the last test of the section are appended to
+     */
+    private void walk(Node n, int test, int end, LinkedList<Node> result) {
+        if (test == end) {
+            result.add(n);
+            return;
+        }
+        switch (tests[test]) {
+            case TAG:
+                for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    if (c.getNodeName().equals(names[test])) {
+                        walk(c, test + 1, end, result);
+                    }
+                }
+                break;
+            case WILDCARD:
+                for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    walk(c, test + 1, end, result);
+                }
+                break;
+            case TEXT:
+                for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    if ((c.getNodeType() == Node.TEXT_NODE) && (c.getTextContent() != null)
+                            && (!c.getTextContent().isEmpty())) {
+                        walk(c, test + 1, end, result);
+                    }
+                }
+                break;
+            case ATTRIBUTE:
+                if ((n.getNodeType() == Node.ELEMENT_NODE) && (((Element) n).hasAttribute(names[test]))) {
+                    walk(((Element) n).getAttributeNode(names[test]), test + 1, end, result);
+                }
+                break;
+            default:
+                if (!filters[test].apply(XPathEvaluator.singleton(n)).isEmpty()) {
+                    walk(n, test + 1, end, result);
+                }
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < tests.length; ++i) {
+            if (tests[i] == DESCENDANT) {
+                sb.append("//");
+            } else if ((i > 0) && (tests[i] != FILTER) && !((tests[i - 1] == DESCENDANT) && (names[i - 1] == null))) {
+                sb.append('/');
+            }
+            switch (tests[i]) {
+                case TAG:
+                    sb.append(names[i]);
+                    break;
+                case WILDCARD:
+                    sb.append('*');
+                    break;
+                case TEXT:
+                    sb.append("text()");
+                    break;
+                case ATTRIBUTE:
+                    sb.append('@').append(names[i]);
+                    break;
+                case FILTER:
+                    sb.append("[f]");
+                    break;
+                default:
+                    if (names[i] != null) {
+                        sb.append(names[i]);
+                    }
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+}
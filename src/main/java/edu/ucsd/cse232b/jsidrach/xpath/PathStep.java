@@ -0,0 +1,242 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import org.w3c.dom.Node;
+
+import java.util.LinkedList;
+
+/**
+ * PathStep - Compiled relative path or filter, evaluated over a list of nodes
+ * <p>
+ * Relative paths and filters are compiled once from the parse tree (see XPathCompiler) into a tree of steps,
+ * so evaluating them again (as in the loops of a FLWR expression) does not dispatch on the parse tree,
+ * read the text of its tokens or modify the state of a visitor<br>
+ * Steps are immutable, so compiled paths can be shared and evaluated concurrently<br>
+ * Filters are steps that return the nodes they are evaluated over if they are satisfied, and an empty list otherwise
+ * </p>
+ */
+@FunctionalInterface
+public interface PathStep {
+
+    /**
+     * Evaluates the step
+     *
+     * @param nodes Current list of nodes (not modified)
+     * @return List of nodes resulting of the step (it may be the current list itself)
+     */
+    LinkedList<Node> apply(LinkedList<Node> nodes);
+
+    /*
+     * Relative paths
+     */
+
+    /**
+     * Relative path (tag)
+     *
+     * @param tag Tag of the children
+     * @return Step returning the children nodes that have the given tag
+     */
+    static PathStep tag(String tag) {
+        return nodes -> {
+            LinkedList<Node> result = new LinkedList<>();
+            for (Node n : nodes) {
+                for (Node c : XPathEvaluator.children(n)) {
+                    if (XPathEvaluator.tag(c).equals(tag)) {
+                        result.add(c);
+                    }
+                }
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Relative path (wildcard)
+     *
+     * @return Step returning the children nodes
+     */
+    static PathStep wildcard() {
+        return nodes -> {
+            LinkedList<Node> result = new LinkedList<>();
+            for (Node n : nodes) {
+                result.addAll(XPathEvaluator.children(n));
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Relative path (current)
+     *
+     * @return Step returning the current list of nodes
+     */
+    static PathStep current() {
+        return nodes -> nodes;
+    }
+
+    /**
+     * Relative path (parent)
+     *
+     * @return Step returning the parent nodes
+     */
+    static PathStep parent() {
+        return nodes -> {
+            LinkedList<Node> result = new LinkedList<>();
+            for (Node n : nodes) {
+                result.addAll(XPathEvaluator.parent(n));
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Relative path (text)
+     *
+     * @return Step returning the text nodes
+     */
+    static PathStep text() {
+        return nodes -> {
+            LinkedList<Node> result = new LinkedList<>();
+            for (Node n : nodes) {
+                result.addAll(XPathEvaluator.txt(n));
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Relative path (attribute)
+     *
+     * @param attName Name of the attribute
+     * @return Step returning the attribute nodes that have the given name
+     */
+    static PathStep attribute(String attName) {
+        return nodes -> {
+            LinkedList<Node> result = new LinkedList<>();
+            for (Node n : nodes) {
+                result.addAll(XPathEvaluator.attrib(n, attName));
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Relative path (children)
+     *
+     * @param first  First relative path
+     * @param second Second relative path
+     * @return Step returning the distinct nodes obtained by the first relative path concatenated with the second one
+     */
+    static PathStep children(PathStep first, PathStep second) {
+        return nodes -> XPathEvaluator.unique(second.apply(first.apply(nodes)));
+    }
+
+    /**
+     * Relative path (all)
+     *
+     * @param first  First relative path
+     * @param second Second relative path
+     * @param tag    Tag of the second relative path if it is a tag (resolved with the tag index of the document)
+     *               - null otherwise
+     * @return Step returning the distinct nodes obtained by the first relative path concatenated with the second one,
+     * skipping any number of descendants
+     */
+    static PathStep all(PathStep first, PathStep second, String tag) {
+        if (tag != null) {
+            return nodes -> XPathEvaluator.unique(XPathEvaluator.descendantsByTag(first.apply(nodes), tag));
+        }
+        return nodes -> XPathEvaluator.unique(second.apply(XPathEvaluator.descendantsOrSelves(first.apply(nodes))));
+    }
+
+    /**
+     * Relative path (filter)
+     *
+     * @param path   Relative path
+     * @param filter Filter
+     * @return Step returning the nodes of the relative path that satisfy the filter
+     */
+    static PathStep filter(PathStep path, PathStep filter) {
+        return nodes -> {
+            LinkedList<Node> result = new LinkedList<>();
+            for (Node n : path.apply(nodes)) {
+                if (!filter.apply(XPathEvaluator.singleton(n)).isEmpty()) {
+                    result.add(n);
+                }
+            }
+            return result;
+        };
+    }
+
+    /**
+     * Relative path (pair)
+     *
+     * @param first  First relative path
+     * @param second Second relative path
+     * @return Step returning the nodes of both relative paths
+     */
+    static PathStep pair(PathStep first, PathStep second) {
+        return nodes -> {
+            LinkedList<Node> result = new LinkedList<>();
+            result.addAll(first.apply(nodes));
+            result.addAll(second.apply(nodes));
+            return result;
+        };
+    }
+
+    /*
+     * Filters
+     */
+
+    /**
+     * Filter (value equality)
+     *
+     * @param first  First relative path
+     * @param second Second relative path
+     * @return Filter satisfied if some node of the first relative path is equal to some node of the second one
+     */
+    static PathStep valueEquality(PathStep first, PathStep second) {
+        return nodes -> XPathEvaluator.existsEqual(first.apply(nodes), second.apply(nodes)) ? nodes : new LinkedList<>();
+    }
+
+    /**
+     * Filter (identity equality)
+     *
+     * @param first  First relative path
+     * @param second Second relative path
+     * @return Filter satisfied if some node of the first relative path is the same as some node of the second one
+     */
+    static PathStep identityEquality(PathStep first, PathStep second) {
+        return nodes -> XPathEvaluator.existsSame(first.apply(nodes), second.apply(nodes)) ? nodes : new LinkedList<>();
+    }
+
+    /**
+     * Filter (and)
+     *
+     * @param first  First filter
+     * @param second Second filter
+     * @return Filter satisfied if both filters are satisfied
+     */
+    static PathStep and(PathStep first, PathStep second) {
+        return nodes -> (first.apply(nodes).isEmpty() || second.apply(nodes).isEmpty()) ? new LinkedList<>() : nodes;
+    }
+
+    /**
+     * Filter (or)
+     *
+     * @param first  First filter
+     * @param second Second filter
+     * @return Filter satisfied if any of the filters is satisfied
+     */
+    static PathStep or(PathStep first, PathStep second) {
+        return nodes -> (first.apply(nodes).isEmpty() && second.apply(nodes).isEmpty()) ? new LinkedList<>() : nodes;
+    }
+
+    /**
+     * Filter (not)
+     *
+     * @param filter Filter
+     * @return Filter satisfied if the filter is not satisfied
+     */
+    static PathStep not(PathStep filter) {
+        return nodes -> filter.apply(nodes).isEmpty() ? nodes : new LinkedList<>();
+    }
+}
@@ -0,0 +1,293 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import edu.ucsd.cse232b.jsidrach.antlr.XPathBaseVisitor;
+import edu.ucsd.cse232b.jsidrach.antlr.XPathParser;
+
+/**
+ * XPathCompiler - Compiles the relative paths and filters of the context tree generated by ANTLR4 into steps
+ * <p>
+ * Each method compiles its subtrees and returns the step that evaluates the rule (see PathStep)<br>
+ * Identifiers are read from the parse tree only once, while compiling<br>
+ * The compiler has no state, so the same instance can compile any number of relative paths
+ * </p>
+ */
+public class XPathCompiler extends XPathBaseVisitor<PathStep> {
+
+    /**
+     * Relative path (tag)
+     * <pre>
+     * [Identifier](n)
+     *   → { c | c ← [∗](n) if tag(c) = Identifier }
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the children nodes that have the given identifier
+     */
+    @Override
+    public PathStep visitRpTag(XPathParser.RpTagContext ctx) {
+        return PathStep.tag(ctx.Identifier().getText());
+    }
+
+    /**
+     * Relative path (wildcard)
+     * <pre>
+     * [∗](n)
+     *   → children(n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the children nodes
+     */
+    @Override
+    public PathStep visitRpWildcard(XPathParser.RpWildcardContext ctx) {
+        return PathStep.wildcard();
+    }
+
+    /**
+     * Relative path (current)
+     * <pre>
+     * [.](n)
+     *   → { n }
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the current list of nodes
+     */
+    @Override
+    public PathStep visitRpCurrent(XPathParser.RpCurrentContext ctx) {
+        return PathStep.current();
+    }
+
+    /**
+     * Relative path (parent)
+     * <pre>
+     * [..](n)
+     *   → parent(n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the parent nodes
+     */
+    @Override
+    public PathStep visitRpParent(XPathParser.RpParentContext ctx) {
+        return PathStep.parent();
+    }
+
+    /**
+     * Relative path (text)
+     * <pre>
+     * [text()](n)
+     *   → txt(n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the text nodes
+     */
+    @Override
+    public PathStep visitRpText(XPathParser.RpTextContext ctx) {
+        return PathStep.text();
+    }
+
+    /**
+     * Relative path (attribute)
+     * <pre>
+     * [@Identifier](n)
+     *   → attrib(n, Identifier)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the attribute nodes that have the given attribute name
+     */
+    @Override
+    public PathStep visitRpAttribute(XPathParser.RpAttributeContext ctx) {
+        return PathStep.attribute(ctx.Identifier().getText());
+    }
+
+    /**
+     * Relative path (parentheses)
+     * <pre>
+     * [(rp)](n)
+     *   → [rp](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step of the relative path inside the parentheses
+     */
+    @Override
+    public PathStep visitRpParentheses(XPathParser.RpParenthesesContext ctx) {
+        return visit(ctx.rp());
+    }
+
+    /**
+     * Relative path (children)
+     * <pre>
+     * [rp_1/rp_2](n)
+     *   → unique({ y | x ← [rp_1](n), y ← [rp_2](x) })
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the distinct nodes obtained by the first relative path concatenated with the second one
+     */
+    @Override
+    public PathStep visitRpChildren(XPathParser.RpChildrenContext ctx) {
+        return PathStep.children(visit(ctx.rp(0)), visit(ctx.rp(1)));
+    }
+
+    /**
+     * Relative path (all)
+     * <pre>
+     * [rp_1//rp_2](n)
+     *   → unique([rp_1/rp_2](n), [rp_1/∗//rp_2](n))
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the distinct nodes obtained by the first relative path concatenated with the second one,
+     * skipping any number of descendants
+     */
+    @Override
+    public PathStep visitRpAll(XPathParser.RpAllContext ctx) {
+        // rp//Identifier: resolved with the tag index of the document
+        String tag = null;
+        if (ctx.rp(1) instanceof XPathParser.RpTagContext) {
+            tag = ((XPathParser.RpTagContext) ctx.rp(1)).Identifier().getText();
+        }
+        return PathStep.all(visit(ctx.rp(0)), visit(ctx.rp(1)), tag);
+    }
+
+    /**
+     * Relative path (filter)
+     * <pre>
+     * [rp[f]](n)
+     *   → { x | x ← [rp](n) if [f](x) }
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the nodes of the relative path that satisfy the filter
+     */
+    @Override
+    public PathStep visitRpFilter(XPathParser.RpFilterContext ctx) {
+        return PathStep.filter(visit(ctx.rp()), visit(ctx.f()));
+    }
+
+    /**
+     * Relative path (pair)
+     * <pre>
+     * [rp_1, rp_2](n)
+     *   → [rp_1](n), [rp_2](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the nodes of both relative paths
+     */
+    @Override
+    public PathStep visitRpPair(XPathParser.RpPairContext ctx) {
+        return PathStep.pair(visit(ctx.rp(0)), visit(ctx.rp(1)));
+    }
+
+    /**
+     * Filter (relative path)
+     * <pre>
+     * [rp](n)
+     *   → [rp](n) ≠ { }
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if the relative path is not empty (the step of the relative path itself)
+     */
+    @Override
+    public PathStep visitFRelativePath(XPathParser.FRelativePathContext ctx) {
+        return visit(ctx.rp());
+    }
+
+    /**
+     * Filter (value equality)
+     * <pre>
+     * [rp_1 = rp_2](n)
+     * [rp_1 eq rp_2](n)
+     *   → ∃ x ∈ [rp_1](n) ∃ y ∈ [rp_2](n) / x eq y
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if some node of the first relative path is equal to some node of the second one
+     */
+    @Override
+    public PathStep visitFValueEquality(XPathParser.FValueEqualityContext ctx) {
+        return PathStep.valueEquality(visit(ctx.rp(0)), visit(ctx.rp(1)));
+    }
+
+    /**
+     * Filter (identity equality)
+     * <pre>
+     * [rp_1 == rp_2](n)
+     * [rp_1 is rp_2](n)
+     *   → ∃ x ∈ [rp_1](n) ∃ y ∈ [rp_2](n) / x is y
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if some node of the first relative path is the same as some node of the second one
+     */
+    @Override
+    public PathStep visitFIdentityEquality(XPathParser.FIdentityEqualityContext ctx) {
+        return PathStep.identityEquality(visit(ctx.rp(0)), visit(ctx.rp(1)));
+    }
+
+    /**
+     * Filter (parentheses)
+     * <pre>
+     * [(f)](n)
+     *   → [f](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter inside the parentheses
+     */
+    @Override
+    public PathStep visitFParentheses(XPathParser.FParenthesesContext ctx) {
+        return visit(ctx.f());
+    }
+
+    /**
+     * Filter (and)
+     * <pre>
+     * [f_1 and f_2](n)
+     *   → [f_1](n) ∧ [f_2](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if both filters are satisfied
+     */
+    @Override
+    public PathStep visitFAnd(XPathParser.FAndContext ctx) {
+        return PathStep.and(visit(ctx.f(0)), visit(ctx.f(1)));
+    }
+
+    /**
+     * Filter (or)
+     * <pre>
+     * [f_1 or f_2](n)
+     *   → [f_1](n) ∨ [f_2](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if any of the filters is satisfied
+     */
+    @Override
+    public PathStep visitFOr(XPathParser.FOrContext ctx) {
+        return PathStep.or(visit(ctx.f(0)), visit(ctx.f(1)));
+    }
+
+    /**
+     * Filter (not)
+     * <pre>
+     * [not f](n)
+     *   → ¬[f](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if the filter is not satisfied
+     */
+    @Override
+    public PathStep visitFNot(XPathParser.FNotContext ctx) {
+        return PathStep.not(visit(ctx.f()));
+    }
+}
@@ -2,11 +2,16 @@ package edu.ucsd.cse232b.jsidrach.xpath;
 
 import org.w3c.dom.*;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 /**
  * XPathEvaluator - Collection of functions to evaluate a XPath expression
@@ -18,6 +23,9 @@ public class XPathEvaluator {
 
     /**
      * Reads a XML file and loads its content into a list of nodes
+     * <p>
+     * Parsed documents are shared through the process-wide DocumentCache
+     * </p>
      *
      * @param fn Name of the XML file (relative to the executable's current path)
      * @return Root of the XML tree corresponding to the loaded document, as a singleton list of nodes
@@ -27,14 +35,7 @@ public class XPathEvaluator {
         try {
             // Remove quotes (first and last character)
             File xmlFile = new File(fn.substring(1, fn.length() - 1));
-            DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-            // Ignore non-relevant whitespace (only works if the XML has an associated DTD)
-            docFactory.setIgnoringElementContentWhitespace(true);
-            DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-            Document doc = docBuilder.parse(xmlFile);
-            // Normalize document
-            doc.getDocumentElement().normalize();
-            nodes.add(doc);
+            nodes.add(DocumentCache.getInstance().load(xmlFile));
         } catch (Exception e) {
             return new LinkedList<>();
         }
@@ -43,14 +44,18 @@ public class XPathEvaluator {
 
     /**
      * Returns a list of nodes without duplicates
+     * <p>
+     * Nodes are compared by identity, using a hash set, so the cost is linear in the number of nodes
+     * </p>
      *
      * @param nodes List of nodes with possible duplicates
-     * @return List of nodes without duplicates
+     * @return List of nodes without duplicates, in the order of their first occurrence
      */
     public static LinkedList<Node> unique(List<Node> nodes) {
         LinkedList<Node> uNodes = new LinkedList<>();
+        Set<Node> seen = Collections.newSetFromMap(new IdentityHashMap<>(nodes.size()));
         for (Node n : nodes) {
-            if (!uNodes.contains(n)) {
+            if (seen.add(n)) {
                 uNodes.add(n);
             }
         }
@@ -65,33 +70,90 @@ public class XPathEvaluator {
      */
     public static LinkedList<Node> children(Node n) {
         LinkedList<Node> nodes = new LinkedList<>();
-        NodeList children = n.getChildNodes();
-        for (int i = 0; i < children.getLength(); ++i) {
-            nodes.add(children.item(i));
+        // Sibling links avoid materializing a NodeList
+        for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+            nodes.add(c);
         }
         return nodes;
     }
 
     /**
      * Returns a list containing the given nodes and all its descendants
+     * <p>
+     * Nodes of indexed documents are resolved as ranges of the document index,
+     * any other node (constructed nodes, attributes) is traversed in depth first order
+     * </p>
      *
      * @param nodes Nodes
      * @return List of node's descendants and themselves, according to the document order
      */
     public static LinkedList<Node> descendantsOrSelves(List<Node> nodes) {
-        LinkedList<Node> queue = new LinkedList<>();
         LinkedList<Node> ns = new LinkedList<>();
-        ns.addAll(nodes);
-        queue.addAll(nodes);
-        while (!queue.isEmpty()) {
-            Node c = queue.poll();
-            LinkedList<Node> children = XPathEvaluator.children(c);
-            ns.addAll(children);
-            queue.addAll(children);
+        if (nodes.isEmpty()) {
+            return ns;
+        }
+        // All the nodes belong to the same indexed document
+        DocumentIndex index = DocumentIndex.of(nodes.get(0));
+        if ((index != null) && (index.descendantsOrSelves(nodes, ns))) {
+            return ns;
+        }
+        for (Node n : nodes) {
+            index = DocumentIndex.of(n);
+            if ((index == null) || (!index.descendantsOrSelves(singleton(n), ns))) {
+                subtree(n, ns);
+            }
         }
         return ns;
     }
 
+    /**
+     * Returns the list of descendants of the given nodes that are elements with the given tag
+     * <p>
+     * Equivalent to the tag step applied to descendantsOrSelves(nodes),
+     * resolved with the index of the document if all the nodes belong to the same indexed document
+     * </p>
+     *
+     * @param nodes Nodes
+     * @param tag   Tag of the elements
+     * @return List of node's descendants with the given tag, according to the document order
+     */
+    public static LinkedList<Node> descendantsByTag(List<Node> nodes, String tag) {
+        LinkedList<Node> ns = new LinkedList<>();
+        if (nodes.isEmpty()) {
+            return ns;
+        }
+        DocumentIndex index = DocumentIndex.of(nodes.get(0));
+        if ((index != null) && (index.descendantsByTag(nodes, tag, ns))) {
+            return ns;
+        }
+        for (Node n : descendantsOrSelves(nodes)) {
+            for (Node c : children(n)) {
+                if (tag(c).equals(tag)) {
+                    ns.add(c);
+                }
+            }
+        }
+        return ns;
+    }
+
+    /**
+     * Appends a node and all its descendants to a list, in depth first order
+     *
+     * @param n   Node
+     * @param out List the nodes are appended to
+     */
+    private static void subtree(Node n, List<Node> out) {
+        LinkedList<Node> stack = new LinkedList<>();
+        stack.push(n);
+        while (!stack.isEmpty()) {
+            Node c = stack.pop();
+            out.add(c);
+            for (Node child = c.getLastChild(); child != null; child = child.getPreviousSibling()) {
+                stack.push(child);
+            }
+        }
+    }
+
     /**
      * Returns the parent of a node
      *
@@ -174,18 +236,128 @@ public class XPathEvaluator {
         return singleton;
     }
 
+    /**
+     * Computes the structural hash code of a node, consistent with Node.isEqualNode
+     * <p>
+     * Depends on the type, name and value of the node, its attributes (in any order) and its children (in order)<br>
+     * The hash codes of the nodes of compact documents are computed once and cached in their store
+     * (see CompactStore), the hash codes of other nodes are computed on every call<br>
+     * Only reads the node, so it can be called concurrently from several threads
+     * </p>
+     *
+     * @param n Node
+     * @return Structural hash code of the node
+     */
+    public static int hash(Node n) {
+        return hash(n, null);
+    }
+
+    /**
+     * Computes the structural hash code of a node (see hash), caching the hash codes of the nodes
+     * that are not part of compact documents, and of their descendants
+     *
+     * @param n     Node
+     * @param cache Map from nodes (by identity) to their hash codes (null to compute them on every call)
+     * @return Structural hash code of the node
+     */
+    private static int hash(Node n, Map<Node, Integer> cache) {
+        if (n instanceof CompactNode) {
+            CompactStore store = ((CompactNode) n).store;
+            int id = store.id(n);
+            if (id != CompactStore.NONE) {
+                return store.hash(id);
+            }
+        }
+        if (cache == null) {
+            return structuralHash(n, null);
+        }
+        Integer h = cache.get(n);
+        if (h == null) {
+            h = structuralHash(n, cache);
+            cache.put(n, h);
+        }
+        return h;
+    }
+
+    /**
+     * Computes the structural hash code of a node, without reading the cached hash code of the node itself
+     * (the hash codes of its attributes and children are read from the cache, see hash)
+     *
+     * @param n Node
+     * @return Structural hash code of the node
+     */
+    static int structuralHash(Node n) {
+        return structuralHash(n, null);
+    }
+
+    /**
+     * Computes the structural hash code of a node, without reading the cached hash code of the node itself
+     *
+     * @param n     Node
+     * @param cache Map from nodes (by identity) to their hash codes (null to compute them on every call)
+     * @return Structural hash code of the node
+     */
+    private static int structuralHash(Node n, Map<Node, Integer> cache) {
+        int h = n.getNodeType();
+        h = 31 * h + Objects.hashCode(n.getNodeName());
+        h = 31 * h + Objects.hashCode(n.getNodeValue());
+        NamedNodeMap attributes = n.getAttributes();
+        if (attributes != null) {
+            int a = 0;
+            for (int i = 0; i < attributes.getLength(); ++i) {
+                a += hash(attributes.item(i), cache);
+            }
+            h = 31 * h + a;
+        }
+        // The children of an attribute are its value (already hashed), and may be created lazily when read
+        if (n.getNodeType() != Node.ATTRIBUTE_NODE) {
+            for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                h = 31 * h + hash(c, cache);
+            }
+        }
+        return h;
+    }
+
     /**
      * Checks whether there exists one node on the first list that is equal to one node on the second list
+     * <p>
+     * If both lists have more than one node, the nodes of the smaller list are grouped by their structural hash code,
+     * and each node of the larger list is only compared (with Node.isEqualNode) to the nodes with its same hash code,
+     * instead of to every node of the other list<br>
+     * The hash codes of the nodes that are not part of compact documents are cached during the call,
+     * so nodes that are descendants of others in the lists (as the results of '//') are only hashed once
+     * </p>
      *
      * @param ls First list of nodes
      * @param rs Second list of nodes
      * @return ∃ l ∈ ls ∃ r ∈ rs / l eq r
      */
     public static boolean existsEqual(LinkedList<Node> ls, LinkedList<Node> rs) {
-        for (Node l : ls) {
-            for (Node r : rs) {
-                if (l.isEqualNode(r)) {
-                    return true;
+        if ((ls.size() <= 1) || (rs.size() <= 1)) {
+            // Already linear, and comparisons stop at the first difference (hashes read the whole trees)
+            for (Node l : ls) {
+                for (Node r : rs) {
+                    if (l.isEqualNode(r)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+        LinkedList<Node> build = (ls.size() <= rs.size()) ? ls : rs;
+        LinkedList<Node> probe = (build == ls) ? rs : ls;
+        Map<Node, Integer> cache = new IdentityHashMap<>();
+        HashMap<Integer, List<Node>> buckets = new HashMap<>();
+        for (Node b : build) {
+            buckets.computeIfAbsent(hash(b, cache), h -> new ArrayList<>(1)).add(b);
+        }
+        for (Node p : probe) {
+            List<Node> bucket = buckets.get(hash(p, cache));
+            if (bucket != null) {
+                for (Node b : bucket) {
+                    if ((b == p) || (b.isEqualNode(p))) {
+                        return true;
+                    }
                 }
             }
         }
@@ -0,0 +1,1051 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import edu.ucsd.cse232b.jsidrach.antlr.XPathParser;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.LexicalHandler;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * XPathStreamer - Streaming evaluator of forward XPath queries
+ * <p>
+ * Queries made of child (/) and descendant (//) steps of tags, wildcards, text() and attributes,
+ * with filters that only test the existence of children or attributes (combined with and, or, not),
+ * are compiled into a list of steps and evaluated over the SAX events of the document,
+ * without building its DOM tree<br>
+ * The state of the evaluation is kept per open element, so the memory used is bounded by the depth of the document,
+ * plus the results that cannot be emitted yet<br>
+ * Results are emitted in the same order as XPathVisitor returns them:
+ * the document order of the nodes matched by the last descendant step (anchors),
+ * and then the document order of the nodes reached from each anchor by the following child steps,
+ * so the results below an anchor nested in other anchor are held until the outer anchor ends<br>
+ * Results are detached copies of the nodes of the document (their subtrees included, their ancestors excluded)<br>
+ * Queries outside of the streamable subset are not compiled, and have to be evaluated over the DOM<br>
+ * Queries that would select the document type node (a child of the document in the DOM) fail before emitting any result
+ * </p>
+ */
+public class XPathStreamer {
+
+    /**
+     * Kinds of steps
+     */
+    private static final int CHILD = 0;
+    private static final int DESCENDANT = 1;
+    private static final int DESCENDANT_OR_SELF = 2;
+
+    /**
+     * Kinds of node tests
+     */
+    private static final int TAG = 0;
+    private static final int ANY = 1;
+    private static final int TEXT = 2;
+    private static final int ATTRIBUTE = 3;
+
+    /**
+     * Values of the three-valued logic used to evaluate filters before the element has ended
+     */
+    private static final int FALSE = 0;
+    private static final int TRUE = 1;
+    private static final int UNKNOWN = 2;
+
+    /**
+     * Step - One step of a compiled query
+     * <p>
+     * Child steps select the children of the context nodes that pass the node test and the filter<br>
+     * Descendant steps select the descendant elements with a tag of the context nodes (as XPathEvaluator.descendantsByTag),
+     * and descendant-or-self steps select the context nodes and all their descendants
+     * (as XPathEvaluator.descendantsOrSelves)
+     * </p>
+     */
+    private static class Step {
+        /**
+         * Kind of step
+         */
+        final int kind;
+
+        /**
+         * Node test (child steps), tag is also used by descendant steps
+         */
+        final int test;
+
+        /**
+         * Tag or attribute name of the node test
+         */
+        final String name;
+
+        /**
+         * Filter of the step (null if there is no filter)
+         */
+        Filter filter;
+
+        /**
+         * Atoms of the filter, indexed by their number
+         */
+        final List<Filter> atoms;
+
+        /**
+         * Constructor - Initializes a step without filter
+         *
+         * @param kind Kind of step
+         * @param test Node test
+         * @param name Tag or attribute name of the node test
+         */
+        Step(int kind, int test, String name) {
+            this.kind = kind;
+            this.test = test;
+            this.name = name;
+            this.filter = null;
+            this.atoms = new ArrayList<>();
+        }
+
+        /**
+         * Checks whether a node passes the node test of a child step
+         *
+         * @param type DOM node type
+         * @param name Node name
+         * @return true if the node passes the node test, false otherwise
+         */
+        boolean test(short type, String name) {
+            switch (test) {
+                case TAG:
+                    return this.name.equals(name);
+                case ANY:
+                    return true;
+                case TEXT:
+                    return type == Node.TEXT_NODE;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Filter - Boolean combination of existence tests of a child step
+     */
+    private static class Filter {
+        /**
+         * Operators
+         */
+        static final int ATOM = 0;
+        static final int AND = 1;
+        static final int OR = 2;
+        static final int NOT = 3;
+
+        /**
+         * Operator of the filter
+         */
+        final int op;
+
+        /**
+         * Operands (null if not used by the operator)
+         */
+        final Filter left;
+        final Filter right;
+
+        /**
+         * Node test and name of the atom (tag, wildcard, text() or attribute)
+         */
+        final int test;
+        final String name;
+
+        /**
+         * Number of the atom in its step
+         */
+        final int atom;
+
+        /**
+         * Constructor - Initializes a filter
+         */
+        Filter(int op, Filter left, Filter right, int test, String name, int atom) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+            this.test = test;
+            this.name = name;
+            this.atom = atom;
+        }
+
+        /**
+         * Evaluates the filter with the atoms seen so far
+         *
+         * @param seen   Atoms that are known to hold
+         * @param closed Flag set when the element has ended (atoms not seen do not hold)
+         * @return TRUE, FALSE or UNKNOWN (the element has not ended and the result depends on atoms not seen yet)
+         */
+        int eval(boolean[] seen, boolean closed) {
+            switch (op) {
+                case ATOM:
+                    // Attributes are known from the start of the element
+                    if (seen[atom]) {
+                        return TRUE;
+                    }
+                    return (closed || (test == ATTRIBUTE)) ? FALSE : UNKNOWN;
+                case AND: {
+                    int l = left.eval(seen, closed);
+                    if (l == FALSE) {
+                        return FALSE;
+                    }
+                    int r = right.eval(seen, closed);
+                    if (r == FALSE) {
+                        return FALSE;
+                    }
+                    return ((l == TRUE) && (r == TRUE)) ? TRUE : UNKNOWN;
+                }
+                case OR: {
+                    int l = left.eval(seen, closed);
+                    if (l == TRUE) {
+                        return TRUE;
+                    }
+                    int r = right.eval(seen, closed);
+                    if (r == TRUE) {
+                        return TRUE;
+                    }
+                    return ((l == FALSE) && (r == FALSE)) ? FALSE : UNKNOWN;
+                }
+                default: {
+                    int v = left.eval(seen, closed);
+                    return (v == UNKNOWN) ? UNKNOWN : (v == TRUE) ? FALSE : TRUE;
+                }
+            }
+        }
+    }
+
+    /**
+     * XML file the query reads
+     */
+    private final File file;
+
+    /**
+     * Steps of the query
+     */
+    private final Step[] steps;
+
+    /**
+     * Index of the last descendant (or descendant-or-self) step, whose matches are the anchors of the results
+     * (-1 if there is none, the document is then the only anchor)
+     */
+    private final int last;
+
+    /**
+     * Flag set if the last step can select the children of the document
+     * (the document type node is one of them in the DOM, but it is not an event of the stream)
+     */
+    private final boolean doctype;
+
+    /**
+     * Constructor - Initializes a compiled query
+     *
+     * @param file  XML file the query reads
+     * @param steps Steps of the query
+     */
+    private XPathStreamer(File file, List<Step> steps) {
+        this.file = file;
+        this.steps = steps.toArray(new Step[0]);
+        int last = -1;
+        for (int i = 0; i < this.steps.length; ++i) {
+            if (this.steps[i].kind != CHILD) {
+                last = i;
+            }
+        }
+        this.last = last;
+        Step step = this.steps[this.steps.length - 1];
+        int n = this.steps.length;
+        boolean fromDocument = (n == 1) || ((n == 2) && (this.steps[0].kind == DESCENDANT_OR_SELF));
+        this.doctype = fromDocument && (step.kind == CHILD) && ((step.test == TAG) || (step.test == ANY));
+    }
+
+    /**
+     * Compiles a XPath query (parse tree of an absolute path) into a streaming evaluator
+     *
+     * @param tree Parse tree of the query (ap rule)
+     * @return Streaming evaluator if the query is in the streamable subset - null otherwise
+     */
+    public static XPathStreamer compile(ParseTree tree) {
+        List<Step> steps = new ArrayList<>();
+        XPathParser.DocContext doc;
+        if (tree instanceof XPathParser.ApChildrenContext) {
+            XPathParser.ApChildrenContext ctx = (XPathParser.ApChildrenContext) tree;
+            doc = ctx.doc();
+            if (!compile(ctx.rp(), steps)) {
+                return null;
+            }
+        } else if (tree instanceof XPathParser.ApAllContext) {
+            XPathParser.ApAllContext ctx = (XPathParser.ApAllContext) tree;
+            doc = ctx.doc();
+            if (!descendant(ctx.rp(), steps)) {
+                return null;
+            }
+        } else {
+            return null;
+        }
+        if (!(doc instanceof XPathParser.ApDocContext) || (((XPathParser.ApDocContext) doc).StringConstant() == null)) {
+            return null;
+        }
+        int n = steps.size();
+        for (int i = 0; i < n; ++i) {
+            Step step = steps.get(i);
+            // text() and attributes have no children
+            if (((step.test == TEXT) || (step.test == ATTRIBUTE)) && (step.kind == CHILD) && (i != n - 1)) {
+                return null;
+            }
+        }
+        XPathStreamer streamer;
+        String fn = ((XPathParser.ApDocContext) doc).StringConstant().getText();
+        // Remove quotes (first and last character)
+        streamer = new XPathStreamer(new File(fn.substring(1, fn.length() - 1)), steps);
+        // Filters are only kept for the anchors and the steps after them
+        for (int i = 0; i < streamer.last; ++i) {
+            if (steps.get(i).filter != null) {
+                return null;
+            }
+        }
+        return streamer;
+    }
+
+    /**
+     * Compiles a descendant step (rp after //), as XPathVisitor evaluates it
+     *
+     * @param rp    Relative path after //
+     * @param steps Steps the compiled steps are appended to
+     * @return true if the relative path is streamable, false otherwise
+     */
+    private static boolean descendant(XPathParser.RpContext rp, List<Step> steps) {
+        if (rp instanceof XPathParser.RpTagContext) {
+            steps.add(new Step(DESCENDANT, TAG, ((XPathParser.RpTagContext) rp).Identifier().getText()));
+            return true;
+        }
+        steps.add(new Step(DESCENDANT_OR_SELF, ANY, null));
+        return compile(rp, steps);
+    }
+
+    /**
+     * Compiles a relative path
+     *
+     * @param rp    Relative path
+     * @param steps Steps the compiled steps are appended to
+     * @return true if the relative path is streamable, false otherwise
+     */
+    private static boolean compile(XPathParser.RpContext rp, List<Step> steps) {
+        if (rp instanceof XPathParser.RpTagContext) {
+            steps.add(new Step(CHILD, TAG, ((XPathParser.RpTagContext) rp).Identifier().getText()));
+        } else if (rp instanceof XPathParser.RpWildcardContext) {
+            steps.add(new Step(CHILD, ANY, null));
+        } else if (rp instanceof XPathParser.RpTextContext) {
+            steps.add(new Step(CHILD, TEXT, null));
+        } else if (rp instanceof XPathParser.RpAttributeContext) {
+            steps.add(new Step(CHILD, ATTRIBUTE, ((XPathParser.RpAttributeContext) rp).Identifier().getText()));
+        } else if (rp instanceof XPathParser.RpParenthesesContext) {
+            return compile(((XPathParser.RpParenthesesContext) rp).rp(), steps);
+        } else if (rp instanceof XPathParser.RpChildrenContext) {
+            XPathParser.RpChildrenContext ctx = (XPathParser.RpChildrenContext) rp;
+            return compile(ctx.rp(0), steps) && compile(ctx.rp(1), steps);
+        } else if (rp instanceof XPathParser.RpAllContext) {
+            XPathParser.RpAllContext ctx = (XPathParser.RpAllContext) rp;
+            return compile(ctx.rp(0), steps) && descendant(ctx.rp(1), steps);
+        } else if (rp instanceof XPathParser.RpFilterContext) {
+            XPathParser.RpFilterContext ctx = (XPathParser.RpFilterContext) rp;
+            if (!compile(ctx.rp(), steps)) {
+                return false;
+            }
+            // The filter applies to the nodes selected by the last step
+            Step step = steps.get(steps.size() - 1);
+            if ((step.kind == DESCENDANT_OR_SELF) || (step.test == TEXT) || (step.test == ATTRIBUTE)) {
+                return false;
+            }
+            Filter filter = compile(ctx.f(), step);
+            if (filter == null) {
+                return false;
+            }
+            step.filter = (step.filter == null) ? filter : new Filter(Filter.AND, step.filter, filter, 0, null, 0);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compiles a filter
+     *
+     * @param f    Filter
+     * @param step Step the filter belongs to (its atoms are numbered in the step)
+     * @return Compiled filter if it is streamable - null otherwise
+     */
+    private static Filter compile(XPathParser.FContext f, Step step) {
+        if (f instanceof XPathParser.FRelativePathContext) {
+            XPathParser.RpContext rp = ((XPathParser.FRelativePathContext) f).rp();
+            while (rp instanceof XPathParser.RpParenthesesContext) {
+                rp = ((XPathParser.RpParenthesesContext) rp).rp();
+            }
+            Filter atom;
+            if (rp instanceof XPathParser.RpTagContext) {
+                String tag = ((XPathParser.RpTagContext) rp).Identifier().getText();
+                atom = new Filter(Filter.ATOM, null, null, TAG, tag, step.atoms.size());
+            } else if (rp instanceof XPathParser.RpWildcardContext) {
+                atom = new Filter(Filter.ATOM, null, null, ANY, null, step.atoms.size());
+            } else if (rp instanceof XPathParser.RpTextContext) {
+                atom = new Filter(Filter.ATOM, null, null, TEXT, null, step.atoms.size());
+            } else if (rp instanceof XPathParser.RpAttributeContext) {
+                String name = ((XPathParser.RpAttributeContext) rp).Identifier().getText();
+                atom = new Filter(Filter.ATOM, null, null, ATTRIBUTE, name, step.atoms.size());
+            } else {
+                return null;
+            }
+            step.atoms.add(atom);
+            return atom;
+        } else if (f instanceof XPathParser.FParenthesesContext) {
+            return compile(((XPathParser.FParenthesesContext) f).f(), step);
+        } else if (f instanceof XPathParser.FNotContext) {
+            Filter operand = compile(((XPathParser.FNotContext) f).f(), step);
+            return (operand == null) ? null : new Filter(Filter.NOT, operand, null, 0, null, 0);
+        } else if ((f instanceof XPathParser.FAndContext) || (f instanceof XPathParser.FOrContext)) {
+            boolean and = f instanceof XPathParser.FAndContext;
+            Filter l = compile(and ? ((XPathParser.FAndContext) f).f(0) : ((XPathParser.FOrContext) f).f(0), step);
+            Filter r = compile(and ? ((XPathParser.FAndContext) f).f(1) : ((XPathParser.FOrContext) f).f(1), step);
+            if ((l == null) || (r == null)) {
+                return null;
+            }
+            return new Filter(and ? Filter.AND : Filter.OR, l, r, 0, null, 0);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the XML file the query reads
+     *
+     * @return XML file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Evaluates the query, reading the XML file once
+     *
+     * @param sink Consumer of the results, called as soon as each result can be emitted
+     * @throws Exception If the file cannot be read or parsed, or the query selects the document type node
+     */
+    public void evaluate(Consumer<Node> sink) throws Exception {
+        SAXParserFactory factory = SAXParserFactory.newInstance();
+        SAXParser parser = factory.newSAXParser();
+        Handler handler = new Handler(sink);
+        parser.setProperty("http://xml.org/sax/properties/lexical-handler", handler);
+        parser.parse(file, handler);
+    }
+
+    /**
+     * Evaluates the query, reading the XML file once
+     *
+     * @return List of result nodes
+     * @throws Exception If the file cannot be read or parsed, or the query selects the document type node
+     */
+    public List<Node> evaluate() throws Exception {
+        List<Node> nodes = new ArrayList<>();
+        evaluate(nodes::add);
+        return nodes;
+    }
+
+    /**
+     * Anchor - Match of the last descendant step (or the document), and the results reached from it
+     */
+    private static class Anchor {
+        /**
+         * Innermost anchor the anchor is nested in (null if it is a top level anchor)
+         */
+        final Anchor parent;
+
+        /**
+         * Results reached from the anchor, in document order
+         */
+        final ArrayDeque<Result> own;
+
+        /**
+         * Anchors nested in this one that have ended, in document order
+         */
+        final ArrayDeque<Anchor> nested;
+
+        /**
+         * Flag set when the anchor has ended
+         */
+        boolean closed;
+
+        /**
+         * Constructor - Initializes an open anchor without results
+         *
+         * @param parent Innermost anchor the anchor is nested in
+         */
+        Anchor(Anchor parent) {
+            this.parent = parent;
+            this.own = new ArrayDeque<>();
+            this.nested = new ArrayDeque<>();
+            this.closed = false;
+        }
+    }
+
+    /**
+     * Match - Node selected by a step (after the anchors, the chain of matches up to the anchor is kept)
+     */
+    private static class Match {
+        /**
+         * Match of the context node (null for anchors and steps before them)
+         */
+        final Match parent;
+
+        /**
+         * Anchor the match is reached from (null for steps before the anchors)
+         */
+        final Anchor anchor;
+
+        /**
+         * Step of the match
+         */
+        final Step step;
+
+        /**
+         * Atoms of the filter of the step seen so far (null if the step has no filter)
+         */
+        final boolean[] seen;
+
+        /**
+         * Flag set when the node has ended
+         */
+        boolean closed;
+
+        /**
+         * Constructor - Initializes the match
+         *
+         * @param parent Match of the context node
+         * @param anchor Anchor the match is reached from
+         * @param step   Step of the match
+         */
+        Match(Match parent, Anchor anchor, Step step) {
+            this.parent = parent;
+            this.anchor = anchor;
+            this.step = step;
+            this.seen = ((step != null) && (step.filter != null)) ? new boolean[step.atoms.size()] : null;
+            this.closed = false;
+        }
+
+        /**
+         * Evaluates the filters of the chain of matches
+         *
+         * @return TRUE if all the filters hold, FALSE if one does not, UNKNOWN otherwise
+         */
+        int state() {
+            int state = TRUE;
+            for (Match m = this; m != null; m = m.parent) {
+                if (m.seen != null) {
+                    int v = m.step.filter.eval(m.seen, m.closed);
+                    if (v == FALSE) {
+                        return FALSE;
+                    }
+                    if (v == UNKNOWN) {
+                        state = UNKNOWN;
+                    }
+                }
+            }
+            return state;
+        }
+
+        /**
+         * Records a child of the node in the atoms of the filter
+         *
+         * @param type DOM node type of the child
+         * @param name Node name of the child
+         */
+        void child(short type, String name) {
+            for (Filter atom : step.atoms) {
+                if ((atom.test == ANY) || ((atom.test == TEXT) && (type == Node.TEXT_NODE))
+                        || ((atom.test == TAG) && (atom.name.equals(name)))) {
+                    seen[atom.atom] = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Result - Copy of a selected node, emitted once complete and once its filters hold
+     */
+    private static class Result {
+        /**
+         * Copy of the node
+         */
+        final Node node;
+
+        /**
+         * Match of the node
+         */
+        final Match match;
+
+        /**
+         * Flag set when the copy is complete (the element has ended)
+         */
+        boolean complete;
+
+        /**
+         * Constructor - Initializes a result
+         *
+         * @param node     Copy of the node
+         * @param match    Match of the node
+         * @param complete Flag set if the copy is already complete
+         */
+        Result(Node node, Match match, boolean complete) {
+            this.node = node;
+            this.match = match;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * Frame - State of the evaluation for an open element (or the document)
+     */
+    private static class Frame {
+        /**
+         * Frame of the parent
+         */
+        final Frame parent;
+
+        /**
+         * Match of the node for each step (match[i + 1] for step i, match[0] only for the document)
+         */
+        final Match[] match;
+
+        /**
+         * For each step i, whether the node or one of its ancestors is selected by step i - 1
+         */
+        final boolean[] under;
+
+        /**
+         * Anchor of the node, or innermost anchor the node is nested in
+         */
+        final Anchor scope;
+
+        /**
+         * Flag set if the anchor is the node's own
+         */
+        final boolean anchored;
+
+        /**
+         * Copy of the element, if it belongs to a result (null otherwise)
+         */
+        final Element element;
+
+        /**
+         * Result of the element (null if the element is not a result)
+         */
+        final Result result;
+
+        /**
+         * Constructor - Initializes the frame
+         */
+        Frame(Frame parent, Match[] match, boolean[] under, Anchor scope, boolean anchored, Element element, Result result) {
+            this.parent = parent;
+            this.match = match;
+            this.under = under;
+            this.scope = scope;
+            this.anchored = anchored;
+            this.element = element;
+            this.result = result;
+        }
+    }
+
+    /**
+     * Handler - SAX handler that runs the compiled query
+     */
+    private class Handler extends DefaultHandler implements LexicalHandler {
+        /**
+         * Consumer of the results
+         */
+        private final Consumer<Node> sink;
+
+        /**
+         * Document that owns the copies of the results
+         */
+        private final Document out;
+
+        /**
+         * Anchors that are not nested in other anchors, in document order
+         */
+        private final ArrayDeque<Anchor> roots;
+
+        /**
+         * Frame of the innermost open element
+         */
+        private Frame top;
+
+        /**
+         * Pending text (adjacent character events form a single text node, as in a normalized DOM)
+         */
+        private final StringBuilder text;
+
+        /**
+         * Flags for the current position in the document
+         */
+        private boolean inDTD;
+        private boolean inCDATA;
+
+        /**
+         * Constructor - Initializes the handler
+         *
+         * @param sink Consumer of the results
+         * @throws Exception If the document for the copies cannot be created
+         */
+        Handler(Consumer<Node> sink) throws Exception {
+            this.sink = sink;
+            this.out = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+            this.roots = new ArrayDeque<>();
+            this.text = new StringBuilder();
+            this.inDTD = false;
+            this.inCDATA = false;
+        }
+
+        /**
+         * Creates the match of a node for a step
+         *
+         * @param i       Index of the step
+         * @param context Match of the context node (previous step)
+         * @param scope   Innermost anchor the node is nested in
+         * @return Match of the node
+         */
+        private Match match(int i, Match context, Anchor scope) {
+            if (i < last) {
+                return new Match(null, null, steps[i]);
+            }
+            if (i == last) {
+                Anchor anchor = new Anchor(scope);
+                if (scope == null) {
+                    roots.add(anchor);
+                }
+                return new Match(null, anchor, steps[i]);
+            }
+            return new Match(context, context.anchor, steps[i]);
+        }
+
+        /**
+         * Computes the matches of a new node, child of the innermost open element
+         *
+         * @param type  DOM node type
+         * @param name  Node name
+         * @param under Whether the node or its ancestors are selected by the previous step of each step (filled in)
+         * @return Matches of the node (match[i + 1] for step i)
+         */
+        private Match[] matches(short type, String name, boolean[] under) {
+            Frame p = top;
+            Match[] match = new Match[steps.length + 1];
+            for (int i = 0; i < steps.length; ++i) {
+                Step step = steps[i];
+                boolean selected;
+                if (step.kind == CHILD) {
+                    selected = (p.match[i] != null) && (step.test(type, name));
+                } else if (step.kind == DESCENDANT) {
+                    selected = (type == Node.ELEMENT_NODE) && (p.under[i]) && (step.name.equals(name));
+                } else {
+                    selected = (match[i] != null) || (p.under[i]);
+                }
+                if (under != null) {
+                    under[i] = (match[i] != null) || (p.under[i]);
+                }
+                // Only elements can be anchors (descendant steps are never the last step for other nodes)
+                if (selected && ((i != last) || (type == Node.ELEMENT_NODE))) {
+                    match[i + 1] = match(i, p.match[i], p.scope);
+                } else if (selected) {
+                    match[i + 1] = new Match(null, null, step);
+                }
+            }
+            return match;
+        }
+
+        /**
+         * Records a new child in the filters of the innermost open element
+         *
+         * @param type DOM node type of the child
+         * @param name Node name of the child
+         */
+        private void child(short type, String name) {
+            for (Match m : top.match) {
+                if ((m != null) && (m.seen != null)) {
+                    m.child(type, name);
+                }
+            }
+        }
+
+        /**
+         * Adds a node that has no children (text, comment, processing instruction)
+         *
+         * @param type DOM node type
+         * @param name Node name
+         * @param node Copy of the node (created only if needed)
+         */
+        private void leaf(short type, String name, Supplier<Node> node) {
+            child(type, name);
+            Match[] match = matches(type, name, null);
+            Match result = match[steps.length];
+            boolean selected = (result != null) && (result.anchor != null);
+            if ((top.element == null) && (!selected)) {
+                return;
+            }
+            Node copy = node.get();
+            if (top.element != null) {
+                top.element.appendChild(copy);
+            }
+            if (selected) {
+                result.closed = true;
+                result.anchor.own.add(new Result(copy, result, true));
+                drain();
+            }
+        }
+
+        /**
+         * Adds the pending text, if any
+         */
+        private void flush() {
+            if (text.length() == 0) {
+                return;
+            }
+            String data = text.toString();
+            text.setLength(0);
+            if (inCDATA) {
+                leaf(Node.CDATA_SECTION_NODE, "#cdata-section", () -> out.createCDATASection(data));
+            } else {
+                leaf(Node.TEXT_NODE, "#text", () -> out.createTextNode(data));
+            }
+        }
+
+        /**
+         * Emits all the results that can be emitted, in order
+         */
+        private void drain() {
+            while (!roots.isEmpty()) {
+                if (!drain(roots.peek())) {
+                    return;
+                }
+                roots.poll();
+            }
+        }
+
+        /**
+         * Emits the results of an anchor that can be emitted, in order
+         *
+         * @param anchor Anchor
+         * @return true if the anchor has ended and all its results have been emitted (or discarded), false otherwise
+         */
+        private boolean drain(Anchor anchor) {
+            while (!anchor.own.isEmpty()) {
+                Result r = anchor.own.peek();
+                int state = r.match.state();
+                if ((state == UNKNOWN) || ((state == TRUE) && (!r.complete))) {
+                    return false;
+                }
+                anchor.own.poll();
+                if (state == TRUE) {
+                    sink.accept(r.node);
+                }
+            }
+            if (!anchor.closed) {
+                return false;
+            }
+            while (!anchor.nested.isEmpty()) {
+                if (!drain(anchor.nested.peek())) {
+                    return false;
+                }
+                anchor.nested.poll();
+            }
+            return true;
+        }
+
+        /**
+         * Ends the node of a frame
+         *
+         * @param frame Frame of the node
+         */
+        private void close(Frame frame) {
+            for (Match m : frame.match) {
+                if (m != null) {
+                    m.closed = true;
+                }
+            }
+            if (frame.result != null) {
+                frame.result.complete = true;
+            }
+            if (frame.anchored) {
+                Anchor anchor = frame.scope;
+                anchor.closed = true;
+                if ((anchor.parent != null) && ((!anchor.own.isEmpty()) || (!anchor.nested.isEmpty()))) {
+                    anchor.parent.nested.add(anchor);
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void startDocument() {
+            Match[] match = new Match[steps.length + 1];
+            boolean[] under = new boolean[steps.length];
+            Anchor scope = null;
+            if (last == -1) {
+                scope = new Anchor(null);
+                roots.add(scope);
+                match[0] = new Match(null, scope, null);
+            } else {
+                match[0] = new Match(null, null, null);
+            }
+            // The document is only selected by descendant-or-self steps
+            for (int i = 0; i < steps.length; ++i) {
+                under[i] = match[i] != null;
+                if ((steps[i].kind == DESCENDANT_OR_SELF) && (match[i] != null)) {
+                    match[i + 1] = match(i, match[i], scope);
+                    if (i == last) {
+                        scope = match[i + 1].anchor;
+                    }
+                }
+            }
+            top = new Frame(null, match, under, scope, scope != null, null, null);
+        }
+
+        @Override
+        public void endDocument() {
+            flush();
+            close(top);
+            top = null;
+        }
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes atts) {
+            flush();
+            child(Node.ELEMENT_NODE, qName);
+            boolean[] under = new boolean[steps.length];
+            Match[] match = matches(Node.ELEMENT_NODE, qName, under);
+            // Attribute atoms of the filters
+            for (Match m : match) {
+                if ((m != null) && (m.seen != null)) {
+                    for (Filter atom : m.step.atoms) {
+                        if ((atom.test == ATTRIBUTE) && (atts.getIndex(atom.name) >= 0)) {
+                            m.seen[atom.atom] = true;
+                        }
+                    }
+                }
+            }
+            Match selected = match[steps.length];
+            boolean isResult = (selected != null) && (steps[steps.length - 1].test != ATTRIBUTE);
+            Element element = null;
+            Result result = null;
+            if ((top.element != null) || (isResult)) {
+                element = out.createElement(qName);
+                for (int i = 0; i < atts.getLength(); ++i) {
+                    element.setAttribute(atts.getQName(i), atts.getValue(i));
+                }
+                if (top.element != null) {
+                    top.element.appendChild(element);
+                }
+            }
+            if (isResult) {
+                result = new Result(element, selected, false);
+                selected.anchor.own.add(result);
+            }
+            // Attribute results (selected by the last step from this element)
+            Step lastStep = steps[steps.length - 1];
+            Match owner = match[steps.length - 1];
+            if ((lastStep.test == ATTRIBUTE) && (owner != null) && (atts.getIndex(lastStep.name) >= 0)) {
+                Attr attr;
+                if (element != null) {
+                    attr = element.getAttributeNode(lastStep.name);
+                } else {
+                    attr = out.createAttribute(lastStep.name);
+                    attr.setValue(atts.getValue(lastStep.name));
+                }
+                Match m = match(steps.length - 1, owner, null);
+                m.closed = true;
+                m.anchor.own.add(new Result(attr, m, true));
+            }
+            boolean anchored = (last >= 0) && (match[last + 1] != null) && (match[last + 1].anchor != null);
+            Anchor scope = anchored ? match[last + 1].anchor : top.scope;
+            top = new Frame(top, match, under, scope, anchored, element, result);
+            drain();
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            flush();
+            Frame frame = top;
+            top = top.parent;
+            close(frame);
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            text.append(ch, start, length);
+        }
+
+        @Override
+        public void ignorableWhitespace(char[] ch, int start, int length) {
+            // Element content whitespace is not part of the tree
+        }
+
+        @Override
+        public void processingInstruction(String target, String data) {
+            if (inDTD) {
+                return;
+            }
+            flush();
+            leaf(Node.PROCESSING_INSTRUCTION_NODE, target, () -> out.createProcessingInstruction(target, data));
+        }
+
+        @Override
+        public void comment(char[] ch, int start, int length) {
+            if (inDTD) {
+                return;
+            }
+            flush();
+            String data = new String(ch, start, length);
+            leaf(Node.COMMENT_NODE, "#comment", () -> out.createComment(data));
+        }
+
+        @Override
+        public void startCDATA() {
+            flush();
+            inCDATA = true;
+        }
+
+        @Override
+        public void endCDATA() {
+            flush();
+            inCDATA = false;
+        }
+
+        @Override
+        public void startDTD(String name, String publicId, String systemId) throws SAXException {
+            // Nothing has been emitted yet, so the query can still be evaluated over the DOM tree
+            if (doctype && ((steps[steps.length - 1].test == ANY) || (steps[steps.length - 1].name.equals(name)))) {
+                throw new SAXException("The query selects the document type node, which is not streamed");
+            }
+            inDTD = true;
+        }
+
+        @Override
+        public void endDTD() {
+            inDTD = false;
+        }
+
+        @Override
+        public void startEntity(String name) {
+        }
+
+        @Override
+        public void endEntity(String name) {
+        }
+    }
+}
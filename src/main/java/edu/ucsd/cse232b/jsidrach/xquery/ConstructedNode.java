@@ -0,0 +1,1021 @@
+package edu.ucsd.cse232b.jsidrach.xquery;
+
+import org.w3c.dom.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * ConstructedNode - Read-only W3C DOM node of an element constructed by a XQuery query, or of its content
+ * <p>
+ * Constructed elements reference the nodes they are made of instead of copying them (see XQueryEvaluator.makeElem),
+ * and their content is presented as views of those nodes: a view has the properties of the node it is a view of
+ * (its target), but the parent and siblings of its position in the constructed element<br>
+ * Views are only created when the content is navigated, one level at a time, and are kept, so navigating
+ * the same content again returns the same nodes (as with a copy, identity is preserved)<br>
+ * Views of views (and constructed elements made of constructed elements) reference the original nodes,
+ * so constructing elements from constructed content does not nest views<br>
+ * All the operations that would modify the node throw a DOMException (NO_MODIFICATION_ALLOWED_ERR);
+ * Document.importNode makes a modifiable copy, as it only reads the nodes
+ * </p>
+ */
+abstract class ConstructedNode implements Node {
+
+    /**
+     * Nodes without children
+     */
+    private static final Node[] NO_NODES = new Node[0];
+
+    /**
+     * Document the constructed element was created for
+     */
+    final Document doc;
+
+    /**
+     * Node the view presents (null for the constructed elements themselves)
+     */
+    final Node target;
+
+    /**
+     * Parent of the node (owner element for attributes, null for constructed elements)
+     */
+    final ConstructedNode parent;
+
+    /**
+     * Position of the node among the children of its parent (-1 for attributes and constructed elements)
+     */
+    final int index;
+
+    /**
+     * Views of the children, created when the children are first navigated
+     */
+    private volatile ConstructedNode[] children;
+
+    /**
+     * Constructor - Initializes the node
+     *
+     * @param doc    Document the constructed element was created for
+     * @param target Node the view presents (null for constructed elements)
+     * @param parent Parent of the node (owner element for attributes, null for constructed elements)
+     * @param index  Position of the node among the children of its parent (-1 if it is not a child)
+     */
+    ConstructedNode(Document doc, Node target, ConstructedNode parent, int index) {
+        this.doc = doc;
+        this.target = target;
+        this.parent = parent;
+        this.index = index;
+    }
+
+    /**
+     * Constructs an element given its tag and the nodes of its content, without copying them
+     * <p>
+     * Attributes of the content become attributes of the element (a later attribute replaces an earlier one
+     * with the same name), and the rest of the nodes become its children, in order
+     * </p>
+     *
+     * @param doc   Document the element is created for
+     * @param tag   Tag of the element
+     * @param nodes Nodes of the content of the element (referenced, not copied)
+     * @return Constructed element
+     * @throws DOMException NOT_SUPPORTED_ERR if the content contains a document (as Document.importNode)
+     */
+    static Element element(Document doc, String tag, List<Node> nodes) {
+        List<Node> children = new ArrayList<>(nodes.size());
+        TreeMap<String, Node> attributes = null;
+        for (Node n : nodes) {
+            if ((n.getNodeType() == DOCUMENT_NODE) || (n.getNodeType() == DOCUMENT_FRAGMENT_NODE)) {
+                throw notSupported();
+            }
+            Node source = source(n);
+            if (source.getNodeType() == ATTRIBUTE_NODE) {
+                if (attributes == null) {
+                    attributes = new TreeMap<>();
+                }
+                attributes.put(source.getNodeName(), source);
+            } else {
+                children.add(source);
+            }
+        }
+        return new ElementNode(doc, null, null, -1, tag, children.toArray(NO_NODES),
+                (attributes == null) ? NO_NODES : attributes.values().toArray(NO_NODES));
+    }
+
+    /**
+     * Returns the node a view of a node has to present
+     *
+     * @param n Node (possibly a view)
+     * @return Target of the view if the node is a view - the node itself otherwise
+     */
+    private static Node source(Node n) {
+        if ((n instanceof ConstructedNode) && (((ConstructedNode) n).target != null)) {
+            return ((ConstructedNode) n).target;
+        }
+        return n;
+    }
+
+    /**
+     * Creates the view of a node, at the given position of a constructed element
+     *
+     * @param doc    Document of the constructed element
+     * @param source Node presented by the view (not a view itself)
+     * @param parent Parent of the view (owner element for attributes)
+     * @param index  Position of the view among the children of its parent (-1 for attributes)
+     * @return View of the node, according to its kind
+     */
+    private static ConstructedNode view(Document doc, Node source, ConstructedNode parent, int index) {
+        switch (source.getNodeType()) {
+            case ELEMENT_NODE:
+                if (source instanceof ElementNode) {
+                    // Constructed element: its content is shared, without nesting views
+                    ElementNode e = (ElementNode) source;
+                    return new ElementNode(doc, null, parent, index, e.name, e.childSources, e.attributeSources);
+                }
+                return new ElementNode(doc, source, parent, index, source.getNodeName(), null, null);
+            case ATTRIBUTE_NODE:
+                return new AttrNode(doc, source, parent);
+            case PROCESSING_INSTRUCTION_NODE:
+                return new ProcessingInstructionNode(doc, source, parent, index);
+            case TEXT_NODE:
+            case CDATA_SECTION_NODE:
+            case COMMENT_NODE:
+                return new CharacterDataNode(doc, source, parent, index);
+            default:
+                // Entity references, document types and the rest of the nodes never appear inside an element
+                throw notSupported();
+        }
+    }
+
+    /**
+     * Returns the exception thrown by all the operations that would modify the node
+     *
+     * @return Read-only DOMException
+     */
+    static DOMException readOnly() {
+        return new DOMException(DOMException.NO_MODIFICATION_ALLOWED_ERR, "Constructed nodes are read-only");
+    }
+
+    /**
+     * Returns the exception thrown by the operations that are not implemented by the constructed nodes
+     *
+     * @return Not supported DOMException
+     */
+    static DOMException notSupported() {
+        return new DOMException(DOMException.NOT_SUPPORTED_ERR, "Not supported by constructed nodes");
+    }
+
+    /**
+     * Checks whether two (nullable) strings are equal
+     *
+     * @param a First string
+     * @param b Second string
+     * @return true if both are null or equal, false otherwise
+     */
+    private static boolean same(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    }
+
+    /**
+     * Returns the nodes presented by the children of the node
+     *
+     * @return Children of the target (not views)
+     */
+    Node[] childSources() {
+        List<Node> sources = new ArrayList<>();
+        for (Node c = target.getFirstChild(); c != null; c = c.getNextSibling()) {
+            sources.add(source(c));
+        }
+        return sources.toArray(NO_NODES);
+    }
+
+    /**
+     * Returns the views of the children of the node, creating them the first time
+     *
+     * @return Children of the node
+     */
+    ConstructedNode[] children() {
+        ConstructedNode[] cs = children;
+        if (cs == null) {
+            synchronized (this) {
+                cs = children;
+                if (cs == null) {
+                    Node[] sources = childSources();
+                    cs = new ConstructedNode[sources.length];
+                    for (int i = 0; i < sources.length; ++i) {
+                        cs[i] = view(doc, sources[i], this, i);
+                    }
+                    children = cs;
+                }
+            }
+        }
+        return cs;
+    }
+
+    /**
+     * Returns a short description of the node (same format as the DOM)
+     *
+     * @return Name and value of the node
+     */
+    @Override
+    public String toString() {
+        return "[" + getNodeName() + ": " + getNodeValue() + "]";
+    }
+
+    @Override
+    public String getNodeName() {
+        return target.getNodeName();
+    }
+
+    @Override
+    public String getNodeValue() {
+        return target.getNodeValue();
+    }
+
+    @Override
+    public void setNodeValue(String nodeValue) {
+        throw readOnly();
+    }
+
+    @Override
+    public short getNodeType() {
+        return target.getNodeType();
+    }
+
+    @Override
+    public Node getParentNode() {
+        return parent;
+    }
+
+    @Override
+    public NodeList getChildNodes() {
+        return new Nodes(Arrays.asList(children()));
+    }
+
+    @Override
+    public Node getFirstChild() {
+        ConstructedNode[] cs = children();
+        return (cs.length == 0) ? null : cs[0];
+    }
+
+    @Override
+    public Node getLastChild() {
+        ConstructedNode[] cs = children();
+        return (cs.length == 0) ? null : cs[cs.length - 1];
+    }
+
+    @Override
+    public Node getPreviousSibling() {
+        return (index <= 0) ? null : parent.children()[index - 1];
+    }
+
+    @Override
+    public Node getNextSibling() {
+        if (index < 0) {
+            return null;
+        }
+        ConstructedNode[] siblings = parent.children();
+        return (index + 1 < siblings.length) ? siblings[index + 1] : null;
+    }
+
+    @Override
+    public NamedNodeMap getAttributes() {
+        return null;
+    }
+
+    @Override
+    public Document getOwnerDocument() {
+        return doc;
+    }
+
+    @Override
+    public Node insertBefore(Node newChild, Node refChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node replaceChild(Node newChild, Node oldChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node removeChild(Node oldChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public Node appendChild(Node newChild) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean hasChildNodes() {
+        return children().length > 0;
+    }
+
+    @Override
+    public Node cloneNode(boolean deep) {
+        throw notSupported();
+    }
+
+    @Override
+    public void normalize() {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isSupported(String feature, String version) {
+        return false;
+    }
+
+    @Override
+    public String getNamespaceURI() {
+        return null;
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public void setPrefix(String prefix) {
+        throw readOnly();
+    }
+
+    @Override
+    public String getLocalName() {
+        return null;
+    }
+
+    @Override
+    public boolean hasAttributes() {
+        return false;
+    }
+
+    @Override
+    public String getBaseURI() {
+        return null;
+    }
+
+    @Override
+    public short compareDocumentPosition(Node other) {
+        throw notSupported();
+    }
+
+    @Override
+    public String getTextContent() {
+        return target.getTextContent();
+    }
+
+    @Override
+    public void setTextContent(String textContent) {
+        throw readOnly();
+    }
+
+    @Override
+    public boolean isSameNode(Node other) {
+        return this == other;
+    }
+
+    @Override
+    public String lookupPrefix(String namespaceURI) {
+        return null;
+    }
+
+    @Override
+    public boolean isDefaultNamespace(String namespaceURI) {
+        return false;
+    }
+
+    @Override
+    public String lookupNamespaceURI(String prefix) {
+        return null;
+    }
+
+    /**
+     * Checks whether two nodes are equal, as defined by DOM Level 3
+     * (same type, names and value, equal attributes and equal children)
+     *
+     * @param arg Node to compare with (of any DOM implementation)
+     * @return true if the nodes are equal, false otherwise
+     */
+    @Override
+    public boolean isEqualNode(Node arg) {
+        if (arg == this) {
+            return true;
+        }
+        if ((arg == null) || (arg.getNodeType() != getNodeType())) {
+            return false;
+        }
+        if ((!same(getNodeName(), arg.getNodeName())) || (!same(getLocalName(), arg.getLocalName()))
+                || (!same(getNamespaceURI(), arg.getNamespaceURI())) || (!same(getPrefix(), arg.getPrefix()))
+                || (!same(getNodeValue(), arg.getNodeValue()))) {
+            return false;
+        }
+        // The value of an attribute is its only content
+        if (getNodeType() == ATTRIBUTE_NODE) {
+            return true;
+        }
+        NamedNodeMap attributes = getAttributes();
+        if (attributes != null) {
+            NamedNodeMap others = arg.getAttributes();
+            if ((others == null) || (attributes.getLength() != others.getLength())) {
+                return false;
+            }
+            for (int i = 0; i < attributes.getLength(); ++i) {
+                Node a = attributes.item(i);
+                Node o = others.getNamedItem(a.getNodeName());
+                if ((o == null) || (!a.isEqualNode(o))) {
+                    return false;
+                }
+            }
+        }
+        Node c = getFirstChild();
+        Node o = arg.getFirstChild();
+        while ((c != null) && (o != null)) {
+            if (!c.isEqualNode(o)) {
+                return false;
+            }
+            c = c.getNextSibling();
+            o = o.getNextSibling();
+        }
+        return (c == null) && (o == null);
+    }
+
+    @Override
+    public Object getFeature(String feature, String version) {
+        return null;
+    }
+
+    @Override
+    public Object setUserData(String key, Object data, UserDataHandler handler) {
+        throw notSupported();
+    }
+
+    @Override
+    public Object getUserData(String key) {
+        return null;
+    }
+
+    /**
+     * Nodes - Read-only list of nodes
+     */
+    static class Nodes implements NodeList {
+
+        /**
+         * Nodes of the list
+         */
+        private final List<? extends Node> nodes;
+
+        /**
+         * Constructor - Wraps a list of nodes
+         *
+         * @param nodes Nodes of the list
+         */
+        Nodes(List<? extends Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public Node item(int index) {
+            return ((index < 0) || (index >= nodes.size())) ? null : nodes.get(index);
+        }
+
+        @Override
+        public int getLength() {
+            return nodes.size();
+        }
+    }
+
+    /**
+     * Attributes - Read-only map of the attributes of an element, sorted by name
+     */
+    static class Attributes implements NamedNodeMap {
+
+        /**
+         * Attributes of the element, sorted by name
+         */
+        private final AttrNode[] attributes;
+
+        /**
+         * Constructor - Wraps the attributes of an element
+         *
+         * @param attributes Attributes of the element, sorted by name
+         */
+        Attributes(AttrNode[] attributes) {
+            this.attributes = attributes;
+        }
+
+        @Override
+        public Node getNamedItem(String name) {
+            for (AttrNode a : attributes) {
+                if (a.getNodeName().equals(name)) {
+                    return a;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Node setNamedItem(Node arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node removeNamedItem(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node item(int index) {
+            return ((index < 0) || (index >= attributes.length)) ? null : attributes[index];
+        }
+
+        @Override
+        public int getLength() {
+            return attributes.length;
+        }
+
+        @Override
+        public Node getNamedItemNS(String namespaceURI, String localName) {
+            return (namespaceURI == null) ? getNamedItem(localName) : null;
+        }
+
+        @Override
+        public Node setNamedItemNS(Node arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Node removeNamedItemNS(String namespaceURI, String localName) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * ElementNode - Constructed element, or view of an element
+     */
+    static class ElementNode extends ConstructedNode implements Element {
+
+        /**
+         * Tag of the element
+         */
+        private final String name;
+
+        /**
+         * Nodes presented by the children (null until read from the target, for views of elements)
+         */
+        private volatile Node[] childSources;
+
+        /**
+         * Nodes presented by the attributes, sorted by name (null until read from the target, for views of elements)
+         */
+        private volatile Node[] attributeSources;
+
+        /**
+         * Views of the attributes, created when the attributes are first read
+         */
+        private volatile AttrNode[] attributes;
+
+        /**
+         * Constructor - Initializes the element
+         *
+         * @param doc              Document the constructed element was created for
+         * @param target           Element the view presents (null for constructed elements)
+         * @param parent           Parent of the element (null for constructed elements)
+         * @param index            Position of the element among the children of its parent
+         * @param name             Tag of the element
+         * @param childSources     Nodes presented by the children (null to read them from the target)
+         * @param attributeSources Nodes presented by the attributes, sorted by name
+         *                         (null to read them from the target)
+         */
+        ElementNode(Document doc, Node target, ConstructedNode parent, int index, String name,
+                    Node[] childSources, Node[] attributeSources) {
+            super(doc, target, parent, index);
+            this.name = name;
+            this.childSources = childSources;
+            this.attributeSources = attributeSources;
+        }
+
+        @Override
+        Node[] childSources() {
+            Node[] sources = childSources;
+            if (sources == null) {
+                sources = super.childSources();
+                childSources = sources;
+            }
+            return sources;
+        }
+
+        /**
+         * Returns the nodes presented by the attributes, reading them from the target the first time
+         *
+         * @return Attributes of the target (not views), sorted by name
+         */
+        private Node[] attributeSources() {
+            Node[] sources = attributeSources;
+            if (sources == null) {
+                NamedNodeMap map = target.getAttributes();
+                sources = new Node[map.getLength()];
+                for (int i = 0; i < sources.length; ++i) {
+                    sources[i] = source(map.item(i));
+                }
+                // Sorted as the attributes of the elements of a document built by the JDK
+                Arrays.sort(sources, Comparator.comparing(Node::getNodeName));
+                attributeSources = sources;
+            }
+            return sources;
+        }
+
+        /**
+         * Returns the views of the attributes, creating them the first time
+         *
+         * @return Attributes of the element, sorted by name
+         */
+        private AttrNode[] attributes() {
+            AttrNode[] as = attributes;
+            if (as == null) {
+                synchronized (this) {
+                    as = attributes;
+                    if (as == null) {
+                        Node[] sources = attributeSources();
+                        as = new AttrNode[sources.length];
+                        for (int i = 0; i < sources.length; ++i) {
+                            as[i] = new AttrNode(doc, sources[i], this);
+                        }
+                        attributes = as;
+                    }
+                }
+            }
+            return as;
+        }
+
+        @Override
+        public String getNodeName() {
+            return name;
+        }
+
+        @Override
+        public String getNodeValue() {
+            return null;
+        }
+
+        @Override
+        public short getNodeType() {
+            return ELEMENT_NODE;
+        }
+
+        /**
+         * Returns the text of the descendants of the element, read from the nodes it is made of
+         *
+         * @return Concatenation of the text content of the children, comments and processing instructions excluded
+         */
+        @Override
+        public String getTextContent() {
+            if (target != null) {
+                return target.getTextContent();
+            }
+            StringBuilder sb = new StringBuilder();
+            for (Node c : childSources()) {
+                short type = c.getNodeType();
+                if ((type != COMMENT_NODE) && (type != PROCESSING_INSTRUCTION_NODE)) {
+                    sb.append(c.getTextContent());
+                }
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public NamedNodeMap getAttributes() {
+            return new Attributes(attributes());
+        }
+
+        @Override
+        public boolean hasAttributes() {
+            return attributeSources().length > 0;
+        }
+
+        @Override
+        public String getTagName() {
+            return name;
+        }
+
+        @Override
+        public String getAttribute(String name) {
+            Attr a = getAttributeNode(name);
+            return (a == null) ? "" : a.getValue();
+        }
+
+        @Override
+        public void setAttribute(String name, String value) {
+            throw readOnly();
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr getAttributeNode(String name) {
+            for (AttrNode a : attributes()) {
+                if (a.getName().equals(name)) {
+                    return a;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Attr setAttributeNode(Attr newAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr removeAttributeNode(Attr oldAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public NodeList getElementsByTagName(String name) {
+            List<Node> elements = new ArrayList<>();
+            elementsByTagName(this, name.equals("*") ? null : name, elements);
+            return new Nodes(elements);
+        }
+
+        /**
+         * Appends the descendant elements of a node with the given tag, in document order
+         *
+         * @param n        Node
+         * @param tag      Tag of the elements (null matches all the elements)
+         * @param elements List the elements are appended to
+         */
+        private static void elementsByTagName(Node n, String tag, List<Node> elements) {
+            for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                if (c.getNodeType() == ELEMENT_NODE) {
+                    if ((tag == null) || (c.getNodeName().equals(tag))) {
+                        elements.add(c);
+                    }
+                    elementsByTagName(c, tag, elements);
+                }
+            }
+        }
+
+        @Override
+        public String getAttributeNS(String namespaceURI, String localName) {
+            return (namespaceURI == null) ? getAttribute(localName) : "";
+        }
+
+        @Override
+        public void setAttributeNS(String namespaceURI, String qualifiedName, String value) {
+            throw readOnly();
+        }
+
+        @Override
+        public void removeAttributeNS(String namespaceURI, String localName) {
+            throw readOnly();
+        }
+
+        @Override
+        public Attr getAttributeNodeNS(String namespaceURI, String localName) {
+            return (namespaceURI == null) ? getAttributeNode(localName) : null;
+        }
+
+        @Override
+        public Attr setAttributeNodeNS(Attr newAttr) {
+            throw readOnly();
+        }
+
+        @Override
+        public NodeList getElementsByTagNameNS(String namespaceURI, String localName) {
+            return new Nodes(new ArrayList<>());
+        }
+
+        @Override
+        public boolean hasAttribute(String name) {
+            return getAttributeNode(name) != null;
+        }
+
+        @Override
+        public boolean hasAttributeNS(String namespaceURI, String localName) {
+            return (namespaceURI == null) && hasAttribute(localName);
+        }
+
+        @Override
+        public TypeInfo getSchemaTypeInfo() {
+            return null;
+        }
+
+        @Override
+        public void setIdAttribute(String name, boolean isId) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setIdAttributeNS(String namespaceURI, String localName, boolean isId) {
+            throw readOnly();
+        }
+
+        @Override
+        public void setIdAttributeNode(Attr idAttr, boolean isId) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * CharacterDataNode - View of a text node, CDATA section or comment
+     */
+    static class CharacterDataNode extends ConstructedNode implements CDATASection, Comment {
+
+        /**
+         * Constructor - Initializes the view
+         *
+         * @param doc    Document of the constructed element
+         * @param target Node the view presents
+         * @param parent Parent of the view
+         * @param index  Position of the view among the children of its parent
+         */
+        CharacterDataNode(Document doc, Node target, ConstructedNode parent, int index) {
+            super(doc, target, parent, index);
+        }
+
+        @Override
+        Node[] childSources() {
+            return NO_NODES;
+        }
+
+        @Override
+        public String getData() {
+            return target.getNodeValue();
+        }
+
+        @Override
+        public void setData(String data) {
+            throw readOnly();
+        }
+
+        @Override
+        public int getLength() {
+            return getData().length();
+        }
+
+        @Override
+        public String substringData(int offset, int count) {
+            String data = getData();
+            if ((offset < 0) || (offset > data.length()) || (count < 0)) {
+                throw new DOMException(DOMException.INDEX_SIZE_ERR, "Invalid offset or count");
+            }
+            return data.substring(offset, Math.min(data.length(), offset + count));
+        }
+
+        @Override
+        public void appendData(String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public void insertData(int offset, String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public void deleteData(int offset, int count) {
+            throw readOnly();
+        }
+
+        @Override
+        public void replaceData(int offset, int count, String arg) {
+            throw readOnly();
+        }
+
+        @Override
+        public Text splitText(int offset) {
+            throw readOnly();
+        }
+
+        @Override
+        public boolean isElementContentWhitespace() {
+            return (target instanceof Text) && ((Text) target).isElementContentWhitespace();
+        }
+
+        @Override
+        public String getWholeText() {
+            return getData();
+        }
+
+        @Override
+        public Text replaceWholeText(String content) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * ProcessingInstructionNode - View of a processing instruction
+     */
+    static class ProcessingInstructionNode extends ConstructedNode implements ProcessingInstruction {
+
+        /**
+         * Constructor - Initializes the view
+         *
+         * @param doc    Document of the constructed element
+         * @param target Node the view presents
+         * @param parent Parent of the view
+         * @param index  Position of the view among the children of its parent
+         */
+        ProcessingInstructionNode(Document doc, Node target, ConstructedNode parent, int index) {
+            super(doc, target, parent, index);
+        }
+
+        @Override
+        Node[] childSources() {
+            return NO_NODES;
+        }
+
+        @Override
+        public String getTarget() {
+            return target.getNodeName();
+        }
+
+        @Override
+        public String getData() {
+            return target.getNodeValue();
+        }
+
+        @Override
+        public void setData(String data) {
+            throw readOnly();
+        }
+    }
+
+    /**
+     * AttrNode - View of an attribute, owned by a constructed element (or a view of an element)
+     * <p>
+     * As in the DOM, the value of the attribute is also available as its children (views of the ones of the target)
+     * </p>
+     */
+    static class AttrNode extends ConstructedNode implements Attr {
+
+        /**
+         * Constructor - Initializes the view
+         *
+         * @param doc    Document of the constructed element
+         * @param target Attribute the view presents
+         * @param owner  Element the attribute belongs to
+         */
+        AttrNode(Document doc, Node target, ConstructedNode owner) {
+            super(doc, target, owner, -1);
+        }
+
+        @Override
+        public Node getParentNode() {
+            return null;
+        }
+
+        /**
+         * Returns the attribute as it is written in a XML document (same format as the DOM)
+         *
+         * @return Attribute name="value"
+         */
+        @Override
+        public String toString() {
+            return getName() + "=\"" + getValue() + "\"";
+        }
+
+        @Override
+        public String getName() {
+            return target.getNodeName();
+        }
+
+        @Override
+        public boolean getSpecified() {
+            return true;
+        }
+
+        @Override
+        public String getValue() {
+            return target.getNodeValue();
+        }
+
+        @Override
+        public void setValue(String value) {
+            throw readOnly();
+        }
+
+        @Override
+        public Element getOwnerElement() {
+            return (Element) parent;
+        }
+
+        @Override
+        public TypeInfo getSchemaTypeInfo() {
+            return null;
+        }
+
+        @Override
+        public boolean isId() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package edu.ucsd.cse232b.jsidrach.xquery;
+
+import org.w3c.dom.Node;
+
+import java.util.LinkedList;
+
+/**
+ * Environment - Persistent (immutable) map from variable names to their values
+ * <p>
+ * Each environment is a frame with the variables bound by one expression (FLWR, let or some),
+ * as a flat array indexed by their position in the expression, linked to the environment it extends<br>
+ * Binding a variable copies the frame of the expression (never the frames it extends),
+ * so the tuples of a FLWR expression share the environment of its context<br>
+ * Lookups by name walk the frames from the innermost one, so a variable bound again hides its previous bindings
+ * (as in nested for, let and some clauses)<br>
+ * Variables resolved before the query is executed (see XQueryVariableResolver) are looked up by the position
+ * of their frame and their index in it instead of by name, only walking the frames of the enclosing expressions<br>
+ * Environments are never modified once created, so they can be shared by the operators of a FLWR expression,
+ * by the lazy iterators they create and by concurrent executions of a prepared query
+ * </p>
+ */
+public final class Environment {
+
+    /**
+     * Environment without variables
+     */
+    public static final Environment EMPTY = new Environment(new String[0], new LinkedList[0], null);
+
+    /**
+     * Names of the variables of the frame (with the leading '$'), in order
+     */
+    private final String[] names;
+
+    /**
+     * Values of the variables of the frame, in the same order as names (null for the variables not bound yet)
+     */
+    private final LinkedList<Node>[] values;
+
+    /**
+     * Environment extended by the frame - null for the empty environment
+     */
+    private final Environment parent;
+
+    /**
+     * Private constructor - Initializes the frame
+     *
+     * @param names  Names of the variables
+     * @param values Values of the variables
+     * @param parent Environment extended by the frame
+     */
+    private Environment(String[] names, LinkedList<Node>[] values, Environment parent) {
+        this.names = names;
+        this.values = values;
+        this.parent = parent;
+    }
+
+    /**
+     * Extends the current environment with a frame for the variables of an expression, none of them bound yet
+     *
+     * @param names Names of the variables (with the leading '$'), in order (must not be modified afterwards)
+     * @return Environment with the frame, and the variables of the current one
+     */
+    @SuppressWarnings("unchecked")
+    public Environment frame(String[] names) {
+        return new Environment(names, new LinkedList[names.length], this);
+    }
+
+    /**
+     * Binds a variable of the frame, without modifying the current environment
+     *
+     * @param index Index of the variable in the frame
+     * @param value Value of the variable (must not be modified afterwards)
+     * @return Environment with the variable bound to the value, and the rest of the variables of the current one
+     */
+    public Environment bind(int index, LinkedList<Node> value) {
+        LinkedList<Node>[] values = this.values.clone();
+        values[index] = value;
+        return new Environment(names, values, parent);
+    }
+
+    /**
+     * Binds a variable in a new frame, without modifying the current environment
+     *
+     * @param name  Name of the variable (with the leading '$')
+     * @param value Value of the variable (must not be modified afterwards)
+     * @return Environment with the variable bound to the value, and the rest of the variables of the current one
+     */
+    public Environment bind(String name, LinkedList<Node> value) {
+        return frame(new String[]{name}).bind(0, value);
+    }
+
+    /**
+     * Returns the value of a variable
+     *
+     * @param name Name of the variable (with the leading '$')
+     * @return Value of the innermost binding of the variable - null if the variable is not bound
+     */
+    public LinkedList<Node> lookup(String name) {
+        for (Environment e = this; e != null; e = e.parent) {
+            for (int i = e.names.length - 1; i >= 0; --i) {
+                if ((e.values[i] != null) && (e.names[i].equals(name))) {
+                    return e.values[i];
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the value of a variable resolved into a slot (see XQueryVariableResolver)
+     *
+     * @param depth Number of frames between the current one and the frame that binds the variable
+     * @param index Index of the variable in its frame
+     * @return Value of the variable
+     */
+    public LinkedList<Node> lookup(int depth, int index) {
+        Environment e = this;
+        for (int i = 0; i < depth; ++i) {
+            e = e.parent;
+        }
+        return e.values[index];
+    }
+}
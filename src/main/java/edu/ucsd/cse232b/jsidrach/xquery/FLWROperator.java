@@ -0,0 +1,391 @@
+package edu.ucsd.cse232b.jsidrach.xquery;
+
+import edu.ucsd.cse232b.jsidrach.antlr.XQueryParser;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * FLWROperator - Pull-based (iterator) operator of a FLWR expression
+ * <p>
+ * A FLWR expression is evaluated by a pipeline of operators, each of them pulling tuples from its input one at a time:
+ * the context of the expression, one for-scan per for clause variable, let, where and return<br>
+ * Tuples are environments binding the variables to their values (see Environment), with a single frame
+ * for the variables of the expression: extending a tuple with a variable only copies that frame,
+ * and tuples are never modified once produced, so they can be shared by the operators
+ * and by the lazy iterators they create<br>
+ * The return operator produces the result nodes one at a time, so the first results are available
+ * before the whole expression is evaluated, and only the current tuple of each operator is kept in memory
+ * (plus the values of the for clause variables being scanned)<br>
+ * Expressions of for and let clauses that do not depend on the previous clauses (see XQueryVariableResolver)
+ * are evaluated once, with the first input tuple, and their values are reused by the following tuples
+ * </p>
+ */
+abstract class FLWROperator implements Iterator<Environment> {
+
+    /**
+     * Next tuple, already fetched by hasNext (null if not fetched yet)
+     */
+    private Environment next;
+
+    /**
+     * Fetches the next tuple of the operator
+     *
+     * @return Next tuple - null if there are no more tuples
+     */
+    protected abstract Environment fetch();
+
+    @Override
+    public boolean hasNext() {
+        if (next == null) {
+            next = fetch();
+        }
+        return next != null;
+    }
+
+    @Override
+    public Environment next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Environment tuple = next;
+        next = null;
+        return tuple;
+    }
+
+    /**
+     * Builds the pipeline of a FLWR expression
+     *
+     * @param visitor Visitor used to evaluate the sub-expressions
+     * @param ctx     FLWR expression
+     * @param vars    Variables of the context of the expression
+     * @return Iterator over the result nodes of the expression
+     */
+    static Iterator<Node> pipeline(XQueryVisitor visitor, XQueryParser.XqFLWRContext ctx,
+                                   Environment vars) {
+        XQueryParser.ForClauseContext forClause = ctx.forClause();
+        List<TerminalNode> frame = new ArrayList<>(forClause.Variable());
+        if (ctx.letClause() != null) {
+            frame.addAll(ctx.letClause().Variable());
+        }
+        FLWROperator op = new Context(vars.frame(XQueryVisitor.names(frame)));
+        VariableSlots slots = visitor.getSlots();
+        int numVars = forClause.Variable().size();
+        for (int i = 0; i < numVars; ++i) {
+            // The first variable is scanned once anyway, so its expression is not materialized
+            op = new ForScan(visitor, op, i, forClause.xq(i), (i > 0) && slots.isInvariant(forClause.xq(i)));
+        }
+        if (ctx.letClause() != null) {
+            op = new Let(visitor, op, ctx.letClause(), numVars);
+        }
+        if (ctx.whereClause() != null) {
+            op = new Where(visitor, op, ctx.whereClause().cond(), numVars - 1);
+        }
+        return new Return(visitor, op, ctx.returnClause().xq());
+    }
+
+    /**
+     * Context - Produces a single tuple, the variables of the context of the expression
+     */
+    static class Context extends FLWROperator {
+        /**
+         * Variables of the context (null once produced)
+         */
+        private Environment vars;
+
+        /**
+         * Constructor - Initializes the operator
+         *
+         * @param vars Variables of the context
+         */
+        Context(Environment vars) {
+            this.vars = vars;
+        }
+
+        @Override
+        protected Environment fetch() {
+            Environment tuple = vars;
+            vars = null;
+            return tuple;
+        }
+    }
+
+    /**
+     * ForScan - Extends each input tuple with each of the nodes of a for clause variable
+     */
+    static class ForScan extends FLWROperator {
+        /**
+         * Visitor used to evaluate the expression of the variable
+         */
+        private final XQueryVisitor visitor;
+
+        /**
+         * Input operator
+         */
+        private final FLWROperator input;
+
+        /**
+         * Index of the variable in the frame of the expression
+         */
+        private final int var;
+
+        /**
+         * Expression of the variable
+         */
+        private final XQueryParser.XqContext xq;
+
+        /**
+         * Flag set if the expression does not depend on the input tuples
+         */
+        private final boolean invariant;
+
+        /**
+         * Nodes of the variable, if the expression is invariant (null until the first input tuple)
+         */
+        private LinkedList<Node> invariantValues;
+
+        /**
+         * Current input tuple
+         */
+        private Environment tuple;
+
+        /**
+         * Remaining nodes of the variable for the current input tuple
+         */
+        private Iterator<Node> values;
+
+        /**
+         * Constructor - Initializes the operator
+         *
+         * @param visitor   Visitor used to evaluate the expression of the variable
+         * @param input     Input operator
+         * @param var       Index of the variable in the frame of the expression
+         * @param xq        Expression of the variable
+         * @param invariant Flag set if the expression does not depend on the input tuples
+         */
+        ForScan(XQueryVisitor visitor, FLWROperator input, int var, XQueryParser.XqContext xq, boolean invariant) {
+            this.visitor = visitor;
+            this.input = input;
+            this.var = var;
+            this.xq = xq;
+            this.invariant = invariant;
+            this.invariantValues = null;
+            this.tuple = null;
+            this.values = null;
+        }
+
+        @Override
+        protected Environment fetch() {
+            // The expression is evaluated again for every input tuple, unless it does not depend on them
+            while ((values == null) || (!values.hasNext())) {
+                if (!input.hasNext()) {
+                    return null;
+                }
+                tuple = input.next();
+                if (invariant) {
+                    if (invariantValues == null) {
+                        invariantValues = visitor.evaluate(xq, tuple);
+                    }
+                    values = invariantValues.iterator();
+                } else {
+                    values = visitor.iterate(xq, tuple);
+                }
+            }
+            return tuple.bind(var, XQueryEvaluator.singleton(values.next()));
+        }
+    }
+
+    /**
+     * Let - Extends each input tuple with the values of the let clause variables
+     */
+    static class Let extends FLWROperator {
+        /**
+         * Visitor used to evaluate the expressions of the variables
+         */
+        private final XQueryVisitor visitor;
+
+        /**
+         * Input operator
+         */
+        private final FLWROperator input;
+
+        /**
+         * Let clause
+         */
+        private final XQueryParser.LetClauseContext ctx;
+
+        /**
+         * Index of the first variable of the let clause in the frame of the expression
+         */
+        private final int first;
+
+        /**
+         * Flags set for the variables whose expressions do not depend on the input tuples
+         */
+        private final boolean[] invariant;
+
+        /**
+         * Values of the variables whose expressions are invariant (null until the first input tuple)
+         */
+        private final ArrayList<LinkedList<Node>> invariantValues;
+
+        /**
+         * Constructor - Initializes the operator
+         *
+         * @param visitor Visitor used to evaluate the expressions of the variables
+         * @param input   Input operator
+         * @param ctx     Let clause
+         * @param first   Index of the first variable of the let clause in the frame of the expression
+         */
+        Let(XQueryVisitor visitor, FLWROperator input, XQueryParser.LetClauseContext ctx, int first) {
+            this.visitor = visitor;
+            this.input = input;
+            this.ctx = ctx;
+            this.first = first;
+            this.invariant = new boolean[ctx.Variable().size()];
+            this.invariantValues = new ArrayList<>();
+            for (int i = 0; i < ctx.Variable().size(); ++i) {
+                this.invariant[i] = visitor.getSlots().isInvariant(ctx.xq(i));
+                this.invariantValues.add(null);
+            }
+        }
+
+        @Override
+        protected Environment fetch() {
+            if (!input.hasNext()) {
+                return null;
+            }
+            // Each variable is evaluated with the previous ones already defined
+            Environment tuple = input.next();
+            int numVars = ctx.Variable().size();
+            for (int i = 0; i < numVars; ++i) {
+                XQueryParser.XqContext xq = ctx.xq(i);
+                LinkedList<Node> value = invariantValues.get(i);
+                if (value == null) {
+                    value = visitor.evaluate(xq, tuple);
+                    if (invariant[i]) {
+                        invariantValues.set(i, value);
+                    }
+                }
+                tuple = tuple.bind(first + i, value);
+            }
+            return tuple;
+        }
+    }
+
+    /**
+     * Where - Keeps the input tuples that satisfy a condition
+     */
+    static class Where extends FLWROperator {
+        /**
+         * Visitor used to evaluate the condition
+         */
+        private final XQueryVisitor visitor;
+
+        /**
+         * Input operator
+         */
+        private final FLWROperator input;
+
+        /**
+         * Condition
+         */
+        private final XQueryParser.CondContext cond;
+
+        /**
+         * Index of the last for clause variable in the frame of the expression
+         * (its node is the current node of the condition)
+         */
+        private final int var;
+
+        /**
+         * Constructor - Initializes the operator
+         *
+         * @param visitor Visitor used to evaluate the condition
+         * @param input   Input operator
+         * @param cond    Condition
+         * @param var     Index of the last for clause variable in the frame of the expression
+         */
+        Where(XQueryVisitor visitor, FLWROperator input, XQueryParser.CondContext cond, int var) {
+            this.visitor = visitor;
+            this.input = input;
+            this.cond = cond;
+            this.var = var;
+        }
+
+        @Override
+        protected Environment fetch() {
+            while (input.hasNext()) {
+                Environment tuple = input.next();
+                // Conditions return the current (non-empty) list of nodes if they are satisfied
+                if (!visitor.evaluate(cond, tuple, tuple.lookup(0, var)).isEmpty()) {
+                    return tuple;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Return - Produces the result nodes of the return clause for each input tuple
+     */
+    static class Return implements Iterator<Node> {
+        /**
+         * Visitor used to evaluate the return clause
+         */
+        private final XQueryVisitor visitor;
+
+        /**
+         * Input operator
+         */
+        private final FLWROperator input;
+
+        /**
+         * Expression of the return clause
+         */
+        private final XQueryParser.XqContext xq;
+
+        /**
+         * Remaining result nodes for the current input tuple
+         */
+        private Iterator<Node> nodes;
+
+        /**
+         * Constructor - Initializes the operator
+         *
+         * @param visitor Visitor used to evaluate the return clause
+         * @param input   Input operator
+         * @param xq      Expression of the return clause
+         */
+        Return(XQueryVisitor visitor, FLWROperator input, XQueryParser.XqContext xq) {
+            this.visitor = visitor;
+            this.input = input;
+            this.xq = xq;
+            this.nodes = null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while ((nodes == null) || (!nodes.hasNext())) {
+                if (!input.hasNext()) {
+                    return false;
+                }
+                nodes = visitor.iterate(xq, input.next());
+            }
+            return true;
+        }
+
+        @Override
+        public Node next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return nodes.next();
+        }
+    }
+}
@@ -0,0 +1,686 @@
+package edu.ucsd.cse232b.jsidrach.xquery;
+
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * HashJoin - Partitioned hash join of two lists of tuples
+ * <p>
+ * Both inputs are partitioned by the hash of their keys, and each partition is built (right tuples)
+ * and probed (left tuples) independently, in parallel if the inputs are big enough<br>
+ * Parallel tasks run on the common ForkJoinPool, shared by all the joins (so joins evaluated once per tuple
+ * of an outer expression do not start threads of their own), and every join splits its work in at most
+ * as many tasks as its degree of parallelism<br>
+ * The result is, for each left tuple, the positions of the matching right tuples:
+ * left tuples keep their order, and so do the right tuples matching each of them,
+ * so the output is the same (and in the same order) for any degree of parallelism<br>
+ * The keys of the tuples are also computed in parallel chunks - tuples are only read, never modified,
+ * and the output tuples are made afterwards, in a single thread<br>
+ * The keys of the right tuples (the build side) are bounded by a memory budget, checked on the summed footprint
+ * of each parallel round of keys: rounds grow while the next one is estimated to fit in half of the budget left,
+ * and once spilling is close the rest of the keys are computed one at a time<br>
+ * If the estimated footprint of the keys of the right tuples exceeds the budget, the keys of both sides
+ * are spilled to temporary partition files in binary form (Grace hash join), and the partitions are then
+ * built and probed one at a time, in the current thread<br>
+ * The number of partitions is chosen so that each one is estimated to fit in half of the budget,
+ * and partitions that still exceed it are partitioned again (reading their keys one at a time),
+ * unless all their keys are equal<br>
+ * Spilling only bounds the memory of the join itself (keys and hash tables),
+ * the input tuples are owned by the caller<br>
+ * Semi-joins and anti-joins only need to know whether a left tuple has some match,
+ * so they can be matched with only the first matching right tuple of each left tuple
+ * </p>
+ */
+class HashJoin {
+
+    /**
+     * Minimum number of tuples (left plus right) to use more than one thread
+     */
+    static final int PARALLEL_THRESHOLD = 4096;
+
+    /**
+     * Maximum number of partitions the keys are spilled to in a single pass (bounds the files open at once)
+     */
+    static final int MAX_SPILL_PARTITIONS = 256;
+
+    /**
+     * Maximum number of times a partition is partitioned again
+     */
+    private static final int MAX_SPILL_LEVELS = 4;
+
+    /**
+     * Minimum number of keys of the right tuples computed in a parallel round (under a memory budget)
+     */
+    static final int MIN_ROUND = 1024;
+
+    /**
+     * Estimated heap footprint of an entry of a hash table, in bytes
+     */
+    private static final long ENTRY_BYTES = 48;
+
+    /**
+     * Maximum degree of parallelism
+     */
+    private final int parallelism;
+
+    /**
+     * Maximum estimated footprint of the keys of the right tuples kept in memory, in bytes
+     */
+    private final long memoryBudget;
+
+    /**
+     * Flag to only find the first matching right tuple of each left tuple
+     */
+    private final boolean firstMatch;
+
+    /**
+     * Number of bytes written to the partition files (0 if the join did not spill)
+     */
+    private long spilledBytes;
+
+    /**
+     * Number of partitions spilled and built (0 if the join did not spill)
+     */
+    private int spilledPartitions;
+
+    /**
+     * Largest estimated footprint of the keys of the right tuples of a partition built (0 if the join did not spill)
+     */
+    private long spilledFootprint;
+
+    /**
+     * Constructor - Initializes the join
+     *
+     * @param parallelism  Maximum degree of parallelism (number of parallel tasks and partitions)
+     * @param memoryBudget Maximum estimated footprint of the keys of the right tuples kept in memory, in bytes
+     */
+    HashJoin(int parallelism, long memoryBudget) {
+        this(parallelism, memoryBudget, false);
+    }
+
+    /**
+     * Constructor - Initializes the join
+     *
+     * @param parallelism  Maximum degree of parallelism (number of parallel tasks and partitions)
+     * @param memoryBudget Maximum estimated footprint of the keys of the right tuples kept in memory, in bytes
+     * @param firstMatch   Flag to only find the first matching right tuple of each left tuple
+     */
+    HashJoin(int parallelism, long memoryBudget, boolean firstMatch) {
+        this.parallelism = Math.max(1, parallelism);
+        this.memoryBudget = memoryBudget;
+        this.firstMatch = firstMatch;
+        this.spilledBytes = 0;
+        this.spilledPartitions = 0;
+        this.spilledFootprint = 0;
+    }
+
+    /**
+     * Returns the number of bytes written to the partition files by the last join
+     *
+     * @return Number of bytes spilled (0 if the join did not spill)
+     */
+    long getSpilledBytes() {
+        return spilledBytes;
+    }
+
+    /**
+     * Returns the number of partitions spilled and built by the last join (partitions partitioned again
+     * count as their own partitions)
+     *
+     * @return Number of partitions spilled (0 if the join did not spill)
+     */
+    int getSpilledPartitions() {
+        return spilledPartitions;
+    }
+
+    /**
+     * Returns the largest estimated footprint of the keys of the right tuples of a partition built by the last join
+     *
+     * @return Estimated footprint, in bytes (0 if the join did not spill)
+     */
+    long getSpilledFootprint() {
+        return spilledFootprint;
+    }
+
+    /**
+     * Joins two lists of tuples
+     *
+     * @param left      Left tuples
+     * @param leftTags  Tags of the left tuples the keys depend on
+     * @param right     Right tuples
+     * @param rightTags Tags of the right tuples the keys depend on
+     * @return For each left tuple, the positions of the matching right tuples in increasing order
+     * (only the first one if the join only finds the first match)
+     * @throws Exception If one of the parallel tasks fails
+     */
+    int[][] match(List<Node> left, List<TerminalNode> leftTags, List<Node> right, List<TerminalNode> rightTags)
+            throws Exception {
+        Node[] ls = left.toArray(new Node[0]);
+        Node[] rs = right.toArray(new Node[0]);
+        spilledBytes = 0;
+        spilledPartitions = 0;
+        spilledFootprint = 0;
+        int threads = (ls.length + rs.length < PARALLEL_THRESHOLD) ? 1 : parallelism;
+        ForkJoinPool pool = (threads == 1) ? null : ForkJoinPool.commonPool();
+        JoinKey[] rightKeys = new JoinKey[rs.length];
+        int computed = 0;
+        if (memoryBudget == Long.MAX_VALUE) {
+            keys(rs, rightTags, rightKeys, 0, rs.length, pool, false);
+            computed = rs.length;
+        }
+        long footprint = 0;
+        if (pool != null) {
+            // Parallel rounds of keys, while the next round is estimated to fit in half of the budget left
+            int round = Math.min(rs.length - computed, MIN_ROUND);
+            while (round > 0) {
+                footprint += keys(rs, rightTags, rightKeys, computed, computed + round, pool, true);
+                computed += round;
+                if (footprint > memoryBudget) {
+                    return grace(ls, leftTags, rs, rightTags, rightKeys, computed, footprint);
+                }
+                long fits = (memoryBudget - footprint) / (footprint / computed + 1) / 2;
+                if (fits < MIN_ROUND) {
+                    break;
+                }
+                round = (int) Math.min(rs.length - computed, Math.min(fits, 2L * round));
+            }
+        }
+        // Rest of the keys (spilling is close), computed one at a time to stop as soon as they exceed the budget
+        for (; computed < rs.length; ++computed) {
+            rightKeys[computed] = XQueryEvaluator.keyNodeTags(rs[computed], rightTags);
+            footprint += rightKeys[computed].footprint() + ENTRY_BYTES;
+            if (footprint > memoryBudget) {
+                return grace(ls, leftTags, rs, rightTags, rightKeys, computed + 1, footprint);
+            }
+        }
+        JoinKey[] leftKeys = new JoinKey[ls.length];
+        keys(ls, leftTags, leftKeys, 0, ls.length, pool, false);
+        return match(leftKeys, rightKeys, threads, pool, firstMatch);
+    }
+
+    /**
+     * Joins two lists of tuples spilling their keys to partition files (Grace hash join)
+     *
+     * @param ls        Left tuples
+     * @param leftTags  Tags of the left tuples the keys depend on
+     * @param rs        Right tuples
+     * @param rightTags Tags of the right tuples the keys depend on
+     * @param rightKeys Keys of the right tuples already computed (the rest are computed while spilling)
+     * @param computed  Number of keys of the right tuples already computed
+     * @param footprint Estimated footprint of the keys of the right tuples already computed, in bytes
+     * @return For each left tuple, the positions of the matching right tuples in increasing order
+     * @throws Exception If the partition files cannot be written or read
+     */
+    private int[][] grace(Node[] ls, List<TerminalNode> leftTags, Node[] rs, List<TerminalNode> rightTags,
+                          JoinKey[] rightKeys, int computed, long footprint) throws Exception {
+        // The footprint of the keys not computed yet is extrapolated from the ones already computed
+        int partitions = partitions(footprint / computed * rs.length);
+        File[] rightFiles = new File[partitions];
+        File[] leftFiles = new File[partitions];
+        long[] footprints = new long[partitions];
+        // Keys are read as nodes of scratch documents (one per partition built)
+        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        try {
+            // Right tuples (free the keys already computed as soon as they are written)
+            DataOutputStream[] outs = open(rightFiles);
+            try {
+                for (int i = 0; i < rs.length; ++i) {
+                    JoinKey key = (i < computed) ? rightKeys[i] : XQueryEvaluator.keyNodeTags(rs[i], rightTags);
+                    rightKeys[i] = null;
+                    int p = partition(key, partitions);
+                    footprints[p] += key.footprint() + ENTRY_BYTES;
+                    write(outs[p], i, key);
+                }
+            } finally {
+                close(outs);
+            }
+            // Left tuples
+            outs = open(leftFiles);
+            try {
+                for (int i = 0; i < ls.length; ++i) {
+                    JoinKey key = XQueryEvaluator.keyNodeTags(ls[i], leftTags);
+                    write(outs[partition(key, partitions)], i, key);
+                }
+            } finally {
+                close(outs);
+            }
+            // Build and probe the partitions pairwise
+            int[][] matches = new int[ls.length][];
+            for (int p = 0; p < partitions; ++p) {
+                spilledBytes += rightFiles[p].length() + leftFiles[p].length();
+                join(rightFiles[p], leftFiles[p], footprints[p], 1, builder, matches);
+                delete(rightFiles[p]);
+                delete(leftFiles[p]);
+                rightFiles[p] = null;
+                leftFiles[p] = null;
+            }
+            return matches;
+        } finally {
+            for (File f : rightFiles) {
+                delete(f);
+            }
+            for (File f : leftFiles) {
+                delete(f);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of partitions for a given footprint, so that each one is estimated to fit in half
+     * of the budget
+     *
+     * @param footprint Estimated footprint of the keys of the right tuples, in bytes
+     * @return Number of partitions, in [2, MAX_SPILL_PARTITIONS]
+     */
+    private int partitions(long footprint) {
+        long partitions = (2 * footprint + memoryBudget - 1) / Math.max(1, memoryBudget);
+        return (int) Math.max(2, Math.min(MAX_SPILL_PARTITIONS, partitions));
+    }
+
+    /**
+     * Joins a spilled partition: builds and probes it if it fits in the budget,
+     * or partitions it again otherwise
+     *
+     * @param right     Partition file of the right tuples
+     * @param left      Partition file of the left tuples
+     * @param footprint Estimated footprint of the keys of the right tuples of the partition, in bytes
+     * @param level     Number of times the tuples of the partition have been partitioned
+     * @param builder   Builder of the scratch documents the keys are read into
+     * @param matches   For each left tuple, the positions of the matching right tuples (filled in)
+     * @throws Exception If the partition files cannot be written or read
+     */
+    private void join(File right, File left, long footprint, int level, DocumentBuilder builder, int[][] matches)
+            throws Exception {
+        if ((footprint > memoryBudget) && (level <= MAX_SPILL_LEVELS)) {
+            int partitions = partitions(footprint);
+            File[] rightFiles = new File[partitions];
+            File[] leftFiles = new File[partitions];
+            long[] footprints = new long[partitions];
+            try {
+                Document scratch = builder.newDocument();
+                split(right, rightFiles, footprints, level, scratch);
+                split(left, leftFiles, null, level, scratch);
+                // Equal keys always end up in the same partition, so partitioning them again is pointless
+                boolean split = true;
+                for (long f : footprints) {
+                    split &= (f < footprint);
+                }
+                if (split) {
+                    for (int p = 0; p < partitions; ++p) {
+                        spilledBytes += rightFiles[p].length() + leftFiles[p].length();
+                        join(rightFiles[p], leftFiles[p], footprints[p], level + 1, builder, matches);
+                    }
+                    return;
+                }
+            } finally {
+                for (File f : rightFiles) {
+                    delete(f);
+                }
+                for (File f : leftFiles) {
+                    delete(f);
+                }
+            }
+        }
+        Document scratch = builder.newDocument();
+        List<Integer> rightPositions = new ArrayList<>();
+        List<JoinKey> rightKeys = new ArrayList<>();
+        read(right, scratch, rightPositions, rightKeys);
+        List<Integer> leftPositions = new ArrayList<>();
+        List<JoinKey> leftKeys = new ArrayList<>();
+        read(left, scratch, leftPositions, leftKeys);
+        probe(leftKeys.toArray(new JoinKey[0]), toArray(leftPositions),
+                rightKeys.toArray(new JoinKey[0]), toArray(rightPositions), matches, firstMatch);
+        ++spilledPartitions;
+        spilledFootprint = Math.max(spilledFootprint, footprint);
+    }
+
+    /**
+     * Partitions a partition file again, reading and writing one key at a time
+     *
+     * @param f          Partition file
+     * @param files      Array filled with the new partition files
+     * @param footprints Estimated footprint of the keys of each new partition (null to not estimate it)
+     * @param level      Number of times the keys of the file have been partitioned
+     * @param doc        Document that owns the nodes of the keys
+     * @throws Exception If the files cannot be written or read
+     */
+    private static void split(File f, File[] files, long[] footprints, int level, Document doc) throws Exception {
+        DataOutputStream[] outs = open(files);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            while (true) {
+                int i;
+                try {
+                    i = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                JoinKey key = JoinKey.read(in, doc);
+                int p = partition(key, files.length, level);
+                if (footprints != null) {
+                    footprints[p] += key.footprint() + ENTRY_BYTES;
+                }
+                write(outs[p], i, key);
+            }
+        } finally {
+            close(outs);
+        }
+    }
+
+    /**
+     * Converts a list of positions into an array
+     *
+     * @param positions List of positions
+     * @return Array with the positions, in the same order
+     */
+    private static int[] toArray(List<Integer> positions) {
+        int[] array = new int[positions.size()];
+        int i = 0;
+        for (int position : positions) {
+            array[i++] = position;
+        }
+        return array;
+    }
+
+    /**
+     * Creates a temporary partition file for each slot of an array, and opens them for writing
+     *
+     * @param files Array filled with the partition files
+     * @return Outputs to the partition files
+     * @throws Exception If a file cannot be created
+     */
+    private static DataOutputStream[] open(File[] files) throws Exception {
+        DataOutputStream[] outs = new DataOutputStream[files.length];
+        for (int p = 0; p < files.length; ++p) {
+            files[p] = File.createTempFile("join-", ".part");
+            files[p].deleteOnExit();
+            outs[p] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[p])));
+        }
+        return outs;
+    }
+
+    /**
+     * Closes the outputs to a set of partition files
+     *
+     * @param outs Outputs to the partition files
+     * @throws Exception If an output cannot be flushed
+     */
+    private static void close(DataOutputStream[] outs) throws Exception {
+        for (DataOutputStream out : outs) {
+            out.close();
+        }
+    }
+
+    /**
+     * Deletes a partition file, if it was created
+     *
+     * @param f Partition file (may be null)
+     */
+    private static void delete(File f) {
+        if ((f != null) && (!f.delete())) {
+            f.deleteOnExit();
+        }
+    }
+
+    /**
+     * Writes the key of a tuple to a partition file
+     *
+     * @param out Output to the partition file
+     * @param i   Position of the tuple
+     * @param key Key of the tuple
+     * @throws Exception If the key cannot be written
+     */
+    private static void write(DataOutputStream out, int i, JoinKey key) throws Exception {
+        out.writeInt(i);
+        key.write(out);
+    }
+
+    /**
+     * Reads all the keys of a partition file, in the order they were written
+     *
+     * @param f         Partition file
+     * @param doc       Document that owns the nodes of the keys
+     * @param positions List the positions of the tuples are appended to
+     * @param keys      List the keys of the tuples are appended to
+     * @throws Exception If the file cannot be read
+     */
+    private static void read(File f, Document doc, List<Integer> positions, List<JoinKey> keys) throws Exception {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+            while (true) {
+                int i;
+                try {
+                    i = in.readInt();
+                } catch (EOFException e) {
+                    return;
+                }
+                positions.add(i);
+                keys.add(JoinKey.read(in, doc));
+            }
+        }
+    }
+
+    /**
+     * Computes the keys of a range of tuples, in parallel chunks
+     *
+     * @param tuples  Tuples
+     * @param tags    Tags the keys depend on
+     * @param keys    Keys of the tuples (the range is filled in)
+     * @param from    First position of the range (inclusive)
+     * @param to      Last position of the range (exclusive)
+     * @param pool    Pool that runs the chunks (null to compute the keys in the current thread)
+     * @param measure Flag to estimate the footprint of the keys (as entries of a hash table)
+     * @return Estimated footprint of the keys of the range, in bytes (0 if they are not measured)
+     * @throws Exception If one of the tasks fails
+     */
+    private long keys(Node[] tuples, List<TerminalNode> tags, JoinKey[] keys, int from, int to, ForkJoinPool pool,
+                      boolean measure) throws Exception {
+        int chunks = (pool == null) ? 1 : parallelism;
+        int chunk = Math.max(1, (to - from + chunks - 1) / chunks);
+        // Every task writes a disjoint range of keys
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (int start = from; start < to; start += chunk) {
+            int first = start;
+            int last = Math.min(to, start + chunk);
+            tasks.add(() -> {
+                long footprint = 0;
+                for (int i = first; i < last; ++i) {
+                    keys[i] = XQueryEvaluator.keyNodeTags(tuples[i], tags);
+                    if (measure) {
+                        footprint += keys[i].footprint() + ENTRY_BYTES;
+                    }
+                }
+                return footprint;
+            });
+        }
+        long footprint = 0;
+        if (pool == null) {
+            for (Callable<Long> task : tasks) {
+                footprint += task.call();
+            }
+        } else {
+            for (long part : results(pool.invokeAll(tasks))) {
+                footprint += part;
+            }
+        }
+        return footprint;
+    }
+
+    /**
+     * Partitions the keys, and builds and probes every partition
+     *
+     * @param leftKeys   Keys of the left tuples
+     * @param rightKeys  Keys of the right tuples
+     * @param partitions Number of partitions
+     * @param pool       Pool that runs the partitions (null to run them in the current thread)
+     * @param firstMatch Flag to only find the first matching right tuple of each left tuple
+     * @return For each left tuple, the positions of the matching right tuples in increasing order
+     * @throws Exception If one of the tasks fails
+     */
+    private static int[][] match(JoinKey[] leftKeys, JoinKey[] rightKeys, int partitions, ForkJoinPool pool,
+                                 boolean firstMatch) throws Exception {
+        int[][] leftParts = partition(leftKeys, partitions);
+        int[][] rightParts = partition(rightKeys, partitions);
+        int[][] matches = new int[leftKeys.length][];
+        // Every left tuple belongs to a single partition, so tasks write disjoint positions of matches
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int p = 0; p < partitions; ++p) {
+            int[] ls = leftParts[p];
+            int[] rs = rightParts[p];
+            tasks.add(() -> {
+                probe(select(leftKeys, ls), ls, select(rightKeys, rs), rs, matches, firstMatch);
+                return null;
+            });
+        }
+        if (pool == null) {
+            for (Callable<Void> task : tasks) {
+                task.call();
+            }
+        } else {
+            results(pool.invokeAll(tasks));
+        }
+        return matches;
+    }
+
+    /**
+     * Partitions the positions of a list of keys by their hash
+     *
+     * @param keys       Keys
+     * @param partitions Number of partitions
+     * @return Positions of the keys of each partition, in increasing order
+     */
+    static int[][] partition(JoinKey[] keys, int partitions) {
+        int[] sizes = new int[partitions];
+        int[] part = new int[keys.length];
+        for (int i = 0; i < keys.length; ++i) {
+            part[i] = partition(keys[i], partitions);
+            ++sizes[part[i]];
+        }
+        int[][] parts = new int[partitions][];
+        for (int p = 0; p < partitions; ++p) {
+            parts[p] = new int[sizes[p]];
+        }
+        Arrays.fill(sizes, 0);
+        for (int i = 0; i < keys.length; ++i) {
+            parts[part[i]][sizes[part[i]]++] = i;
+        }
+        return parts;
+    }
+
+    /**
+     * Returns the partition of a key
+     *
+     * @param key        Key
+     * @param partitions Number of partitions
+     * @return Partition of the key, in [0, partitions)
+     */
+    static int partition(JoinKey key, int partitions) {
+        // Spread the high bits, as HashMap does, so that partitions and buckets do not depend on the same bits
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return Math.floorMod(h * 0x9E3779B9, partitions);
+    }
+
+    /**
+     * Returns the partition of a key when a partition is partitioned again
+     *
+     * @param key        Key
+     * @param partitions Number of partitions
+     * @param level      Number of times the key has been partitioned
+     * @return Partition of the key, in [0, partitions), independent of the partitions of the previous levels
+     */
+    static int partition(JoinKey key, int partitions, int level) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h = Integer.rotateLeft(h * 0x9E3779B9, 11 * level) * 0x85EBCA6B;
+        h ^= (h >>> 13);
+        return Math.floorMod(h, partitions);
+    }
+
+    /**
+     * Selects the keys of a partition
+     *
+     * @param keys      Keys of all the tuples
+     * @param positions Positions of the tuples of the partition
+     * @return Keys of the tuples of the partition, in the same order as their positions
+     */
+    private static JoinKey[] select(JoinKey[] keys, int[] positions) {
+        JoinKey[] selected = new JoinKey[positions.length];
+        for (int i = 0; i < positions.length; ++i) {
+            selected[i] = keys[positions[i]];
+        }
+        return selected;
+    }
+
+    /**
+     * Builds the hash table of a partition of the right tuples and probes it with a partition of the left tuples
+     *
+     * @param leftKeys   Keys of the left tuples of the partition
+     * @param ls         Positions of the left tuples of the partition, in increasing order
+     * @param rightKeys  Keys of the right tuples of the partition
+     * @param rs         Positions of the right tuples of the partition, in increasing order
+     * @param matches    For each left tuple, the positions of the matching right tuples (filled in)
+     * @param firstMatch Flag to only find the first matching right tuple of each left tuple
+     */
+    static void probe(JoinKey[] leftKeys, int[] ls, JoinKey[] rightKeys, int[] rs, int[][] matches,
+                      boolean firstMatch) {
+        // Positions of the right tuples of each key (the first slot keeps the number of positions)
+        HashMap<JoinKey, int[]> table = new HashMap<>();
+        for (int i = 0; i < rs.length; ++i) {
+            int[] ps = table.get(rightKeys[i]);
+            if (ps == null) {
+                ps = new int[2];
+                table.put(rightKeys[i], ps);
+            } else if (firstMatch) {
+                continue;
+            } else if (ps[0] + 1 == ps.length) {
+                ps = Arrays.copyOf(ps, ps.length * 2);
+                table.put(rightKeys[i], ps);
+            }
+            ps[++ps[0]] = rs[i];
+        }
+        int[] none = new int[0];
+        for (int i = 0; i < ls.length; ++i) {
+            int[] ps = table.get(leftKeys[i]);
+            matches[ls[i]] = (ps == null) ? none : Arrays.copyOfRange(ps, 1, ps[0] + 1);
+        }
+    }
+
+    /**
+     * Waits for the results of a list of tasks
+     *
+     * @param futures Futures of the tasks
+     * @param <T>     Type of the results
+     * @return Results of the tasks, in order
+     * @throws Exception The exception of the first task that failed
+     */
+    private static <T> List<T> results(List<Future<T>> futures) throws Exception {
+        List<T> results = new ArrayList<>(futures.size());
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+            }
+        }
+        return results;
+    }
+}
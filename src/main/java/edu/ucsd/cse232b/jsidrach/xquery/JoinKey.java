@@ -0,0 +1,294 @@
+package edu.ucsd.cse232b.jsidrach.xquery;
+
+import edu.ucsd.cse232b.jsidrach.xpath.XPathEvaluator;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JoinKey - Key of a tuple in a join, made of the values of some of its children
+ * <p>
+ * The key is compared structurally (as with the eq operator, see Node.isEqualNode) instead of by its serialization<br>
+ * The hash code is computed once from the structure of the nodes, consistently with isEqualNode,
+ * so different keys are only compared node by node when their hashes collide<br>
+ * Keys can be written to a compact binary form (names, values, attributes and children of the nodes)
+ * and read back as nodes of another document, with the same hash code and equality
+ * </p>
+ */
+public class JoinKey {
+
+    /**
+     * Values of the key (nodes of each of the children the key depends on)
+     */
+    private final Node[][] values;
+
+    /**
+     * Precomputed hash code
+     */
+    private final int hash;
+
+    /**
+     * Estimated heap footprint of the key object and its arrays, in bytes
+     */
+    private static final long KEY_BYTES = 64;
+
+    /**
+     * Estimated heap footprint of a node, in bytes (plus two bytes per character of its name and value)
+     */
+    private static final long NODE_BYTES = 72;
+
+    /**
+     * Constructor - Initializes the key
+     *
+     * @param values Values of the key, in order (nodes of each of the children the key depends on)
+     */
+    public JoinKey(List<List<Node>> values) {
+        this.values = new Node[values.size()][];
+        int hash = 1;
+        for (int i = 0; i < this.values.length; ++i) {
+            this.values[i] = values.get(i).toArray(new Node[0]);
+            int h = 1;
+            for (Node n : this.values[i]) {
+                h = 31 * h + XPathEvaluator.hash(n);
+            }
+            hash = 31 * hash + h;
+        }
+        this.hash = hash;
+    }
+
+    /**
+     * Estimates the heap footprint of the key, including the nodes of its values
+     *
+     * @return Estimated footprint of the key, in bytes
+     */
+    public long footprint() {
+        long bytes = KEY_BYTES;
+        for (Node[] value : values) {
+            bytes += 8L * value.length;
+            for (Node n : value) {
+                bytes += footprint(n);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Estimates the heap footprint of a node and its attributes and descendants
+     *
+     * @param n Node
+     * @return Estimated footprint of the node, in bytes
+     */
+    private static long footprint(Node n) {
+        long bytes = NODE_BYTES + 2L * n.getNodeName().length();
+        String value = n.getNodeValue();
+        if (value != null) {
+            bytes += 2L * value.length();
+        }
+        NamedNodeMap attributes = n.getAttributes();
+        if (attributes != null) {
+            for (int i = 0; i < attributes.getLength(); ++i) {
+                bytes += footprint(attributes.item(i));
+            }
+        }
+        if (n.getNodeType() != Node.ATTRIBUTE_NODE) {
+            for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                bytes += footprint(c);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the key in binary form
+     *
+     * @param out Output the key is written to
+     * @throws IOException If the output cannot be written, or a node cannot be written in binary form
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(values.length);
+        for (Node[] value : values) {
+            out.writeInt(value.length);
+            for (Node n : value) {
+                writeNode(out, n);
+            }
+        }
+    }
+
+    /**
+     * Writes a node and its attributes and descendants in binary form
+     *
+     * @param out Output the node is written to
+     * @param n   Node
+     * @throws IOException If the output cannot be written, or the node cannot be written in binary form
+     */
+    private static void writeNode(DataOutput out, Node n) throws IOException {
+        short type = n.getNodeType();
+        out.writeByte(type);
+        switch (type) {
+            case Node.ELEMENT_NODE: {
+                writeString(out, n.getNodeName());
+                NamedNodeMap attributes = n.getAttributes();
+                out.writeInt(attributes.getLength());
+                for (int i = 0; i < attributes.getLength(); ++i) {
+                    writeString(out, attributes.item(i).getNodeName());
+                    writeString(out, attributes.item(i).getNodeValue());
+                }
+                int children = 0;
+                for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    ++children;
+                }
+                out.writeInt(children);
+                for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    writeNode(out, c);
+                }
+                break;
+            }
+            case Node.ATTRIBUTE_NODE:
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                writeString(out, n.getNodeName());
+                writeString(out, n.getNodeValue());
+                break;
+            case Node.TEXT_NODE:
+            case Node.CDATA_SECTION_NODE:
+            case Node.COMMENT_NODE:
+                writeString(out, n.getNodeValue());
+                break;
+            default:
+                throw new IOException("Node type " + type + " cannot be written in binary form");
+        }
+    }
+
+    /**
+     * Reads a key written in binary form
+     *
+     * @param in  Input the key is read from
+     * @param doc Document that owns the nodes of the key
+     * @return Key read
+     * @throws IOException If the input cannot be read
+     */
+    public static JoinKey read(DataInput in, Document doc) throws IOException {
+        int size = in.readInt();
+        List<List<Node>> values = new ArrayList<>(size);
+        for (int i = 0; i < size; ++i) {
+            int length = in.readInt();
+            List<Node> value = new ArrayList<>(length);
+            for (int j = 0; j < length; ++j) {
+                value.add(readNode(in, doc));
+            }
+            values.add(value);
+        }
+        return new JoinKey(values);
+    }
+
+    /**
+     * Reads a node written in binary form
+     *
+     * @param in  Input the node is read from
+     * @param doc Document that owns the node
+     * @return Node read (with its attributes and descendants)
+     * @throws IOException If the input cannot be read
+     */
+    private static Node readNode(DataInput in, Document doc) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case Node.ELEMENT_NODE: {
+                Element e = doc.createElement(readString(in));
+                int attributes = in.readInt();
+                for (int i = 0; i < attributes; ++i) {
+                    e.setAttribute(readString(in), readString(in));
+                }
+                int children = in.readInt();
+                for (int i = 0; i < children; ++i) {
+                    e.appendChild(readNode(in, doc));
+                }
+                return e;
+            }
+            case Node.ATTRIBUTE_NODE: {
+                Attr a = doc.createAttribute(readString(in));
+                a.setValue(readString(in));
+                return a;
+            }
+            case Node.PROCESSING_INSTRUCTION_NODE:
+                return doc.createProcessingInstruction(readString(in), readString(in));
+            case Node.TEXT_NODE:
+                return doc.createTextNode(readString(in));
+            case Node.CDATA_SECTION_NODE:
+                return doc.createCDATASection(readString(in));
+            case Node.COMMENT_NODE:
+                return doc.createComment(readString(in));
+            default:
+                throw new IOException("Invalid node type " + type);
+        }
+    }
+
+    /**
+     * Writes a string in binary form (length and characters, strings are not limited in length)
+     *
+     * @param out Output the string is written to
+     * @param str String
+     * @throws IOException If the output cannot be written
+     */
+    private static void writeString(DataOutput out, String str) throws IOException {
+        out.writeInt(str.length());
+        out.writeChars(str);
+    }
+
+    /**
+     * Reads a string written in binary form
+     *
+     * @param in Input the string is read from
+     * @return String read
+     * @throws IOException If the input cannot be read
+     */
+    private static String readString(DataInput in) throws IOException {
+        char[] chars = new char[in.readInt()];
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = in.readChar();
+        }
+        return new String(chars);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof JoinKey)) {
+            return false;
+        }
+        JoinKey other = (JoinKey) o;
+        if ((hash != other.hash) || (values.length != other.values.length)) {
+            return false;
+        }
+        for (int i = 0; i < values.length; ++i) {
+            if (values[i].length != other.values[i].length) {
+                return false;
+            }
+            for (int j = 0; j < values[i].length; ++j) {
+                if ((values[i][j] != other.values[i][j]) && (!values[i][j].isEqualNode(other.values[i][j]))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.deepToString(values);
+    }
+}
@@ -0,0 +1,184 @@
+package edu.ucsd.cse232b.jsidrach.xquery;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PreparedQuery - XQuery query parsed once, to be executed repeatedly
+ * <p>
+ * Every execution evaluates the same parse tree with a new visitor, so a prepared query is immutable
+ * and can be executed concurrently from several threads<br>
+ * Variables not defined by the query itself (external variables) are bound on every execution
+ * to the given lists of nodes, and undefined external variables evaluate to the empty list<br>
+ * Variables bound by the query are resolved into slots of the environment once, when the query is prepared,
+ * into a side table shared by all its executions (see XQueryVariableResolver)<br>
+ * Relative paths are compiled by the first execution that evaluates them, and reused by the following ones<br>
+ * Queries are executed in two tiers: once a query has been executed a given number of times (it is hot),
+ * its relative paths are compiled again fusing their chains of child axis steps, filters and descendant steps
+ * into single steps (see FusedPath); relative paths that cannot be fused fall back to the steps of the first tier
+ * </p>
+ */
+public final class PreparedQuery {
+
+    /**
+     * Default number of executions after which a query is promoted to the hot tier
+     */
+    public static final int PROMOTION_THRESHOLD = 1000;
+
+    /**
+     * Text of the query
+     */
+    private final String query;
+
+    /**
+     * Parse tree of the query, using xq (XQuery) as root rule (only read once prepared)
+     */
+    private final ParseTree tree;
+
+    /**
+     * Slots of the variables of the query, shared by all its executions
+     */
+    private final VariableSlots slots;
+
+    /**
+     * Compiler of the relative paths of the query, shared by all its executions (replaced once promoted)
+     */
+    private volatile XQueryPathCompiler compiler;
+
+    /**
+     * Number of executions after which the query is promoted to the hot tier
+     */
+    private final long promotionThreshold;
+
+    /**
+     * Number of executions so far
+     */
+    private final AtomicLong executions;
+
+    /**
+     * Public constructor - Initializes the query, with the default promotion threshold
+     *
+     * @param query Text of the query
+     * @param tree  Parse tree of the query, using xq (XQuery) as root rule (must not be modified afterwards)
+     */
+    public PreparedQuery(String query, ParseTree tree) {
+        this(query, tree, PROMOTION_THRESHOLD);
+    }
+
+    /**
+     * Public constructor - Initializes the query
+     *
+     * @param query              Text of the query
+     * @param tree               Parse tree of the query, using xq (XQuery) as root rule
+     *                           (must not be modified afterwards)
+     * @param promotionThreshold Number of executions after which the query is promoted to the hot tier
+     *                           (Long.MAX_VALUE to never promote it)
+     */
+    public PreparedQuery(String query, ParseTree tree, long promotionThreshold) {
+        this.query = query;
+        this.tree = tree;
+        // Resolved once, before the tree is shared by the executions
+        this.slots = new XQueryVariableResolver().resolve(tree);
+        this.compiler = new XQueryPathCompiler();
+        this.promotionThreshold = promotionThreshold;
+        this.executions = new AtomicLong();
+    }
+
+    /**
+     * Returns the text of the query
+     *
+     * @return Text of the query
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    /**
+     * Checks whether the query has been promoted to the hot tier
+     *
+     * @return true if the relative paths of the query are compiled fusing their steps, false otherwise
+     */
+    public boolean isPromoted() {
+        return compiler.isFusing();
+    }
+
+    /**
+     * Creates a visitor with the external variables bound
+     *
+     * @param bindings Map from variable names (with or without the leading '$') to their values
+     * @param verbose  Flag to output log messages
+     * @return Visitor ready to evaluate the query
+     * @throws Exception Internal error
+     */
+    private XQueryVisitor visitor(Map<String, ? extends List<Node>> bindings, boolean verbose) throws Exception {
+        // External variables are bound in a single frame, and looked up by name
+        String[] names = new String[bindings.size()];
+        ArrayList<LinkedList<Node>> values = new ArrayList<>();
+        for (Map.Entry<String, ? extends List<Node>> binding : bindings.entrySet()) {
+            names[values.size()] = binding.getKey().startsWith("$") ? binding.getKey() : "$" + binding.getKey();
+            // Copied, so the caller can reuse its lists while the query is executed
+            values.add(new LinkedList<>(binding.getValue()));
+        }
+        Environment vars = Environment.EMPTY.frame(names);
+        for (int i = 0; i < names.length; ++i) {
+            vars = vars.bind(i, values.get(i));
+        }
+        // Promoted exactly once, by the execution that reaches the threshold (running executions keep their compiler)
+        if (executions.incrementAndGet() == promotionThreshold) {
+            compiler = new XQueryPathCompiler(true);
+        }
+        XQueryVisitor xQueryVisitor = new XQueryVisitor(verbose);
+        xQueryVisitor.setVariables(vars);
+        xQueryVisitor.setSlots(slots);
+        xQueryVisitor.setPathCompiler(compiler);
+        return xQueryVisitor;
+    }
+
+    /**
+     * Executes the query without external variables
+     *
+     * @param verbose Flag to output log messages
+     * @return List of result nodes
+     * @throws Exception Internal error
+     */
+    public LinkedList<Node> execute(boolean verbose) throws Exception {
+        return execute(Collections.emptyMap(), verbose);
+    }
+
+    /**
+     * Executes the query with the given external variables
+     *
+     * @param bindings Map from variable names (with or without the leading '$') to their values
+     * @param verbose  Flag to output log messages
+     * @return List of result nodes
+     * @throws Exception Internal error
+     */
+    public LinkedList<Node> execute(Map<String, ? extends List<Node>> bindings, boolean verbose) throws Exception {
+        return visitor(bindings, verbose).visit(tree);
+    }
+
+    /**
+     * Executes the query with the given external variables, returning the result nodes one at a time
+     *
+     * @param bindings Map from variable names (with or without the leading '$') to their values
+     * @param verbose  Flag to output log messages
+     * @return Iterator over the result nodes
+     * @throws Exception Internal error
+     */
+    public Iterator<Node> iterate(Map<String, ? extends List<Node>> bindings, boolean verbose) throws Exception {
+        return visitor(bindings, verbose).iterate(tree);
+    }
+
+    @Override
+    public String toString() {
+        return query;
+    }
+}
@@ -0,0 +1,92 @@
+package edu.ucsd.cse232b.jsidrach.xquery;
+
+import edu.ucsd.cse232b.jsidrach.antlr.XQueryParser;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * VariableSlots - Slots of the variables of a query in the environment, and invariant expressions of its clauses
+ * <p>
+ * Computed once by XQueryVariableResolver, as a side table keyed by the nodes of the parse tree (by identity),
+ * so the parse tree itself is never modified<br>
+ * Never modified once computed, so it can be shared by concurrent executions of the same parse tree
+ * </p>
+ */
+public final class VariableSlots {
+
+    /**
+     * Slots of a query whose variables are not resolved (all of them are looked up by name,
+     * and no expression is invariant)
+     */
+    public static final VariableSlots NONE = new VariableSlots(Collections.emptyMap(), Collections.emptySet());
+
+    /**
+     * Position of a variable in the environment (see Environment.lookup(int, int))
+     */
+    static final class Slot {
+        /**
+         * Number of frames between the frame the variable is referenced in and the frame that binds it
+         */
+        final int depth;
+
+        /**
+         * Index of the variable in the frame that binds it
+         */
+        final int index;
+
+        /**
+         * Constructor - Initializes the slot
+         *
+         * @param depth Number of frames between the frame the variable is referenced in and the frame that binds it
+         * @param index Index of the variable in the frame that binds it
+         */
+        Slot(int depth, int index) {
+            this.depth = depth;
+            this.index = index;
+        }
+    }
+
+    /**
+     * Map from the variables bound by the query to their slots
+     */
+    private final Map<ParseTree, Slot> slots;
+
+    /**
+     * Expressions of for and let clauses that do not depend on the tuples of their FLWR expression
+     */
+    private final Set<ParseTree> invariants;
+
+    /**
+     * Constructor - Initializes the slots (see XQueryVariableResolver)
+     *
+     * @param slots      Map from the variables bound by the query (by identity) to their slots
+     * @param invariants Invariant expressions of the for and let clauses (by identity)
+     */
+    VariableSlots(Map<ParseTree, Slot> slots, Set<ParseTree> invariants) {
+        this.slots = slots;
+        this.invariants = invariants;
+    }
+
+    /**
+     * Returns the slot of a variable
+     *
+     * @param ctx Variable
+     * @return Slot of the variable - null if it is not bound by the query (external variable)
+     */
+    Slot slot(XQueryParser.XqVariableContext ctx) {
+        return slots.get(ctx);
+    }
+
+    /**
+     * Checks whether the expression of a for or let clause is invariant
+     *
+     * @param xq Expression of the clause
+     * @return true if the expression does not depend on the tuples of its FLWR expression, false otherwise
+     */
+    public boolean isInvariant(XQueryParser.XqContext xq) {
+        return invariants.contains(xq);
+    }
+}
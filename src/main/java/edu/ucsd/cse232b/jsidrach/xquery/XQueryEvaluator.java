@@ -1,12 +1,12 @@
 package edu.ucsd.cse232b.jsidrach.xquery;
 
-import edu.ucsd.cse232b.jsidrach.utils.IO;
 import edu.ucsd.cse232b.jsidrach.xpath.XPathEvaluator;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import org.w3c.dom.*;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -18,6 +18,17 @@ import java.util.List;
  */
 public class XQueryEvaluator extends XPathEvaluator {
 
+    /**
+     * Document builder of each thread (builders are not thread-safe, and creating them is expensive)
+     */
+    private static final ThreadLocal<DocumentBuilder> builder = ThreadLocal.withInitial(() -> {
+        try {
+            return DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
     /**
      * Document - Used to create nodes
      */
@@ -35,9 +46,7 @@ public class XQueryEvaluator extends XPathEvaluator {
      * @throws Exception Internal error
      */
     public XQueryEvaluator(boolean verbose) throws Exception {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = dbf.newDocumentBuilder();
-        this.doc = builder.newDocument();
+        this.doc = builder.get().newDocument();
         this.verbose = verbose;
     }
 
@@ -52,24 +61,30 @@ public class XQueryEvaluator extends XPathEvaluator {
         }
     }
 
+    /**
+     * Prints an informative message to stderr if the verbose flag is set to true
+     *
+     * @param message Message to print
+     */
+    public void logInfo(String message) {
+        if (verbose) {
+            System.err.println("[Info] " + message);
+        }
+    }
+
     /**
      * Makes a new element node given a tag and a list of nodes corresponding to its children
+     * <p>
+     * The nodes are referenced instead of copied (see ConstructedNode), so constructing an element
+     * does not depend on the size of the subtrees of its children, and the element is read-only
+     * </p>
      *
      * @param tag   Tag of the new element node
-     * @param nodes List of nodes that will be appended (as a copy) as children of the new element node
+     * @param nodes List of nodes that will be presented as children (or attributes) of the new element node
      * @return New element node with the given tag and all the given nodes as its children
      */
     public Node makeElem(String tag, LinkedList<Node> nodes) {
-        Element elem = doc.createElement(tag);
-        for (Node n : nodes) {
-            Node c = doc.importNode(n, true);
-            if (c.getNodeType() == Node.ATTRIBUTE_NODE) {
-                elem.setAttributeNode((Attr) c);
-            } else {
-                elem.appendChild(c);
-            }
-        }
-        return elem;
+        return ConstructedNode.element(doc, tag, nodes);
     }
 
     /**
@@ -87,23 +102,18 @@ public class XQueryEvaluator extends XPathEvaluator {
      *
      * @param node Node to compute the key of
      * @param tags List of tags of the node the key depends on
-     * @return Key of the node
+     * @return Key of the node (the children of each child of the node with a tag in the list, in order)
      */
-    public static String keyNodeTags(Node node, List<TerminalNode> tags) {
-        String key = "";
-        NodeList nodes = node.getChildNodes();
+    public static JoinKey keyNodeTags(Node node, List<TerminalNode> tags) {
+        List<List<Node>> values = new ArrayList<>();
         for (TerminalNode tag : tags) {
-            for (int i = 0; i < nodes.getLength(); ++i) {
-                Node c = nodes.item(i);
-                if (c.getNodeName().equals(tag.getText())) {
-                    try {
-                        key += IO.NodesToString(children(c), false);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+            String name = tag.getText();
+            for (Node c = node.getFirstChild(); c != null; c = c.getNextSibling()) {
+                if (c.getNodeName().equals(name)) {
+                    values.add(children(c));
                 }
             }
         }
-        return key;
+        return new JoinKey(values);
     }
 }
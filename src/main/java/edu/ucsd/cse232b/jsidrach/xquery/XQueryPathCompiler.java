@@ -0,0 +1,373 @@
+package edu.ucsd.cse232b.jsidrach.xquery;
+
+import edu.ucsd.cse232b.jsidrach.antlr.XQueryBaseVisitor;
+import edu.ucsd.cse232b.jsidrach.antlr.XQueryParser;
+import edu.ucsd.cse232b.jsidrach.xpath.FusedPath;
+import edu.ucsd.cse232b.jsidrach.xpath.PathStep;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * XQueryPathCompiler - Compiles the relative paths and filters of the context tree generated by ANTLR4 into steps
+ * <p>
+ * Each method compiles its subtrees and returns the step that evaluates the rule (see PathStep)<br>
+ * Relative paths are compiled the first time they are evaluated, and their steps are kept by parse tree node,
+ * so a relative path evaluated repeatedly (as in the loops of a FLWR expression) is only compiled once<br>
+ * Compiled steps are immutable, so the same compiler can be shared by the visitors of concurrent executions
+ * of a query (see PreparedQuery)<br>
+ * A fusing compiler (used by the hot tier of prepared queries) compiles every chain of child axis steps,
+ * filters and descendant steps (as a/b[c]//d/text()) into a single step (see FusedPath);
+ * the rest of the relative paths (current, parent, pairs, and the chains that contain them) are compiled as usual
+ * </p>
+ */
+public class XQueryPathCompiler extends XQueryBaseVisitor<PathStep> {
+
+    /**
+     * Compiled relative paths, by parse tree node (parse tree nodes are compared by identity)
+     */
+    private final ConcurrentHashMap<ParseTree, PathStep> steps;
+
+    /**
+     * Flag to fuse the chains of steps
+     */
+    private final boolean fuse;
+
+    /**
+     * Public constructor - Initializes an empty map of compiled relative paths, without fusing steps
+     */
+    public XQueryPathCompiler() {
+        this(false);
+    }
+
+    /**
+     * Public constructor - Initializes an empty map of compiled relative paths
+     *
+     * @param fuse Flag to fuse the chains of steps into single steps
+     */
+    public XQueryPathCompiler(boolean fuse) {
+        this.steps = new ConcurrentHashMap<>();
+        this.fuse = fuse;
+    }
+
+    /**
+     * Checks whether the compiler fuses the chains of steps
+     *
+     * @return true if chains of steps are fused, false otherwise
+     */
+    public boolean isFusing() {
+        return fuse;
+    }
+
+    /**
+     * Obtains the step of a relative path, compiling it the first time
+     *
+     * @param rp Parse tree of the relative path (rp rule)
+     * @return Compiled relative path
+     */
+    public PathStep compile(XQueryParser.RpContext rp) {
+        PathStep step = steps.get(rp);
+        if (step == null) {
+            step = visit(rp);
+            steps.putIfAbsent(rp, step);
+        }
+        return step;
+    }
+
+    /**
+     * XPath - Relative path (tag)
+     * <pre>
+     * [Identifier](n)
+     *   → { c | c ← [∗](n) if tag(c) = Identifier }
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the children nodes that have the given identifier
+     */
+    @Override
+    public PathStep visitRpTag(XQueryParser.RpTagContext ctx) {
+        String tag = ctx.Identifier().getText();
+        return fuse ? FusedPath.tag(tag) : PathStep.tag(tag);
+    }
+
+    /**
+     * XPath - Relative path (wildcard)
+     * <pre>
+     * [∗](n)
+     *   → children(n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the children nodes
+     */
+    @Override
+    public PathStep visitRpWildcard(XQueryParser.RpWildcardContext ctx) {
+        return fuse ? FusedPath.wildcard() : PathStep.wildcard();
+    }
+
+    /**
+     * XPath - Relative path (current)
+     * <pre>
+     * [.](n)
+     *   → { n }
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the current list of nodes
+     */
+    @Override
+    public PathStep visitRpCurrent(XQueryParser.RpCurrentContext ctx) {
+        return PathStep.current();
+    }
+
+    /**
+     * XPath - Relative path (parent)
+     * <pre>
+     * [..](n)
+     *   → parent(n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the parent nodes
+     */
+    @Override
+    public PathStep visitRpParent(XQueryParser.RpParentContext ctx) {
+        return PathStep.parent();
+    }
+
+    /**
+     * XPath - Relative path (text)
+     * <pre>
+     * [text()](n)
+     *   → txt(n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the text nodes
+     */
+    @Override
+    public PathStep visitRpText(XQueryParser.RpTextContext ctx) {
+        return fuse ? FusedPath.text() : PathStep.text();
+    }
+
+    /**
+     * XPath - Relative path (attribute)
+     * <pre>
+     * [@Identifier](n)
+     *   → attrib(n, Identifier)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the attribute nodes that have the given attribute name
+     */
+    @Override
+    public PathStep visitRpAttribute(XQueryParser.RpAttributeContext ctx) {
+        String attName = ctx.Identifier().getText();
+        return fuse ? FusedPath.attribute(attName) : PathStep.attribute(attName);
+    }
+
+    /**
+     * XPath - Relative path (parentheses)
+     * <pre>
+     * [(rp)](n)
+     *   → [rp](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step of the relative path inside the parentheses
+     */
+    @Override
+    public PathStep visitRpParentheses(XQueryParser.RpParenthesesContext ctx) {
+        return visit(ctx.rp());
+    }
+
+    /**
+     * XPath - Relative path (children)
+     * <pre>
+     * [rp_1/rp_2](n)
+     *   → unique({ y | x ← [rp_1](n), y ← [rp_2](x) })
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the distinct nodes obtained by the first relative path concatenated with the second one
+     */
+    @Override
+    public PathStep visitRpChildren(XQueryParser.RpChildrenContext ctx) {
+        PathStep first = visit(ctx.rp(0));
+        PathStep second = visit(ctx.rp(1));
+        if ((first instanceof FusedPath) && (second instanceof FusedPath)) {
+            return ((FusedPath) first).then((FusedPath) second);
+        }
+        return PathStep.children(first, second);
+    }
+
+    /**
+     * XPath - Relative path (all)
+     * <pre>
+     * [rp_1//rp_2](n)
+     *   → unique([rp_1/rp_2](n), [rp_1/∗//rp_2](n))
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the distinct nodes obtained by the first relative path concatenated with the second one,
+     * skipping any number of descendants
+     */
+    @Override
+    public PathStep visitRpAll(XQueryParser.RpAllContext ctx) {
+        // rp//Identifier: resolved with the tag index of the document
+        String tag = null;
+        if (ctx.rp(1) instanceof XQueryParser.RpTagContext) {
+            tag = ((XQueryParser.RpTagContext) ctx.rp(1)).Identifier().getText();
+        }
+        PathStep first = visit(ctx.rp(0));
+        if ((first instanceof FusedPath) && (tag != null)) {
+            return ((FusedPath) first).descendants(tag);
+        }
+        PathStep second = visit(ctx.rp(1));
+        if ((first instanceof FusedPath) && (second instanceof FusedPath)) {
+            return ((FusedPath) first).descendants((FusedPath) second);
+        }
+        return PathStep.all(first, second, tag);
+    }
+
+    /**
+     * XPath - Relative path (filter)
+     * <pre>
+     * [rp[f]](n)
+     *   → { x | x ← [rp](n) if [f](x) }
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the nodes of the relative path that satisfy the filter
+     */
+    @Override
+    public PathStep visitRpFilter(XQueryParser.RpFilterContext ctx) {
+        PathStep path = visit(ctx.rp());
+        if (path instanceof FusedPath) {
+            return ((FusedPath) path).filter(visit(ctx.f()));
+        }
+        return PathStep.filter(path, visit(ctx.f()));
+    }
+
+    /**
+     * XPath - Relative path (pair)
+     * <pre>
+     * [rp_1, rp_2](n)
+     *   → [rp_1](n), [rp_2](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Step returning the nodes of both relative paths
+     */
+    @Override
+    public PathStep visitRpPair(XQueryParser.RpPairContext ctx) {
+        return PathStep.pair(visit(ctx.rp(0)), visit(ctx.rp(1)));
+    }
+
+    /**
+     * XPath - Filter (relative path)
+     * <pre>
+     * [rp](n)
+     *   → [rp](n) ≠ { }
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if the relative path is not empty (the step of the relative path itself)
+     */
+    @Override
+    public PathStep visitFRelativePath(XQueryParser.FRelativePathContext ctx) {
+        return visit(ctx.rp());
+    }
+
+    /**
+     * XPath - Filter (value equality)
+     * <pre>
+     * [rp_1 = rp_2](n)
+     * [rp_1 eq rp_2](n)
+     *   → ∃ x ∈ [rp_1](n) ∃ y ∈ [rp_2](n) / x eq y
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if some node of the first relative path is equal to some node of the second one
+     */
+    @Override
+    public PathStep visitFValueEquality(XQueryParser.FValueEqualityContext ctx) {
+        return PathStep.valueEquality(visit(ctx.rp(0)), visit(ctx.rp(1)));
+    }
+
+    /**
+     * XPath - Filter (identity equality)
+     * <pre>
+     * [rp_1 == rp_2](n)
+     * [rp_1 is rp_2](n)
+     *   → ∃ x ∈ [rp_1](n) ∃ y ∈ [rp_2](n) / x is y
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if some node of the first relative path is the same as some node of the second one
+     */
+    @Override
+    public PathStep visitFIdentityEquality(XQueryParser.FIdentityEqualityContext ctx) {
+        return PathStep.identityEquality(visit(ctx.rp(0)), visit(ctx.rp(1)));
+    }
+
+    /**
+     * XPath - Filter (parentheses)
+     * <pre>
+     * [(f)](n)
+     *   → [f](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter inside the parentheses
+     */
+    @Override
+    public PathStep visitFParentheses(XQueryParser.FParenthesesContext ctx) {
+        return visit(ctx.f());
+    }
+
+    /**
+     * XPath - Filter (and)
+     * <pre>
+     * [f_1 and f_2](n)
+     *   → [f_1](n) ∧ [f_2](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if both filters are satisfied
+     */
+    @Override
+    public PathStep visitFAnd(XQueryParser.FAndContext ctx) {
+        return PathStep.and(visit(ctx.f(0)), visit(ctx.f(1)));
+    }
+
+    /**
+     * XPath - Filter (or)
+     * <pre>
+     * [f_1 or f_2](n)
+     *   → [f_1](n) ∨ [f_2](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if any of the filters is satisfied
+     */
+    @Override
+    public PathStep visitFOr(XQueryParser.FOrContext ctx) {
+        return PathStep.or(visit(ctx.f(0)), visit(ctx.f(1)));
+    }
+
+    /**
+     * XPath - Filter (not)
+     * <pre>
+     * [not f](n)
+     *   → ¬[f](n)
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return Filter satisfied if the filter is not satisfied
+     */
+    @Override
+    public PathStep visitFNot(XQueryParser.FNotContext ctx) {
+        return PathStep.not(visit(ctx.f()));
+    }
+}
@@ -0,0 +1,319 @@
+package edu.ucsd.cse232b.jsidrach.xquery;
+
+import edu.ucsd.cse232b.jsidrach.antlr.XQueryBaseVisitor;
+import edu.ucsd.cse232b.jsidrach.antlr.XQueryParser;
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * XQueryVariableResolver - Resolves the variables of a query into slots of the environment, before executing it
+ * <p>
+ * Every expression that binds variables (FLWR, let and some) extends the environment with exactly one frame,
+ * with its variables in the order of the query, so the number of frames between a variable and the frame
+ * that binds it, and its index in that frame, are known from the query alone:
+ * they are the slot of the variable (see Environment.lookup(int, int))<br>
+ * Variables not bound by the query (external variables) are left unresolved (slot -1),
+ * and are looked up by name when the query is executed<br>
+ * The expressions of for and let clauses that do not depend on the previous clauses of their FLWR expression
+ * are marked as invariant, so they are evaluated once per evaluation of the expression instead of once per tuple
+ * (see FLWROperator): an expression depends on a clause if it references its variable, and let clause variables
+ * bound to invariant expressions do not make the expressions that reference them depend on the clause<br>
+ * Expressions that construct nodes (tags, joins, group joins and ranks) are never invariant,
+ * as every tuple gets its own nodes<br>
+ * The slots and the invariant expressions are returned as a side table of the parse tree (see VariableSlots),
+ * which is never modified, so the same tree can be resolved and executed concurrently
+ * </p>
+ */
+public class XQueryVariableResolver extends XQueryBaseVisitor<Void> {
+
+    /**
+     * Names of the variables bound at the current point of the query, innermost last
+     */
+    private final ArrayList<String> scope;
+
+    /**
+     * Positions (in the scope) of the first variable of every frame of the current point of the query, innermost last
+     */
+    private final ArrayList<Integer> frames;
+
+    /**
+     * Map from the variables bound by the query to their slots
+     */
+    private Map<ParseTree, VariableSlots.Slot> slots;
+
+    /**
+     * Invariant expressions of the for and let clauses
+     */
+    private Set<ParseTree> invariants;
+
+    /**
+     * Positions (in the scope) of the variables whose values change from one tuple of their FLWR expression to another
+     */
+    private final BitSet variant;
+
+    /**
+     * Positions (in the scope) of the variables referenced by the expression being visited
+     */
+    private BitSet referenced;
+
+    /**
+     * Flag set if the expression being visited constructs nodes
+     */
+    private boolean constructs;
+
+    /**
+     * Position (in the scope) of the first variable of the innermost FLWR expression being visited
+     */
+    private int base;
+
+    /**
+     * Public constructor - Initializes the scope
+     */
+    public XQueryVariableResolver() {
+        this.scope = new ArrayList<>();
+        this.frames = new ArrayList<>();
+        this.variant = new BitSet();
+        this.referenced = new BitSet();
+        this.constructs = false;
+        this.base = 0;
+    }
+
+    /**
+     * Resolves the variables of a query
+     *
+     * @param tree Parse tree of the query, using xq (XQuery) as root rule
+     * @return Slots of the variables and invariant expressions of the query
+     */
+    public VariableSlots resolve(ParseTree tree) {
+        scope.clear();
+        frames.clear();
+        variant.clear();
+        referenced.clear();
+        constructs = false;
+        base = 0;
+        slots = new IdentityHashMap<>();
+        invariants = Collections.newSetFromMap(new IdentityHashMap<>());
+        visit(tree);
+        return new VariableSlots(slots, invariants);
+    }
+
+    /**
+     * Opens the frame of an expression that binds variables
+     */
+    private void open() {
+        frames.add(scope.size());
+    }
+
+    /**
+     * Closes the innermost frame, unbinding its variables
+     */
+    private void close() {
+        int start = frames.remove(frames.size() - 1);
+        while (scope.size() > start) {
+            scope.remove(scope.size() - 1);
+        }
+    }
+
+    /**
+     * Binds a variable at the current point of the query
+     *
+     * @param name      Name of the variable
+     * @param isVariant Flag set if the value of the variable changes from one tuple to another
+     */
+    private void bind(String name, boolean isVariant) {
+        variant.set(scope.size(), isVariant);
+        scope.add(name);
+    }
+
+    /**
+     * Visits the expression of a for or let clause, marking it as invariant
+     * if it does not depend on the previous clauses of the innermost FLWR expression
+     *
+     * @param xq Expression of the clause
+     * @return true if the expression is invariant, false otherwise
+     */
+    private boolean visitClause(XQueryParser.XqContext xq) {
+        BitSet outerReferenced = referenced;
+        boolean outerConstructs = constructs;
+        referenced = new BitSet();
+        constructs = false;
+        visit(xq);
+        // Variables bound inside the expression are after the end of the scope, so they are not dependencies
+        BitSet dependencies = referenced.get(base, scope.size());
+        dependencies.and(variant.get(base, scope.size()));
+        boolean invariant = dependencies.isEmpty() && !constructs;
+        if (invariant) {
+            invariants.add(xq);
+        }
+        referenced.or(outerReferenced);
+        constructs |= outerConstructs;
+        return invariant;
+    }
+
+    /**
+     * XQuery (variable)
+     *
+     * @param ctx Current parse tree context
+     * @return null
+     */
+    @Override
+    public Void visitXqVariable(XQueryParser.XqVariableContext ctx) {
+        String name = ctx.Variable().getText();
+        for (int i = scope.size() - 1; i >= 0; --i) {
+            if (scope.get(i).equals(name)) {
+                // Frame of the variable, counted from the innermost one
+                int frame = frames.size() - 1;
+                while (frames.get(frame) > i) {
+                    --frame;
+                }
+                slots.put(ctx, new VariableSlots.Slot(frames.size() - 1 - frame, i - frames.get(frame)));
+                referenced.set(i);
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * XQuery (let)
+     *
+     * @param ctx Current parse tree context
+     * @return null
+     */
+    @Override
+    public Void visitXqLet(XQueryParser.XqLetContext ctx) {
+        open();
+        visit(ctx.letClause());
+        visit(ctx.xq());
+        close();
+        return null;
+    }
+
+    /**
+     * XQuery (for let while return - FLWR)
+     *
+     * @param ctx Current parse tree context
+     * @return null
+     */
+    @Override
+    public Void visitXqFLWR(XQueryParser.XqFLWRContext ctx) {
+        int outerBase = base;
+        base = scope.size();
+        open();
+        visit(ctx.forClause());
+        if (ctx.letClause() != null) {
+            visit(ctx.letClause());
+        }
+        if (ctx.whereClause() != null) {
+            visit(ctx.whereClause());
+        }
+        visit(ctx.returnClause());
+        close();
+        base = outerBase;
+        return null;
+    }
+
+    /**
+     * XQuery - FLWR (for) - binds its variables, left bound for the rest of the expression
+     *
+     * @param ctx Current parse tree context
+     * @return null
+     */
+    @Override
+    public Void visitForClause(XQueryParser.ForClauseContext ctx) {
+        int numVars = ctx.Variable().size();
+        for (int i = 0; i < numVars; ++i) {
+            visitClause(ctx.xq(i));
+            bind(ctx.Variable(i).getText(), true);
+        }
+        return null;
+    }
+
+    /**
+     * XQuery - FLWR (let) - binds its variables, left bound for the rest of the expression
+     *
+     * @param ctx Current parse tree context
+     * @return null
+     */
+    @Override
+    public Void visitLetClause(XQueryParser.LetClauseContext ctx) {
+        int numVars = ctx.Variable().size();
+        for (int i = 0; i < numVars; ++i) {
+            bind(ctx.Variable(i).getText(), !visitClause(ctx.xq(i)));
+        }
+        return null;
+    }
+
+    /**
+     * XQuery - Condition (some)
+     *
+     * @param ctx Current parse tree context
+     * @return null
+     */
+    @Override
+    public Void visitCondSome(XQueryParser.CondSomeContext ctx) {
+        open();
+        int numVars = ctx.Variable().size();
+        for (int i = 0; i < numVars; ++i) {
+            visit(ctx.xq(i));
+            bind(ctx.Variable(i).getText(), true);
+        }
+        visit(ctx.cond());
+        close();
+        return null;
+    }
+
+    /**
+     * XQuery (tag)
+     *
+     * @param ctx Current parse tree context
+     * @return null
+     */
+    @Override
+    public Void visitXqTag(XQueryParser.XqTagContext ctx) {
+        constructs = true;
+        return visitChildren(ctx);
+    }
+
+    /**
+     * XQuery - Join
+     *
+     * @param ctx Current parse tree context
+     * @return null
+     */
+    @Override
+    public Void visitXqJoin(XQueryParser.XqJoinContext ctx) {
+        constructs = true;
+        return visitChildren(ctx);
+    }
+
+    /**
+     * XQuery - Group join
+     *
+     * @param ctx Current parse tree context
+     * @return null
+     */
+    @Override
+    public Void visitXqGroupJoin(XQueryParser.XqGroupJoinContext ctx) {
+        constructs = true;
+        return visitChildren(ctx);
+    }
+
+    /**
+     * XQuery - Rank
+     *
+     * @param ctx Current parse tree context
+     * @return null
+     */
+    @Override
+    public Void visitXqRank(XQueryParser.XqRankContext ctx) {
+        constructs = true;
+        return visitChildren(ctx);
+    }
+}
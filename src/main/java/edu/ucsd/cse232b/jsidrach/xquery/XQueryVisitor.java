@@ -2,10 +2,12 @@ package edu.ucsd.cse232b.jsidrach.xquery;
 
 import edu.ucsd.cse232b.jsidrach.antlr.XQueryBaseVisitor;
 import edu.ucsd.cse232b.jsidrach.antlr.XQueryParser;
+import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import org.w3c.dom.Node;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -15,14 +17,20 @@ import java.util.List;
  * The traversal of the context tree has to be done manually, recursively calling visit(ctx)<br>
  * Initially, the root of the grammar is invoked<br>
  * Each method modifies the current list of nodes (nodes) and returns it<br>
+ * Relative paths are compiled into steps once (see XQueryPathCompiler) and evaluated from the current list of nodes
  * </p>
  */
 public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
 
     /**
-     * Current map of variables
+     * Current variables (see Environment)
      */
-    private HashMap<String, LinkedList<Node>> vars;
+    private Environment vars;
+
+    /**
+     * Slots of the variables of the query (see XQueryVariableResolver)
+     */
+    private VariableSlots slots;
 
     /**
      * Current list of nodes
@@ -34,15 +42,106 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
      */
     private XQueryEvaluator xQueryEvaluator;
 
+    /**
+     * Maximum degree of parallelism of the joins
+     */
+    private int parallelism;
+
+    /**
+     * Maximum estimated footprint of the keys of the right input of each join kept in memory, in bytes
+     */
+    private long joinMemoryBudget;
+
+    /**
+     * Compiler of the relative paths
+     */
+    private XQueryPathCompiler compiler;
+
     /**
      * Public constructor - Initializes the variables
      *
      * @param verbose Flag to print log messages
      */
     public XQueryVisitor(boolean verbose) throws Exception {
-        this.vars = new HashMap<>();
+        this.vars = Environment.EMPTY;
+        this.slots = VariableSlots.NONE;
         this.xQueryEvaluator = new XQueryEvaluator(verbose);
         this.nodes = new LinkedList<>();
+        this.parallelism = Runtime.getRuntime().availableProcessors();
+        this.joinMemoryBudget = Runtime.getRuntime().maxMemory() / 4;
+        this.compiler = new XQueryPathCompiler();
+    }
+
+    /**
+     * Sets the maximum degree of parallelism of the joins of the query (see HashJoin)
+     *
+     * @param parallelism Maximum number of parallel tasks of each join (1 to run the joins in the current thread)
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Sets the memory budget of the joins of the query (see HashJoin)
+     * <p>
+     * Joins whose right input has keys with a bigger estimated footprint spill their keys to disk
+     * </p>
+     *
+     * @param joinMemoryBudget Maximum estimated footprint of the keys of the right input of each join, in bytes
+     *                         (Long.MAX_VALUE to never spill)
+     */
+    public void setJoinMemoryBudget(long joinMemoryBudget) {
+        this.joinMemoryBudget = joinMemoryBudget;
+    }
+
+    /**
+     * Sets the variables of the context the query is evaluated in (external variables)
+     *
+     * @param vars Variables of the context
+     */
+    public void setVariables(Environment vars) {
+        this.vars = vars;
+    }
+
+    /**
+     * Sets the slots of the variables of the query, resolved before executing it (see XQueryVariableResolver)
+     *
+     * @param slots Slots of the variables of the query (VariableSlots.NONE to look up every variable by name)
+     */
+    public void setSlots(VariableSlots slots) {
+        this.slots = slots;
+    }
+
+    /**
+     * Returns the slots of the variables of the query
+     *
+     * @return Slots of the variables of the query
+     */
+    VariableSlots getSlots() {
+        return slots;
+    }
+
+    /**
+     * Obtains the names of the variables bound by an expression, as the names of its frame (see Environment)
+     *
+     * @param vars Variables bound by the expression, in order
+     * @return Names of the variables (with the leading '$')
+     */
+    static String[] names(List<TerminalNode> vars) {
+        String[] names = new String[vars.size()];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = vars.get(i).getText();
+        }
+        return names;
+    }
+
+    /**
+     * Sets the compiler of the relative paths, to reuse the steps compiled by previous executions of the query
+     *
+     * @param compiler Compiler of the relative paths of the query
+     */
+    public void setPathCompiler(XQueryPathCompiler compiler) {
+        this.compiler = compiler;
     }
 
     /*
@@ -62,9 +161,12 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
      */
     @Override
     public LinkedList<Node> visitXqVariable(XQueryParser.XqVariableContext ctx) {
+        // Variables resolved into slots (see XQueryVariableResolver) are not looked up by name
         String varName = ctx.Variable().getText();
-        if (vars.containsKey(varName)) {
-            this.nodes = vars.get(varName);
+        VariableSlots.Slot slot = slots.slot(ctx);
+        LinkedList<Node> value = (slot != null) ? vars.lookup(slot.depth, slot.index) : vars.lookup(varName);
+        if (value != null) {
+            this.nodes = value;
         } else {
             xQueryEvaluator.logError("Undefined variable " + varName);
             this.nodes = new LinkedList<>();
@@ -133,7 +235,7 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
     @Override
     public LinkedList<Node> visitXqChildren(XQueryParser.XqChildrenContext ctx) {
         visit(ctx.xq());
-        this.nodes = XQueryEvaluator.unique(visit(ctx.rp()));
+        this.nodes = XQueryEvaluator.unique(compiler.compile(ctx.rp()).apply(this.nodes));
         return this.nodes;
     }
 
@@ -151,8 +253,15 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
      */
     @Override
     public LinkedList<Node> visitXqAll(XQueryParser.XqAllContext ctx) {
-        this.nodes = XQueryEvaluator.descendantsOrSelves(visit(ctx.xq()));
-        this.nodes = XQueryEvaluator.unique(visit(ctx.rp()));
+        LinkedList<Node> nodes = visit(ctx.xq());
+        // xq//Identifier: resolved with the tag index of the document
+        if (ctx.rp() instanceof XQueryParser.RpTagContext) {
+            String tag = ((XQueryParser.RpTagContext) ctx.rp()).Identifier().getText();
+            this.nodes = XQueryEvaluator.unique(XQueryEvaluator.descendantsByTag(nodes, tag));
+            return this.nodes;
+        }
+        this.nodes = XQueryEvaluator.descendantsOrSelves(nodes);
+        this.nodes = XQueryEvaluator.unique(compiler.compile(ctx.rp()).apply(this.nodes));
         return this.nodes;
     }
 
@@ -222,37 +331,226 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
         LinkedList<Node> left = visit(ctx.xq(0));
         this.nodes = original;
         LinkedList<Node> right = visit(ctx.xq(1));
-        List<TerminalNode> leftTags = ctx.tagList(0).Identifier();
-        List<TerminalNode> rightTags = ctx.tagList(1).Identifier();
-        if (leftTags.size() != rightTags.size()) {
-            xQueryEvaluator.logError("Different number of tag names");
-        }
-        // Add all right nodes to the hash
-        HashMap<String, LinkedList<Node>> eqVars = new HashMap<>();
-        for (Node r : right) {
-            // Key only depends on the values of the nodes in the tag list
-            String key = XQueryEvaluator.keyNodeTags(r, rightTags);
-            eqVars.putIfAbsent(key, new LinkedList<>());
-            eqVars.get(key).add(r);
+        int[][] matches = match(left, ctx.tagList(0), right, ctx.tagList(1), false);
+        // Join the tuples into a new node containing the children of both left and right
+        Node[] rs = right.toArray(new Node[0]);
+        int i = 0;
+        for (Node l : left) {
+            for (int r : matches[i++]) {
+                LinkedList<Node> joined = new LinkedList<>();
+                joined.addAll(XQueryEvaluator.children(l));
+                joined.addAll(XQueryEvaluator.children(rs[r]));
+                nodes.add(xQueryEvaluator.makeElem(l.getNodeName(), joined));
+            }
         }
-        // Iterate through the left nodes
+        this.nodes = nodes;
+        return this.nodes;
+    }
+
+    /**
+     * XQuery (semi-join)
+     * <pre>
+     * [semijoin(xq_1, xq_2, [tag_1, ..., tag_n], [tag_n+1, ..., tag_2n])](C)
+     *   → { x | x ← [xq_1](C) if ∃ y ∈ [xq_2](C) / x/tag_1/* = y/tag_n+1/* ∧ ... ∧ x/tag_n/* = y/tag_2n/* }
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return List of left tuples (unchanged, in order) that match some right tuple
+     */
+    @Override
+    public LinkedList<Node> visitXqSemiJoin(XQueryParser.XqSemiJoinContext ctx) {
+        LinkedList<Node> original = this.nodes;
+        LinkedList<Node> left = visit(ctx.xq(0));
+        this.nodes = original;
+        LinkedList<Node> right = visit(ctx.xq(1));
+        this.nodes = filter(left, match(left, ctx.tagList(0), right, ctx.tagList(1), true), true);
+        return this.nodes;
+    }
+
+    /**
+     * XQuery (anti-join)
+     * <pre>
+     * [antijoin(xq_1, xq_2, [tag_1, ..., tag_n], [tag_n+1, ..., tag_2n])](C)
+     *   → { x | x ← [xq_1](C) if ∄ y ∈ [xq_2](C) / x/tag_1/* = y/tag_n+1/* ∧ ... ∧ x/tag_n/* = y/tag_2n/* }
+     * </pre>
+     *
+     * @param ctx Current parse tree context
+     * @return List of left tuples (unchanged, in order) that do not match any right tuple
+     */
+    @Override
+    public LinkedList<Node> visitXqAntiJoin(XQueryParser.XqAntiJoinContext ctx) {
+        LinkedList<Node> original = this.nodes;
+        LinkedList<Node> left = visit(ctx.xq(0));
+        this.nodes = original;
+        LinkedList<Node> right = visit(ctx.xq(1));
+        this.nodes = filter(left, match(left, ctx.tagList(0), right, ctx.tagList(1), true), false);
+        return this.nodes;
+    }
+
+    /**
+     * XQuery (group join)
+     * <pre>
+     * [groupjoin(xq_1, xq_2, [tag_1, ..., tag_n], [tag_n+1, ..., tag_2n])](C)
+     *   → { x ∪ [ y | y ← [xq_2](C) if x/tag_1/* = y/tag_n+1/* ∧ ... ∧ x/tag_n/* = y/tag_2n/* ] | x ← [xq_1](C) }
+     * </pre>
+     * Every left tuple is returned (in order), with the matching right tuples (in order) appended to its children,
+     * so a nested FLWR correlated with its outer one is evaluated once, and read from the group of every outer tuple
+     *
+     * @param ctx Current parse tree context
+     * @return List of left tuples, each one grouping the right tuples it matches
+     */
+    @Override
+    public LinkedList<Node> visitXqGroupJoin(XQueryParser.XqGroupJoinContext ctx) {
+        LinkedList<Node> nodes = new LinkedList<>();
+        LinkedList<Node> original = this.nodes;
+        LinkedList<Node> left = visit(ctx.xq(0));
+        this.nodes = original;
+        LinkedList<Node> right = visit(ctx.xq(1));
+        int[][] matches = match(left, ctx.tagList(0), right, ctx.tagList(1), false);
+        Node[] rs = right.toArray(new Node[0]);
+        int i = 0;
         for (Node l : left) {
-            String key = XQueryEvaluator.keyNodeTags(l, leftTags);
-            // Join the tuples into a new node containing the children of both left and right
-            if (eqVars.containsKey(key)) {
-                LinkedList<Node> rs = eqVars.get(key);
-                for (Node r : rs) {
-                    LinkedList<Node> joined = new LinkedList<>();
-                    joined.addAll(XQueryEvaluator.children(l));
-                    joined.addAll(XQueryEvaluator.children(r));
-                    nodes.add(xQueryEvaluator.makeElem(l.getNodeName(), joined));
+            LinkedList<Node> grouped = new LinkedList<>();
+            grouped.addAll(XQueryEvaluator.children(l));
+            for (int r : matches[i++]) {
+                grouped.add(rs[r]);
+            }
+            nodes.add(xQueryEvaluator.makeElem(l.getNodeName(), grouped));
+        }
+        this.nodes = nodes;
+        return this.nodes;
+    }
+
+    /**
+     * XQuery (rank)
+     * <pre>
+     * [rank(xq, tag)](C)
+     *   → { x ∪ { makeElem(tag, { makeText(i) }) } | x ← [xq](C), i is the position of x in [xq](C) }
+     * </pre>
+     * Every tuple is returned (in order), with its position (starting at 1) appended to its children,
+     * so the order of the tuples can be restored after they are joined in a different order (see sort)
+     *
+     * @param ctx Current parse tree context
+     * @return List of tuples, each one with its position
+     */
+    @Override
+    public LinkedList<Node> visitXqRank(XQueryParser.XqRankContext ctx) {
+        LinkedList<Node> nodes = new LinkedList<>();
+        String tag = ctx.Identifier().getText();
+        int position = 0;
+        for (Node t : visit(ctx.xq())) {
+            LinkedList<Node> ranked = new LinkedList<>();
+            ranked.addAll(XQueryEvaluator.children(t));
+            ranked.add(xQueryEvaluator.makeElem(tag,
+                    XQueryEvaluator.singleton(xQueryEvaluator.makeText(Integer.toString(++position)))));
+            nodes.add(xQueryEvaluator.makeElem(t.getNodeName(), ranked));
+        }
+        this.nodes = nodes;
+        return this.nodes;
+    }
+
+    /**
+     * XQuery (sort)
+     * <pre>
+     * [sort(xq, [tag_1, ..., tag_n])](C)
+     *   → [xq](C) ordered by (x/tag_1/text(), ..., x/tag_n/text()) as numbers, x ← [xq](C)
+     * </pre>
+     * Tuples are ordered by the positions given by rank, the first tag being the most significant,
+     * and tuples with the same positions keep their order
+     *
+     * @param ctx Current parse tree context
+     * @return List of tuples, ordered by their positions
+     */
+    @Override
+    public LinkedList<Node> visitXqSort(XQueryParser.XqSortContext ctx) {
+        List<TerminalNode> tags = ctx.tagList().Identifier();
+        LinkedList<Node> tuples = visit(ctx.xq());
+        Node[] ts = tuples.toArray(new Node[0]);
+        long[][] positions = new long[ts.length][tags.size()];
+        Integer[] order = new Integer[ts.length];
+        for (int i = 0; i < ts.length; ++i) {
+            order[i] = i;
+            for (Node c : XQueryEvaluator.children(ts[i])) {
+                for (int k = 0; k < tags.size(); ++k) {
+                    if (c.getNodeName().equals(tags.get(k).getText())) {
+                        positions[i][k] = Long.parseLong(c.getTextContent().trim());
+                    }
+                }
+            }
+        }
+        // Stable, so tuples with the same positions keep their order
+        Arrays.sort(order, (a, b) -> {
+            for (int k = 0; k < tags.size(); ++k) {
+                int c = Long.compare(positions[a][k], positions[b][k]);
+                if (c != 0) {
+                    return c;
                 }
             }
+            return 0;
+        });
+        LinkedList<Node> nodes = new LinkedList<>();
+        for (int i : order) {
+            nodes.add(ts[i]);
         }
         this.nodes = nodes;
         return this.nodes;
     }
 
+    /**
+     * Matches the tuples of a join (or semi-join, anti-join, or group join) with a partitioned hash join (see HashJoin)
+     * <p>
+     * The right tuples are always hashed, so the left tuples keep their order
+     * </p>
+     *
+     * @param left         Left tuples
+     * @param leftTagList  Tags of the left tuples the join depends on
+     * @param right        Right tuples
+     * @param rightTagList Tags of the right tuples the join depends on
+     * @param firstMatch   Flag to only find the first matching right tuple of each left tuple
+     * @return For each left tuple, the positions of the matching right tuples in increasing order
+     * @throws IllegalStateException If the join fails (the query fails, instead of returning a partial result)
+     */
+    private int[][] match(LinkedList<Node> left, XQueryParser.TagListContext leftTagList,
+                          LinkedList<Node> right, XQueryParser.TagListContext rightTagList, boolean firstMatch) {
+        List<TerminalNode> leftTags = leftTagList.Identifier();
+        List<TerminalNode> rightTags = rightTagList.Identifier();
+        if (leftTags.size() != rightTags.size()) {
+            xQueryEvaluator.logError("Different number of tag names");
+        }
+        // Match the tuples with a partitioned hash join (possibly in parallel)
+        HashJoin hashJoin = new HashJoin(parallelism, joinMemoryBudget, firstMatch);
+        int[][] matches;
+        try {
+            matches = hashJoin.match(left, leftTags, right, rightTags);
+        } catch (Exception e) {
+            throw new IllegalStateException("Join failed", e);
+        }
+        if (hashJoin.getSpilledPartitions() > 0) {
+            xQueryEvaluator.logInfo("Join spilled " + hashJoin.getSpilledBytes() + " bytes to "
+                    + hashJoin.getSpilledPartitions() + " partitions");
+        }
+        return matches;
+    }
+
+    /**
+     * Filters the left tuples of a semi-join or anti-join
+     *
+     * @param left    Left tuples
+     * @param matches For each left tuple, the positions of the matching right tuples
+     * @param matched Flag to keep the tuples with matches (semi-join) instead of the ones without (anti-join)
+     * @return List of the kept tuples, in order
+     */
+    private static LinkedList<Node> filter(LinkedList<Node> left, int[][] matches, boolean matched) {
+        LinkedList<Node> nodes = new LinkedList<>();
+        int i = 0;
+        for (Node l : left) {
+            if ((matches[i++].length > 0) == matched) {
+                nodes.add(l);
+            }
+        }
+        return nodes;
+    }
+
     /**
      * XQuery (let)
      * <pre>
@@ -267,7 +565,8 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
      */
     @Override
     public LinkedList<Node> visitXqLet(XQueryParser.XqLetContext ctx) {
-        HashMap<String, LinkedList<Node>> vars = new HashMap<>(this.vars);
+        Environment vars = this.vars;
+        this.vars = this.vars.frame(names(ctx.letClause().Variable()));
         visit(ctx.letClause());
         visit(ctx.xq());
         this.vars = vars;
@@ -285,6 +584,7 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
      *   where C_0 := C, C_i := { Var_i → [xq_i](C_i-1) } ∪ C_i-1, i ∈ [1, ..., n]
      *     and C_j := { Var_j → [xq_j](C_j-1) } ∪ C_j-1, j ∈ [n+1, ..., n+k]
      * </pre>
+     * Evaluated by a pipeline of operators (see FLWROperator)
      *
      * @param ctx Current parse tree context
      * @return List of nodes returned by the FLWR expression
@@ -292,48 +592,78 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
     @Override
     public LinkedList<Node> visitXqFLWR(XQueryParser.XqFLWRContext ctx) {
         LinkedList<Node> nodes = new LinkedList<>();
-        HashMap<String, LinkedList<Node>> vars = new HashMap<>(this.vars);
-        iterateFLWR(ctx, 0, nodes);
-        this.vars = vars;
+        Iterator<Node> it = FLWROperator.pipeline(this, ctx, this.vars);
+        while (it.hasNext()) {
+            nodes.add(it.next());
+        }
         this.nodes = nodes;
         return this.nodes;
     }
 
     /*
-     * XQuery - For Let Where Return (FLWR)
+     * XQuery - Pipelined evaluation
      */
 
     /**
-     * Iterates over a FLWR expression, storing the result in the parameter nodes
+     * Evaluates a query, returning its result nodes one at a time
+     * <p>
+     * FLWR expressions (possibly inside parentheses) are evaluated lazily, as their nodes are requested,
+     * so the first nodes are available before the whole expression is evaluated<br>
+     * Other expressions are evaluated when this method is called
+     * </p>
      *
-     * @param ctx    Current parse tree context
-     * @param varNum Number of the variable of the forClause the function is currently iterating over
-     * @param nodes  Accumulative list of nodes returned by the return clause
+     * @param tree Parse tree of the query
+     * @return Iterator over the result nodes of the query
      */
-    private void iterateFLWR(XQueryParser.XqFLWRContext ctx, int varNum, LinkedList<Node> nodes) {
-        // Iteration over for clause finished
-        // One node selected for each variable
-        if (varNum == ctx.forClause().Variable().size()) {
-            HashMap<String, LinkedList<Node>> vars = new HashMap<>(this.vars);
-            if (ctx.letClause() != null) {
-                visit(ctx.letClause());
-            }
-            // Add return nodes if the where clause evaluates to true
-            if ((ctx.whereClause() == null) || (!visit(ctx.whereClause()).isEmpty())) {
-                nodes.addAll(visit(ctx.returnClause()));
-            }
-            this.vars = vars;
+    public Iterator<Node> iterate(ParseTree tree) {
+        return iterate(tree, this.vars);
+    }
+
+    /**
+     * Evaluates a query in a given context, returning its result nodes one at a time
+     *
+     * @param tree Parse tree of the query
+     * @param vars Variables of the context
+     * @return Iterator over the result nodes of the query
+     */
+    Iterator<Node> iterate(ParseTree tree, Environment vars) {
+        while (tree instanceof XQueryParser.XqParenthesesContext) {
+            tree = ((XQueryParser.XqParenthesesContext) tree).xq();
         }
-        // Still iterating through for clause variables
-        // Select one node for each variable
-        else {
-            String varName = ctx.forClause().Variable(varNum).getText();
-            LinkedList<Node> var = visit(ctx.forClause().xq(varNum));
-            for (Node n : var) {
-                vars.put(varName, XQueryEvaluator.singleton(n));
-                iterateFLWR(ctx, varNum + 1, nodes);
-            }
+        if (tree instanceof XQueryParser.XqFLWRContext) {
+            return FLWROperator.pipeline(this, (XQueryParser.XqFLWRContext) tree, vars);
         }
+        return evaluate(tree, vars).iterator();
+    }
+
+    /**
+     * Evaluates a query in a given context
+     *
+     * @param tree Parse tree of the query
+     * @param vars Variables of the context
+     * @return List of nodes returned by the query
+     */
+    LinkedList<Node> evaluate(ParseTree tree, Environment vars) {
+        return evaluate(tree, vars, this.nodes);
+    }
+
+    /**
+     * Evaluates a query or condition in a given context, restoring the current variables and nodes afterwards
+     *
+     * @param tree  Parse tree of the query or condition
+     * @param vars  Variables of the context
+     * @param nodes Current list of nodes (returned by conditions that are satisfied)
+     * @return List of nodes returned by the query or condition
+     */
+    LinkedList<Node> evaluate(ParseTree tree, Environment vars, LinkedList<Node> nodes) {
+        Environment originalVars = this.vars;
+        LinkedList<Node> originalNodes = this.nodes;
+        this.vars = vars;
+        this.nodes = nodes;
+        LinkedList<Node> result = visit(tree);
+        this.vars = originalVars;
+        this.nodes = originalNodes;
+        return result;
     }
 
     /**
@@ -365,13 +695,10 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
      */
     @Override
     public LinkedList<Node> visitLetClause(XQueryParser.LetClauseContext ctx) {
+        // Bound in the frame of the let expression (see visitXqLet)
         int numVars = ctx.Variable().size();
         for (int i = 0; i < numVars; ++i) {
-            String varName = ctx.Variable(i).getText();
-            HashMap<String, LinkedList<Node>> vars = new HashMap<>(this.vars);
-            LinkedList<Node> xquery = visit(ctx.xq(i));
-            this.vars = vars;
-            this.vars.put(varName, xquery);
+            this.vars = this.vars.bind(i, visit(ctx.xq(i)));
         }
         // Return null to raise an exception if caller tries to use the result of visiting the let clause
         return null;
@@ -522,13 +849,12 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
      */
     @Override
     public LinkedList<Node> visitCondSome(XQueryParser.CondSomeContext ctx) {
-        HashMap<String, LinkedList<Node>> vars = new HashMap<>(this.vars);
+        Environment vars = this.vars;
         LinkedList<Node> nodes = this.nodes;
+        this.vars = this.vars.frame(names(ctx.Variable()));
         int numVars = ctx.Variable().size();
         for (int i = 0; i < numVars; ++i) {
-            String varName = ctx.Variable(i).getText();
-            LinkedList<Node> xquery = visit(ctx.xq(i));
-            this.vars.put(varName, xquery);
+            this.vars = this.vars.bind(i, visit(ctx.xq(i)));
         }
         LinkedList<Node> cond = visit(ctx.cond());
         this.vars = vars;
@@ -629,7 +955,7 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
     @Override
     public LinkedList<Node> visitApChildren(XQueryParser.ApChildrenContext ctx) {
         visit(ctx.doc());
-        this.nodes = XQueryEvaluator.unique(visit(ctx.rp()));
+        this.nodes = XQueryEvaluator.unique(compiler.compile(ctx.rp()).apply(this.nodes));
         return this.nodes;
     }
 
@@ -645,8 +971,15 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
      */
     @Override
     public LinkedList<Node> visitApAll(XQueryParser.ApAllContext ctx) {
-        this.nodes = XQueryEvaluator.descendantsOrSelves(visit(ctx.doc()));
-        this.nodes = XQueryEvaluator.unique(visit(ctx.rp()));
+        LinkedList<Node> doc = visit(ctx.doc());
+        // doc(FileName)//Identifier: resolved with the tag index of the document
+        if (ctx.rp() instanceof XQueryParser.RpTagContext) {
+            String tag = ((XQueryParser.RpTagContext) ctx.rp()).Identifier().getText();
+            this.nodes = XQueryEvaluator.unique(XQueryEvaluator.descendantsByTag(doc, tag));
+            return this.nodes;
+        }
+        this.nodes = XQueryEvaluator.descendantsOrSelves(doc);
+        this.nodes = XQueryEvaluator.unique(compiler.compile(ctx.rp()).apply(this.nodes));
         return this.nodes;
     }
 
@@ -665,381 +998,4 @@ public class XQueryVisitor extends XQueryBaseVisitor<LinkedList<Node>> {
         this.nodes = XQueryEvaluator.root(ctx.StringConstant().getText());
         return this.nodes;
     }
-
-    /*
-     * XPath - Relative Path
-     */
-
-    /**
-     * XPath - Relative path (tag)
-     * <pre>
-     * [Identifier](n)
-     *   → { c | c ← [∗](n) if tag(c) = Identifier }
-     * </pre>
-     *
-     * @param ctx Current parse tree context
-     * @return List of children nodes that have the given identifier
-     */
-    @Override
-    public LinkedList<Node> visitRpTag(XQueryParser.RpTagContext ctx) {
-        LinkedList<Node> nodes = new LinkedList<>();
-        String tag = ctx.Identifier().getText();
-        for (Node n : this.nodes) {
-            LinkedList<Node> children = XQueryEvaluator.children(n);
-            for (Node c : children) {
-                if (XQueryEvaluator.tag(c).equals(tag)) {
-                    nodes.add(c);
-                }
-            }
-        }
-        this.nodes = nodes;
-        return this.nodes;
-    }
-
-    /**
-     * XPath - Relative path (wildcard)
-     * <pre>
-     * [∗](n)
-     *   → children(n)
-     * </pre>
-     *
-     * @param ctx Current parse tree context
-     * @return List of children nodes
-     */
-    @Override
-    public LinkedList<Node> visitRpWildcard(XQueryParser.RpWildcardContext ctx) {
-        LinkedList<Node> nodes = new LinkedList<>();
-        for (Node n : this.nodes) {
-            nodes.addAll(XQueryEvaluator.children(n));
-        }
-        this.nodes = nodes;
-        return this.nodes;
-    }
-
-    /**
-     * XPath - Relative path (current)
-     * <pre>
-     * [.](n)
-     *   → { n }
-     * </pre>
-     *
-     * @param ctx Current parse tree context
-     * @return Current list of nodes
-     */
-    @Override
-    public LinkedList<Node> visitRpCurrent(XQueryParser.RpCurrentContext ctx) {
-        return this.nodes;
-    }
-
-    /**
-     * XPath - Relative path (parent)
-     * <pre>
-     * [..](n)
-     *   → parent(n)
-     * </pre>
-     *
-     * @param ctx Current parse tree context
-     * @return List of parent nodes
-     */
-    @Override
-    public LinkedList<Node> visitRpParent(XQueryParser.RpParentContext ctx) {
-        LinkedList<Node> nodes = new LinkedList<>();
-        for (Node n : this.nodes) {
-            nodes.addAll(XQueryEvaluator.parent(n));
-        }
-        this.nodes = nodes;
-        return this.nodes;
-    }
-
-    /**
-     * XPath - Relative path (text)
-     * <pre>
-     * [text()](n)
-     *   → txt(n)
-     * </pre>
-     *
-     * @param ctx Current parse tree context
-     * @return List of text nodes
-     */
-    @Override
-    public LinkedList<Node> visitRpText(XQueryParser.RpTextContext ctx) {
-        LinkedList<Node> nodes = new LinkedList<>();
-        for (Node n : this.nodes) {
-            nodes.addAll(XQueryEvaluator.txt(n));
-        }
-        this.nodes = nodes;
-        return this.nodes;
-    }
-
-    /**
-     * XPath - Relative path (attribute)
-     * <pre>
-     * [@Identifier](n)
-     *   → attrib(n, Identifier)
-     * </pre>
-     *
-     * @param ctx Current parse tree context
-     * @return List of attribute nodes that have the given attribute name
-     */
-    @Override
-    public LinkedList<Node> visitRpAttribute(XQueryParser.RpAttributeContext ctx) {
-        LinkedList<Node> nodes = new LinkedList<>();
-        String attId = ctx.Identifier().getText();
-        for (Node n : this.nodes) {
-            nodes.addAll(XQueryEvaluator.attrib(n, attId));
-        }
-        this.nodes = nodes;
-        return this.nodes;
-    }
-
-    /**
-     * XPath - Relative path (parentheses)
-     * <pre>
-     * [(rp)](n)
-     *   → [rp](n)
-     * </pre>
-     *
-     * @param ctx Current parse tree context
-     * @return List of nodes returned by the relative path inside the parentheses
-     */
-    @Override
-    public LinkedList<Node> visitRpParentheses(XQueryParser.RpParenthesesContext ctx) {
-        return visit(ctx.rp());
-    }
-
-    /**
-     * XPath - Relative path (children)
-     * <pre>
-     * [rp_1/rp_2](n)
-     *   → unique({ y | x ← [rp_1](n), y ← [rp_2](x) })
-     * </pre>
-     *
-     * @param ctx Current parse tree context
-     * @return List of distinct nodes obtained by the first relative path concatenated with the second relative path
-     */
-    @Override
-    public LinkedList<Node> visitRpChildren(XQueryParser.RpChildrenContext ctx) {
-        visit(ctx.rp(0));
-        this.nodes = XQueryEvaluator.unique(visit(ctx.rp(1)));
-        return this.nodes;
-    }
-
-    /**
-     * XPath - Relative path (all)
-     * <pre>
-     * [rp_1//rp_2](n)
-     *   → unique([rp_1/rp_2](n), [rp_1/∗//rp_2](n))
-     * </pre>
-     *
-     * @param ctx Current parse tree context
-     * @return List of distinct nodes obtained by the first relative path concatenated with the second relative path,
-     * union the list of nodes obtained by the first relative path concatenated with the second relative path,
-     * skipping any number of descendants
-     */
-    @Override
-    public LinkedList<Node> visitRpAll(XQueryParser.RpAllContext ctx) {
-        this.nodes = XQueryEvaluator.descendantsOrSelves(visit(ctx.rp(0)));
-        this.nodes = XQueryEvaluator.unique(visit(ctx.rp(1)));
-        return this.nodes;
-    }
-
-    /**
-     * XPath - Relative path (filter)
-     * <pre>
-     * [rp[f]](n)
-     *   → { x | x ← [rp](n) if [f](x) }
-     * </pre>
-     *
-     * @param ctx Current parse tree context
-     * @return List of nodes by preserving only the relative paths that satisfy the filter
-     */
-    @Override
-    public LinkedList<Node> visitRpFilter(XQueryParser.RpFilterContext ctx) {
-        LinkedList<Node> nodes = new LinkedList<>();
-        LinkedList<Node> rp = visit(ctx.rp());
-        for (Node n : rp) {
-            this.nodes = XQueryEvaluator.singleton(n);
-            if (!visit(ctx.f()).isEmpty()) {
-                nodes.add(n);
-            }
-
-        }
-        this.nodes = nodes;
-        return this.nodes;
-    }
-
-    /**
-     * XPath - Relative path (pair)
-     * <pre>
-     * [rp_1, rp_2](n)
-     *   → [rp_1](n), [rp_2](n)
-     * </pre>
-     *
-     * @param ctx Current parse tree context
-     * @return List of nodes resulting of the union of the lists of nodes produced by both relative paths
-     */
-    @Override
-    public LinkedList<Node> visitRpPair(XQueryParser.RpPairContext ctx) {
-        LinkedList<Node> nodes = new LinkedList<>();
-        LinkedList<Node> original = this.nodes;
-        nodes.addAll(visit(ctx.rp(0)));
-        this.nodes = original;
-        nodes.addAll(visit(ctx.rp(1)));
-        this.nodes = nodes;
-        return this.nodes;
-    }
-
-    /*
-     * XPath - Filter
-     */
-
-    /**
-     * XPath - Filter (relative path)
-     * <pre>
-     * [rp](n)
-     *   → [rp](n) ≠ { }
-     * </pre>
-     * Note: filter functions should not change the current list of nodes
-     *
-     * @param ctx Current parse tree context
-     * @return Current list of nodes if the relative path is not empty
-     * - an empty list otherwise
-     */
-    @Override
-    public LinkedList<Node> visitFRelativePath(XQueryParser.FRelativePathContext ctx) {
-        LinkedList<Node> nodes = this.nodes;
-        LinkedList<Node> filter = visit(ctx.rp());
-        this.nodes = nodes;
-        return filter;
-    }
-
-    /**
-     * XPath - Filter (value equality)
-     * <pre>
-     * [rp_1 = rp_2](n)
-     * [rp_1 eq rp_2](n)
-     *   → ∃ x ∈ [rp_1](n) ∃ y ∈ [rp_2](n) / x eq y
-     * </pre>
-     * Note: filter functions should not change the current list of nodes
-     *
-     * @param ctx Current parse tree context
-     * @return Current list of nodes if there exists some x in the first relative path
-     * and some y in the second relative path that are equal
-     * - an empty list otherwise
-     */
-    @Override
-    public LinkedList<Node> visitFValueEquality(XQueryParser.FValueEqualityContext ctx) {
-        LinkedList<Node> nodes = this.nodes;
-        LinkedList<Node> l = visit(ctx.rp(0));
-        this.nodes = nodes;
-        LinkedList<Node> r = visit(ctx.rp(1));
-        this.nodes = nodes;
-        if (XQueryEvaluator.existsEqual(l, r)) {
-            return this.nodes;
-        }
-        return new LinkedList<>();
-    }
-
-    /**
-     * XPath - Filter (identity equality)
-     * <pre>
-     * [rp_1 == rp_2](n)
-     * [rp_1 is rp_2](n)
-     *   → ∃ x ∈ [rp_1](n) ∃ y ∈ [rp_2](n) / x is y
-     * </pre>
-     * Note: filter functions should not change the current list of nodes
-     *
-     * @param ctx Current parse tree context
-     * @return Current list of nodes if there exists some x in the first relative path
-     * and some y in the second relative path that reference the same node
-     * - an empty list otherwise
-     */
-    @Override
-    public LinkedList<Node> visitFIdentityEquality(XQueryParser.FIdentityEqualityContext ctx) {
-        LinkedList<Node> nodes = this.nodes;
-        LinkedList<Node> l = visit(ctx.rp(0));
-        this.nodes = nodes;
-        LinkedList<Node> r = visit(ctx.rp(1));
-        this.nodes = nodes;
-        if (XQueryEvaluator.existsSame(l, r)) {
-            return this.nodes;
-        }
-        return new LinkedList<>();
-    }
-
-    /**
-     * XPath - Filter (parentheses)
-     * <pre>
-     * [(f)](n)
-     *   → [f](n)
-     * </pre>
-     * Note: filter functions should not change the current list of nodes
-     *
-     * @param ctx Current parse tree context
-     * @return List of nodes returned by the filter inside the parentheses
-     */
-    @Override
-    public LinkedList<Node> visitFParentheses(XQueryParser.FParenthesesContext ctx) {
-        return visit(ctx.f());
-    }
-
-    /**
-     * XPath - Filter (and)
-     * <pre>
-     * [f_1 and f_2](n)
-     *   → [f_1](n) ∧ [f_2](n)
-     * </pre>
-     * Note: filter functions should not change the current list of nodes
-     *
-     * @param ctx Current parse tree context
-     * @return Current list of nodes if both of the filters evaluate to true
-     * - an empty list otherwise
-     */
-    @Override
-    public LinkedList<Node> visitFAnd(XQueryParser.FAndContext ctx) {
-        if ((visit(ctx.f(0)).isEmpty()) || (visit(ctx.f(1)).isEmpty())) {
-            return new LinkedList<>();
-        }
-        return this.nodes;
-    }
-
-    /**
-     * XPath - Filter (or)
-     * <pre>
-     * [f_1 or f_2](n)
-     *   → [f_1](n) ∨ [f_2](n)
-     * </pre>
-     * Note: filter functions should not change the current list of nodes
-     *
-     * @param ctx Current parse tree context
-     * @return Current list of nodes if any of the filters evaluates to true
-     * - an empty list otherwise
-     */
-    @Override
-    public LinkedList<Node> visitFOr(XQueryParser.FOrContext ctx) {
-        if ((visit(ctx.f(0)).isEmpty()) && (visit(ctx.f(1)).isEmpty())) {
-            return new LinkedList<>();
-        }
-        return this.nodes;
-    }
-
-    /**
-     * XPath - Filter (not)
-     * <pre>
-     * [not f](n)
-     *   → ¬[f](n)
-     * </pre>
-     * Note: filter functions should not change the current list of nodes
-     *
-     * @param ctx Current parse tree context
-     * @return Current list of nodes if the filter evaluates to false
-     * - an empty list otherwise
-     */
-    @Override
-    public LinkedList<Node> visitFNot(XQueryParser.FNotContext ctx) {
-        if (visit(ctx.f()).isEmpty()) {
-            return this.nodes;
-        }
-        return new LinkedList<>();
-    }
 }
@@ -0,0 +1,417 @@
+package edu.ucsd.cse232b.jsidrach.xquery.optimizer;
+
+import java.util.LinkedList;
+
+/**
+ * JoinPlanner - Chooses the order in which the subqueries of a FLWR expression are joined
+ * <p>
+ * The subqueries are the nodes of a join graph, weighted by their estimated cardinalities,
+ * and every value equality between two of them is an edge, weighted by its estimated selectivity<br>
+ * A join of two sets of subqueries without any edge between them is a Cartesian product<br>
+ * The plan is the (possibly bushy) join tree that first minimizes the number of Cartesian products
+ * (so only the ones between the connected components of the graph are planned),
+ * and then the sum of the estimated cardinalities of its intermediate results,
+ * by dynamic programming over the subsets of subqueries (over the intervals of a greedy connected order
+ * when there are too many subqueries to enumerate their subsets)<br>
+ * Joins return the tuples of their left input in order, each followed by its matches in the right input in order,
+ * so a tree over the subqueries in their original order returns the tuples in the order of the original FLWR,
+ * and is preferred among equally good trees; otherwise the order has to be restored (see Plan.isOrdered)
+ * </p>
+ */
+class JoinPlanner {
+
+    /**
+     * Maximum number of subqueries whose subsets are enumerated (3^n splits)
+     */
+    static final int MAX_ENUMERATED = 12;
+
+    /**
+     * Join tree
+     */
+    static class Plan {
+        /**
+         * Index of the subquery (leaf) - -1 if the plan is a join
+         */
+        final int subquery;
+
+        /**
+         * Left input of the join (null if the plan is a leaf)
+         */
+        final Plan left;
+
+        /**
+         * Right input of the join (null if the plan is a leaf)
+         */
+        final Plan right;
+
+        /**
+         * Constructor - Initializes a leaf
+         *
+         * @param subquery Index of the subquery
+         */
+        Plan(int subquery) {
+            this.subquery = subquery;
+            this.left = null;
+            this.right = null;
+        }
+
+        /**
+         * Constructor - Initializes a join
+         *
+         * @param left  Left input of the join
+         * @param right Right input of the join
+         */
+        Plan(Plan left, Plan right) {
+            this.subquery = -1;
+            this.left = left;
+            this.right = right;
+        }
+
+        /**
+         * Checks whether the plan is a single subquery
+         *
+         * @return true if the plan is a leaf, false if it is a join
+         */
+        boolean isLeaf() {
+            return subquery >= 0;
+        }
+
+        /**
+         * Obtains the subqueries of the plan, in the order their tuples are joined
+         *
+         * @return Indexes of the subqueries of the plan, from left to right
+         */
+        LinkedList<Integer> subqueries() {
+            LinkedList<Integer> subqueries = new LinkedList<>();
+            if (isLeaf()) {
+                subqueries.add(subquery);
+            } else {
+                subqueries.addAll(left.subqueries());
+                subqueries.addAll(right.subqueries());
+            }
+            return subqueries;
+        }
+
+        /**
+         * Checks whether the plan joins the subqueries in their original order
+         *
+         * @return true if the plan returns the tuples in the order of the original FLWR, false otherwise
+         */
+        boolean isOrdered() {
+            int previous = -1;
+            for (int s : subqueries()) {
+                if (s < previous) {
+                    return false;
+                }
+                previous = s;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return isLeaf() ? Integer.toString(subquery) : "(" + left + " ⋈ " + right + ")";
+        }
+    }
+
+    /**
+     * Estimated cardinalities of the subqueries
+     */
+    private final double[] cardinalities;
+
+    /**
+     * Estimated selectivities of the joins between every two subqueries (1 if there is no edge between them)
+     */
+    private final double[][] selectivities;
+
+    /**
+     * Adjacency matrix of the join graph
+     */
+    private final boolean[][] edges;
+
+    /**
+     * Constructor - Initializes a join graph without edges
+     *
+     * @param cardinalities Estimated cardinalities of the subqueries, in their original order
+     */
+    JoinPlanner(double[] cardinalities) {
+        int n = cardinalities.length;
+        this.cardinalities = cardinalities.clone();
+        this.selectivities = new double[n][n];
+        this.edges = new boolean[n][n];
+        for (int i = 0; i < n; ++i) {
+            for (int j = 0; j < n; ++j) {
+                selectivities[i][j] = 1;
+            }
+        }
+    }
+
+    /**
+     * Adds an edge (a value equality) between two different subqueries
+     * <p>
+     * Several edges between the same subqueries are assumed independent, so their selectivities are multiplied
+     * </p>
+     *
+     * @param a           Index of the first subquery
+     * @param b           Index of the second subquery
+     * @param selectivity Estimated fraction of the pairs of tuples that satisfy the equality
+     */
+    void connect(int a, int b, double selectivity) {
+        edges[a][b] = true;
+        edges[b][a] = true;
+        selectivities[a][b] *= selectivity;
+        selectivities[b][a] *= selectivity;
+    }
+
+    /**
+     * Best join tree of a set of subqueries
+     */
+    private static class Tree {
+        /**
+         * Join tree
+         */
+        Plan plan;
+
+        /**
+         * Number of Cartesian products of the tree
+         */
+        int cartesians;
+
+        /**
+         * Sum of the estimated cardinalities of the intermediate results of the tree
+         */
+        double cost;
+
+        /**
+         * Flag set if the tree joins its subqueries in their original order
+         */
+        boolean ordered;
+
+        /**
+         * Checks whether the tree is better than another one
+         *
+         * @param other Other tree (null if there is none yet)
+         * @return true if the tree has fewer Cartesian products, or as many and smaller intermediate results,
+         * or the same ones and keeps the original order while the other one does not, false otherwise
+         */
+        boolean isBetterThan(Tree other) {
+            if ((other == null) || (cartesians != other.cartesians)) {
+                return (other == null) || (cartesians < other.cartesians);
+            }
+            if (cost != other.cost) {
+                return cost < other.cost;
+            }
+            return ordered && !other.ordered;
+        }
+    }
+
+    /**
+     * Chooses the join tree of the subqueries
+     *
+     * @return Join tree with the fewest Cartesian products (one less than the connected components of the join graph)
+     * and the smallest estimated intermediate results
+     */
+    Plan plan() {
+        int n = cardinalities.length;
+        if (n <= MAX_ENUMERATED) {
+            return plan((1 << n) - 1);
+        }
+        return plan(connectedOrder()).plan;
+    }
+
+    /**
+     * Chooses the best join tree of the subqueries, by dynamic programming over all their subsets
+     * <p>
+     * The best tree of a set is the best join of the best trees of two complementary subsets,
+     * and every split of a set is enumerated once, with its first subquery on the left
+     * </p>
+     *
+     * @param all Set of all the subqueries (bit i set for the subquery i)
+     * @return Best join tree over the subqueries, in any order
+     */
+    private Plan plan(int all) {
+        Tree[] best = new Tree[all + 1];
+        double[] cardinality = new double[all + 1];
+        for (int set = 1; set <= all; ++set) {
+            int first = Integer.numberOfTrailingZeros(set);
+            int rest = set & (set - 1);
+            if (rest == 0) {
+                best[set] = new Tree();
+                best[set].plan = new Plan(first);
+                best[set].ordered = true;
+                cardinality[set] = cardinalities[first];
+                continue;
+            }
+            // The cardinality of a set of subqueries does not depend on the order they are joined in
+            cardinality[set] = cardinality[rest] * cardinalities[first];
+            for (int other = rest; other != 0; other &= other - 1) {
+                cardinality[set] *= selectivities[first][Integer.numberOfTrailingZeros(other)];
+            }
+            for (int right = rest; right != 0; right = (right - 1) & rest) {
+                int left = set ^ right;
+                Tree l = best[left];
+                Tree r = best[right];
+                Tree current = new Tree();
+                current.cartesians = l.cartesians + r.cartesians + (connected(left, right) ? 0 : 1);
+                // Intermediate results only (the final result is the same for every tree)
+                current.cost = l.cost + r.cost
+                        + (l.plan.isLeaf() ? 0 : cardinality[left])
+                        + (r.plan.isLeaf() ? 0 : cardinality[right]);
+                current.ordered = l.ordered && r.ordered
+                        && (31 - Integer.numberOfLeadingZeros(left) < Integer.numberOfTrailingZeros(right));
+                if (current.isBetterThan(best[set])) {
+                    current.plan = new Plan(l.plan, r.plan);
+                    best[set] = current;
+                }
+            }
+        }
+        return best[all].plan;
+    }
+
+    /**
+     * Checks whether there is an edge between two disjoint sets of subqueries
+     *
+     * @param left  Left set of subqueries (bit i set for the subquery i)
+     * @param right Right set of subqueries
+     * @return true if any subquery of the left set is connected to any subquery of the right one, false otherwise
+     */
+    private boolean connected(int left, int right) {
+        for (int l = left; l != 0; l &= l - 1) {
+            int i = Integer.numberOfTrailingZeros(l);
+            for (int r = right; r != 0; r &= r - 1) {
+                if (edges[i][Integer.numberOfTrailingZeros(r)]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Chooses the best join tree over the subqueries in a given order, by dynamic programming over its intervals
+     *
+     * @param order Indexes of the subqueries, in the order their tuples are joined
+     * @return Best join tree over the subqueries in the given order
+     */
+    private Tree plan(int[] order) {
+        int n = order.length;
+        Tree[][] best = new Tree[n][n];
+        double[][] cardinality = new double[n][n];
+        for (int i = 0; i < n; ++i) {
+            best[i][i] = new Tree();
+            best[i][i].plan = new Plan(order[i]);
+            cardinality[i][i] = cardinalities[order[i]];
+        }
+        for (int length = 2; length <= n; ++length) {
+            for (int i = 0; i + length - 1 < n; ++i) {
+                int j = i + length - 1;
+                cardinality[i][j] = cardinality[i][j - 1] * cardinalities[order[j]];
+                for (int k = i; k < j; ++k) {
+                    cardinality[i][j] *= selectivities[order[k]][order[j]];
+                }
+                for (int k = i; k < j; ++k) {
+                    Tree left = best[i][k];
+                    Tree right = best[k + 1][j];
+                    Tree current = new Tree();
+                    current.cartesians = left.cartesians + right.cartesians + (connected(order, i, k, j) ? 0 : 1);
+                    current.cost = left.cost + right.cost
+                            + (left.plan.isLeaf() ? 0 : cardinality[i][k])
+                            + (right.plan.isLeaf() ? 0 : cardinality[k + 1][j]);
+                    if (current.isBetterThan(best[i][j])) {
+                        current.plan = new Plan(left.plan, right.plan);
+                        best[i][j] = current;
+                    }
+                }
+            }
+        }
+        return best[0][n - 1];
+    }
+
+    /**
+     * Checks whether there is an edge between two adjacent intervals of subqueries
+     *
+     * @param order Indexes of the subqueries, in the order their tuples are joined
+     * @param i     Start of the left interval
+     * @param k     End of the left interval (the right interval starts right after it)
+     * @param j     End of the right interval
+     * @return true if any subquery of the left interval is connected to any subquery of the right one, false otherwise
+     */
+    private boolean connected(int[] order, int i, int k, int j) {
+        for (int l = i; l <= k; ++l) {
+            for (int r = k + 1; r <= j; ++r) {
+                if (edges[order[l]][order[r]]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Orders the subqueries so that every subquery is connected to a previous one (if its component has any)
+     * <p>
+     * Components are ordered by their first subquery in the original order, and each of them starts from
+     * its subquery with the smallest estimated cardinality, then greedily adds the connected subquery that yields
+     * the smallest intermediate result
+     * </p>
+     *
+     * @return Indexes of the subqueries, in the order their tuples are joined
+     */
+    private int[] connectedOrder() {
+        int n = cardinalities.length;
+        int[] order = new int[n];
+        boolean[] placed = new boolean[n];
+        int size = 0;
+        for (int s = 0; s < n; ++s) {
+            if (placed[s]) {
+                continue;
+            }
+            // Smallest subquery of the component of s
+            LinkedList<Integer> component = new LinkedList<>();
+            boolean[] visited = new boolean[n];
+            component.add(s);
+            visited[s] = true;
+            for (int c = 0; c < component.size(); ++c) {
+                for (int v = 0; v < n; ++v) {
+                    if (edges[component.get(c)][v] && !visited[v]) {
+                        visited[v] = true;
+                        component.add(v);
+                    }
+                }
+            }
+            int start = s;
+            for (int c : component) {
+                if (cardinalities[c] < cardinalities[start]) {
+                    start = c;
+                }
+            }
+            order[size++] = start;
+            placed[start] = true;
+            double cardinality = cardinalities[start];
+            // Greedily add the connected subquery with the smallest intermediate result
+            for (int added = 1; added < component.size(); ++added) {
+                int next = -1;
+                double nextCardinality = 0;
+                for (int c : component) {
+                    if (placed[c]) {
+                        continue;
+                    }
+                    boolean connected = false;
+                    double joined = cardinality * cardinalities[c];
+                    for (int p = 0; p < size; ++p) {
+                        connected |= edges[order[p]][c];
+                        joined *= selectivities[order[p]][c];
+                    }
+                    if (connected && ((next < 0) || (joined < nextCardinality))) {
+                        next = c;
+                        nextCardinality = joined;
+                    }
+                }
+                order[size++] = next;
+                placed[next] = true;
+                cardinality = nextCardinality;
+            }
+        }
+        return order;
+    }
+}
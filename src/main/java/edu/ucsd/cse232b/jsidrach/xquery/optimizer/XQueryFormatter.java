@@ -220,17 +220,102 @@ public class XQueryFormatter extends XQuerySerializer {
      */
     @Override
     public String visitXqJoin(XQueryParser.XqJoinContext ctx) {
+        return join("join(", ctx.xq(0), ctx.xq(1), ctx.tagList(0), ctx.tagList(1));
+    }
+
+    /**
+     * XQuery (semi-join)
+     *
+     * @param ctx Current parse tree context
+     * @return Formatted string representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqSemiJoin(XQueryParser.XqSemiJoinContext ctx) {
+        return join("semijoin(", ctx.xq(0), ctx.xq(1), ctx.tagList(0), ctx.tagList(1));
+    }
+
+    /**
+     * XQuery (anti-join)
+     *
+     * @param ctx Current parse tree context
+     * @return Formatted string representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqAntiJoin(XQueryParser.XqAntiJoinContext ctx) {
+        return join("antijoin(", ctx.xq(0), ctx.xq(1), ctx.tagList(0), ctx.tagList(1));
+    }
+
+    /**
+     * XQuery (group join)
+     *
+     * @param ctx Current parse tree context
+     * @return Formatted string representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqGroupJoin(XQueryParser.XqGroupJoinContext ctx) {
+        return join("groupjoin(", ctx.xq(0), ctx.xq(1), ctx.tagList(0), ctx.tagList(1));
+    }
+
+    /**
+     * XQuery (rank)
+     *
+     * @param ctx Current parse tree context
+     * @return Formatted string representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqRank(XQueryParser.XqRankContext ctx) {
+        String q = "";
+        q += indent("rank(");
+        this.extraSpaces += "rank(".length();
+        q += visit(ctx.xq()).trim();
+        q += "," + System.lineSeparator();
+        q += line(ctx.Identifier().getText());
+        q = rTrim(q) + ")" + System.lineSeparator();
+        this.extraSpaces -= "rank(".length();
+        return q;
+    }
+
+    /**
+     * XQuery (sort)
+     *
+     * @param ctx Current parse tree context
+     * @return Formatted string representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqSort(XQueryParser.XqSortContext ctx) {
+        String q = "";
+        q += indent("sort(");
+        this.extraSpaces += "sort(".length();
+        q += visit(ctx.xq()).trim();
+        q += "," + System.lineSeparator();
+        q += visit(ctx.tagList());
+        q = rTrim(q) + ")" + System.lineSeparator();
+        this.extraSpaces -= "sort(".length();
+        return q;
+    }
+
+    /**
+     * Formats a join (or semi-join, anti-join, or group join), with each of its arguments in a line
+     *
+     * @param join      Name of the join, followed by the opening parenthesis
+     * @param left      Left sub-query
+     * @param right     Right sub-query
+     * @param leftTags  Tags of the left tuples the join depends on
+     * @param rightTags Tags of the right tuples the join depends on
+     * @return Formatted string representation of the join
+     */
+    private String join(String join, XQueryParser.XqContext left, XQueryParser.XqContext right,
+                        XQueryParser.TagListContext leftTags, XQueryParser.TagListContext rightTags) {
         String q = "";
-        String join = "join(";
         q += indent(join);
         this.extraSpaces += join.length();
-        q += visit(ctx.xq(0)).trim();
+        q += visit(left).trim();
         q += "," + System.lineSeparator();
-        q += visit(ctx.xq(1));
+        q += visit(right);
         q = rTrim(q) + "," + System.lineSeparator();
-        q += visit(ctx.tagList(0));
+        q += visit(leftTags);
         q = rTrim(q) + "," + System.lineSeparator();
-        q += visit(ctx.tagList(1));
+        q += visit(rightTags);
         q = rTrim(q) + ")" + System.lineSeparator();
         this.extraSpaces -= join.length();
         return q;
@@ -1,11 +1,19 @@
 package edu.ucsd.cse232b.jsidrach.xquery.optimizer;
 
 import edu.ucsd.cse232b.jsidrach.antlr.XQueryParser;
+import edu.ucsd.cse232b.jsidrach.xpath.DocumentStatistics;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
 
+import java.io.File;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
  * XQueryOptimizer - optimizes xquery queries by rewriting FLWR as joins whenever possible
@@ -21,30 +29,78 @@ import java.util.LinkedList;
  * <pre>
  * XQuery
  *   → 'for' v_1 'in' path_1, ..., v_n 'in' path_n
+ *     ('let' v_n+1 ':=' let_n+1, ..., v_n+k ':=' let_n+k)?
  *     'where' cond
  *     'return' return
+ * let
+ *   → var
+ *   | StringConstant
+ *   | return
  * return
  *   → var
  *   | return ',' return
  *   | '&lt;' n '&gt;' '{' return '}' '&lt;/' n '&lt;'
  *   | path
+ *   | 'let' v_1 ':=' return, ..., v_n ':=' return return
+ *   | 'for' v_1 'in' path_1, ..., v_n 'in' path_n ('where' inner)? 'return' return
  * path
  *   → (('doc' '(' StringConstant ')') | var) ('/' | '//') rp
  * cond
  *   → (var | StringConstant) ('eq' | '=') (var | StringConstant)
  *   | cond 'and' cond
+ *   | 'not'? existential
+ * existential
+ *   → 'some' v_1 'in' path_1, ..., v_n 'in' path_n 'satisfies' outer
+ *   | 'empty' '(' 'for' v_1 'in' path_1, ..., v_n 'in' path_n ('where' inner)? 'return' (var | tag) ')'
+ * outer
+ *   → var ('eq' | '=') var
+ *   | outer 'and' outer
+ * inner
+ *   → (var | StringConstant) ('eq' | '=') (var | StringConstant)
+ *   | inner 'and' inner
  * </pre>
  * Instead of creating a new grammar/visitor for the optimizer,
  * the query is optimized only if its AST conforms to the following restrictions
  * <ul>
- * <li>The root query is a for let where clause (FLWR)</li>
- * <li>The FLWR clause does not contain a let clause</li>
+ * <li>Every FLWR expression of the query is optimized independently, wherever it is
+ * (including the clauses of FLWR expressions that are not optimized, let expressions and tags),
+ * except the ones in the clauses of an optimized FLWR, which are part of it,
+ * and the ones in the inputs of joins, which are already planned</li>
  * <li>The for clause sub queries only contain paths</li>
+ * <li>The let clause variables bound to a string literal or to a for clause variable are inlined,
+ * and the rest are materialized for every tuple, as part of the return clause (so they cannot be compared
+ * in the where clause)</li>
  * <li>The where clause only contains equality tests using variables and string literals,
  * joined by the boolean and operator</li>
  * <li>The return clause only contains variables, paths, tags and the concatenation of two return clauses</li>
  * <li>Paths are defined as document or variable, then '/' or '//', then a relative path</li>
+ * <li>The paths of the variables of existential conditions (some, empty) start from a document
+ * or from a previous variable of the same condition, so they are independent of the tuples of the FLWR,
+ * which are only compared (by value) to the variables of the condition</li>
+ * <li>Every equality of a some condition compares a variable of the FLWR to a variable of the condition
+ * (its variables are bound to all their nodes at once, so each equality is satisfied independently of the rest),
+ * and negated some conditions only have one equality</li>
+ * <li>The FLWR expressions nested in the return clause do not contain let clauses nor other nested FLWR expressions,
+ * and the paths of their variables start from a document or from a previous variable of the same expression
+ * (as in existential conditions)</li>
  * </ul>
+ * Existential conditions are evaluated once per query, instead of once per tuple:
+ * the tuples that satisfy them are kept by a semi-join (some, not empty)
+ * and the tuples that do not by an anti-join (empty, not some) with the tuples of the condition,
+ * applied to the smallest join of the plan that has all the variables the condition compares
+ * (some conditions are a semi-join per equality, with the nodes of the variable of the condition it compares)<br>
+ * Nested FLWR expressions are also evaluated once per query, instead of once per tuple:
+ * their tuples are grouped by the tuples of the FLWR they match with a group join,
+ * and the nested expression is rewritten to iterate over the group of each tuple<br>
+ * The order of the joins is chosen by the estimated cost of the plan (see JoinPlanner),
+ * estimating the number of tuples of every subquery from the path summary of the documents (see DocumentStatistics),
+ * or from the steps of the paths of its variables when there are no statistics or the paths cannot be resolved
+ * against the summary (with the average fan-out of the document when it is known),
+ * and the equalities of its where clause<br>
+ * When the plan joins the subqueries out of their original order, the tuples of every subquery are ranked
+ * by their position, and the joined tuples are sorted back by those positions, in the original order<br>
+ * Optimized FLWR expressions are rewritten in place in the parse tree, which is executed without being parsed again
+ * (the string representation of the optimized query is only used to log it)
  */
 public class XQueryOptimizer extends XQuerySerializer {
 
@@ -56,10 +112,11 @@ public class XQueryOptimizer extends XQuerySerializer {
      * <li>CHECK_WHERE - validating that the where clause conforms to the xquery subset grammar</li>
      * <li>CHECK_RETURN - validating that the return clause conforms to the xquery subset grammar</li>
      * <li>OPTIMIZE - optimizing the FLWR expression using join clauses</li>
+         * <li>EXISTENTIAL - serializing an existential condition, which is not validated as part of the FLWR</li>
      * </ol>
      */
     private enum State {
-        INITIAL, CHECK_FOR, CHECK_WHERE, CHECK_RETURN, OPTIMIZE, REWRITE_RETURN
+        INITIAL, CHECK_FOR, CHECK_WHERE, CHECK_RETURN, OPTIMIZE, EXISTENTIAL
     }
 
     /**
@@ -81,6 +138,11 @@ public class XQueryOptimizer extends XQuerySerializer {
          */
         HashMap<String, String> vars = new HashMap<>();
 
+        /**
+         * Map from variable names to the parse trees of the subqueries they represent
+         */
+        HashMap<String, XQueryParser.XqContext> trees = new HashMap<>();
+
         /**
          * Map for variable dependencies, where the every (child, parent) is a (key, value),
          * and the variables without dependencies (roots) have their parent set to null
@@ -106,26 +168,171 @@ public class XQueryOptimizer extends XQuerySerializer {
 
         /**
          * List of free value equality restrictions, where for every equality in the form of ("..." = "..."),
-         * the list contains a string representation of the equality ("..." = "...")
+         * the list contains the pair of string literals of the equality
+         */
+        LinkedList<String[]> freeRestrictions = new LinkedList<>();
+
+        /**
+         * Map from variables to the label paths they are bound to, in the path summary of their document
+         * (null if unknown, see summary)
+         */
+        HashMap<String, Summary> summaries = new HashMap<>();
+
+        /**
+         * Variables of the for clause
+         */
+        HashSet<String> forVars = new HashSet<>();
+
+        /**
+         * Existential conditions of the where clause, to be evaluated as semi-joins or anti-joins
+         */
+        LinkedList<Existential> existentials = new LinkedList<>();
+
+        /**
+         * FLWR expressions nested in the return clause, in order, to be evaluated as group joins
+         */
+        LinkedHashMap<XQueryParser.XqFLWRContext, Nested> nested = new LinkedHashMap<>();
+
+        /**
+         * Map from the variables of the nested FLWR expressions to the groups they are read from
+         */
+        HashMap<String, String> groups = new HashMap<>();
+
+        /**
+         * Flag set while validating the return clause of a nested FLWR expression
+         */
+        boolean nesting = false;
+
+        /**
+         * Map from the inlined let clause variables to the string literals or for clause variables they are bound to
+         */
+        HashMap<String, String> aliases = new HashMap<>();
+    }
+
+    /**
+     * Subquery of the FLWR whose variables are independent of the tuples of the FLWR,
+     * and only compared (by value) to its for clause variables
+     */
+    private static class Correlated {
+        /**
+         * Variables of the subquery, in order
+         */
+        LinkedList<String> vars = new LinkedList<>();
+
+        /**
+         * Map from the variables of the subquery to the paths they traverse
+         */
+        HashMap<String, String> paths = new HashMap<>();
+
+        /**
+         * Map from the variables of the subquery to the parse trees of the paths they traverse
+         */
+        HashMap<String, XQueryParser.XqContext> trees = new HashMap<>();
+
+        /**
+         * Value equalities between the variables of the subquery and string literals,
+         * as pairs of variables or string literals
+         */
+        LinkedList<String[]> conds = new LinkedList<>();
+
+        /**
+         * For clause variables compared to variables of the subquery
+         */
+        LinkedList<String> outerKeys = new LinkedList<>();
+
+        /**
+         * Variables of the subquery compared to for clause variables (in the same order as outerKeys)
+         */
+        LinkedList<String> innerKeys = new LinkedList<>();
+    }
+
+    /**
+     * Existential condition of the where clause (some, empty, or their negation)
+     */
+    private static class Existential extends Correlated {
+        /**
+         * Flag set if the condition is satisfied by the tuples that do not match any tuple of the condition
          */
-        LinkedList<String> freeRestrictions = new LinkedList<>();
+        boolean anti = false;
+    }
 
+    /**
+     * FLWR expression nested in the return clause
+     */
+    private static class Nested extends Correlated {
         /**
-         * List of variables that have already been incorporated into the rewritten join query
+         * Name of the group of tuples of the expression (tag of its tuples, and variable iterating over them)
          */
-        LinkedList<String> varsJoined = new LinkedList<>();
+        String group;
     }
 
+    /**
+     * Estimated number of children a node has with a given tag (or any tag), when there are no statistics
+     */
+    private static final double CHILD_FANOUT = 4;
+
+    /**
+     * Estimated number of descendants a node has with a given tag (or any tag)
+     */
+    private static final double DESCENDANT_FANOUT = 16;
+
+    /**
+     * Estimated fraction of the nodes that satisfy a path filter
+     */
+    private static final double FILTER_SELECTIVITY = 0.5;
+
+    /**
+     * Estimated fraction of the bindings of a variable that are equal to a constant
+     */
+    private static final double RESTRICTION_SELECTIVITY = 0.1;
+
     /**
      * Current metadata
      */
     private Info info;
 
+    /**
+     * Flag to estimate the cost of the joins with the statistics of the documents (see DocumentStatistics)
+     */
+    private boolean statistics;
+
+    /**
+     * Number of FLWR expressions rewritten as joins
+     */
+    private int rewrites;
+
+    /**
+     * Number of joins whose inputs are being visited (their FLWR expressions are already planned)
+     */
+    private int planned;
+
     /**
      * Public constructor - Initializes the variables
      */
     public XQueryOptimizer() {
         info = new Info();
+        statistics = true;
+        rewrites = 0;
+        planned = 0;
+    }
+
+    /**
+     * Returns the number of FLWR expressions rewritten as joins
+     *
+     * @return Number of FLWR expressions rewritten (0 if the optimized query is the same as the original one)
+     */
+    public int getRewrites() {
+        return rewrites;
+    }
+
+    /**
+     * Sets whether the cost of the joins is estimated with the statistics of the documents,
+     * or only from the steps of the paths
+     *
+     * @param statistics Flag to use the statistics of the documents (collecting them if they are not persisted yet)
+     */
+    public void setStatistics(boolean statistics) {
+        this.statistics = statistics;
     }
 
     /*
@@ -134,37 +341,81 @@ public class XQueryOptimizer extends XQuerySerializer {
 
     /**
      * XQuery (for let while return - FLWR)
+     * <p>
+     * Optimized FLWR expressions are rewritten in place: the clauses of the expression are replaced in the parse tree
+     * by the ones of its rewritten form (see XQueryTreeBuilder), so the optimized tree is executed as is
+     * </p>
      *
      * @param ctx Current parse tree context
-     * @return String representation of the abstract syntax tree
+     * @return String representation of the abstract syntax tree (after rewriting it)
      */
     @Override
     public String visitXqFLWR(XQueryParser.XqFLWRContext ctx) {
-        if ((info.state != State.INITIAL) || (!info.optimizable)) {
+        if (info.state == State.CHECK_RETURN) {
+            String q = nested(ctx);
+            if (q != null) {
+                return q;
+            }
+        }
+        if ((info.state != State.INITIAL) || (planned > 0)) {
             info.optimizable = false;
             return super.visitXqFLWR(ctx);
         }
+        // Optimized independently of the expressions around it
+        Info outer = info;
+        info = new Info();
+        XQueryParser.XqFLWRContext optimized = optimize(ctx);
+        info = new Info();
+        if (optimized != null) {
+            XQueryTreeBuilder.replaceChildren(ctx, optimized.children);
+            ++rewrites;
+            // The rewritten expression is only serialized (its joins are already planned)
+            ++planned;
+        }
+        // Otherwise, the FLWR expressions in its clauses are optimized independently
+        String q = super.visitXqFLWR(ctx);
+        if (optimized != null) {
+            --planned;
+        }
+        info = outer;
+        return q;
+    }
+
+    /**
+     * Optimizes a FLWR expression, rewriting it as joins
+     *
+     * @param ctx FLWR expression
+     * @return Parse tree of the optimized expression - null if it cannot be optimized
+     */
+    private XQueryParser.XqFLWRContext optimize(XQueryParser.XqFLWRContext ctx) {
         // Check that the query can be optimized
+        for (TerminalNode var : ctx.forClause().Variable()) {
+            info.forVars.add(var.getText());
+        }
         info.state = State.CHECK_FOR;
         visit(ctx.forClause());
         if (!info.optimizable) {
-            return super.visitXqFLWR(ctx);
+            return null;
         }
         if (ctx.letClause() != null) {
-            info.optimizable = false;
-            return super.visitXqFLWR(ctx);
+            // Expressions of the variables that are not inlined are validated as the return clause
+            info.state = State.CHECK_RETURN;
+            inline(ctx.letClause());
+            if (!info.optimizable) {
+                return null;
+            }
         }
         info.state = State.CHECK_WHERE;
         if (ctx.whereClause() != null) {
             visit(ctx.whereClause());
         }
         if (!info.optimizable) {
-            return super.visitXqFLWR(ctx);
+            return null;
         }
         info.state = State.CHECK_RETURN;
         visit(ctx.returnClause());
         if (!info.optimizable) {
-            return super.visitXqFLWR(ctx);
+            return null;
         }
         // Optimize the query
         info.state = State.OPTIMIZE;
@@ -172,90 +423,871 @@ public class XQueryOptimizer extends XQuerySerializer {
         if (ctx.whereClause() != null) {
             visit(ctx.whereClause());
         }
-        if (info.subqueries.size() <= 1) {
-            info = new Info();
-            return super.visitXqFLWR(ctx);
+        if ((info.subqueries.size() <= 1) && (info.existentials.isEmpty()) && (info.nested.isEmpty())) {
+            return null;
         }
-        String q = "for $tuple in ";
-        String left = nextSubquery();
-        while (!info.subqueries.isEmpty()) {
-            LinkedList<String> joinLeft = new LinkedList<>();
-            LinkedList<String> joinRight = new LinkedList<>();
-            LinkedList<String> rightVars = info.subqueries.entrySet().iterator().next().getValue();
-            for (String leftVar : info.varsJoined) {
+        // Plan the order of the joins
+        LinkedList<String> roots = new LinkedList<>(info.subqueries.keySet());
+        HashMap<String, LinkedList<String>> subqueries = new HashMap<>(info.subqueries);
+        JoinPlanner.Plan plan = plan(roots);
+        // Existential conditions are applied to the smallest join that has all the variables they compare,
+        // and nested FLWR expressions to the tuples that are returned
+        XQueryParser.XqContext q = semiJoin(join(plan, roots, subqueries, plan.isOrdered()), null);
+        if (!plan.isOrdered()) {
+            // Tuples joined in a different order are sorted back by the positions of their subquery tuples
+            LinkedList<String> ranks = new LinkedList<>();
+            for (int i = 0; i < roots.size(); ++i) {
+                ranks.add(rank(i));
+            }
+            q = XQueryTreeBuilder.sort(q, ranks);
+        }
+        q = groupJoin(q);
+        // Rewrite let and return clauses (the return clause is rewritten in place)
+        XQueryParser.LetClauseContext letClause = (ctx.letClause() != null) ? materialize(ctx.letClause()) : null;
+        XQueryParser.ReturnClauseContext returnClause = ctx.returnClause();
+        XQueryTreeBuilder.replaceChild(returnClause, 1, substitute(returnClause.xq()));
+        return XQueryTreeBuilder.flwr(XQueryTreeBuilder.forClause(Collections.singletonList("$tuple"),
+                Collections.singletonList(q)), letClause, null, returnClause);
+    }
+
+    /**
+     * Rewrites an expression of the let or return clause to read the variables from the tuples of the joins
+     * <p>
+     * Variables of nested FLWR expressions are read from their groups, nested FLWR expressions iterate
+     * over the group of the tuple, inlined let clause variables are replaced by their values,
+     * and the rest of the let clause variables are kept
+     * </p>
+     *
+     * @param xq Expression, rewritten in place
+     * @return Rewritten expression (the expression itself, unless it is replaced)
+     */
+    private XQueryParser.XqContext substitute(XQueryParser.XqContext xq) {
+        if (xq instanceof XQueryParser.XqVariableContext) {
+            String var = xq.getText();
+            var = info.aliases.getOrDefault(var, var);
+            String varName = var.substring(1);
+            if (info.groups.containsKey(var)) {
+                return XQueryTreeBuilder.children(XQueryTreeBuilder.variable("$" + info.groups.get(var)), varName, "*");
+            } else if (info.forVars.contains(var)) {
+                return XQueryTreeBuilder.children(XQueryTreeBuilder.variable("$tuple"), varName, "*");
+            }
+            return var.equals(xq.getText()) ? xq : XQueryTreeBuilder.term(var);
+        }
+        if (info.nested.containsKey(xq)) {
+            // Nested FLWR expressions iterate over the group of the tuple
+            String group = info.nested.get(xq).group;
+            XQueryParser.ReturnClauseContext returnClause = ((XQueryParser.XqFLWRContext) xq).returnClause();
+            XQueryTreeBuilder.replaceChild(returnClause, 1, substitute(returnClause.xq()));
+            return XQueryTreeBuilder.flwr(XQueryTreeBuilder.forClause(Collections.singletonList("$" + group),
+                    Collections.singletonList(XQueryTreeBuilder.children(XQueryTreeBuilder.variable("$tuple"), group))),
+                    null, null, returnClause);
+        }
+        substituteChildren(xq);
+        return xq;
+    }
+
+    /**
+     * Rewrites the expressions among the descendants of a node of the let or return clause (see substitute)
+     *
+     * @param ctx Node, whose children are rewritten in place
+     */
+    private void substituteChildren(ParserRuleContext ctx) {
+        for (int i = 0; i < ctx.getChildCount(); ++i) {
+            ParseTree child = ctx.getChild(i);
+            if (child instanceof XQueryParser.XqContext) {
+                XQueryTreeBuilder.replaceChild(ctx, i, substitute((XQueryParser.XqContext) child));
+            } else if (child instanceof ParserRuleContext) {
+                substituteChildren((ParserRuleContext) child);
+            }
+        }
+    }
+
+    /**
+     * Inlines the let clause variables bound to string literals or for clause variables,
+     * and validates the expressions of the rest
+     *
+     * @param ctx Let clause of the FLWR expression
+     */
+    private void inline(XQueryParser.LetClauseContext ctx) {
+        for (int i = 0; i < ctx.Variable().size(); ++i) {
+            XQueryParser.XqContext xq = ctx.xq(i);
+            while (xq instanceof XQueryParser.XqParenthesesContext) {
+                xq = ((XQueryParser.XqParenthesesContext) xq).xq();
+            }
+            String value = info.aliases.getOrDefault(xq.getText(), xq.getText());
+            if ((xq instanceof XQueryParser.XqConstantContext)
+                    || ((xq instanceof XQueryParser.XqVariableContext) && (info.forVars.contains(value)))) {
+                info.aliases.put(ctx.Variable(i).getText(), value);
+            } else {
+                visit(ctx.xq(i));
+            }
+        }
+    }
+
+    /**
+     * Obtains the let clause variables that are not inlined, bound for every tuple of the joins
+     *
+     * @param ctx Let clause of the FLWR expression (its expressions are rewritten in place)
+     * @return Let clause of the optimized expression - null if all the variables are inlined
+     */
+    private XQueryParser.LetClauseContext materialize(XQueryParser.LetClauseContext ctx) {
+        LinkedList<String> letVars = new LinkedList<>();
+        LinkedList<XQueryParser.XqContext> letXqs = new LinkedList<>();
+        for (int i = 0; i < ctx.Variable().size(); ++i) {
+            String varName = ctx.Variable(i).getText();
+            if (!info.aliases.containsKey(varName)) {
+                letVars.add(varName);
+                letXqs.add(substitute(ctx.xq(i)));
+            }
+        }
+        return letVars.isEmpty() ? null : XQueryTreeBuilder.letClause(letVars, letXqs);
+    }
+
+    /**
+     * Plans the order of the joins of the FLWR subqueries (see JoinPlanner)
+     *
+     * @param roots Root variables of the subqueries, in their original order
+     * @return Join tree of the subqueries, whose leaves are indexes of roots
+     */
+    private JoinPlanner.Plan plan(LinkedList<String> roots) {
+        double[] cardinalities = new double[roots.size()];
+        HashMap<String, Integer> subquery = new HashMap<>();
+        for (int i = 0; i < roots.size(); ++i) {
+            LinkedList<String> vars = info.subqueries.get(roots.get(i));
+            cardinalities[i] = cardinality(vars);
+            for (String var : vars) {
+                subquery.put(var, i);
+            }
+        }
+        JoinPlanner planner = new JoinPlanner(cardinalities);
+        for (String left : subquery.keySet()) {
+            for (String right : info.varEqualities.getOrDefault(left, new HashSet<>())) {
+                // Every equality is stored in both directions
+                if (subquery.get(left) < subquery.get(right)) {
+                    planner.connect(subquery.get(left), subquery.get(right), selectivity(left, right));
+                }
+            }
+        }
+        return planner.plan();
+    }
+
+    /**
+     * Obtains the tag of the position of the tuples of a FLWR subquery (see rank)
+     *
+     * @param subquery Index of the subquery, in the original order
+     * @return Tag of the position of the tuples of the subquery
+     */
+    private static String rank(int subquery) {
+        return "rank" + (subquery + 1);
+    }
+
+    /**
+     * Builds a join tree of FLWR subqueries
+     *
+     * @param plan       Join tree of the subqueries
+     * @param roots      Root variables of the subqueries, in their original order
+     * @param subqueries Map from root variables to all the variables of their subqueries
+     * @param ordered    Flag set if the whole tree joins the subqueries in their original order
+     *                   (otherwise the tuples of every subquery are ranked by their position)
+     * @return Join tree
+     */
+    private XQueryParser.XqContext join(JoinPlanner.Plan plan, LinkedList<String> roots,
+                                       HashMap<String, LinkedList<String>> subqueries, boolean ordered) {
+        if (plan.isLeaf()) {
+            XQueryParser.XqContext q = nextSubquery(roots.get(plan.subquery));
+            if (!ordered) {
+                q = XQueryTreeBuilder.rank(q, rank(plan.subquery));
+            }
+            return semiJoin(q, subqueries.get(roots.get(plan.subquery)));
+        }
+        XQueryParser.XqContext left = join(plan.left, roots, subqueries, ordered);
+        XQueryParser.XqContext right = join(plan.right, roots, subqueries, ordered);
+        LinkedList<String> joinLeft = new LinkedList<>();
+        LinkedList<String> joinRight = new LinkedList<>();
+        for (int l : plan.left.subqueries()) {
+            for (String leftVar : subqueries.get(roots.get(l))) {
                 HashSet<String> leftEqualities = info.varEqualities.getOrDefault(leftVar, new HashSet<>());
-                for (String rightVar : rightVars) {
-                    if (leftEqualities.contains(rightVar)) {
-                        joinLeft.add(leftVar.substring(1));
-                        joinRight.add(rightVar.substring(1));
-                        info.varEqualities.get(rightVar).remove(leftVar);
-                        info.varEqualities.get(leftVar).remove(rightVar);
+                for (int r : plan.right.subqueries()) {
+                    for (String rightVar : subqueries.get(roots.get(r))) {
+                        if (leftEqualities.contains(rightVar)) {
+                            joinLeft.add(leftVar.substring(1));
+                            joinRight.add(rightVar.substring(1));
+                            info.varEqualities.get(rightVar).remove(leftVar);
+                            leftEqualities.remove(rightVar);
+                        }
                     }
                 }
             }
-            String right = nextSubquery();
-            left = "join(" +
-                    left + "," +
-                    right + "," +
-                    "[" + String.join(",", joinLeft) + "]," +
-                    "[" + String.join(",", joinRight) + "])";
-        }
-        // Rewrite return clause
-        info.state = State.REWRITE_RETURN;
-        q += left + visit(ctx.returnClause());
-        // Clear metadata
-        info = new Info();
+        }
+        LinkedList<String> vars = new LinkedList<>();
+        for (int s : plan.subqueries()) {
+            vars.addAll(subqueries.get(roots.get(s)));
+        }
+        return semiJoin(XQueryTreeBuilder.join("join", left, right, joinLeft, joinRight), vars);
+    }
+
+    /**
+     * Applies the pending existential conditions that only compare the given variables to a join
+     *
+     * @param q    Join
+     * @param vars Variables of the tuples of the join (null to apply all the pending conditions)
+     * @return Join, as the left input of the semi-joins and anti-joins of the conditions
+     */
+    private XQueryParser.XqContext semiJoin(XQueryParser.XqContext q, List<String> vars) {
+        Iterator<Existential> it = info.existentials.iterator();
+        while (it.hasNext()) {
+            Existential e = it.next();
+            if ((vars != null) && (!vars.containsAll(e.outerKeys))) {
+                continue;
+            }
+            it.remove();
+            // Only the compared variables of the condition are part of its tuples
+            XQueryParser.XqContext inner = tuples(e, "tuple", (e.innerKeys.isEmpty()) ? e.vars.subList(0, 1) : e.innerKeys);
+            q = correlatedJoin(e.anti ? "antijoin" : "semijoin", q, inner, e);
+        }
         return q;
     }
 
     /**
-     * Obtains the string representation of the next FLWR subquery to be used in the join
+     * Groups the tuples of the nested FLWR expressions of the return clause by the tuples of a join
      *
-     * @return String representation of the next FLWR subquery to be used in the join
+     * @param q Join
+     * @return Join, as the left input of the group joins of the nested expressions
      */
-    private String nextSubquery() {
-        String root = info.subqueries.entrySet().iterator().next().getKey();
-        LinkedList<String> vars = info.subqueries.remove(root);
-        // For clause
-        String q = " for ";
-        LinkedList<String> forVars = new LinkedList<>();
+    private XQueryParser.XqContext groupJoin(XQueryParser.XqContext q) {
+        for (Nested n : info.nested.values()) {
+            q = correlatedJoin("groupjoin", q, tuples(n, n.group, n.vars), n);
+        }
+        return q;
+    }
+
+    /**
+     * Builds the FLWR expression returning the tuples of a subquery
+     *
+     * @param vars  Variables of the subquery, in order
+     * @param trees Map from the variables to the parse trees of the paths they traverse (copied)
+     * @param conds Value equalities of the where clause, as pairs of variables or string literals
+     * @param tag   Tag of the tuples
+     * @param tuple Variables that are part of the tuples
+     * @return FLWR expression returning the tuples of the subquery
+     */
+    private static XQueryParser.XqContext tuples(List<String> vars, HashMap<String, XQueryParser.XqContext> trees,
+                                                 List<String[]> conds, String tag, List<String> tuple) {
+        LinkedList<XQueryParser.XqContext> paths = new LinkedList<>();
         for (String var : vars) {
-            forVars.add(var + " in " + info.vars.get(var));
+            paths.add(XQueryTreeBuilder.copy(trees.get(var)));
+        }
+        LinkedList<XQueryParser.CondContext> whereConds = new LinkedList<>();
+        for (String[] cond : conds) {
+            whereConds.add(XQueryTreeBuilder.equality(cond[0], cond[1]));
+        }
+        LinkedList<String> returnVars = new LinkedList<>();
+        LinkedList<XQueryParser.XqContext> returnTags = new LinkedList<>();
+        for (String var : tuple) {
+            if (!returnVars.contains(var)) {
+                returnVars.add(var);
+                returnTags.add(XQueryTreeBuilder.tag(var.substring(1), XQueryTreeBuilder.variable(var)));
+            }
         }
-        q += String.join(",", forVars);
+        return XQueryTreeBuilder.flwr(XQueryTreeBuilder.forClause(vars, paths), null,
+                whereConds.isEmpty() ? null : XQueryTreeBuilder.whereClause(whereConds),
+                XQueryTreeBuilder.returnClause(XQueryTreeBuilder.tag(tag, XQueryTreeBuilder.pair(returnTags))));
+    }
+
+    /**
+     * Builds the tuples of a correlated subquery
+     *
+     * @param c    Correlated subquery
+     * @param tag  Tag of the tuples
+     * @param vars Variables of the subquery that are part of its tuples
+     * @return FLWR expression returning the tuples of the subquery
+     */
+    private static XQueryParser.XqContext tuples(Correlated c, String tag, List<String> vars) {
+        return tuples(c.vars, c.trees, c.conds, tag, vars);
+    }
+
+    /**
+     * Builds the join of the tuples of a FLWR with the tuples of a correlated subquery
+     *
+     * @param join  Name of the join (semijoin, antijoin or groupjoin)
+     * @param left  Tuples of the FLWR
+     * @param right Tuples of the subquery
+     * @param c     Correlated subquery
+     * @return Join
+     */
+    private static XQueryParser.XqContext correlatedJoin(String join, XQueryParser.XqContext left,
+                                                         XQueryParser.XqContext right, Correlated c) {
+        LinkedList<String> joinLeft = new LinkedList<>();
+        LinkedList<String> joinRight = new LinkedList<>();
+        for (int i = 0; i < c.outerKeys.size(); ++i) {
+            joinLeft.add(c.outerKeys.get(i).substring(1));
+            joinRight.add(c.innerKeys.get(i).substring(1));
+        }
+        return XQueryTreeBuilder.join(join, left, right, joinLeft, joinRight);
+    }
+
+    /**
+     * Validates a FLWR expression nested in the return clause, registering it to be evaluated as a group join
+     *
+     * @param ctx Nested FLWR expression
+     * @return String representation of the expression - null if it cannot be evaluated as a group join
+     */
+    private String nested(XQueryParser.XqFLWRContext ctx) {
+        if ((info.nesting) || (ctx.letClause() != null)) {
+            return null;
+        }
+        Nested n = new Nested();
+        XQueryParser.CondContext inner = (ctx.whereClause() != null) ? ctx.whereClause().cond() : null;
+        if (!correlate(n, ctx.forClause().Variable(), ctx.forClause().xq(), inner)) {
+            return null;
+        }
+        // The return clause is validated as the one of the FLWR, without further nesting
+        info.nesting = true;
+        String q = super.visitXqFLWR(ctx);
+        info.nesting = false;
+        if (!info.optimizable) {
+            return null;
+        }
+        n.group = "group" + (info.nested.size() + 1);
+        info.nested.put(ctx, n);
+        for (String var : n.vars) {
+            info.groups.put(var, n.group);
+        }
+        return q;
+    }
+
+    /**
+     * Validates an existential condition of the where clause (registering it when optimizing the FLWR expression),
+     * and obtains its string representation
+     *
+     * @param ctx Existential condition (some, empty, or their negation)
+     * @return String representation of the condition - null if it cannot be evaluated as a semi-join or anti-join
+     */
+    private String existential(XQueryParser.CondContext ctx) {
+        if ((info.state != State.CHECK_WHERE) && (info.state != State.OPTIMIZE)) {
+            return null;
+        }
+        // The sub-expressions of the condition are not part of the FLWR: they are not validated nor optimized
+        State state = info.state;
+        boolean optimizable = info.optimizable;
+        info.state = State.EXISTENTIAL;
+        LinkedList<Existential> es = parseExistential(ctx);
+        String q = (es != null) ? visit(ctx) : null;
+        info.state = state;
+        info.optimizable = optimizable;
+        if ((es != null) && (state == State.OPTIMIZE)) {
+            info.existentials.addAll(es);
+        }
+        return q;
+    }
+
+    /**
+     * Parses an existential condition of the where clause
+     * <p>
+     * The variables of an empty FLWR expression are bound to one node at a time, so the expression is empty
+     * if and only if no tuple of its variables satisfies its where clause: it is a single anti-join (semi-join if negated)
+     * with those tuples<br>
+     * Instead, the variables of a some condition are bound to all their nodes at once, and every equality
+     * of the condition is satisfied by any of them, independently of the rest:
+     * the condition is only evaluated as joins if every equality compares a for clause variable to a variable
+     * of the condition, each of them being a semi-join with the nodes of that variable,
+     * and if the condition is negated (an anti-join), only if there is a single equality
+     * </p>
+     *
+     * @param ctx Existential condition (some, empty, or their negation)
+     * @return Existential conditions the condition is the conjunction of - null if it cannot be evaluated
+     * as semi-joins or anti-joins
+     */
+    private LinkedList<Existential> parseExistential(XQueryParser.CondContext ctx) {
+        Existential e = new Existential();
+        XQueryParser.CondContext cond = ctx;
+        while ((cond instanceof XQueryParser.CondParenthesesContext) || (cond instanceof XQueryParser.CondNotContext)) {
+            if (cond instanceof XQueryParser.CondNotContext) {
+                e.anti = !e.anti;
+                cond = ((XQueryParser.CondNotContext) cond).cond();
+            } else {
+                cond = ((XQueryParser.CondParenthesesContext) cond).cond();
+            }
+        }
+        List<TerminalNode> vars;
+        List<XQueryParser.XqContext> paths;
+        XQueryParser.CondContext inner;
+        if (cond instanceof XQueryParser.CondSomeContext) {
+            XQueryParser.CondSomeContext some = (XQueryParser.CondSomeContext) cond;
+            if ((!correlate(e, some.Variable(), some.xq(), some.cond())) || (!e.conds.isEmpty())
+                    || (e.outerKeys.isEmpty()) || (e.anti && (e.outerKeys.size() > 1))) {
+                return null;
+            }
+            LinkedList<Existential> es = new LinkedList<>();
+            for (int i = 0; i < e.outerKeys.size(); ++i) {
+                es.add(membership(e, e.outerKeys.get(i), e.innerKeys.get(i)));
+            }
+            return es;
+        } else if (cond instanceof XQueryParser.CondEmptyContext) {
+            e.anti = !e.anti;
+            XQueryParser.XqContext xq = ((XQueryParser.CondEmptyContext) cond).xq();
+            while (xq instanceof XQueryParser.XqParenthesesContext) {
+                xq = ((XQueryParser.XqParenthesesContext) xq).xq();
+            }
+            if (!(xq instanceof XQueryParser.XqFLWRContext)) {
+                return null;
+            }
+            XQueryParser.XqFLWRContext flwr = (XQueryParser.XqFLWRContext) xq;
+            XQueryParser.XqContext ret = flwr.returnClause().xq();
+            // Every tuple must return some node, so the expression is empty if and only if there are no tuples
+            if ((flwr.letClause() != null)
+                    || !((ret instanceof XQueryParser.XqVariableContext) || (ret instanceof XQueryParser.XqTagContext))) {
+                return null;
+            }
+            vars = flwr.forClause().Variable();
+            paths = flwr.forClause().xq();
+            inner = (flwr.whereClause() != null) ? flwr.whereClause().cond() : null;
+        } else {
+            return null;
+        }
+        if (!correlate(e, vars, paths, inner)) {
+            return null;
+        }
+        LinkedList<Existential> es = new LinkedList<>();
+        es.add(e);
+        return es;
+    }
+
+    /**
+     * Obtains the condition that a for clause variable is equal to any node of a variable of a some condition
+     *
+     * @param some     Some condition (or its negation)
+     * @param outerKey For clause variable
+     * @param innerKey Variable of the condition
+     * @return Existential condition whose tuples are the nodes of the variable of the condition,
+     * with the variables its path depends on
+     */
+    private static Existential membership(Existential some, String outerKey, String innerKey) {
+        Existential e = new Existential();
+        e.anti = some.anti;
+        String var = innerKey;
+        while (var != null) {
+            e.vars.addFirst(var);
+            e.paths.put(var, some.paths.get(var));
+            e.trees.put(var, some.trees.get(var));
+            String source = steps(some.paths.get(var)).getFirst();
+            var = some.vars.contains(source) ? source : null;
+        }
+        e.outerKeys.add(outerKey);
+        e.innerKeys.add(innerKey);
+        return e;
+    }
+
+    /**
+     * Parses the variables and the condition of a subquery correlated with the FLWR
+     *
+     * @param c     Correlated subquery, whose variables, conditions and keys are filled
+     * @param vars  Variables of the subquery
+     * @param paths Paths of the variables of the subquery
+     * @param inner Condition of the subquery (null if there is none)
+     * @return true if the subquery is independent of the tuples of the FLWR, and only compared to its variables,
+     * false otherwise
+     */
+    private boolean correlate(Correlated c, List<TerminalNode> vars, List<XQueryParser.XqContext> paths,
+                              XQueryParser.CondContext inner) {
+        for (int i = 0; i < vars.size(); ++i) {
+            String varName = vars.get(i).getText();
+            XQueryParser.XqContext path = paths.get(i);
+            XQueryParser.XqContext source = null;
+            if (path instanceof XQueryParser.XqChildrenContext) {
+                source = ((XQueryParser.XqChildrenContext) path).xq();
+            } else if (path instanceof XQueryParser.XqAllContext) {
+                source = ((XQueryParser.XqAllContext) path).xq();
+            } else if (!(path instanceof XQueryParser.XqAbsolutePathContext)) {
+                return false;
+            }
+            // Paths start from a document or from a previous variable of the subquery
+            if ((source != null) && !((source instanceof XQueryParser.XqVariableContext)
+                    && (c.vars.contains(source.getText())))) {
+                return false;
+            }
+            // Variable names must be unique (as in the rest of the FLWR)
+            if (info.forVars.contains(varName) || c.vars.contains(varName)) {
+                return false;
+            }
+            c.vars.add(varName);
+            c.paths.put(varName, visit(path));
+            c.trees.put(varName, path);
+        }
+        LinkedList<XQueryParser.CondContext> equalities = new LinkedList<>();
+        if ((inner != null) && (!conjunction(inner, equalities))) {
+            return false;
+        }
+        for (XQueryParser.CondContext cond : equalities) {
+            XQueryParser.CondValueEqualityContext equality = (XQueryParser.CondValueEqualityContext) cond;
+            String left = visit(equality.xq(0));
+            String right = visit(equality.xq(1));
+            boolean leftIsOuter = info.forVars.contains(left);
+            boolean rightIsOuter = info.forVars.contains(right);
+            boolean leftIsInner = c.vars.contains(left);
+            boolean rightIsInner = c.vars.contains(right);
+            if ((left.startsWith("$") && !(leftIsOuter || leftIsInner))
+                    || (right.startsWith("$") && !(rightIsOuter || rightIsInner))) {
+                return false;
+            }
+            if (leftIsOuter && rightIsInner) {
+                c.outerKeys.add(left);
+                c.innerKeys.add(right);
+            } else if (leftIsInner && rightIsOuter) {
+                c.outerKeys.add(right);
+                c.innerKeys.add(left);
+            } else if (leftIsOuter || rightIsOuter) {
+                // Restrictions of the tuples of the FLWR are not part of the subquery
+                return false;
+            } else {
+                c.conds.add(new String[]{left, right});
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Splits a conjunction of value equalities between variables and string literals
+     *
+     * @param cond       Condition
+     * @param equalities List the value equalities of the condition are appended to
+     * @return true if the condition is a conjunction of value equalities between variables and string literals,
+     * false otherwise
+     */
+    private static boolean conjunction(XQueryParser.CondContext cond, LinkedList<XQueryParser.CondContext> equalities) {
+        if (cond instanceof XQueryParser.CondParenthesesContext) {
+            return conjunction(((XQueryParser.CondParenthesesContext) cond).cond(), equalities);
+        }
+        if (cond instanceof XQueryParser.CondAndContext) {
+            XQueryParser.CondAndContext and = (XQueryParser.CondAndContext) cond;
+            return conjunction(and.cond(0), equalities) && conjunction(and.cond(1), equalities);
+        }
+        if (!(cond instanceof XQueryParser.CondValueEqualityContext)) {
+            return false;
+        }
+        for (XQueryParser.XqContext xq : ((XQueryParser.CondValueEqualityContext) cond).xq()) {
+            if (!((xq instanceof XQueryParser.XqVariableContext) || (xq instanceof XQueryParser.XqConstantContext))) {
+                return false;
+            }
+        }
+        equalities.add(cond);
+        return true;
+    }
+
+    /**
+     * Estimates the number of tuples of a FLWR subquery
+     * <p>
+     * Every variable multiplies the tuples by the estimated fan-out of its path,
+     * and every equality between variables of the subquery or with a constant filters them
+     * </p>
+     *
+     * @param vars Variables of the subquery (the root variable first)
+     * @return Estimated number of tuples of the subquery
+     */
+    private double cardinality(LinkedList<String> vars) {
+        double cardinality = 1;
+        for (String var : vars) {
+            cardinality *= fanout(var);
+            int restrictions = info.varRestrictions.getOrDefault(var, new LinkedList<>()).size();
+            cardinality *= Math.pow(restrictionSelectivity(var), restrictions);
+            for (String other : info.varEqualities.getOrDefault(var, new HashSet<>())) {
+                // Every equality is stored in both directions
+                if (vars.contains(other) && (var.compareTo(other) < 0)) {
+                    cardinality *= selectivity(var, other);
+                }
+            }
+        }
+        return Math.max(cardinality, 1);
+    }
+
+    /**
+     * Estimates the selectivity of a value equality between two variables
+     * <p>
+     * Assumes the values of the variable with fewer distinct values are contained in the values of the other one
+     * </p>
+     *
+     * @param left  Left variable
+     * @param right Right variable
+     * @return Estimated fraction of the pairs of bindings that satisfy the equality
+     */
+    private double selectivity(String left, String right) {
+        return 1 / Math.max(distinct(left), distinct(right));
+    }
+
+    /**
+     * Estimates the selectivity of a value equality between a variable and a constant
+     *
+     * @param var Variable
+     * @return Estimated fraction of the bindings of the variable that are equal to the constant
+     */
+    private double restrictionSelectivity(String var) {
+        return (summary(var) != null) ? 1 / distinct(var) : RESTRICTION_SELECTIVITY;
+    }
+
+    /**
+     * Estimates the number of distinct values of the bindings of a variable
+     * (without statistics, every binding is assumed to have a distinct value)
+     *
+     * @param var Variable
+     * @return Estimated number of distinct values of the variable (at least 1)
+     */
+    private double distinct(String var) {
+        Summary summary = summary(var);
+        if (summary == null) {
+            return bindings(var);
+        }
+        double distinct = 0;
+        for (String path : summary.paths) {
+            distinct += summary.stats.distinct(path);
+        }
+        return Math.max(Math.min(distinct, bindings(var)), 1);
+    }
+
+    /**
+     * Estimates the total number of bindings of a variable (across all the bindings of the variables it depends on)
+     *
+     * @param var Variable
+     * @return Estimated number of bindings of the variable (at least 1)
+     */
+    private double bindings(String var) {
+        Summary summary = summary(var);
+        if (summary != null) {
+            double bindings = 0;
+            for (String path : summary.paths) {
+                bindings += summary.stats.cardinality(path);
+            }
+            return Math.max(bindings * summary.selectivity, 1);
+        }
+        String parent = info.dependencies.get(var);
+        double fanout = pathFanout(info.vars.get(var), childFanout(var));
+        return Math.max((parent == null) ? fanout : bindings(parent) * fanout, 1);
+    }
+
+    /**
+     * Estimates the number of nodes the path of a variable returns, for every binding of the variable it depends on
+     * (or for the document, if the variable is a root)
+     *
+     * @param var Variable
+     * @return Estimated fan-out of the path of the variable
+     */
+    private double fanout(String var) {
+        if (summary(var) == null) {
+            return pathFanout(info.vars.get(var), childFanout(var));
+        }
+        String parent = info.dependencies.get(var);
+        return (parent == null) ? bindings(var) : bindings(var) / bindings(parent);
+    }
+
+    /**
+     * Estimates the number of nodes a path returns for every node it starts from, using fixed fan-outs per step
+     *
+     * @param path        Path (document or variable, then steps)
+     * @param childFanout Estimated number of children a node has with a given tag (or any tag)
+     * @return Estimated fan-out of the path
+     */
+    private static double pathFanout(String path, double childFanout) {
+        double fanout = 1;
+        LinkedList<String> steps = steps(path);
+        // The first step is the document or variable the path starts from
+        steps.removeFirst();
+        for (String step : steps) {
+            boolean descendant = step.startsWith("//");
+            String test = step.substring(descendant ? 2 : 1);
+            while (test.endsWith("]") && test.contains("[")) {
+                test = test.substring(0, test.lastIndexOf('['));
+                fanout *= FILTER_SELECTIVITY;
+            }
+            if (descendant) {
+                fanout *= DESCENDANT_FANOUT;
+            } else if (!(test.equals("text()") || test.startsWith("@") || test.equals(".") || test.equals(".."))) {
+                fanout *= childFanout;
+            }
+        }
+        return fanout;
+    }
+
+    /**
+     * Estimates the number of children a node has with a given tag, for the document a variable is bound to:
+     * the average fan-out of its elements (see DocumentStatistics), used when its path cannot be resolved
+     * against the path summary
+     *
+     * @param var Variable
+     * @return Average fan-out of the document of the variable - CHILD_FANOUT if there are no statistics
+     */
+    private double childFanout(String var) {
+        if (!statistics) {
+            return CHILD_FANOUT;
+        }
+        String source = steps(info.vars.get(var)).getFirst();
+        if (source.startsWith("doc(")) {
+            try {
+                File file = new File(source.substring(5, source.length() - 2));
+                return Math.max(DocumentStatistics.get(file).getFanout(), 1);
+            } catch (Exception e) {
+                return CHILD_FANOUT;
+            }
+        }
+        return info.vars.containsKey(source) ? childFanout(source) : CHILD_FANOUT;
+    }
+
+    /**
+     * Nodes a variable is bound to, as label paths of the path summary of their document (see DocumentStatistics)
+     */
+    private static class Summary {
+        /**
+         * Statistics of the document
+         */
+        DocumentStatistics stats;
+
+        /**
+         * Label paths of the nodes
+         */
+        HashSet<String> paths;
+
+        /**
+         * Estimated fraction of the nodes of the label paths that satisfy the filters of the path
+         */
+        double selectivity;
+    }
+
+    /**
+     * Resolves the path of a variable against the path summary of its document
+     *
+     * @param var Variable
+     * @return Label paths the variable is bound to - null if there are no statistics,
+     * or the path cannot be resolved (only tag, wildcard, text, attribute, current and parent steps are resolved)
+     */
+    private Summary summary(String var) {
+        if (info.summaries.containsKey(var)) {
+            return info.summaries.get(var);
+        }
+        Summary summary = null;
+        LinkedList<String> steps = steps(info.vars.get(var));
+        String source = steps.removeFirst();
+        if (!statistics) {
+            info.summaries.put(var, null);
+            return null;
+        }
+        if (source.startsWith("doc(")) {
+            try {
+                summary = new Summary();
+                summary.stats = DocumentStatistics.get(new File(source.substring(5, source.length() - 2)));
+                summary.paths = new HashSet<>();
+                summary.paths.add("");
+                summary.selectivity = 1;
+            } catch (Exception e) {
+                summary = null;
+            }
+        } else if (info.vars.containsKey(source) && (summary(source) != null)) {
+            Summary parent = summary(source);
+            summary = new Summary();
+            summary.stats = parent.stats;
+            summary.paths = parent.paths;
+            summary.selectivity = parent.selectivity;
+        }
+        for (String step : steps) {
+            if (summary == null) {
+                break;
+            }
+            boolean descendant = step.startsWith("//");
+            String test = step.substring(descendant ? 2 : 1);
+            while (test.endsWith("]") && test.contains("[")) {
+                test = test.substring(0, test.lastIndexOf('['));
+                summary.selectivity *= FILTER_SELECTIVITY;
+            }
+            HashSet<String> paths = new HashSet<>();
+            if (test.equals(".") && !descendant) {
+                paths.addAll(summary.paths);
+            } else if (test.equals("..") && !descendant) {
+                for (String path : summary.paths) {
+                    if (!path.isEmpty()) {
+                        paths.add(path.substring(0, path.lastIndexOf('/')));
+                    }
+                }
+            } else if (test.matches("[\\w.:-]+|\\*|text\\(\\)|@[\\w.:-]+")) {
+                for (String path : summary.stats.paths()) {
+                    int last = path.lastIndexOf('/');
+                    String name = path.substring(last + 1);
+                    boolean matches = test.equals("*")
+                            ? !(name.startsWith("@") || name.equals("text()"))
+                            : test.equals(name);
+                    for (String from : summary.paths) {
+                        boolean axis = descendant
+                                ? path.startsWith(from + "/")
+                                : path.substring(0, last).equals(from);
+                        if (matches && axis) {
+                            paths.add(path);
+                        }
+                    }
+                }
+            } else {
+                summary = null;
+                break;
+            }
+            summary.paths = paths;
+        }
+        info.summaries.put(var, summary);
+        return summary;
+    }
+
+    /**
+     * Splits a path into its steps
+     *
+     * @param path Path (document or variable, then steps separated by '/' or '//')
+     * @return Steps of the path, the first one being the document or variable, and the rest starting with their separator
+     */
+    private static LinkedList<String> steps(String path) {
+        LinkedList<String> steps = new LinkedList<>();
+        int depth = 0;
+        boolean quoted = false;
+        int start = 0;
+        for (int i = 0; i < path.length(); ++i) {
+            char c = path.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (quoted) {
+                continue;
+            } else if ((c == '(') || (c == '[')) {
+                ++depth;
+            } else if ((c == ')') || (c == ']')) {
+                --depth;
+            } else if ((c == '/') && (depth == 0) && (i > start) && (path.charAt(i - 1) != '/')) {
+                steps.add(path.substring(start, i));
+                start = i;
+            }
+        }
+        steps.add(path.substring(start));
+        return steps;
+    }
+
+    /**
+     * Builds a FLWR subquery to be used in the join
+     *
+     * @param root Root variable of the subquery
+     * @return FLWR expression returning the tuples of the subquery
+     */
+    private XQueryParser.XqContext nextSubquery(String root) {
+        LinkedList<String> vars = info.subqueries.remove(root);
         // Where clause
-        LinkedList<String> whereConds = new LinkedList<>();
+        LinkedList<String[]> whereConds = new LinkedList<>();
         whereConds.addAll(info.freeRestrictions);
         for (String var : vars) {
             LinkedList<String> restrictions = info.varRestrictions.getOrDefault(var, new LinkedList<>());
             for (String r : restrictions) {
-                whereConds.add(var + " = " + r);
+                whereConds.add(new String[]{var, r});
             }
             info.varRestrictions.remove(var);
         }
         for (String left : vars) {
             for (String right : vars) {
                 if (info.varEqualities.getOrDefault(left, new HashSet<>()).contains(right)) {
-                    whereConds.add(left + " = " + right);
+                    whereConds.add(new String[]{left, right});
                     info.varEqualities.get(left).remove(right);
                     info.varEqualities.get(right).remove(left);
                 }
             }
         }
-        if (!whereConds.isEmpty()) {
-            q += " where ";
-            q += String.join(" and ", whereConds);
-        }
-        // Return clause
-        q += " return ";
-        LinkedList<String> returnVars = new LinkedList<>();
-        for (String var : vars) {
-            String varName = var.substring(1);
-            returnVars.add("<" + varName + ">{" + var + "}</" + varName + ">");
-        }
-        q += "<tuple>{" + String.join(",", returnVars) + "}</tuple>";
-        info.varsJoined.addAll(vars);
-        return q;
+        return tuples(vars, info.trees, whereConds, "tuple", vars);
     }
 
     /**
@@ -272,11 +1304,12 @@ public class XQueryOptimizer extends XQuerySerializer {
         for (int i = 0; i < ctx.Variable().size(); ++i) {
             String varName = ctx.Variable(i).getText();
             String varQuery = visit(ctx.xq(i));
+            String parent = varQuery.split("/")[0];
             // Add the subquery the variable traverses
             info.vars.put(varName, varQuery);
-            // Variable with dependency
-            if ((varQuery.startsWith("$")) && (!varQuery.startsWith("$Undefined"))) {
-                String parent = varQuery.split("/")[0];
+            info.trees.put(varName, ctx.xq(i));
+            // Variable with dependency (paths from variables not bound by the for clause are roots)
+            if (info.dependencies.containsKey(parent)) {
                 info.dependencies.put(varName, parent);
                 // Find root of the dependency relationship
                 String root = parent;
@@ -310,11 +1343,7 @@ public class XQueryOptimizer extends XQuerySerializer {
     @Override
     public String visitXqVariable(XQueryParser.XqVariableContext ctx) {
         String var = super.visitXqVariable(ctx);
-        if (info.state == State.REWRITE_RETURN) {
-            String varName = var.substring(1);
-            var = "$tuple/" + varName + "/*";
-        }
-        return var;
+        return info.aliases.getOrDefault(var, var);
     }
 
     /**
@@ -325,6 +1354,17 @@ public class XQueryOptimizer extends XQuerySerializer {
      */
     @Override
     public String visitCondValueEquality(XQueryParser.CondValueEqualityContext ctx) {
+        if (info.state == State.CHECK_WHERE) {
+            // Variables that are not bound by the for clause (as the variables of an existential condition,
+            // outside of it, or materialized let clause variables) are not part of any tuple
+            for (XQueryParser.XqContext xq : ctx.xq()) {
+                String var = info.aliases.getOrDefault(xq.getText(), xq.getText());
+                if ((xq instanceof XQueryParser.XqVariableContext)
+                        && (var.startsWith("$")) && (!info.forVars.contains(var))) {
+                    info.optimizable = false;
+                }
+            }
+        }
         if (info.state == State.OPTIMIZE) {
             String left = visit(ctx.xq(0));
             String right = visit(ctx.xq(1));
@@ -342,7 +1382,7 @@ public class XQueryOptimizer extends XQuerySerializer {
                 info.varRestrictions.putIfAbsent(right, new LinkedList<>());
                 info.varRestrictions.get(right).add(left);
             } else {
-                info.freeRestrictions.add(left + " = " + right);
+                info.freeRestrictions.add(new String[]{left, right});
             }
         }
         return super.visitCondValueEquality(ctx);
@@ -436,6 +1476,20 @@ public class XQueryOptimizer extends XQuerySerializer {
         return super.visitXqTag(ctx);
     }
 
+    /**
+     * XQuery (let)
+     *
+     * @param ctx Current parse tree context
+     * @return String representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqLet(XQueryParser.XqLetContext ctx) {
+        if ((info.state == State.CHECK_FOR) || (info.state == State.CHECK_WHERE)) {
+            info.optimizable = false;
+        }
+        return super.visitXqLet(ctx);
+    }
+
     /*
      * Unconditionally invalid rules for optimized queries
      */
@@ -449,19 +1503,85 @@ public class XQueryOptimizer extends XQuerySerializer {
     @Override
     public String visitXqJoin(XQueryParser.XqJoinContext ctx) {
         info.optimizable = false;
-        return super.visitXqJoin(ctx);
+        ++planned;
+        String q = super.visitXqJoin(ctx);
+        --planned;
+        return q;
     }
 
     /**
-     * XQuery (let)
+     * XQuery (semi-join)
      *
      * @param ctx Current parse tree context
      * @return String representation of the abstract syntax tree
      */
     @Override
-    public String visitXqLet(XQueryParser.XqLetContext ctx) {
+    public String visitXqSemiJoin(XQueryParser.XqSemiJoinContext ctx) {
         info.optimizable = false;
-        return super.visitXqLet(ctx);
+        ++planned;
+        String q = super.visitXqSemiJoin(ctx);
+        --planned;
+        return q;
+    }
+
+    /**
+     * XQuery (anti-join)
+     *
+     * @param ctx Current parse tree context
+     * @return String representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqAntiJoin(XQueryParser.XqAntiJoinContext ctx) {
+        info.optimizable = false;
+        ++planned;
+        String q = super.visitXqAntiJoin(ctx);
+        --planned;
+        return q;
+    }
+
+    /**
+     * XQuery (group join)
+     *
+     * @param ctx Current parse tree context
+     * @return String representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqGroupJoin(XQueryParser.XqGroupJoinContext ctx) {
+        info.optimizable = false;
+        ++planned;
+        String q = super.visitXqGroupJoin(ctx);
+        --planned;
+        return q;
+    }
+
+    /**
+     * XQuery (rank)
+     *
+     * @param ctx Current parse tree context
+     * @return String representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqRank(XQueryParser.XqRankContext ctx) {
+        info.optimizable = false;
+        ++planned;
+        String q = super.visitXqRank(ctx);
+        --planned;
+        return q;
+    }
+
+    /**
+     * XQuery (sort)
+     *
+     * @param ctx Current parse tree context
+     * @return String representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqSort(XQueryParser.XqSortContext ctx) {
+        info.optimizable = false;
+        ++planned;
+        String q = super.visitXqSort(ctx);
+        --planned;
+        return q;
     }
 
     /**
@@ -484,7 +1604,13 @@ public class XQueryOptimizer extends XQuerySerializer {
      */
     @Override
     public String visitCondEmpty(XQueryParser.CondEmptyContext ctx) {
-        info.optimizable = false;
+        if (info.state != State.EXISTENTIAL) {
+            String q = existential(ctx);
+            if (q != null) {
+                return q;
+            }
+            info.optimizable = false;
+        }
         return super.visitCondEmpty(ctx);
     }
 
@@ -496,7 +1622,13 @@ public class XQueryOptimizer extends XQuerySerializer {
      */
     @Override
     public String visitCondSome(XQueryParser.CondSomeContext ctx) {
-        info.optimizable = false;
+        if (info.state != State.EXISTENTIAL) {
+            String q = existential(ctx);
+            if (q != null) {
+                return q;
+            }
+            info.optimizable = false;
+        }
         return super.visitCondSome(ctx);
     }
 
@@ -520,7 +1652,13 @@ public class XQueryOptimizer extends XQuerySerializer {
      */
     @Override
     public String visitCondNot(XQueryParser.CondNotContext ctx) {
-        info.optimizable = false;
+        if (info.state != State.EXISTENTIAL) {
+            String q = existential(ctx);
+            if (q != null) {
+                return q;
+            }
+            info.optimizable = false;
+        }
         return super.visitCondNot(ctx);
     }
 }
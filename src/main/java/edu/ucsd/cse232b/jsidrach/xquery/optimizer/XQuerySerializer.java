@@ -117,6 +117,70 @@ abstract public class XQuerySerializer extends XQueryBaseVisitor<String> {
                 + ")";
     }
 
+    /**
+     * XQuery (semi-join)
+     *
+     * @param ctx Current parse tree context
+     * @return String representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqSemiJoin(XQueryParser.XqSemiJoinContext ctx) {
+        return " semijoin("
+                + visit(ctx.xq(0)) + "," + visit(ctx.xq(1)) + ","
+                + visit(ctx.tagList(0)) + "," + visit(ctx.tagList(1))
+                + ")";
+    }
+
+    /**
+     * XQuery (anti-join)
+     *
+     * @param ctx Current parse tree context
+     * @return String representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqAntiJoin(XQueryParser.XqAntiJoinContext ctx) {
+        return " antijoin("
+                + visit(ctx.xq(0)) + "," + visit(ctx.xq(1)) + ","
+                + visit(ctx.tagList(0)) + "," + visit(ctx.tagList(1))
+                + ")";
+    }
+
+    /**
+     * XQuery (group join)
+     *
+     * @param ctx Current parse tree context
+     * @return String representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqGroupJoin(XQueryParser.XqGroupJoinContext ctx) {
+        return " groupjoin("
+                + visit(ctx.xq(0)) + "," + visit(ctx.xq(1)) + ","
+                + visit(ctx.tagList(0)) + "," + visit(ctx.tagList(1))
+                + ")";
+    }
+
+    /**
+     * XQuery (rank)
+     *
+     * @param ctx Current parse tree context
+     * @return String representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqRank(XQueryParser.XqRankContext ctx) {
+        return " rank(" + visit(ctx.xq()) + "," + ctx.Identifier().getText() + ")";
+    }
+
+    /**
+     * XQuery (sort)
+     *
+     * @param ctx Current parse tree context
+     * @return String representation of the abstract syntax tree
+     */
+    @Override
+    public String visitXqSort(XQueryParser.XqSortContext ctx) {
+        return " sort(" + visit(ctx.xq()) + "," + visit(ctx.tagList()) + ")";
+    }
+
     /**
      * XQuery (let)
      *
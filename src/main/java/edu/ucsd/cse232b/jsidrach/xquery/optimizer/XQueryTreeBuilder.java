@@ -0,0 +1,392 @@
+package edu.ucsd.cse232b.jsidrach.xquery.optimizer;
+
+import edu.ucsd.cse232b.jsidrach.antlr.XQueryParser;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.antlr.v4.runtime.tree.TerminalNodeImpl;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * XQueryTreeBuilder - builds the parse tree nodes of the queries rewritten by the optimizer
+ * <p>
+ * The nodes have the same rule contexts and tokens the parser creates for the string representation of the query
+ * (see XQuerySerializer), so the rewritten parse tree is executed directly, without being serialized and parsed again<br>
+ * Lists of expressions and conditions are nested to the left, as the parser nests them
+ * </p>
+ */
+class XQueryTreeBuilder {
+
+    /**
+     * Map from the literal tokens of the grammar (keywords and punctuation) to their token types
+     */
+    private static final HashMap<String, Integer> LITERALS = new HashMap<>();
+
+    static {
+        for (int type = 1; type <= XQueryParser.VOCABULARY.getMaxTokenType(); ++type) {
+            String literal = XQueryParser.VOCABULARY.getLiteralName(type);
+            if (literal != null) {
+                // Literal names are quoted
+                LITERALS.put(literal.substring(1, literal.length() - 1), type);
+            }
+        }
+    }
+
+    /**
+     * Private constructor - Only static methods
+     */
+    private XQueryTreeBuilder() {
+    }
+
+    /**
+     * Adds children to a rule context, setting their parent
+     *
+     * @param ctx      Rule context (without children)
+     * @param children Children, in order: rule contexts, terminal nodes, or literal tokens (as strings)
+     * @param <T>      Type of the rule context
+     * @return Rule context
+     */
+    private static <T extends ParserRuleContext> T node(T ctx, Object... children) {
+        for (Object child : children) {
+            if (child instanceof ParserRuleContext) {
+                ParserRuleContext rule = (ParserRuleContext) child;
+                rule.parent = ctx;
+                ctx.addChild(rule);
+            } else {
+                TerminalNodeImpl terminal = (TerminalNodeImpl) ((child instanceof TerminalNode)
+                        ? child
+                        : token(LITERALS.get((String) child), (String) child));
+                terminal.parent = ctx;
+                ctx.addChild(terminal);
+            }
+        }
+        return ctx;
+    }
+
+    /**
+     * Creates a terminal node
+     *
+     * @param type Token type
+     * @param text Text of the token
+     * @return Terminal node (without parent)
+     */
+    private static TerminalNode token(int type, String text) {
+        return new TerminalNodeImpl(new CommonToken(type, text));
+    }
+
+    /**
+     * Sets the children of a rule context, replacing the current ones
+     *
+     * @param ctx      Rule context
+     * @param children Children, in order
+     */
+    static void replaceChildren(ParserRuleContext ctx, List<ParseTree> children) {
+        ctx.children = null;
+        node(ctx, children.toArray());
+    }
+
+    /**
+     * Replaces a child of a rule context
+     *
+     * @param ctx         Rule context
+     * @param index       Index of the child
+     * @param replacement Replacement of the child
+     */
+    static void replaceChild(ParserRuleContext ctx, int index, ParserRuleContext replacement) {
+        replacement.parent = ctx;
+        ctx.children.set(index, replacement);
+    }
+
+    /**
+     * Copies a parse tree, so that it can be part of the rewritten query without being shared
+     *
+     * @param tree Parse tree
+     * @param <T>  Type of the root of the parse tree
+     * @return Copy of the parse tree (without parent)
+     */
+    @SuppressWarnings("unchecked")
+    static <T extends ParseTree> T copy(T tree) {
+        if (tree instanceof TerminalNode) {
+            return (T) new TerminalNodeImpl(new CommonToken(((TerminalNode) tree).getSymbol()));
+        }
+        ParserRuleContext ctx = (ParserRuleContext) tree;
+        ParserRuleContext copy;
+        try {
+            Class<?> rule = ctx.getClass().getSuperclass();
+            if (rule == ParserRuleContext.class) {
+                // Rule without labeled alternatives
+                copy = ctx.getClass().getConstructor(ParserRuleContext.class, int.class).newInstance(null, -1);
+            } else {
+                // Labeled alternative, copied from an empty context of its rule
+                copy = ctx.getClass().getConstructor(rule).newInstance(rule.getConstructor().newInstance());
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < ctx.getChildCount(); ++i) {
+            node(copy, copy(ctx.getChild(i)));
+        }
+        return (T) copy;
+    }
+
+    /*
+     * XQuery
+     */
+
+    /**
+     * Builds a variable
+     *
+     * @param var Variable name (starting with '$')
+     * @return Variable expression
+     */
+    static XQueryParser.XqContext variable(String var) {
+        return node(new XQueryParser.XqVariableContext(new XQueryParser.XqContext()),
+                token(XQueryParser.Variable, var));
+    }
+
+    /**
+     * Builds a string literal
+     *
+     * @param constant String literal (quoted)
+     * @return Constant expression
+     */
+    static XQueryParser.XqContext constant(String constant) {
+        return node(new XQueryParser.XqConstantContext(new XQueryParser.XqContext()),
+                token(XQueryParser.StringConstant, constant));
+    }
+
+    /**
+     * Builds a variable or a string literal
+     *
+     * @param term Variable name (starting with '$') or string literal (quoted)
+     * @return Variable or constant expression
+     */
+    static XQueryParser.XqContext term(String term) {
+        return term.startsWith("$") ? variable(term) : constant(term);
+    }
+
+    /**
+     * Builds the path of the children of an expression, through a sequence of tag and wildcard steps
+     *
+     * @param xq    Expression
+     * @param steps Tags of the steps ("*" for wildcards)
+     * @return Children expression
+     */
+    static XQueryParser.XqContext children(XQueryParser.XqContext xq, String... steps) {
+        XQueryParser.RpContext rp = null;
+        for (String step : steps) {
+            XQueryParser.RpContext next = step.equals("*")
+                    ? node(new XQueryParser.RpWildcardContext(new XQueryParser.RpContext()), "*")
+                    : node(new XQueryParser.RpTagContext(new XQueryParser.RpContext()),
+                    token(XQueryParser.Identifier, step));
+            rp = (rp == null) ? next : node(new XQueryParser.RpChildrenContext(new XQueryParser.RpContext()), rp, "/", next);
+        }
+        return node(new XQueryParser.XqChildrenContext(new XQueryParser.XqContext()), xq, "/", rp);
+    }
+
+    /**
+     * Builds a tag
+     *
+     * @param tag Tag name
+     * @param xq  Content of the tag
+     * @return Tag expression
+     */
+    static XQueryParser.XqContext tag(String tag, XQueryParser.XqContext xq) {
+        return node(new XQueryParser.XqTagContext(new XQueryParser.XqContext()),
+                "<", token(XQueryParser.Identifier, tag), ">", "{", xq, "}", "</", token(XQueryParser.Identifier, tag), ">");
+    }
+
+    /**
+     * Builds the concatenation of a list of expressions
+     *
+     * @param xqs Expressions (at least one)
+     * @return Pair expression (the expression itself if there is only one)
+     */
+    static XQueryParser.XqContext pair(List<XQueryParser.XqContext> xqs) {
+        XQueryParser.XqContext xq = xqs.get(0);
+        for (int i = 1; i < xqs.size(); ++i) {
+            xq = node(new XQueryParser.XqPairContext(new XQueryParser.XqContext()), xq, ",", xqs.get(i));
+        }
+        return xq;
+    }
+
+    /**
+     * Builds a join
+     *
+     * @param join      Name of the join (join, semijoin, antijoin or groupjoin)
+     * @param left      Left input
+     * @param right     Right input
+     * @param leftKeys  Tags of the join keys of the left input
+     * @param rightKeys Tags of the join keys of the right input
+     * @return Join expression
+     */
+    static XQueryParser.XqContext join(String join, XQueryParser.XqContext left, XQueryParser.XqContext right,
+                                       List<String> leftKeys, List<String> rightKeys) {
+        XQueryParser.XqContext ctx;
+        switch (join) {
+            case "join":
+                ctx = new XQueryParser.XqJoinContext(new XQueryParser.XqContext());
+                break;
+            case "semijoin":
+                ctx = new XQueryParser.XqSemiJoinContext(new XQueryParser.XqContext());
+                break;
+            case "antijoin":
+                ctx = new XQueryParser.XqAntiJoinContext(new XQueryParser.XqContext());
+                break;
+            case "groupjoin":
+                ctx = new XQueryParser.XqGroupJoinContext(new XQueryParser.XqContext());
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown join: " + join);
+        }
+        return node(ctx, join, "(", left, ",", right, ",", tagList(leftKeys), ",", tagList(rightKeys), ")");
+    }
+
+    /**
+     * Builds a rank
+     *
+     * @param xq  Tuples
+     * @param tag Tag of the position of the tuples
+     * @return Rank expression
+     */
+    static XQueryParser.XqContext rank(XQueryParser.XqContext xq, String tag) {
+        return node(new XQueryParser.XqRankContext(new XQueryParser.XqContext()),
+                "rank", "(", xq, ",", token(XQueryParser.Identifier, tag), ")");
+    }
+
+    /**
+     * Builds a sort
+     *
+     * @param xq   Tuples
+     * @param tags Tags of the positions the tuples are sorted by
+     * @return Sort expression
+     */
+    static XQueryParser.XqContext sort(XQueryParser.XqContext xq, List<String> tags) {
+        return node(new XQueryParser.XqSortContext(new XQueryParser.XqContext()), "sort", "(", xq, ",", tagList(tags), ")");
+    }
+
+    /**
+     * Builds a list of tags
+     *
+     * @param tags Tags
+     * @return Tag list
+     */
+    private static XQueryParser.TagListContext tagList(List<String> tags) {
+        List<Object> children = new ArrayList<>();
+        children.add("[");
+        for (String tag : tags) {
+            if (children.size() > 1) {
+                children.add(",");
+            }
+            children.add(token(XQueryParser.Identifier, tag));
+        }
+        children.add("]");
+        return node(new XQueryParser.TagListContext(null, -1), children.toArray());
+    }
+
+    /**
+     * Builds a FLWR expression
+     *
+     * @param forClause    For clause
+     * @param letClause    Let clause (null if there is none)
+     * @param whereClause  Where clause (null if there is none)
+     * @param returnClause Return clause
+     * @return FLWR expression
+     */
+    static XQueryParser.XqFLWRContext flwr(XQueryParser.ForClauseContext forClause, XQueryParser.LetClauseContext letClause,
+                                           XQueryParser.WhereClauseContext whereClause,
+                                           XQueryParser.ReturnClauseContext returnClause) {
+        XQueryParser.XqFLWRContext ctx = node(new XQueryParser.XqFLWRContext(new XQueryParser.XqContext()), forClause);
+        if (letClause != null) {
+            node(ctx, letClause);
+        }
+        if (whereClause != null) {
+            node(ctx, whereClause);
+        }
+        return node(ctx, returnClause);
+    }
+
+    /**
+     * Builds a for clause
+     *
+     * @param vars Variable names (starting with '$')
+     * @param xqs  Expressions the variables iterate over (in the same order as vars)
+     * @return For clause
+     */
+    static XQueryParser.ForClauseContext forClause(List<String> vars, List<XQueryParser.XqContext> xqs) {
+        return node(new XQueryParser.ForClauseContext(null, -1), bindings("for", "in", vars, xqs));
+    }
+
+    /**
+     * Builds a let clause
+     *
+     * @param vars Variable names (starting with '$')
+     * @param xqs  Expressions the variables are bound to (in the same order as vars)
+     * @return Let clause
+     */
+    static XQueryParser.LetClauseContext letClause(List<String> vars, List<XQueryParser.XqContext> xqs) {
+        return node(new XQueryParser.LetClauseContext(null, -1), bindings("let", ":=", vars, xqs));
+    }
+
+    /**
+     * Obtains the children of a for or let clause
+     *
+     * @param keyword  Keyword of the clause
+     * @param operator Operator between every variable and its expression
+     * @param vars     Variable names (starting with '$')
+     * @param xqs      Expressions of the variables (in the same order as vars)
+     * @return Children of the clause, in order
+     */
+    private static Object[] bindings(String keyword, String operator, List<String> vars, List<XQueryParser.XqContext> xqs) {
+        List<Object> children = new ArrayList<>();
+        children.add(keyword);
+        for (int i = 0; i < vars.size(); ++i) {
+            if (i > 0) {
+                children.add(",");
+            }
+            children.add(token(XQueryParser.Variable, vars.get(i)));
+            children.add(operator);
+            children.add(xqs.get(i));
+        }
+        return children.toArray();
+    }
+
+    /**
+     * Builds a where clause
+     *
+     * @param conds Conditions of the clause, joined by the boolean and operator (at least one)
+     * @return Where clause
+     */
+    static XQueryParser.WhereClauseContext whereClause(List<XQueryParser.CondContext> conds) {
+        XQueryParser.CondContext cond = conds.get(0);
+        for (int i = 1; i < conds.size(); ++i) {
+            cond = node(new XQueryParser.CondAndContext(new XQueryParser.CondContext()), cond, "and", conds.get(i));
+        }
+        return node(new XQueryParser.WhereClauseContext(null, -1), "where", cond);
+    }
+
+    /**
+     * Builds a return clause
+     *
+     * @param xq Returned expression
+     * @return Return clause
+     */
+    static XQueryParser.ReturnClauseContext returnClause(XQueryParser.XqContext xq) {
+        return node(new XQueryParser.ReturnClauseContext(null, -1), "return", xq);
+    }
+
+    /**
+     * Builds a value equality between two variables or string literals
+     *
+     * @param left  Left variable name (starting with '$') or string literal (quoted)
+     * @param right Right variable name (starting with '$') or string literal (quoted)
+     * @return Value equality condition
+     */
+    static XQueryParser.CondContext equality(String left, String right) {
+        return node(new XQueryParser.CondValueEqualityContext(new XQueryParser.CondContext()), term(left), "=", term(right));
+    }
+}
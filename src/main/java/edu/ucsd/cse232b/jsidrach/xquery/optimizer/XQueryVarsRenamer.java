@@ -1,11 +1,19 @@
 package edu.ucsd.cse232b.jsidrach.xquery.optimizer;
 
 import edu.ucsd.cse232b.jsidrach.antlr.XQueryParser;
+import org.antlr.v4.runtime.WritableToken;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
 
 import java.util.HashMap;
+import java.util.Map;
 
 /**
  * XQueryVarsRenamer - renames the variable names of xquery queries so that all are unique
+ * <p>
+ * Queries are either rewritten into a string, or renamed in place (rewriting the tokens of the parse tree),
+ * so the renamed tree can be optimized and executed without being parsed again
+ * </p>
  */
 public class XQueryVarsRenamer extends XQuerySerializer {
 
@@ -29,6 +37,11 @@ public class XQueryVarsRenamer extends XQuerySerializer {
      */
     private int varNum;
 
+    /**
+     * Map from the variable tokens visited to their unique names
+     */
+    private HashMap<TerminalNode, String> renames;
+
     /**
      * Public Constructor - Initializes the variables
      */
@@ -37,6 +50,32 @@ public class XQueryVarsRenamer extends XQuerySerializer {
         this.varPrefix = "$v";
         this.undefinedVarPrefix = "$Undefined";
         this.varNum = 0;
+        this.renames = new HashMap<>();
+    }
+
+    /**
+     * Renames the variables of a parse tree in place, so they are all unique
+     *
+     * @param tree Parse tree of the query (its variable tokens are rewritten)
+     */
+    public void rename(ParseTree tree) {
+        visit(tree);
+        for (Map.Entry<TerminalNode, String> rename : renames.entrySet()) {
+            ((WritableToken) rename.getKey().getSymbol()).setText(rename.getValue());
+        }
+        renames.clear();
+    }
+
+    /**
+     * Records the unique name of a variable token
+     *
+     * @param var  Variable token
+     * @param name Unique variable name
+     * @return Unique variable name
+     */
+    private String rename(TerminalNode var, String name) {
+        renames.put(var, name);
+        return name;
     }
 
     /**
@@ -80,7 +119,7 @@ public class XQueryVarsRenamer extends XQuerySerializer {
      */
     @Override
     public String visitXqVariable(XQueryParser.XqVariableContext ctx) {
-        return getVarName(ctx.Variable().getText());
+        return rename(ctx.Variable(), getVarName(ctx.Variable().getText()));
     }
 
     /**
@@ -122,7 +161,7 @@ public class XQueryVarsRenamer extends XQuerySerializer {
         String q = "";
         q += " for ";
         for (int i = 0; i < ctx.Variable().size(); ++i) {
-            String v = nextVarName();
+            String v = rename(ctx.Variable(i), nextVarName());
             String xq = visit(ctx.xq(i));
             vars.put(ctx.Variable(i).getText(), v);
             q += v + " in " + xq;
@@ -144,7 +183,7 @@ public class XQueryVarsRenamer extends XQuerySerializer {
         String q = "";
         q += " let ";
         for (int i = 0; i < ctx.Variable().size(); ++i) {
-            String v = nextVarName();
+            String v = rename(ctx.Variable(i), nextVarName());
             String xq = visit(ctx.xq(i));
             vars.put(ctx.Variable(i).getText(), v);
             q += v + ":=" + xq;
@@ -167,7 +206,7 @@ public class XQueryVarsRenamer extends XQuerySerializer {
         String q = "";
         q += " some ";
         for (int i = 0; i < ctx.Variable().size(); ++i) {
-            String v = nextVarName();
+            String v = rename(ctx.Variable(i), nextVarName());
             String xq = visit(ctx.xq(i));
             this.vars.put(ctx.Variable(i).getText(), v);
             q += v + " in " + xq;
@@ -0,0 +1,239 @@
+package edu.ucsd.cse232b.jsidrach.utils;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * XMLWriterTests - Unit tests for the XMLWriter, against the identity Transformer of the JDK
+ */
+public class XMLWriterTests {
+
+    /**
+     * Transforms a list of nodes with the identity Transformer of the JDK (as IO.NodesToString did)
+     *
+     * @param ns      List of nodes
+     * @param verbose Flag to write a comment with the number of nodes and before each one
+     * @param indent  Flag to indent the nodes
+     * @return XML representation of the nodes, each one trimmed and followed by a new line
+     * @throws Exception If the nodes cannot be transformed
+     */
+    private static String transform(List<Node> ns, boolean verbose, boolean indent) throws Exception {
+        TransformerFactory tf = TransformerFactory.newInstance();
+        tf.setAttribute("indent-number", 2);
+        Transformer ts = tf.newTransformer();
+        ts.setOutputProperty(OutputKeys.METHOD, "xml");
+        ts.setOutputProperty(OutputKeys.STANDALONE, "yes");
+        ts.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+        ts.setOutputProperty(OutputKeys.INDENT, indent ? "yes" : "no");
+        ts.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, (verbose || (ns.size() != 1)) ? "yes" : "no");
+        StringBuilder output = new StringBuilder();
+        if (verbose) {
+            output.append("<!-- Number of nodes: ").append(ns.size()).append(" -->\n");
+        }
+        for (int i = 0; i < ns.size(); ++i) {
+            if (verbose) {
+                output.append("<!-- Node #").append(i + 1).append(" -->\n");
+            }
+            StringWriter buffer = new StringWriter();
+            ts.transform(new DOMSource(ns.get(i)), new StreamResult(buffer));
+            output.append(buffer.toString().trim()).append('\n');
+        }
+        return output.toString();
+    }
+
+    /**
+     * Writes a list of nodes with the XMLWriter
+     *
+     * @param ns      List of nodes
+     * @param verbose Flag to write a comment with the number of nodes and before each one
+     * @param indent  Flag to indent the nodes
+     * @return XML representation of the nodes, each one trimmed and followed by a new line
+     * @throws Exception If the nodes cannot be written
+     */
+    private static String write(List<Node> ns, boolean verbose, boolean indent) throws Exception {
+        StringWriter output = new StringWriter();
+        XMLWriter writer = new XMLWriter(output, indent);
+        writer.write(ns, verbose);
+        writer.flush();
+        return output.toString();
+    }
+
+    /**
+     * Checks that the XMLWriter writes a list of nodes as the identity Transformer does, with and without
+     * the verbose comments and indentation
+     *
+     * @param ns List of nodes
+     * @throws Exception If the nodes cannot be written
+     */
+    private static void check(List<Node> ns) throws Exception {
+        for (boolean verbose : new boolean[]{false, true}) {
+            for (boolean indent : new boolean[]{false, true}) {
+                assertEquals(transform(ns, verbose, indent), write(ns, verbose, indent));
+            }
+        }
+    }
+
+    /**
+     * Checks that the XMLWriter writes a node, alone and its children, as the identity Transformer does
+     *
+     * @param n Node
+     * @throws Exception If the node cannot be written
+     */
+    private static void check(Node n) throws Exception {
+        List<Node> children = new ArrayList<>();
+        for (Node c = n.getFirstChild(); c != null; c = c.getNextSibling()) {
+            children.add(c);
+        }
+        check(Collections.singletonList(n));
+        check(children);
+    }
+
+    /**
+     * Parses a document
+     *
+     * @param xml            XML representation of the document
+     * @param namespaceAware Flag to parse the namespaces of the document
+     * @return Parsed document
+     * @throws Exception If the document cannot be parsed
+     */
+    private static Document parse(String xml, boolean namespaceAware) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(namespaceAware);
+        return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Creates an empty document
+     *
+     * @return Empty document
+     * @throws Exception If the document cannot be created
+     */
+    private static Document empty() throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        return factory.newDocumentBuilder().newDocument();
+    }
+
+    /**
+     * Special characters of texts and attribute values are escaped
+     */
+    @Test
+    public void EscapingTests() throws Exception {
+        Document doc = empty();
+        Element root = doc.createElement("root");
+        root.setAttribute("quotes", "\"a\" & 'b' <c>");
+        root.setAttribute("whitespace", "tab\tnew line\ncarriage return\r");
+        root.appendChild(doc.createTextNode("a < b && c > d \"e\" 'f'"));
+        Element control = doc.createElement("control");
+        control.appendChild(doc.createTextNode("bell\u0007 delete\u007F next line\u0085 return\r end"));
+        root.appendChild(control);
+        Element unicode = doc.createElement("unicode");
+        unicode.appendChild(doc.createTextNode("é中 😀"));
+        root.appendChild(unicode);
+        check(root);
+        check(parse("<root a=\"&amp;&lt;&gt;&quot;\">&amp;&lt;&gt;<b>&#233;</b></root>", false));
+    }
+
+    /**
+     * CDATA sections are split around ]]> and characters that cannot appear in them
+     */
+    @Test
+    public void CDATATests() throws Exception {
+        Document doc = empty();
+        Element root = doc.createElement("root");
+        root.appendChild(doc.createCDATASection("a]]>b"));
+        Element end = doc.createElement("end");
+        end.appendChild(doc.createTextNode("text before "));
+        end.appendChild(doc.createCDATASection("<not a tag>]]>"));
+        root.appendChild(end);
+        Element control = doc.createElement("control");
+        control.appendChild(doc.createCDATASection("bell\u0007]]]]>\nnext"));
+        root.appendChild(control);
+        check(root);
+    }
+
+    /**
+     * Comments and processing instructions are written in their own indented lines, escaping their terminators
+     */
+    @Test
+    public void CommentProcessingInstructionTests() throws Exception {
+        Document doc = empty();
+        Element root = doc.createElement("root");
+        root.appendChild(doc.createComment(" plain "));
+        root.appendChild(doc.createComment("double -- dash and final dash-"));
+        root.appendChild(doc.createProcessingInstruction("target", "data ?> end"));
+        root.appendChild(doc.createProcessingInstruction("empty", ""));
+        Element child = doc.createElement("child");
+        child.appendChild(doc.createTextNode("text"));
+        child.appendChild(doc.createComment("after text"));
+        root.appendChild(child);
+        check(root);
+        check(parse("<?pi first?><!-- before --><root><?pi inner?></root><!-- after -->", false));
+    }
+
+    /**
+     * Mixed content is indented as the identity Transformer does
+     */
+    @Test
+    public void MixedContentTests() throws Exception {
+        check(parse("<root>text<a>inner</a>tail\n\nnew lines<b/>  spaces  <c><d>deep</d>text</c></root>", false));
+        check(parse("<root>\n  <a>only text</a>\n  <b>\n    <c/>\n  </b>\n</root>", false));
+        check(parse("<root><a></a><b> </b><c>one<![CDATA[two]]>three</c></root>", false));
+    }
+
+    /**
+     * Namespace declarations are written first, and the namespaces of elements and attributes are declared
+     */
+    @Test
+    public void NamespaceTests() throws Exception {
+        String xml = "<a:r xmlns:a=\"urn:a\" z=\"1\" xmlns=\"urn:d\" b:w=\"2\" xmlns:b=\"urn:b\">"
+                + "<a:c a:k=\"v\"/><c xmlns=\"\">t</c><d xmlns:a=\"urn:a2\"><a:e/></d></a:r>";
+        check(parse(xml, true).getDocumentElement());
+        // Without namespaces, prefixed children cannot be written alone (their prefixes are not declared)
+        check(Collections.singletonList(parse(xml, false).getDocumentElement()));
+        Document doc = empty();
+        Element root = doc.createElementNS("urn:a", "x:root");
+        root.setAttribute("plain", "1");
+        root.setAttributeNS("urn:b", "y:prefixed", "2");
+        root.setAttributeNS("urn:c", "unprefixed", "3");
+        root.setAttributeNS("urn:e", "other", "4");
+        Element child = doc.createElementNS("urn:a", "x:child");
+        child.setAttributeNS("urn:a", "x:same", "5");
+        root.appendChild(child);
+        root.appendChild(doc.createElementNS(null, "none"));
+        Element defaulted = doc.createElementNS("urn:d", "default");
+        defaulted.appendChild(doc.createElementNS("urn:d", "inner"));
+        defaulted.appendChild(doc.createElementNS(null, "none"));
+        root.appendChild(defaulted);
+        root.appendChild(doc.createElement("level1"));
+        check(root);
+    }
+
+    /**
+     * The XML declaration is only written before single nodes, with the properties of document nodes
+     */
+    @Test
+    public void DeclarationTests() throws Exception {
+        Document doc = parse("<?xml version=\"1.0\" encoding=\"ISO-8859-1\" standalone=\"no\"?>"
+                + "<root>é中<![CDATA[中]]></root>", false);
+        check(doc);
+        check(parse("<root><a>1</a><b>2</b></root>", false).getDocumentElement());
+    }
+}
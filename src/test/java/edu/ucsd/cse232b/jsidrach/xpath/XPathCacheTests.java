@@ -0,0 +1,105 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * XPathCacheTests - Unit tests for the DocumentCache
+ */
+public class XPathCacheTests extends XPathTests {
+
+    /**
+     * Test documents (same size, different contents)
+     */
+    private final File play = new File("src/test/resources/edu/ucsd/cse232b/jsidrach/xpath/j_caesar.xml");
+    private final File playAltered = new File("src/test/resources/edu/ucsd/cse232b/jsidrach/xpath/j_caesar_altered.xml");
+
+    /**
+     * Repeated loads of the same file are served from the cache
+     */
+    @Test
+    public void HitTests() throws Exception {
+        DocumentCache cache = new DocumentCache(Long.MAX_VALUE);
+        Document first = cache.load(play);
+        Document second = cache.load(new File(play.getAbsolutePath()));
+        assertSame(first, second);
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+
+    /**
+     * The least recently used document is evicted when the capacity is exceeded
+     */
+    @Test
+    public void EvictionTests() throws Exception {
+        DocumentCache cache = new DocumentCache(Long.MAX_VALUE);
+        Document first = cache.load(play);
+        cache.setCapacity(cache.getFootprint());
+        cache.load(playAltered);
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, cache.size());
+        assertNotSame(first, cache.load(play));
+        assertEquals(3, cache.getMisses());
+        assertEquals(2, cache.getEvictions());
+    }
+
+    /**
+     * Documents bigger than the capacity are never cached
+     */
+    @Test
+    public void CapacityTests() throws Exception {
+        DocumentCache cache = new DocumentCache(0);
+        assertNotSame(cache.load(play), cache.load(play));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getFootprint());
+        assertEquals(2, cache.getMisses());
+    }
+
+    /**
+     * Concurrent loads of the same file parse it once and share the document
+     */
+    @Test
+    public void ConcurrentLoadTests() throws Exception {
+        DocumentCache cache = new DocumentCache(Long.MAX_VALUE);
+        int threads = 8;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Callable<Document>> loads = new ArrayList<>();
+        for (int i = 0; i < threads; ++i) {
+            loads.add(() -> {
+                start.await();
+                return cache.load(play);
+            });
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Document>> futures = new ArrayList<>();
+            for (Callable<Document> load : loads) {
+                futures.add(pool.submit(load));
+            }
+            start.countDown();
+            Document first = futures.get(0).get();
+            for (Future<Document> future : futures) {
+                assertSame(first, future.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(threads - 1, cache.getHits());
+        assertEquals(1, cache.size());
+    }
+}
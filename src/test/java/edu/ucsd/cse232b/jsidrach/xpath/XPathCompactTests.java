@@ -0,0 +1,146 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import edu.ucsd.cse232b.jsidrach.utils.XPathEngine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import java.io.File;
+import java.util.LinkedList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * XPathCompactTests - Unit tests for XPath, evaluated over compact documents (see CompactStore)
+ */
+public class XPathCompactTests extends XPathUnitTests {
+
+    /**
+     * Test document
+     */
+    private final File play = new File("src/test/resources/edu/ucsd/cse232b/jsidrach/xpath/j_caesar.xml");
+
+    /**
+     * Loads the documents of the tests as compact documents (queries are not streamed)
+     */
+    @Before
+    public void setUp() {
+        XPathEngine.setStreaming(false);
+        DocumentCache.getInstance().clear();
+        DocumentCache.getInstance().setCompact(true);
+    }
+
+    /**
+     * Restores the default representation of the documents
+     */
+    @After
+    public void tearDown() {
+        DocumentCache.getInstance().setCompact(false);
+        DocumentCache.getInstance().clear();
+        XPathEngine.setStreaming(true);
+    }
+
+    /**
+     * Compact and DOM documents of the same file have the same tree
+     */
+    @Test
+    public void StoreTests() throws Exception {
+        DocumentCache cache = new DocumentCache(Long.MAX_VALUE);
+        Document dom = cache.load(play);
+        cache.clear();
+        cache.setCompact(true);
+        Document compact = cache.load(play);
+        assertTrue(compact.isEqualNode(dom));
+        assertTrue(dom.getDocumentElement().isEqualNode(compact.getDocumentElement()));
+        DocumentIndex domIndex = DocumentIndex.of(dom);
+        DocumentIndex compactIndex = DocumentIndex.of(compact);
+        assertNotNull(compactIndex);
+        assertEquals(domIndex.size(), compactIndex.size());
+        for (int pre = 0; pre < compactIndex.size(); ++pre) {
+            Node n = compactIndex.node(pre);
+            assertSame(n, compactIndex.node(pre));
+            assertEquals(pre, compactIndex.pre(n));
+            assertEquals(domIndex.post(pre), compactIndex.post(pre));
+            assertEquals(domIndex.node(pre).getNodeName(), n.getNodeName());
+            assertEquals(domIndex.node(pre).getNodeValue(), n.getNodeValue());
+        }
+        // The store is much smaller than the estimated footprint of the DOM
+        assertTrue(cache.getFootprint() * 2 < play.length() * 8);
+    }
+
+    /**
+     * Compact and DOM nodes of the same file have the same structural hash codes,
+     * and lists of both are compared by value as node by node
+     */
+    @Test
+    public void HashTests() throws Exception {
+        DocumentCache cache = new DocumentCache(Long.MAX_VALUE);
+        DocumentIndex domIndex = DocumentIndex.of(cache.load(play));
+        cache.clear();
+        cache.setCompact(true);
+        DocumentIndex compactIndex = DocumentIndex.of(cache.load(play));
+        LinkedList<Node> doms = new LinkedList<>();
+        LinkedList<Node> compacts = new LinkedList<>();
+        for (int pre = 0; pre < compactIndex.size(); ++pre) {
+            Node n = compactIndex.node(pre);
+            assertEquals(XPathEvaluator.hash(domIndex.node(pre)), XPathEvaluator.hash(n));
+            assertEquals(XPathEvaluator.structuralHash(n), XPathEvaluator.hash(n));
+            // Every other speaker (by position) of the DOM, and every third one of the compact document
+            if (n.getNodeName().equals("SPEAKER")) {
+                if (pre % 2 == 0) {
+                    doms.add(domIndex.node(pre));
+                }
+                if (pre % 3 == 0) {
+                    compacts.add(n);
+                }
+            }
+        }
+        assertTrue(XPathEvaluator.existsEqual(doms, compacts));
+        assertTrue(XPathEvaluator.existsEqual(compacts, doms));
+        LinkedList<Node> others = new LinkedList<>();
+        for (Node n : compacts) {
+            if (!n.getTextContent().equals(doms.getFirst().getTextContent())) {
+                others.add(n);
+            }
+        }
+        LinkedList<Node> first = new LinkedList<>();
+        first.add(doms.getFirst());
+        first.add(doms.getFirst().getFirstChild());
+        assertFalse(XPathEvaluator.existsEqual(first, others));
+        assertFalse(XPathEvaluator.existsEqual(others, first));
+    }
+
+    /**
+     * Nodes nested in each other are compared by their structural hash codes, cached for the DOM during the comparison
+     */
+    @Test
+    public void NestedHashTests() throws Exception {
+        DocumentCache cache = new DocumentCache(Long.MAX_VALUE);
+        DocumentIndex domIndex = DocumentIndex.of(cache.load(play));
+        cache.clear();
+        cache.setCompact(true);
+        DocumentIndex compactIndex = DocumentIndex.of(cache.load(play));
+        // Every node of the DOM, so every node is a descendant of the previous ones
+        LinkedList<Node> doms = new LinkedList<>();
+        for (int pre = 0; pre < domIndex.size(); ++pre) {
+            doms.add(domIndex.node(pre));
+        }
+        LinkedList<Node> compacts = new LinkedList<>();
+        compacts.add(compactIndex.node(compactIndex.size() - 1));
+        compacts.add(compactIndex.node(1));
+        assertTrue(XPathEvaluator.existsEqual(doms, compacts));
+        assertTrue(XPathEvaluator.existsEqual(compacts, doms));
+        Document dom = new DocumentCache(Long.MAX_VALUE).load(play);
+        LinkedList<Node> others = new LinkedList<>();
+        others.add(dom.createElement("NOT-IN-PLAY"));
+        others.add(dom.createTextNode("not in the play"));
+        assertFalse(XPathEvaluator.existsEqual(doms, others));
+        assertFalse(XPathEvaluator.existsEqual(others, doms));
+    }
+}
@@ -0,0 +1,67 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * XPathIndexTests - Unit tests for the DocumentIndex
+ */
+public class XPathIndexTests extends XPathTests {
+
+    /**
+     * Pre/post-order numbering is consistent with the document tree
+     */
+    @Test
+    public void NumberingTests() throws Exception {
+        DocumentCache cache = new DocumentCache(Long.MAX_VALUE);
+        Document doc = cache.load(new File("src/test/resources/edu/ucsd/cse232b/jsidrach/xpath/j_caesar.xml"));
+        DocumentIndex index = DocumentIndex.of(doc);
+        assertNotNull(index);
+        assertEquals(0, index.pre(doc));
+        assertEquals(index.size() - 1, index.last(0));
+        for (int pre = 1; pre < index.size(); ++pre) {
+            Node n = index.node(pre);
+            assertEquals(pre, index.pre(n));
+            int parent = index.pre(n.getParentNode());
+            assertEquals(index.level(parent) + 1, index.level(pre));
+            assertEquals(true, index.isAncestor(parent, pre));
+            assertEquals(false, index.isAncestor(pre, parent));
+            // The next sibling starts right after the last descendant
+            if (n.getNextSibling() != null) {
+                assertSame(n.getNextSibling(), index.node(index.last(pre) + 1));
+            }
+        }
+    }
+
+    /**
+     * Descendant tag steps return the same nodes with and without the inverted index of element names
+     */
+    @Test
+    public void TagIndexTests() throws Exception {
+        File play = new File("src/test/resources/edu/ucsd/cse232b/jsidrach/xpath/j_caesar.xml");
+        DocumentCache cache = new DocumentCache(Long.MAX_VALUE);
+        Document indexed = cache.load(play);
+        cache.clear();
+        cache.setTagIndex(false);
+        Document scanned = cache.load(play);
+        String[] tags = {"PLAY", "SPEECH", "LINE", "STAGEDIR", "MISSING"};
+        for (String tag : tags) {
+            List<Node> acts = XPathEvaluator.descendantsByTag(XPathEvaluator.singleton(indexed), "ACT");
+            List<Node> byIndex = XPathEvaluator.descendantsByTag(acts, tag);
+            acts = XPathEvaluator.descendantsByTag(XPathEvaluator.singleton(scanned), "ACT");
+            List<Node> byScan = XPathEvaluator.descendantsByTag(acts, tag);
+            assertEquals(byScan.size(), byIndex.size());
+            for (int i = 0; i < byIndex.size(); ++i) {
+                assertEquals(true, byIndex.get(i).isEqualNode(byScan.get(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import edu.ucsd.cse232b.jsidrach.utils.XPathEngine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * XPathStatisticsTests - Unit tests for the DocumentStatistics
+ */
+public class XPathStatisticsTests extends XPathTests {
+
+    /**
+     * Temporary directory with a copy of a test document (and its DTD)
+     */
+    private File dir;
+
+    /**
+     * Copy of a test document, so its side file and modification time can be changed
+     */
+    private File play;
+
+    /**
+     * Copies the test document to a temporary directory
+     */
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("statistics").toFile();
+        play = new File(dir, "j_caesar.xml");
+        for (String name : new String[]{"j_caesar.xml", "play.dtd"}) {
+            Files.copy(new File("src/test/resources/edu/ucsd/cse232b/jsidrach/xpath/" + name).toPath(),
+                    new File(dir, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        DocumentStatistics.clear();
+    }
+
+    /**
+     * Removes the temporary directory
+     */
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+        DocumentStatistics.clear();
+    }
+
+    /**
+     * Counts of the path summary are the number of nodes returned by the equivalent queries
+     */
+    @Test
+    public void SummaryTests() throws Exception {
+        DocumentStatistics stats = DocumentStatistics.get(play);
+        String doc = "doc(\"" + play.getPath() + "\")";
+        assertEquals(XPathEngine.Query(doc + "/PLAY/ACT").size(), stats.cardinality("/PLAY/ACT"));
+        assertEquals(XPathEngine.Query(doc + "/PLAY/ACT/SCENE/SPEECH").size(), stats.cardinality("/PLAY/ACT/SCENE/SPEECH"));
+        assertEquals(XPathEngine.Query(doc + "//SPEAKER").size(), stats.count("SPEAKER"));
+        List<?> speakers = XPathEngine.Query(doc + "//SPEAKER/text()");
+        assertEquals(speakers.size(), stats.cardinality("/PLAY/ACT/SCENE/SPEECH/SPEAKER/text()"));
+        assertTrue(stats.distinct("/PLAY/ACT/SCENE/SPEECH/SPEAKER/text()") < speakers.size());
+        assertEquals(0, stats.cardinality("/PLAY/SPEECH"));
+        assertTrue(stats.getFanout() > 1);
+    }
+
+    /**
+     * Statistics are persisted in the side file, and collected again only when the document changes
+     */
+    @Test
+    public void PersistenceTests() throws Exception {
+        File sideFile = DocumentStatistics.sideFile(play);
+        DocumentStatistics stats = DocumentStatistics.get(play);
+        assertTrue(sideFile.isFile());
+        assertSame(stats, DocumentStatistics.get(play));
+        // Read back from the side file
+        DocumentStatistics.clear();
+        String persisted = new String(Files.readAllBytes(sideFile.toPath()), StandardCharsets.UTF_8);
+        DocumentStatistics read = DocumentStatistics.get(play);
+        assertNotSame(stats, read);
+        assertEquals(stats.paths(), read.paths());
+        assertEquals(stats.distinct("/PLAY/TITLE/text()"), read.distinct("/PLAY/TITLE/text()"));
+        assertEquals(persisted, new String(Files.readAllBytes(sideFile.toPath()), StandardCharsets.UTF_8));
+        // Invalidated by the modification time of the document
+        assertTrue(play.setLastModified(play.lastModified() - 60000));
+        DocumentStatistics.clear();
+        DocumentStatistics changed = DocumentStatistics.get(play);
+        assertEquals(stats.paths(), changed.paths());
+        assertTrue(new String(Files.readAllBytes(sideFile.toPath()), StandardCharsets.UTF_8)
+                .contains("lastModified\t" + play.lastModified() + "\n"));
+    }
+
+    /**
+     * Truncated side files are detected, and the statistics are collected again and persisted whole
+     */
+    @Test
+    public void TruncatedTests() throws Exception {
+        File sideFile = DocumentStatistics.sideFile(play);
+        DocumentStatistics stats = DocumentStatistics.get(play);
+        byte[] persisted = Files.readAllBytes(sideFile.toPath());
+        assertTrue(new String(persisted, StandardCharsets.UTF_8).contains("\nend\t"));
+        // Cut at the end of a line, so every record left is valid
+        String text = new String(persisted, StandardCharsets.UTF_8);
+        Files.write(sideFile.toPath(), text.substring(0, text.indexOf('\n', text.length() / 2) + 1)
+                .getBytes(StandardCharsets.UTF_8));
+        DocumentStatistics.clear();
+        DocumentStatistics read = DocumentStatistics.get(play);
+        assertNotSame(stats, read);
+        assertEquals(stats.paths(), read.paths());
+        assertEquals(stats.cardinality("/PLAY/ACT/SCENE/SPEECH"), read.cardinality("/PLAY/ACT/SCENE/SPEECH"));
+        assertArrayEquals(persisted, Files.readAllBytes(sideFile.toPath()));
+    }
+
+    /**
+     * Side files are written through a temporary file, which is not left behind
+     */
+    @Test
+    public void TemporaryFileTests() throws Exception {
+        DocumentStatistics.get(play);
+        assertTrue(play.setLastModified(play.lastModified() - 60000));
+        DocumentStatistics.get(play);
+        String[] names = dir.list();
+        assertNotNull(names);
+        Arrays.sort(names);
+        assertArrayEquals(new String[]{"j_caesar.xml", "j_caesar.xml" + DocumentStatistics.EXTENSION, "play.dtd"}, names);
+    }
+}
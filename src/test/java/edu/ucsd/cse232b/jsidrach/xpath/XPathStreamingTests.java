@@ -0,0 +1,151 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import edu.ucsd.cse232b.jsidrach.antlr.XPathLexer;
+import edu.ucsd.cse232b.jsidrach.antlr.XPathParser;
+import edu.ucsd.cse232b.jsidrach.utils.IO;
+import edu.ucsd.cse232b.jsidrach.utils.XPathEngine;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * XPathStreamingTests - Unit tests for the XPathStreamer
+ */
+public class XPathStreamingTests extends XPathTests {
+
+    /**
+     * Document with elements of the same tag nested at different depths
+     */
+    private static final String NESTED = "doc(\"src/test/resources/edu/ucsd/cse232b/jsidrach/xpath/streaming-tests/nested.xml\")";
+
+    /**
+     * Queries are evaluated over the DOM tree unless streamed explicitly
+     */
+    @Before
+    public void setUp() {
+        XPathEngine.setStreaming(false);
+        DocumentCache.getInstance().clear();
+    }
+
+    /**
+     * Restores the default evaluation of the queries
+     */
+    @After
+    public void tearDown() {
+        XPathEngine.setStreaming(true);
+        DocumentCache.getInstance().clear();
+    }
+
+    /**
+     * Compiles a query into a streaming evaluator
+     *
+     * @param query XPath query
+     * @return Streaming evaluator if the query is streamable - null otherwise
+     */
+    private XPathStreamer compile(String query) {
+        XPathParser parser = new XPathParser(new CommonTokenStream(new XPathLexer(new ANTLRInputStream(query))));
+        return XPathStreamer.compile(parser.ap());
+    }
+
+    /**
+     * Checks that a streamable query returns the same results, in the same order, streamed and over the DOM tree
+     *
+     * @param query XPath query
+     * @return true if the query is streamable, false otherwise
+     * @throws Exception If the document of the query cannot be read
+     */
+    private boolean check(String query) throws Exception {
+        XPathStreamer streamer = compile(query);
+        if (streamer == null) {
+            return false;
+        }
+        String streamed = IO.NodesToString(streamer.evaluate(), true);
+        String expected = IO.NodesToString(XPathEngine.Query(query), true);
+        assertEquals(query, expected, streamed);
+        return true;
+    }
+
+    /**
+     * Streamed queries of the test suites return the same results as the DOM tree
+     */
+    @Test
+    public void SuiteTests() throws Exception {
+        int streamable = 0;
+        List<Path> inputs;
+        try (Stream<Path> paths = Files.walk(Paths.get("src/test/resources/edu/ucsd/cse232b/jsidrach/xpath"))) {
+            inputs = paths.filter(p -> p.getFileName().toString().contains("-input-")).collect(Collectors.toList());
+        }
+        for (Path input : inputs) {
+            String query = new String(Files.readAllBytes(input), "UTF-8").trim();
+            if (check(query)) {
+                ++streamable;
+            }
+        }
+        assertTrue(streamable > 10);
+    }
+
+    /**
+     * Results below nested anchors are emitted in the order of the DOM evaluation
+     */
+    @Test
+    public void NestedTests() throws Exception {
+        String[] queries = {
+                "//A", "//A/B", "//A/B/A", "//A/*", "//A/text()", "//A/@id", "//A/B/text()",
+                "//A//B", "//A//B/text()", "//A[B]/C", "//A[not B]", "//A[B and not C]/*",
+                "//A[@id]/B", "//B[A or text()]", "//A/B[B]/B", "/A/A//B", "/A/*/*", "//C/text()",
+                "//B[*]", "//A[D]", "//A/A[B][not @id]", "//A/B//text()", "/A/*[A]", "/*", "//*", "/A[B]"
+        };
+        for (String query : queries) {
+            assertTrue(query, check(NESTED + query));
+        }
+    }
+
+    /**
+     * Queries outside of the streamable subset are not compiled
+     */
+    @Test
+    public void FallbackTests() throws Exception {
+        String[] queries = {
+                "/A/..", "//A/.", "/A, /B", "//A[B/C]", "//A[B = C]", "/A/text()/B", "//A[B]//C"
+        };
+        for (String query : queries) {
+            assertNull(query, compile(NESTED + query));
+        }
+        XPathStreamer streamer = compile(NESTED + "//A");
+        assertNotNull(streamer);
+        assertEquals(new File("src/test/resources/edu/ucsd/cse232b/jsidrach/xpath/streaming-tests/nested.xml"),
+                streamer.getFile());
+        // Streamed and DOM evaluations of the engine return the same results
+        String expected = IO.NodesToString(XPathEngine.Query(NESTED + "//A/B"), true);
+        DocumentCache.getInstance().clear();
+        XPathEngine.setStreaming(true);
+        assertEquals(expected, IO.NodesToString(XPathEngine.Query(NESTED + "//A/B"), true));
+        assertEquals(0, DocumentCache.getInstance().size());
+        // The document type node is a child of the document, so the engine falls back to the DOM tree
+        String play = "doc(\"src/test/resources/edu/ucsd/cse232b/jsidrach/xpath/j_caesar.xml\")/PLAY";
+        try {
+            compile(play).evaluate();
+            fail(play);
+        } catch (SAXException e) {
+            // Expected
+        }
+        assertEquals(2, XPathEngine.Query(play).size());
+    }
+}
@@ -0,0 +1,118 @@
+package edu.ucsd.cse232b.jsidrach.xpath;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * XPathUniqueTests - Unit tests for the removal of duplicate nodes (XPathEvaluator.unique)
+ * <p>
+ * The cost of unique is checked deterministically, by counting the calls to the methods of the nodes
+ * (equals, hashCode, isSameNode, compareDocumentPosition, ...) instead of timing it
+ * </p>
+ */
+public class XPathUniqueTests extends XPathTests {
+
+    /**
+     * Number of distinct nodes of the input
+     */
+    private static final int NODES = 1000;
+
+    /**
+     * Creates a list of distinct nodes with the same structure
+     *
+     * @param n Number of nodes
+     * @return List of n distinct (but equal) element nodes
+     * @throws Exception Internal error
+     */
+    private List<Node> distinctNodes(int n) throws Exception {
+        Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+        Element root = doc.createElement("root");
+        List<Node> nodes = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            nodes.add(root.appendChild(doc.createElement("e")));
+        }
+        return nodes;
+    }
+
+    /**
+     * Duplicates are removed by identity, keeping the order of the first occurrence of each node
+     */
+    @Test
+    public void UniqueTests() throws Exception {
+        assertTrue(XPathEvaluator.unique(new LinkedList<>()).isEmpty());
+        List<Node> nodes = distinctNodes(NODES);
+        assertTrue(nodes.get(0).isEqualNode(nodes.get(1)));
+        // First occurrences in a permuted order, then every node again in reverse and in document order
+        List<Node> expected = new ArrayList<>();
+        for (int i = 0; i < NODES; ++i) {
+            expected.add(nodes.get((i * 7) % NODES));
+        }
+        List<Node> input = new LinkedList<>(expected);
+        for (int i = NODES - 1; i >= 0; --i) {
+            input.add(nodes.get(i));
+        }
+        input.addAll(nodes);
+        LinkedList<Node> unique = XPathEvaluator.unique(input);
+        assertEquals(NODES, unique.size());
+        Iterator<Node> it = unique.iterator();
+        for (Node n : expected) {
+            assertSame(n, it.next());
+        }
+    }
+
+    /**
+     * Creates a list of distinct nodes that count every call to their methods
+     *
+     * @param n     Number of nodes
+     * @param calls Counter of the calls to the methods of the nodes
+     * @return List of n distinct nodes
+     * @throws Exception Internal error
+     */
+    private List<Node> countingNodes(int n, AtomicLong calls) throws Exception {
+        List<Node> nodes = new ArrayList<>();
+        for (Node node : distinctNodes(n)) {
+            nodes.add((Node) Proxy.newProxyInstance(Node.class.getClassLoader(), new Class<?>[]{Node.class},
+                    (proxy, method, args) -> {
+                        calls.incrementAndGet();
+                        if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        }
+                        if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return method.invoke(node, args);
+                    }));
+        }
+        return nodes;
+    }
+
+    /**
+     * The number of node comparisons of unique grows linearly with the size of the input (it was quadratic)
+     */
+    @Test
+    public void UniqueComplexityTests() throws Exception {
+        for (int n = 1000; n <= 8000; n *= 2) {
+            AtomicLong calls = new AtomicLong();
+            List<Node> nodes = countingNodes(n, calls);
+            List<Node> input = new LinkedList<>(nodes);
+            input.addAll(nodes);
+            assertEquals(n, XPathEvaluator.unique(input).size());
+            // At most a constant number of calls per input node
+            assertTrue(calls.get() <= 4L * input.size());
+        }
+    }
+}
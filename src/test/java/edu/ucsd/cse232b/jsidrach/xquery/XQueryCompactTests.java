@@ -0,0 +1,29 @@
+package edu.ucsd.cse232b.jsidrach.xquery;
+
+import edu.ucsd.cse232b.jsidrach.xpath.DocumentCache;
+import org.junit.After;
+import org.junit.Before;
+
+/**
+ * XQueryCompactTests - Integration tests for XQuery, evaluated over compact documents (see CompactStore)
+ */
+public class XQueryCompactTests extends XQueryIntegrationTests {
+
+    /**
+     * Loads the documents of the tests as compact documents
+     */
+    @Before
+    public void setUp() {
+        DocumentCache.getInstance().clear();
+        DocumentCache.getInstance().setCompact(true);
+    }
+
+    /**
+     * Restores the default representation of the documents
+     */
+    @After
+    public void tearDown() {
+        DocumentCache.getInstance().setCompact(false);
+        DocumentCache.getInstance().clear();
+    }
+}
@@ -1,7 +1,12 @@
 package edu.ucsd.cse232b.jsidrach.xquery;
 
+import edu.ucsd.cse232b.jsidrach.utils.XQueryEngine;
+import edu.ucsd.cse232b.jsidrach.utils.XQueryOptimizerEngine;
 import org.junit.Test;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
 /**
  * XQueryIntegrationTests - Integration tests for XQuery
  */
@@ -13,10 +18,22 @@ public class XQueryIntegrationTests extends XQueryTests {
     @Test
     public void IntegrationTests() {
         String resourcesDir = "integration-tests/it";
-        int numTestCases = 13;
+        int numTestCases = 22;
         runTestSuite(resourcesDir, numTestCases);
     }
 
+    /**
+     * The subqueries of integration test 21 cannot be joined in their original order without a Cartesian product:
+     * they are reordered, without any Cartesian product, and the result keeps the order of the original FLWR
+     */
+    @Test
+    public void JoinOrderTests() throws Exception {
+        String optimizedQuery = XQueryOptimizerEngine.Optimize(getResource("integration-tests/it-input-21.txt"), false);
+        assertFalse(optimizedQuery.contains("[],[]"));
+        assertTrue(optimizedQuery.contains("sort("));
+        assertTrue(nodesEqualToResource(XQueryEngine.Query(optimizedQuery, false), "integration-tests/it-output-21.xml"));
+    }
+
     /**
      * Integration tests for XPath
      */
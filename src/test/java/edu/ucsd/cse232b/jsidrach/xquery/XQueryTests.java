@@ -12,6 +12,7 @@ import java.io.FileInputStream;
 import java.io.FileWriter;
 import java.io.Writer;
 import java.net.URI;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Scanner;
@@ -128,6 +129,15 @@ abstract class XQueryTests {
                 if (!nodesEqualToResource(nodes, output)) {
                     fail("Failed (assertion) " + resourcesPrefix + "-" + i);
                 }
+                // Compare pulling the nodes one at a time
+                nodes = new LinkedList<>();
+                Iterator<Node> it = XQueryEngine.Iterate(loadResourceAsString(input), false);
+                while (it.hasNext()) {
+                    nodes.add(it.next());
+                }
+                if (!nodesEqualToResource(nodes, output)) {
+                    fail("Failed (iterated, assertion) " + resourcesPrefix + "-" + i);
+                }
                 // Compare with formatted query
                 String formattedQuery = XQueryFormatterEngine.Format(getResource(input));
                 nodes = XQueryEngine.Query(formattedQuery, false);
@@ -154,6 +164,11 @@ abstract class XQueryTests {
                 if (!nodesEqualToResource(nodes, output)) {
                     fail("Failed (optimized, assertion) " + resourcesPrefix + "-" + i);
                 }
+                // Compare using the optimized parse tree (without serializing it)
+                nodes = XQueryEngine.Query(XQueryOptimizerEngine.Compile(loadResourceAsString(input), false), false);
+                if (!nodesEqualToResource(nodes, output)) {
+                    fail("Failed (compiled, assertion) " + resourcesPrefix + "-" + i);
+                }
                 // Check that the query optimizer is idempotent (after renaming variables)
                 if (!XQueryVarsRenamerEngine.RenameVars(optimizedQuery)
                         .equals(XQueryOptimizerEngine.Optimize(optimizedQuery, false))) {
@@ -1,7 +1,33 @@
 package edu.ucsd.cse232b.jsidrach.xquery;
 
 
+import edu.ucsd.cse232b.jsidrach.antlr.XQueryLexer;
+import edu.ucsd.cse232b.jsidrach.antlr.XQueryParser;
+import edu.ucsd.cse232b.jsidrach.utils.IO;
+import edu.ucsd.cse232b.jsidrach.utils.XQueryEngine;
+import edu.ucsd.cse232b.jsidrach.xpath.FusedPath;
+import edu.ucsd.cse232b.jsidrach.xpath.PathStep;
+import edu.ucsd.cse232b.jsidrach.xpath.XPathEvaluator;
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.TerminalNode;
 import org.junit.Test;
+import org.w3c.dom.Node;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 /**
  * XQueryUnitTests - Unit tests for XQuery
@@ -71,4 +97,311 @@ public class XQueryUnitTests extends XQueryTests {
         int numTestCases = 6;
         runTestSuite(resourcesDir, numTestCases);
     }
+
+    /**
+     * Joins return the same tuples, in the same order, for any degree of parallelism
+     */
+    @Test
+    public void ParallelJoinTests() throws Exception {
+        String doc = "doc(\"src/test/resources/edu/ucsd/cse232b/jsidrach/xquery/j_caesar.xml\")";
+        String query = "join(for $l in " + doc + "//LINE return <t>{<a>{$l/text()}</a>, <l>{$l}</l>}</t>, "
+                + "for $s in " + doc + "//SPEECH/LINE return <t>{<b>{$s/text()}</b>}</t>, [a], [b])";
+        LinkedList<Node> sequential = XQueryEngine.Query(query, false, 1);
+        assertTrue(sequential.size() > HashJoin.PARALLEL_THRESHOLD / 2);
+        for (int parallelism : new int[]{2, 3, 8}) {
+            LinkedList<Node> parallel = XQueryEngine.Query(query, false, parallelism);
+            assertEquals(sequential.size(), parallel.size());
+            Iterator<Node> it = parallel.iterator();
+            for (Node n : sequential) {
+                assertTrue(n.isEqualNode(it.next()));
+            }
+        }
+    }
+
+    /**
+     * Joins that exceed their memory budget spill to disk, to more partitions the smaller the budget,
+     * and return the same tuples, in the same order
+     */
+    @Test
+    public void SpillingJoinTests() throws Exception {
+        String doc = "doc(\"src/test/resources/edu/ucsd/cse232b/jsidrach/xquery/j_caesar.xml\")";
+        LinkedList<Node> left = XQueryEngine.Query("for $s in " + doc + "//SPEECH "
+                + "return <t>{<a>{$s/SPEAKER/text()}</a>, <l>{$s/LINE}</l>}</t>", false);
+        LinkedList<Node> right = XQueryEngine.Query("for $s in " + doc + "//SPEECH "
+                + "return <t>{<b>{$s/SPEAKER/text()}</b>}</t>", false);
+        XQueryParser parser = new XQueryParser(new CommonTokenStream(new XQueryLexer(
+                new ANTLRInputStream("join($l, $r, [a], [b])"))));
+        XQueryParser.XqJoinContext join = (XQueryParser.XqJoinContext) parser.xq();
+        List<TerminalNode> leftTags = join.tagList(0).Identifier();
+        List<TerminalNode> rightTags = join.tagList(1).Identifier();
+        int[][] expected = new HashJoin(1, Long.MAX_VALUE).match(left, leftTags, right, rightTags);
+        HashJoin spilling = new HashJoin(4, 1024);
+        int[][] matches = spilling.match(left, leftTags, right, rightTags);
+        assertTrue(spilling.getSpilledBytes() > 0);
+        HashJoin larger = new HashJoin(4, 64 * 1024);
+        larger.match(left, leftTags, right, rightTags);
+        assertTrue(larger.getSpilledPartitions() > 0);
+        assertTrue(spilling.getSpilledPartitions() > larger.getSpilledPartitions());
+        // More partitions than a single pass writes: the biggest partitions were partitioned again
+        assertTrue(spilling.getSpilledPartitions() > HashJoin.MAX_SPILL_PARTITIONS);
+        assertEquals(expected.length, matches.length);
+        for (int i = 0; i < expected.length; ++i) {
+            assertArrayEquals(expected[i], matches[i]);
+        }
+    }
+
+    /**
+     * Parallel joins under a memory budget compute the keys in parallel rounds, spill only if they exceed it
+     * (building partitions that fit in it), and return the same tuples, in the same order
+     */
+    @Test
+    public void ParallelSpillingJoinTests() throws Exception {
+        String doc = "doc(\"src/test/resources/edu/ucsd/cse232b/jsidrach/xquery/j_caesar.xml\")";
+        LinkedList<Node> left = XQueryEngine.Query("for $l in " + doc + "//LINE "
+                + "return <t>{<a>{$l/text()}</a>}</t>", false);
+        LinkedList<Node> right = XQueryEngine.Query("for $l in " + doc + "//SPEECH/LINE "
+                + "return <t>{<b>{$l/text()}</b>}</t>", false);
+        assertTrue(left.size() + right.size() >= HashJoin.PARALLEL_THRESHOLD);
+        XQueryParser parser = new XQueryParser(new CommonTokenStream(new XQueryLexer(
+                new ANTLRInputStream("join($l, $r, [a], [b])"))));
+        XQueryParser.XqJoinContext join = (XQueryParser.XqJoinContext) parser.xq();
+        List<TerminalNode> leftTags = join.tagList(0).Identifier();
+        List<TerminalNode> rightTags = join.tagList(1).Identifier();
+        int[][] expected = new HashJoin(1, Long.MAX_VALUE).match(left, leftTags, right, rightTags);
+        long footprint = 0;
+        for (Node n : right) {
+            footprint += XQueryEvaluator.keyNodeTags(n, rightTags).footprint();
+        }
+        // Budgets that are never checked, that are checked but not exceeded, that are exceeded once spilling
+        // is close (keys computed one at a time), and that are exceeded by the first parallel round
+        long[] budgets = {Long.MAX_VALUE, footprint * 2, footprint / 2, 64 * 1024};
+        boolean[] spilled = {false, false, true, true};
+        for (int b = 0; b < budgets.length; ++b) {
+            HashJoin parallel = new HashJoin(4, budgets[b]);
+            int[][] matches = parallel.match(left, leftTags, right, rightTags);
+            assertEquals(spilled[b], parallel.getSpilledPartitions() > 0);
+            assertTrue(parallel.getSpilledFootprint() <= budgets[b]);
+            assertEquals(expected.length, matches.length);
+            for (int i = 0; i < expected.length; ++i) {
+                assertArrayEquals(expected[i], matches[i]);
+            }
+        }
+    }
+
+    /**
+     * Prepared queries are cached, and can be executed repeatedly and concurrently with different external variables
+     */
+    @Test
+    public void PreparedQueryTests() throws Exception {
+        String doc = "doc(\"src/test/resources/edu/ucsd/cse232b/jsidrach/xquery/j_caesar.xml\")";
+        String query = "for $s in " + doc + "//SPEECH where $s/SPEAKER = $speaker return <s>{$s/LINE/text()}</s>";
+        PreparedQuery prepared = XQueryEngine.Prepare(query);
+        assertSame(prepared, XQueryEngine.Prepare(query));
+        assertEquals(0, prepared.execute(false).size());
+        String[] speakers = {"CAESAR", "BRUTUS", "CASSIUS", "ANTONY"};
+        LinkedList<String> expected = new LinkedList<>();
+        for (String speaker : speakers) {
+            String let = "let $speaker := <SPEAKER>{\"" + speaker + "\"}</SPEAKER> ";
+            expected.add(IO.NodesToString(XQueryEngine.Query(let + query, false), false));
+        }
+        // Each thread executes the query once per speaker
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            LinkedList<Future<LinkedList<String>>> futures = new LinkedList<>();
+            for (int t = 0; t < 4; ++t) {
+                futures.add(executor.submit(() -> {
+                    LinkedList<String> results = new LinkedList<>();
+                    for (String speaker : speakers) {
+                        LinkedList<Node> value = XQueryEngine.Query("<SPEAKER>{\"" + speaker + "\"}</SPEAKER>", false);
+                        HashMap<String, List<Node>> bindings = new HashMap<>();
+                        bindings.put("speaker", value);
+                        results.add(IO.NodesToString(prepared.execute(bindings, false), false));
+                    }
+                    return results;
+                }));
+            }
+            for (Future<LinkedList<String>> future : futures) {
+                assertEquals(expected, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(expected.getFirst().length() > 0);
+    }
+
+    /**
+     * Prepared queries return the same results once promoted to the hot tier (fused steps)
+     */
+    @Test
+    public void PromotedQueryTests() throws Exception {
+        String doc = "doc(\"src/test/resources/edu/ucsd/cse232b/jsidrach/xquery/j_caesar.xml\")";
+        String query = "for $a in " + doc + "/PLAY/ACT, $s in $a/SCENE "
+                + "where $s/SPEECH/SPEAKER/text() = $speaker "
+                + "return <r>{$a/TITLE/text(), $s/(TITLE, SPEECH/SPEAKER)/text(), $s/SPEECH[SPEAKER]/*/text()}</r>";
+        XQueryParser parser = new XQueryParser(new CommonTokenStream(new XQueryLexer(new ANTLRInputStream(query))));
+        PreparedQuery prepared = new PreparedQuery(query, parser.xq(), 3);
+        HashMap<String, List<Node>> bindings = new HashMap<>();
+        bindings.put("speaker", XQueryEngine.Query("\"CAESAR\"", false));
+        String expected = IO.NodesToString(prepared.execute(bindings, false), false);
+        assertFalse(prepared.isPromoted());
+        for (int i = 1; i < 5; ++i) {
+            assertEquals(expected, IO.NodesToString(prepared.execute(bindings, false), false));
+            assertEquals(i >= 2, prepared.isPromoted());
+        }
+        assertTrue(expected.contains("CAESAR"));
+    }
+
+    /**
+     * Fused relative paths (child axis steps, filters and descendant steps) return the same nodes,
+     * in the same order, as their steps compiled separately, and so do promoted and unpromoted queries
+     */
+    @Test
+    public void FusedPathTests() throws Exception {
+        String file = "\"src/test/resources/edu/ucsd/cse232b/jsidrach/xquery/j_caesar.xml\"";
+        String doc = "doc(" + file + ")";
+        LinkedList<Node> root = XPathEvaluator.root(file);
+        String[] paths = {
+                "PLAY/ACT/SCENE/SPEECH/LINE/text()",
+                "PLAY/ACT[TITLE]/SCENE[SPEECH/SPEAKER and not (SPEECH/STAGEDIR)]/TITLE",
+                "PLAY//SPEAKER/text()",
+                "PLAY/ACT//SPEECH[not (SPEAKER = LINE)]/*",
+                "PLAY/*//SCENE//LINE[STAGEDIR]/text()",
+                "PLAY//ACT/SCENE[TITLE/text() == TITLE/text()]//SPEAKER",
+                "PLAY//SPEECH//LINE//STAGEDIR"
+        };
+        XQueryPathCompiler compiler = new XQueryPathCompiler();
+        XQueryPathCompiler fusing = new XQueryPathCompiler(true);
+        for (String path : paths) {
+            XQueryParser.RpContext rp = new XQueryParser(new CommonTokenStream(
+                    new XQueryLexer(new ANTLRInputStream(path)))).rp();
+            PathStep step = fusing.compile(rp);
+            assertTrue(path, step instanceof FusedPath);
+            LinkedList<Node> expected = compiler.compile(rp).apply(root);
+            assertFalse(path, expected.isEmpty());
+            LinkedList<Node> result = step.apply(root);
+            assertEquals(path, expected.size(), result.size());
+            Iterator<Node> it = expected.iterator();
+            for (Node n : result) {
+                assertSame(path, it.next(), n);
+            }
+        }
+        // Promoted on its first execution, and never promoted
+        String query = "for $s in " + doc + "/PLAY/ACT//SCENE[TITLE]/SPEECH[LINE//text()] "
+                + "where $s/SPEAKER/text() = \"CAESAR\" return <r>{$s//LINE[text()]/text()}</r>";
+        PreparedQuery promoted = new PreparedQuery(query, new XQueryParser(new CommonTokenStream(
+                new XQueryLexer(new ANTLRInputStream(query)))).xq(), 1);
+        PreparedQuery unpromoted = new PreparedQuery(query, new XQueryParser(new CommonTokenStream(
+                new XQueryLexer(new ANTLRInputStream(query)))).xq(), Long.MAX_VALUE);
+        promoted.execute(false);
+        assertTrue(promoted.isPromoted());
+        String expected = IO.NodesToString(unpromoted.execute(false), false);
+        assertFalse(unpromoted.isPromoted());
+        assertEquals(expected, IO.NodesToString(promoted.execute(false), false));
+        assertTrue(expected.contains("<r>"));
+    }
+
+    /**
+     * Constructed elements present their content as a copy would: same serialization, equal nodes,
+     * and parents and siblings within the constructed element
+     */
+    @Test
+    public void ConstructedElementTests() throws Exception {
+        String doc = "doc(\"src/test/resources/edu/ucsd/cse232b/jsidrach/xquery/j_caesar.xml\")";
+        LinkedList<Node> originals = XQueryEngine.Query(doc + "/PLAY/(TITLE, PERSONAE)", false);
+        Node constructed = XQueryEngine.Query("<t>{" + doc + "/PLAY/(TITLE, PERSONAE)}</t>", false).getFirst();
+        LinkedList<Node> children = XQueryEvaluator.children(constructed);
+        assertEquals(IO.NodesToString(originals, false), IO.NodesToString(children, false));
+        Iterator<Node> it = originals.iterator();
+        for (Node c : children) {
+            Node original = it.next();
+            assertNotSame(original, c);
+            assertTrue(c.isEqualNode(original));
+            assertTrue(original.isEqualNode(c));
+            assertSame(constructed, c.getParentNode());
+        }
+        assertSame(children.getLast(), children.getFirst().getNextSibling());
+        // Navigating the content again returns the same nodes
+        Node persona = children.getLast().getFirstChild().getNextSibling();
+        assertSame(persona, XQueryEvaluator.children(children.getLast()).get(1));
+        assertSame(children.getLast(), persona.getParentNode());
+    }
+
+    /**
+     * Variables resolved into slots see their innermost binding, including bindings that hide previous ones,
+     * and external variables are still looked up by name
+     */
+    @Test
+    public void ResolvedVariableTests() throws Exception {
+        String doc = "doc(\"src/test/resources/edu/ucsd/cse232b/jsidrach/xquery/j_caesar.xml\")";
+        String hidden = "for $a in " + doc + "/PLAY, $b in $a/ACT, $a in $b/SCENE "
+                + "let $t := $a/TITLE where some $a in $b/TITLE satisfies $a/text() = \"ACT I\" "
+                + "return <r>{$t, (let $t := $b/TITLE $t)}</r>";
+        String renamed = "for $p in " + doc + "/PLAY, $b in $p/ACT, $a in $b/SCENE "
+                + "let $t := $a/TITLE where some $c in $b/TITLE satisfies $c/text() = \"ACT I\" "
+                + "return <r>{$t, (let $u := $b/TITLE $u)}</r>";
+        String expected = IO.NodesToString(XQueryEngine.Query(renamed, false), false);
+        assertEquals(expected, IO.NodesToString(XQueryEngine.Query(hidden, false), false));
+        assertTrue(expected.contains("ACT I<"));
+        String query = "for $s in " + doc + "//SPEECH where $s/SPEAKER/text() = $speaker return $s/SPEAKER";
+        XQueryParser parser = new XQueryParser(new CommonTokenStream(new XQueryLexer(new ANTLRInputStream(query))));
+        PreparedQuery prepared = new PreparedQuery(query, parser.xq());
+        HashMap<String, List<Node>> bindings = new HashMap<>();
+        bindings.put("speaker", XQueryEngine.Query("\"CAESAR\"", false));
+        LinkedList<Node> speakers = prepared.execute(bindings, false);
+        assertFalse(speakers.isEmpty());
+        for (Node speaker : speakers) {
+            assertEquals("CAESAR", speaker.getTextContent());
+        }
+    }
+
+    /**
+     * Expressions of for and let clauses are invariant only if they do not depend on the previous clauses,
+     * and invariant expressions give the same results as when they are evaluated for every tuple
+     */
+    @Test
+    public void InvariantClauseTests() throws Exception {
+        String doc = "doc(\"src/test/resources/edu/ucsd/cse232b/jsidrach/xquery/j_caesar.xml\")";
+        String query = "for $a in " + doc + "//SCENE, $b in " + doc + "//PERSONA, $c in $a/TITLE, $d in <d>{$b}</d> "
+                + "let $e := " + doc + "//ACT/TITLE, $f := $e/text(), $g := $c/text() "
+                + "where $a/../TITLE/text() = $f return <r>{$c, $b/text()}</r>";
+        XQueryParser parser = new XQueryParser(new CommonTokenStream(new XQueryLexer(new ANTLRInputStream(query))));
+        XQueryParser.XqFLWRContext flwr = (XQueryParser.XqFLWRContext) parser.xq();
+        VariableSlots slots = new XQueryVariableResolver().resolve(flwr);
+        boolean[] expected = {true, true, false, false, true, true, false};
+        List<XQueryParser.XqContext> clauses = new LinkedList<>(flwr.forClause().xq());
+        clauses.addAll(flwr.letClause().xq());
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i], slots.isInvariant(clauses.get(i)));
+        }
+        XQueryVisitor visitor = new XQueryVisitor(false);
+        visitor.setSlots(slots);
+        LinkedList<Node> nodes = visitor.visit(flwr);
+        assertFalse(nodes.isEmpty());
+        // Same query, evaluating every clause for every tuple (and looking up every variable by name)
+        LinkedList<Node> evaluated = new XQueryVisitor(false).visit(flwr);
+        assertEquals(IO.NodesToString(evaluated, false), IO.NodesToString(nodes, false));
+    }
+
+    /**
+     * Variables resolved into slots of nested frames (FLWR, let and some expressions, hiding outer variables)
+     * have the same values as when they are looked up by name, and resolving does not modify the parse tree
+     */
+    @Test
+    public void SlotTests() throws Exception {
+        String doc = "doc(\"src/test/resources/edu/ucsd/cse232b/jsidrach/xquery/j_caesar.xml\")";
+        String query = "for $a in " + doc + "//ACT, $t in $a/TITLE let $n := $t/text() "
+                + "where some $s in $a//SPEAKER, $a in $s/.. satisfies $a/SPEAKER/text() = \"CAESAR\" "
+                + "return let $x := $n, $t := <t>{$x}</t> return ($t, for $p in $a/SCENE let $q := $p/TITLE return $q)";
+        XQueryParser parser = new XQueryParser(new CommonTokenStream(new XQueryLexer(new ANTLRInputStream(query))));
+        XQueryParser.XqContext tree = parser.xq();
+        String text = tree.toStringTree(parser);
+        VariableSlots slots = new XQueryVariableResolver().resolve(tree);
+        assertEquals(text, tree.toStringTree(parser));
+        XQueryVisitor visitor = new XQueryVisitor(false);
+        visitor.setSlots(slots);
+        LinkedList<Node> nodes = visitor.visit(tree);
+        assertTrue(IO.NodesToString(nodes, false).contains("<t>ACT I</t>"));
+        LinkedList<Node> byName = new XQueryVisitor(false).visit(tree);
+        assertEquals(IO.NodesToString(byName, false), IO.NodesToString(nodes, false));
+    }
 }